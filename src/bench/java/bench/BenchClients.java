@@ -0,0 +1,197 @@
+package bench;
+
+import server.GameMode;
+import tetris.boards.io.BoardMessageType;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
+
+/**
+ * The client side of the protocol the benchmarks need, with plain blocking sockets (see the Network Protocol section of
+ * the README). Every client uses protocol version 0, which every server mode speaks.
+ */
+final class BenchClients {
+    /** Length of an update of the falling tetromino, the message clients send the most. */
+    static final int UPDATE_LENGTH = 1 + BoardMessageType.UPDATE_FALLING_TETROMINO.getPayloadLength();
+
+    private BenchClients() {}
+
+    /**
+     * Opens a connection with Nagle's algorithm disabled, so the latencies measured are the server's.
+     *
+     * @param port The port of the server (on this host).
+     * @return The connected socket.
+     * @throws IOException If the connection fails.
+     */
+    static Socket connect(int port) throws IOException {
+        Socket socket = new Socket();
+
+        socket.setTcpNoDelay(true);
+        socket.connect(new InetSocketAddress("localhost", port));
+        return socket;
+    }
+
+    /**
+     * Opens a connection through a {@link SocketChannel} (in blocking mode, so it can be used through its socket's
+     * streams until it is switched to non-blocking), with Nagle's algorithm disabled.
+     *
+     * @param port The port of the server (on this host).
+     * @return The connected channel.
+     * @throws IOException If the connection fails.
+     */
+    static SocketChannel connectChannel(int port) throws IOException {
+        SocketChannel channel = SocketChannel.open();
+
+        channel.socket().setTcpNoDelay(true);
+        channel.connect(new InetSocketAddress("localhost", port));
+        return channel;
+    }
+
+    /**
+     * Starts a private match between two new connections: the first one hosts a lobby and the second one joins it. Any
+     * number of them can be started at the same time, unlike quick play matches, whose pairs are up to the server.
+     *
+     * @param port The port of the server (on this host).
+     * @return The channels of the host and the joiner (in blocking mode), ready to relay.
+     * @throws IOException If a connection fails or the lobby can not be joined.
+     */
+    static SocketChannel[] startHostedMatch(int port) throws IOException {
+        SocketChannel host = connectChannel(port), joiner = connectChannel(port);
+        int roomId = hostGame(host.socket());
+
+        // The joiner is only answered once the host has answered the probe of the server
+        requestJoin(joiner.socket(), roomId);
+        waitForStart(host.socket());
+        if (!readJoinReply(joiner.socket())) throw new IOException("Could not join the room " + roomId);
+        waitForStart(joiner.socket());
+
+        return new SocketChannel[] { host, joiner };
+    }
+
+    /**
+     * Hosts a lobby.
+     *
+     * @param host The socket of the host.
+     * @return The Room ID of the lobby.
+     * @throws IOException If the connection fails.
+     */
+    static int hostGame(Socket host) throws IOException {
+        DataOutputStream dos = new DataOutputStream(host.getOutputStream());
+
+        dos.writeInt(GameMode.HOST_GAME.ordinal());
+        dos.flush();
+        return new DataInputStream(host.getInputStream()).readInt();
+    }
+
+    /**
+     * Asks to join a lobby. The server answers (see {@link #readJoinReply(Socket)}) once it has probed the host.
+     *
+     * @param joiner The socket of the joiner.
+     * @param roomId The Room ID of the lobby.
+     * @throws IOException If the connection fails.
+     */
+    static void requestJoin(Socket joiner, int roomId) throws IOException {
+        DataOutputStream dos = new DataOutputStream(joiner.getOutputStream());
+
+        dos.writeInt(GameMode.JOIN_GAME.ordinal());
+        dos.writeInt(roomId);
+        dos.flush();
+    }
+
+    /**
+     * @param joiner The socket of the joiner.
+     * @return Whether the lobby exists and its host has answered.
+     * @throws IOException If the connection fails.
+     */
+    static boolean readJoinReply(Socket joiner) throws IOException {
+        return new DataInputStream(joiner.getInputStream()).readBoolean();
+    }
+
+    /**
+     * Starts a quick play match between two new connections: both send the game mode and answer the probes of the
+     * server until it sends the connection confirmation and the seed.
+     *
+     * @param port The port of the server (on this host).
+     * @return The sockets of both players, ready to relay.
+     * @throws IOException If a connection fails.
+     */
+    static Socket[] startQuickPlayMatch(int port) throws IOException {
+        Socket[] players = { connect(port), connect(port) };
+        IOException[] failure = new IOException[1];
+
+        for (Socket player : players) new DataOutputStream(player.getOutputStream()).writeInt(GameMode.MODERN_TETRIS_QUICK_PLAY.ordinal());
+
+        // Both wait at the same time, the server may probe either of them before pairing them
+        Thread player2 = new Thread(() -> {
+            try { waitForStart(players[1]); }
+            catch (IOException ioe) { failure[0] = ioe; }
+        });
+        player2.start();
+        waitForStart(players[0]);
+
+        try { player2.join(); }
+        catch (InterruptedException ie) { throw new IOException(ie); }
+        if (failure[0] != null) throw failure[0];
+
+        return players;
+    }
+
+    /**
+     * Answers the probes of the server (a byte 0, echoed) until it sends the connection confirmation (a byte 1), and
+     * reads the seed.
+     *
+     * @param player The socket of the player.
+     * @return The seed of the match.
+     * @throws IOException If the connection fails.
+     */
+    static long waitForStart(Socket player) throws IOException {
+        return waitForStart(player, 0);
+    }
+
+    /**
+     * Answers the probes of the server like {@link #waitForStart(Socket)}, but only after a delay, like a client with a
+     * long round trip time would.
+     *
+     * @param player                 The socket of the player.
+     * @param probeDelayMilliseconds How long every probe waits before it is answered.
+     * @return The seed of the match.
+     * @throws IOException If the connection fails.
+     */
+    static long waitForStart(Socket player, long probeDelayMilliseconds) throws IOException {
+        DataInputStream dis = new DataInputStream(player.getInputStream());
+        DataOutputStream dos = new DataOutputStream(player.getOutputStream());
+
+        while (dis.readByte() != 1) {
+            if (probeDelayMilliseconds > 0) ServerProcess.sleep(probeDelayMilliseconds);
+            dos.writeByte(0);
+            dos.flush();
+        }
+
+        return dis.readLong();
+    }
+
+    /**
+     * Writes an update of the falling tetromino that has not locked, always inside the board, so the board replicas of
+     * the server accept it.
+     *
+     * @param buffer The buffer where the message is written.
+     * @param offset The index of the first byte.
+     * @param number A number that changes the position of the piece.
+     */
+    static void putUpdate(byte[] buffer, int offset, int number) {
+        buffer[offset] = (byte) BoardMessageType.UPDATE_FALLING_TETROMINO.ordinal();
+        buffer[offset + 1] = (byte) (number % 8);
+        buffer[offset + 2] = (byte) (number % 16);
+        buffer[offset + 3] = (byte) (number % 4);
+        buffer[offset + 4] = 0;
+    }
+
+    static void closeQuietly(Socket socket) {
+        try { socket.close(); }
+        catch (IOException ignored) { }
+    }
+}
@@ -0,0 +1,52 @@
+package bench;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Collects the latencies measured by a benchmark (from any thread) and reports their percentiles.
+ */
+final class LatencyRecorder {
+    private long[] samples;
+    private int numberOfSamples;
+
+    LatencyRecorder() {
+        samples = new long[1024];
+        numberOfSamples = 0;
+    }
+
+    /**
+     * @param nanoseconds The latency measured.
+     */
+    synchronized void record(long nanoseconds) {
+        if (numberOfSamples == samples.length) samples = Arrays.copyOf(samples, samples.length * 2);
+        samples[numberOfSamples++] = nanoseconds;
+    }
+
+    synchronized int getNumberOfSamples() { return numberOfSamples; }
+
+    /**
+     * @param percentile The percentile (between 0 and 100).
+     * @return The latency under which that percentage of the samples are, in milliseconds (0 without samples).
+     */
+    synchronized double getPercentileMilliseconds(double percentile) {
+        long[] sorted;
+        int index;
+
+        if (numberOfSamples == 0) return 0;
+
+        sorted = Arrays.copyOf(samples, numberOfSamples);
+        Arrays.sort(sorted);
+        index = (int) Math.ceil(percentile / 100 * numberOfSamples) - 1;
+
+        return sorted[Math.max(0, Math.min(index, numberOfSamples - 1))] / 1e6;
+    }
+
+    /**
+     * @return The median, the 99th percentile and the maximum, in milliseconds.
+     */
+    String summary() {
+        return String.format(Locale.ROOT, "p50 %.2f ms, p99 %.2f ms, max %.2f ms", getPercentileMilliseconds(50),
+                getPercentileMilliseconds(99), getPercentileMilliseconds(100));
+    }
+}
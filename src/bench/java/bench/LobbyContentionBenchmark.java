@@ -0,0 +1,159 @@
+package bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Contention benchmark of the private lobbies of the blocking server: how many lobbies are hosted and joined per
+ * second, and whether that depends on the round trip time of a single client.
+ * <p>
+ * It simulates a number of host and joiner pairs (100 clients by default), each one hosting a lobby, joining it,
+ * waiting for the match to start and closing it, over and over. The round is run twice against a new server: first
+ * every host answers the probes of the server right away, and then a few hosts (the slow ones) only answer them after
+ * a delay, like a client with a long round trip time would. A slow host is joined by its own joiner, so every one of
+ * its joins has to wait for it.
+ * </p>
+ * <p>
+ * A join is timed from the moment the joiner sends the Room ID to the moment it reads the start of the match. The
+ * joins per second and the latencies are those of the pairs with fast hosts, after a short warm up: if the lobbies do
+ * not depend on the slowest client, they stay the same in both rounds.
+ * </p>
+ * <p>
+ * The server can be started from the classes of another build ({@code --server-classpath}), to compare both (e.g.,
+ * a build from before the joins stopped holding the lobby lock while they probe the host).
+ * </p>
+ * <p>
+ * Usage: {@code java -cp target/classes:target/bench-classes bench.LobbyContentionBenchmark [--pairs=N] [--slow-hosts=N]
+ * [--slow-rtt-ms=N] [--seconds=N] [--server-classpath=PATH]}
+ * </p>
+ */
+public class LobbyContentionBenchmark {
+    /** Time the pairs run before the joins are counted (so the JIT compilers of both sides have warmed up). */
+    private static final long WARM_UP_NANOSECONDS = TimeUnit.SECONDS.toNanos(1);
+
+    /** A client that waits longer than this for the server gives up on its join. */
+    private static final int CLIENT_TIMEOUT_MILLISECONDS = 30_000;
+
+    private final int port;
+    private final int numberOfPairs;
+    private final int numberOfSlowHosts;
+    private final long slowRoundTripMilliseconds;
+    private final long phaseNanoseconds;
+
+    private LobbyContentionBenchmark(int port, int numberOfPairs, int numberOfSlowHosts, long slowRoundTripMilliseconds, int seconds) {
+        this.port = port;
+        this.numberOfPairs = numberOfPairs;
+        this.numberOfSlowHosts = numberOfSlowHosts;
+        this.slowRoundTripMilliseconds = slowRoundTripMilliseconds;
+        this.phaseNanoseconds = TimeUnit.SECONDS.toNanos(seconds);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int numberOfPairs = 50, numberOfSlowHosts = 1, seconds = 10;
+        long slowRoundTripMilliseconds = 2000;
+        String serverClasspath = System.getProperty("java.class.path");
+
+        for (String arg : args) {
+            String value = arg.substring(arg.indexOf('=') + 1);
+
+            if (arg.startsWith("--pairs=")) numberOfPairs = Integer.parseInt(value);
+            else if (arg.startsWith("--slow-hosts=")) numberOfSlowHosts = Integer.parseInt(value);
+            else if (arg.startsWith("--slow-rtt-ms=")) slowRoundTripMilliseconds = Long.parseLong(value);
+            else if (arg.startsWith("--seconds=")) seconds = Integer.parseInt(value);
+            else if (arg.startsWith("--server-classpath=")) serverClasspath = value;
+            else throw new IllegalArgumentException("Unknown option: " + arg);
+        }
+
+        if (numberOfSlowHosts >= numberOfPairs) throw new IllegalArgumentException("At least one host has to be fast");
+
+        System.out.println("Lobby contention: " + numberOfPairs * 2 + " clients (" + numberOfPairs + " pairs), " + seconds + " s per round, server "
+                + serverClasspath.split(File.pathSeparator)[0]);
+        System.out.println(String.format(Locale.ROOT, "%-28s %10s %-46s %10s %8s", "slow hosts", "joins/s", "join latency (fast hosts)", "slow joins",
+                "failed"));
+
+        for (int slowHosts : new int[] { 0, numberOfSlowHosts }) {
+            try (ServerProcess server = ServerProcess.start(serverClasspath, Arrays.asList("--io=blocking"))) {
+                new LobbyContentionBenchmark(server.getPort(), numberOfPairs, slowHosts, slowRoundTripMilliseconds, seconds).run();
+            }
+        }
+    }
+
+    /**
+     * Runs every pair during a round and prints a line with the results.
+     *
+     * @throws InterruptedException If interrupted while waiting for the pairs.
+     */
+    private void run() throws InterruptedException {
+        CountDownLatch finished = new CountDownLatch(numberOfPairs);
+        LatencyRecorder joinLatencies = new LatencyRecorder();
+        AtomicLong slowJoins = new AtomicLong(), failedJoins = new AtomicLong();
+        long start = System.nanoTime(), measuredFrom = start + WARM_UP_NANOSECONDS, end = measuredFrom + phaseNanoseconds;
+
+        for (int i = 0; i < numberOfPairs; i++) {
+            boolean slow = i < numberOfSlowHosts;
+
+            new Thread(() -> {
+                long joinStartedAt, joinLatency;
+
+                try {
+                    while ((joinStartedAt = System.nanoTime()) < end) {
+                        try { joinLatency = join(slow ? slowRoundTripMilliseconds : 0); }
+                        catch (IOException ioe) {
+                            failedJoins.incrementAndGet();
+                            continue;
+                        }
+
+                        if (slow) slowJoins.incrementAndGet();
+                        else if (joinStartedAt >= measuredFrom && joinStartedAt + joinLatency <= end) joinLatencies.record(joinLatency);
+                    }
+                }
+                finally { finished.countDown(); }
+            }).start();
+        }
+
+        finished.await();
+
+        String slowHosts = numberOfSlowHosts == 0 ? "none" : numberOfSlowHosts + " (probes answered in " + slowRoundTripMilliseconds + " ms)";
+        System.out.println(String.format(Locale.ROOT, "%-28s %10.0f %-46s %10d %8d", slowHosts, joinLatencies.getNumberOfSamples() / (phaseNanoseconds / 1e9),
+                joinLatencies.summary(), slowJoins.get(), failedJoins.get()));
+    }
+
+    /**
+     * Hosts a lobby, joins it from another connection and waits until the match starts for both, then closes the
+     * match.
+     *
+     * @param probeDelayMilliseconds How long the host waits before it answers every probe of the server.
+     * @return The nanoseconds from the moment the joiner sent the Room ID to the start of its match.
+     * @throws IOException If a connection fails or the lobby can not be joined.
+     */
+    private long join(long probeDelayMilliseconds) throws IOException {
+        Socket host = BenchClients.connect(port), joiner = BenchClients.connect(port);
+        long joinStartedAt;
+
+        try {
+            host.setSoTimeout(CLIENT_TIMEOUT_MILLISECONDS);
+            joiner.setSoTimeout(CLIENT_TIMEOUT_MILLISECONDS);
+
+            int roomId = BenchClients.hostGame(host);
+
+            // The joiner is only answered once the host has answered the probe of the server
+            joinStartedAt = System.nanoTime();
+            BenchClients.requestJoin(joiner, roomId);
+            BenchClients.waitForStart(host, probeDelayMilliseconds);
+            if (!BenchClients.readJoinReply(joiner)) throw new IOException("Could not join the room " + roomId);
+            BenchClients.waitForStart(joiner);
+
+            return System.nanoTime() - joinStartedAt;
+        }
+        finally {
+            BenchClients.closeQuietly(host);
+            BenchClients.closeQuietly(joiner);
+        }
+    }
+}
@@ -0,0 +1,293 @@
+package bench;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compares the throughput and the latency of the relay modes of the blocking server (see
+ * {@link server.playerHandlers.RelayMode}): byte by byte, buffered, buffered with a flush window and direct.
+ * <p>
+ * For every mode it starts a blocking server (see {@link ServerProcess}) and a number of quick play matches, and then:
+ * </p>
+ * <ol>
+ * <li>Latency: once per frame (16 ms), player 1 of every match sends a few updates of the falling tetromino in one
+ * write and player 2 echoes every byte back, so player 1 measures the round trip through both directions of the
+ * relay.</li>
+ * <li>Throughput: player 1 of every match sends updates one write at a time, as fast as the relay takes them, and
+ * player 2 counts what it receives.</li>
+ * </ol>
+ * <p>
+ * Each phase has its own matches and, once they are closed, the reads and writes logged by their relays give the
+ * system calls the server has made per update in that phase. The sender rate limit of the server is lifted, so the relay itself is what is measured, and no update is
+ * dropped (the slow consumer policy is to disconnect, after a timeout longer than the benchmark), so a relay that does
+ * not keep up blocks its sender instead.
+ * </p>
+ * <p>
+ * Usage: {@code java -cp target/classes:target/bench-classes bench.RelayComparison [--matches=N] [--seconds=N]
+ * [--updates-per-frame=N] [--flush-window-us=N]}
+ * </p>
+ */
+public class RelayComparison {
+    private static final long FRAME_NANOSECONDS = TimeUnit.MILLISECONDS.toNanos(16);
+
+    private final int port;
+    private final int numberOfMatches;
+    private final long phaseNanoseconds;
+    private final int updatesPerFrame;
+
+    private RelayComparison(int port, int numberOfMatches, int seconds, int updatesPerFrame) {
+        this.port = port;
+        this.numberOfMatches = numberOfMatches;
+        this.phaseNanoseconds = TimeUnit.SECONDS.toNanos(seconds);
+        this.updatesPerFrame = updatesPerFrame;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int numberOfMatches = 20, seconds = 5, updatesPerFrame = 3, flushWindowMicroseconds = 200;
+
+        for (String arg : args) {
+            String value = arg.substring(arg.indexOf('=') + 1);
+
+            if (arg.startsWith("--matches=")) numberOfMatches = Integer.parseInt(value);
+            else if (arg.startsWith("--seconds=")) seconds = Integer.parseInt(value);
+            else if (arg.startsWith("--updates-per-frame=")) updatesPerFrame = Integer.parseInt(value);
+            else if (arg.startsWith("--flush-window-us=")) flushWindowMicroseconds = Integer.parseInt(value);
+            else throw new IllegalArgumentException("Unknown option: " + arg);
+        }
+
+        String[][] modes = {
+                { "--relay=byte-by-byte" },
+                { "--relay=buffered" },
+                { "--relay=buffered", "--flush-window-us=" + flushWindowMicroseconds },
+                { "--relay=direct" }
+        };
+
+        System.out.println("Relay comparison: " + numberOfMatches + " matches, " + seconds + " s per phase, " + updatesPerFrame + " updates per frame");
+        System.out.println(String.format(Locale.ROOT, "%-42s %-44s %10s %10s %12s %10s %10s", "mode", "round trip per frame", "reads/upd", "writes/upd",
+                "flood upd/s", "reads/upd", "writes/upd"));
+
+        for (String[] mode : modes) {
+            List<String> options = new ArrayList<>(Arrays.asList("--io=blocking", "--relay-rate=0", "--slow-consumer=disconnect", "--slow-consumer-timeout-ms=600000"));
+            options.addAll(Arrays.asList(mode));
+
+            try (ServerProcess server = ServerProcess.start(System.getProperty("java.class.path"), options)) {
+                new RelayComparison(server.getPort(), numberOfMatches, seconds, updatesPerFrame).run(String.join(" ", mode), server);
+            }
+        }
+    }
+
+    /**
+     * Runs both phases against a server, each one with its own matches, and prints a line with the results.
+     *
+     * @param mode   The relay options of the server.
+     * @param server The server.
+     * @throws Exception If a match can not be started.
+     */
+    private void run(String mode, ServerProcess server) throws Exception {
+        LatencyRecorder roundTrips = new LatencyRecorder();
+        Socket[][] matches;
+        long[] latencyTotals, throughputTotals;
+        long updatesReceived;
+
+        matches = startMatches();
+        measureLatency(matches, roundTrips);
+        latencyTotals = closeMatches(matches, server, new long[3]);
+
+        matches = startMatches();
+        updatesReceived = measureThroughput(matches);
+        throughputTotals = closeMatches(matches, server, latencyTotals);
+
+        System.out.println(String.format(Locale.ROOT, "%-42s %-44s %10.3f %10.3f %12.0f %10.3f %10.3f", mode, roundTrips.summary(),
+                getPerUpdate(latencyTotals, 1), getPerUpdate(latencyTotals, 2), updatesReceived / (phaseNanoseconds / 1e9),
+                getPerUpdate(throughputTotals, 1), getPerUpdate(throughputTotals, 2)));
+    }
+
+    /**
+     * Sends a frame of updates from player 1 of every match once per frame, and measures how long they take to come
+     * back from player 2.
+     *
+     * @param matches    The sockets of the players of every match.
+     * @param roundTrips Where the round trips are recorded.
+     * @throws InterruptedException If interrupted while waiting for the matches.
+     */
+    private void measureLatency(Socket[][] matches, LatencyRecorder roundTrips) throws InterruptedException {
+        CountDownLatch finished = new CountDownLatch(numberOfMatches * 2);
+        int frameLength = updatesPerFrame * BenchClients.UPDATE_LENGTH;
+
+        for (Socket[] match : matches) {
+            // Player 2 echoes every frame it receives
+            start(finished, () -> {
+                byte[] frame = new byte[frameLength];
+                InputStream in = match[1].getInputStream();
+                OutputStream out = match[1].getOutputStream();
+
+                for (long frames = phaseNanoseconds / FRAME_NANOSECONDS; frames > 0; frames--) {
+                    readFully(in, frame);
+                    out.write(frame);
+                }
+            });
+
+            // Player 1 sends a frame and waits for it to come back
+            start(finished, () -> {
+                byte[] frame = new byte[frameLength], echo = new byte[frameLength];
+                InputStream in = match[0].getInputStream();
+                OutputStream out = match[0].getOutputStream();
+                long nextFrame = System.nanoTime(), sentAt;
+
+                for (long frames = phaseNanoseconds / FRAME_NANOSECONDS; frames > 0; frames--) {
+                    for (int i = 0; i < updatesPerFrame; i++) BenchClients.putUpdate(frame, i * BenchClients.UPDATE_LENGTH, (int) frames + i);
+
+                    sentAt = System.nanoTime();
+                    out.write(frame);
+                    readFully(in, echo);
+                    roundTrips.record(System.nanoTime() - sentAt);
+
+                    nextFrame += FRAME_NANOSECONDS;
+                    TimeUnit.NANOSECONDS.sleep(Math.max(0, nextFrame - System.nanoTime()));
+                }
+            });
+        }
+
+        finished.await();
+    }
+
+    /**
+     * Floods player 2 of every match with updates from player 1, one write per update, during a phase.
+     *
+     * @param matches The sockets of the players of every match.
+     * @return The number of updates received by every player 2 during the phase.
+     * @throws InterruptedException If interrupted while waiting for the matches.
+     */
+    private long measureThroughput(Socket[][] matches) throws InterruptedException {
+        CountDownLatch finished = new CountDownLatch(numberOfMatches * 2);
+        AtomicLong bytesReceived = new AtomicLong();
+        long end = System.nanoTime() + phaseNanoseconds;
+
+        for (Socket[] match : matches) {
+            CountDownLatch sent = new CountDownLatch(1);
+
+            start(finished, () -> {
+                byte[] update = new byte[BenchClients.UPDATE_LENGTH];
+                OutputStream out = match[0].getOutputStream();
+
+                try {
+                    for (int number = 0; System.nanoTime() < end; number++) {
+                        BenchClients.putUpdate(update, 0, number);
+                        out.write(update);
+                    }
+                }
+                finally { sent.countDown(); }
+            });
+
+            start(finished, () -> {
+                byte[] buffer = new byte[4096];
+                InputStream in = match[1].getInputStream();
+                int length;
+
+                // Read until the sender is done, so a sender blocked by the relay at the end of the phase can finish
+                match[1].setSoTimeout(100);
+                while (true) {
+                    try { length = in.read(buffer); }
+                    catch (SocketTimeoutException ste) {
+                        if (sent.getCount() == 0) break;
+                        continue;
+                    }
+                    if (length < 0) break;
+                    if (System.nanoTime() < end) bytesReceived.addAndGet(length);
+                }
+                match[1].setSoTimeout(0);
+            });
+        }
+
+        finished.await();
+        return bytesReceived.get() / BenchClients.UPDATE_LENGTH;
+    }
+
+    // ---------------------------------------------------------------------------------
+    // Auxiliary methods
+
+    private Socket[][] startMatches() throws IOException {
+        Socket[][] matches = new Socket[numberOfMatches][];
+
+        for (int i = 0; i < numberOfMatches; i++) matches[i] = BenchClients.startQuickPlayMatch(port);
+        return matches;
+    }
+
+    /**
+     * Ends the matches (both players close their output, which makes every relay log its reads and writes) and waits
+     * for the server to close them.
+     *
+     * @param matches        The sockets of the players of every match.
+     * @param server         The server.
+     * @param previousTotals The relay totals of the server before these matches.
+     * @return The bytes relayed, the reads and the writes of the relays of these matches.
+     * @throws IOException If the log of the server can not be read.
+     */
+    private static long[] closeMatches(Socket[][] matches, ServerProcess server, long[] previousTotals) throws IOException {
+        long[] totals;
+
+        for (Socket[] match : matches) {
+            for (Socket player : match) player.shutdownOutput();
+        }
+        for (Socket[] match : matches) {
+            for (Socket player : match) {
+                drain(player.getInputStream());
+                BenchClients.closeQuietly(player);
+            }
+        }
+        ServerProcess.sleep(500);
+
+        totals = server.getRelayTotals();
+        for (int i = 0; i < totals.length; i++) totals[i] -= previousTotals[i];
+        return totals;
+    }
+
+    /**
+     * @param relayTotals The bytes relayed, the reads and the writes of some relays.
+     * @param index       The index of the reads (1) or the writes (2).
+     * @return The reads or writes made per update relayed.
+     */
+    private static double getPerUpdate(long[] relayTotals, int index) {
+        return relayTotals[0] == 0 ? 0 : (double) relayTotals[index] * BenchClients.UPDATE_LENGTH / relayTotals[0];
+    }
+
+    private interface ClientTask {
+        void run() throws Exception;
+    }
+
+    private static void start(CountDownLatch finished, ClientTask task) {
+        new Thread(() -> {
+            try { task.run(); }
+            catch (Exception e) { System.out.println("Client failed: " + e); }
+            finally { finished.countDown(); }
+        }).start();
+    }
+
+    private static void readFully(InputStream in, byte[] buffer) throws IOException {
+        int length;
+
+        for (int read = 0; read < buffer.length; read += length) {
+            length = in.read(buffer, read, buffer.length - read);
+            if (length < 0) throw new IOException("The server closed the match");
+        }
+    }
+
+    private static void drain(InputStream in) {
+        byte[] buffer = new byte[4096];
+
+        try {
+            while (in.read(buffer) >= 0) { }
+        }
+        catch (IOException ignored) { }
+    }
+}
@@ -0,0 +1,179 @@
+package bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A server started in its own JVM for a benchmark, so the load generator and the server do not share a heap nor a
+ * garbage collector.
+ * <p>
+ * The server runs on the same Java as the benchmark (so a benchmark run on Java 21 can start a server with virtual
+ * threads) and its output goes to a temporary log, which the benchmarks read to get what the server reports (e.g.,
+ * the reads and writes of every relay).
+ * </p>
+ */
+final class ServerProcess implements AutoCloseable {
+    /** Line the server prints once it accepts connections. */
+    private static final String READY_LINE = "Server is running";
+
+    /** Prefix of the line every blocking relay prints when it finishes. */
+    private static final String RELAY_FINISHED_LINE = "Relay finished";
+
+    private static final long START_TIMEOUT_MILLISECONDS = 15_000;
+
+    private final Process process;
+    private final Path log;
+    private final int port;
+
+    private ServerProcess(Process process, Path log, int port) {
+        this.process = process;
+        this.log = log;
+        this.port = port;
+    }
+
+    /**
+     * Starts a server on a free port and waits until it accepts connections. The admission limits are lifted, since
+     * every client of a benchmark comes from the same address (builds older than the admission control have none).
+     *
+     * @param classpath The classpath of the server (e.g., the classes of another build, to compare both).
+     * @param options   The {@code --name=value} options of the server.
+     * @return The running server.
+     * @throws IOException If the server can not be started or stops before accepting connections.
+     */
+    static ServerProcess start(String classpath, List<String> options) throws IOException {
+        List<String> command = new ArrayList<>();
+        Path log = Files.createTempFile("tetris-bench-server", ".log");
+        int port = findFreePort();
+        Process process;
+
+        command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+        command.add("-cp");
+        command.add(classpath);
+        command.add("server.Server");
+        command.add(Integer.toString(port));
+        if (hasAdmissionControl(classpath)) {
+            command.add("--max-connections=100000");
+            command.add("--connect-rate=100000");
+            command.add("--connect-burst=100000");
+        }
+        command.addAll(options);
+
+        process = new ProcessBuilder(command).redirectErrorStream(true).redirectOutput(log.toFile()).start();
+        ServerProcess server = new ServerProcess(process, log, port);
+
+        long deadline = System.currentTimeMillis() + START_TIMEOUT_MILLISECONDS;
+        while (!server.readLog().stream().anyMatch(line -> line.startsWith(READY_LINE))) {
+            if (!process.isAlive() || System.currentTimeMillis() > deadline) {
+                server.close();
+                throw new IOException("The server did not start: " + String.join(" | ", server.readLog()));
+            }
+            sleep(50);
+        }
+
+        return server;
+    }
+
+    public int getPort() { return port; }
+
+    /**
+     * @return The lines the server has printed so far.
+     * @throws IOException If the log can not be read.
+     */
+    List<String> readLog() throws IOException {
+        return Files.readAllLines(log, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Adds up the lines of the finished relays, which look like
+     * {@code Relay finished (BUFFERED): 1234 bytes in 56 reads and 78 writes...}.
+     *
+     * @return The bytes relayed, the reads and the writes of every relay finished so far, in that order.
+     * @throws IOException If the log can not be read.
+     */
+    long[] getRelayTotals() throws IOException {
+        long[] totals = new long[3];
+
+        for (String line : readLog()) {
+            if (!line.startsWith(RELAY_FINISHED_LINE)) continue;
+
+            String[] words = line.substring(line.indexOf(':') + 1).trim().split("[ ,]+");
+            totals[0] += Long.parseLong(words[0]);
+            totals[1] += Long.parseLong(words[3]);
+            totals[2] += Long.parseLong(words[6]);
+        }
+
+        return totals;
+    }
+
+    /**
+     * Reads the threads and the resident memory of the server from {@code /proc} (Linux only). The benchmarks are built
+     * for Java 8, so the pid of the process ({@code Process.pid()}, since Java 9) is looked up through reflection.
+     *
+     * @return The number of threads and the resident memory in kilobytes, in that order, or {@code null} if they are
+     *         not available.
+     */
+    long[] getThreadsAndResidentKilobytes() {
+        long[] status = new long[2];
+        Object pid;
+
+        try { pid = Process.class.getMethod("pid").invoke(process); }
+        catch (ReflectiveOperationException roe) { return null; }
+
+        try {
+            for (String line : Files.readAllLines(Paths.get("/proc", pid.toString(), "status"), StandardCharsets.UTF_8)) {
+                if (line.startsWith("Threads:")) status[0] = Long.parseLong(line.substring(8).trim());
+                else if (line.startsWith("VmRSS:")) status[1] = Long.parseLong(line.substring(6).trim().split(" ")[0]);
+            }
+        }
+        catch (IOException ioe) { return null; }
+
+        return status;
+    }
+
+    /**
+     * Stops the server and deletes its log.
+     */
+    @Override
+    public void close() {
+        process.destroy();
+
+        try {
+            if (!process.waitFor(5, TimeUnit.SECONDS)) process.destroyForcibly().waitFor();
+            Files.deleteIfExists(log);
+        }
+        catch (InterruptedException ie) { Thread.currentThread().interrupt(); }
+        catch (IOException ioe) { System.out.println("Could not delete the server log " + log); }
+    }
+
+    // ---------------------------------------------------------------------------------
+    // Auxiliary methods
+
+    private static boolean hasAdmissionControl(String classpath) throws IOException {
+        List<URL> urls = new ArrayList<>();
+
+        for (String entry : classpath.split(File.pathSeparator)) urls.add(Paths.get(entry).toUri().toURL());
+
+        try (URLClassLoader loader = new URLClassLoader(urls.toArray(new URL[0]), null)) {
+            return loader.getResource("server/rateLimiting/AdmissionController.class") != null;
+        }
+    }
+
+    private static int findFreePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) { return socket.getLocalPort(); }
+    }
+
+    static void sleep(long milliseconds) {
+        try { Thread.sleep(milliseconds); }
+        catch (InterruptedException ie) { Thread.currentThread().interrupt(); }
+    }
+}
@@ -0,0 +1,385 @@
+package bench;
+
+import server.GameMode;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Load test of the blocking server with platform and virtual threads (see {@link server.ThreadType}): how many
+ * concurrent matches each thread mode sustains.
+ * <p>
+ * For every thread mode and every number of matches it starts a blocking server (see {@link ServerProcess}), starts
+ * the matches (hosted lobbies joined right away, so many of them can be started at once) and then keeps every player
+ * sending an update of the falling tetromino at a fixed interval, as clients do while they play. All the players are
+ * run by a single selector thread, so the load generator does not need a thread per connection itself.
+ * </p>
+ * <p>
+ * Every update is timed from the moment its player writes it to the moment its rival reads it (both ends are in this
+ * process), after a short warm up. A number of matches is sustained if all of them start, none is closed by the server,
+ * nearly every update is delivered and the 99th percentile of that latency stays under a limit. The threads and the resident memory of the server are also reported.
+ * </p>
+ * <p>
+ * Stalled clients can be added to the mix ({@code --stalled-clients}): while the load runs, each of them searches a
+ * quick play match and never answers the liveness probe of the server, reconnecting as soon as the server gives up on
+ * it, so the server is always waiting for some probes to time out.
+ * </p>
+ * <p>
+ * Virtual threads need the benchmark to run on Java 21 or newer (the server runs on the same Java), the mode is
+ * skipped otherwise.
+ * </p>
+ * <p>
+ * Usage: {@code java -cp target/classes:target/bench-classes bench.ThreadModeLoadTest [--matches=N,N,...]
+ * [--seconds=N] [--update-interval-ms=N] [--max-p99-ms=N] [--threads=platform,virtual] [--stalled-clients=N]}
+ * </p>
+ */
+public class ThreadModeLoadTest {
+    /** Connections started at the same time while the matches are set up. */
+    private static final int SETUP_PARALLELISM = 16;
+
+    /** Time the load runs before the latencies are recorded (so the JIT compilers of both sides have warmed up). */
+    private static final long WARM_UP_NANOSECONDS = TimeUnit.SECONDS.toNanos(2);
+
+    private final int numberOfMatches;
+    private final long phaseNanoseconds;
+    private final long updateIntervalNanoseconds;
+    private final int numberOfStalledClients;
+
+    private ThreadModeLoadTest(int numberOfMatches, int seconds, int updateIntervalMilliseconds, int numberOfStalledClients) {
+        this.numberOfMatches = numberOfMatches;
+        this.phaseNanoseconds = TimeUnit.SECONDS.toNanos(seconds);
+        this.updateIntervalNanoseconds = TimeUnit.MILLISECONDS.toNanos(updateIntervalMilliseconds);
+        this.numberOfStalledClients = numberOfStalledClients;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int[] steps = { 250, 500, 1000, 2000 };
+        int seconds = 10, updateIntervalMilliseconds = 100, numberOfStalledClients = 0;
+        double maxP99Milliseconds = 50;
+        String[] threadTypes = { "platform", "virtual" };
+
+        for (String arg : args) {
+            String value = arg.substring(arg.indexOf('=') + 1);
+
+            if (arg.startsWith("--matches=")) steps = Arrays.stream(value.split(",")).mapToInt(Integer::parseInt).toArray();
+            else if (arg.startsWith("--seconds=")) seconds = Integer.parseInt(value);
+            else if (arg.startsWith("--update-interval-ms=")) updateIntervalMilliseconds = Integer.parseInt(value);
+            else if (arg.startsWith("--max-p99-ms=")) maxP99Milliseconds = Double.parseDouble(value);
+            else if (arg.startsWith("--threads=")) threadTypes = value.split(",");
+            else if (arg.startsWith("--stalled-clients=")) numberOfStalledClients = Integer.parseInt(value);
+            else throw new IllegalArgumentException("Unknown option: " + arg);
+        }
+
+        System.out.println("Thread mode load test on Java " + System.getProperty("java.version") + ": " + seconds + " s per step, an update every "
+                + updateIntervalMilliseconds + " ms per player, " + numberOfStalledClients + " stalled clients, sustained while p99 < " + maxP99Milliseconds + " ms");
+        System.out.println(String.format(Locale.ROOT, "%-9s %8s %10s %-46s %9s %8s %9s %10s", "threads", "matches", "setup", "update latency",
+                "delivered", "closed", "server th", "server RSS"));
+
+        for (String threadType : threadTypes) {
+            int sustained = 0;
+
+            if (threadType.equals("virtual") && !supportsVirtualThreads()) {
+                System.out.println("virtual   skipped, it needs Java 21 or newer");
+                continue;
+            }
+
+            for (int numberOfMatches : steps) {
+                List<String> options = Arrays.asList("--io=blocking", "--threads=" + threadType, "--relay-rate=0",
+                        "--slow-consumer=disconnect", "--slow-consumer-timeout-ms=600000");
+
+                try (ServerProcess server = ServerProcess.start(System.getProperty("java.class.path"), options)) {
+                    if (!new ThreadModeLoadTest(numberOfMatches, seconds, updateIntervalMilliseconds, numberOfStalledClients).run(threadType, server, maxP99Milliseconds)) break;
+                    sustained = numberOfMatches;
+                }
+            }
+
+            System.out.println(threadType + " threads sustain " + sustained + " concurrent matches");
+        }
+    }
+
+    /**
+     * Starts the matches, runs the load and prints a line with the results.
+     *
+     * @param threadType         The thread mode of the server.
+     * @param server             The server.
+     * @param maxP99Milliseconds The latency limit.
+     * @return Whether the matches have been sustained.
+     * @throws Exception If the load can not be run.
+     */
+    private boolean run(String threadType, ServerProcess server, double maxP99Milliseconds) throws Exception {
+        LatencyRecorder latencies = new LatencyRecorder();
+        List<SocketChannel[]> matches = new ArrayList<>();
+        long setupStart = System.nanoTime(), setupNanoseconds, delivered, expected;
+        long[] serverStatus;
+        Player[] players;
+        List<Thread> stalledClients;
+        CountDownLatch stopStalledClients = new CountDownLatch(1);
+        int failedSetups, closed = 0;
+        boolean sustained;
+
+        failedSetups = startMatches(server.getPort(), matches);
+        setupNanoseconds = System.nanoTime() - setupStart;
+
+        players = new Player[matches.size() * 2];
+        for (int i = 0; i < matches.size(); i++) {
+            players[i * 2] = new Player(matches.get(i)[0]);
+            players[i * 2 + 1] = new Player(matches.get(i)[1]);
+            players[i * 2].rival = players[i * 2 + 1];
+            players[i * 2 + 1].rival = players[i * 2];
+        }
+
+        stalledClients = startStalledClients(server.getPort(), stopStalledClients);
+        try { serverStatus = runLoad(players, latencies, server); }
+        finally {
+            stopStalledClients.countDown();
+            for (Thread stalledClient : stalledClients) stalledClient.join();
+        }
+        delivered = 0;
+        expected = 0;
+        for (Player player : players) {
+            delivered += player.updatesReceived;
+            expected += player.updatesSent;
+            if (player.closed) closed++;
+            BenchClients.closeQuietly(player.channel.socket());
+        }
+
+        sustained = failedSetups == 0 && closed == 0 && delivered >= expected * 0.99 && latencies.getPercentileMilliseconds(99) < maxP99Milliseconds;
+        System.out.println(String.format(Locale.ROOT, "%-9s %8d %8.1f s %-46s %8.1f%% %8d %9s %10s%s", threadType, numberOfMatches,
+                setupNanoseconds / 1e9, latencies.summary(), expected == 0 ? 0 : 100.0 * delivered / expected, closed + failedSetups * 2,
+                serverStatus == null ? "-" : Long.toString(serverStatus[0]), serverStatus == null ? "-" : (serverStatus[1] / 1024) + " MB",
+                sustained ? "" : "  (not sustained)"));
+
+        return sustained;
+    }
+
+    /**
+     * Starts the matches from a few threads at once.
+     *
+     * @param port    The port of the server.
+     * @param matches Where the channels of the matches started are added.
+     * @return The number of matches that could not be started.
+     * @throws InterruptedException If interrupted while waiting for the matches.
+     */
+    private int startMatches(int port, List<SocketChannel[]> matches) throws InterruptedException {
+        ExecutorService setup = Executors.newFixedThreadPool(SETUP_PARALLELISM);
+        List<Future<SocketChannel[]>> pending = new ArrayList<>();
+        int failed = 0;
+
+        for (int i = 0; i < numberOfMatches; i++) pending.add(setup.submit(() -> BenchClients.startHostedMatch(port)));
+
+        for (Future<SocketChannel[]> match : pending) {
+            try { matches.add(match.get()); }
+            catch (Exception e) { failed++; }
+        }
+
+        setup.shutdown();
+        return failed;
+    }
+
+    /**
+     * Starts the stalled clients: each one searches a quick play match, reads whatever the server sends without
+     * answering its probes and, once the server closes it, connects again, until it is stopped.
+     *
+     * @param port The port of the server.
+     * @param stop Counted down to stop the clients.
+     * @return The threads of the clients.
+     */
+    private List<Thread> startStalledClients(int port, CountDownLatch stop) {
+        List<Thread> stalledClients = new ArrayList<>();
+
+        for (int i = 0; i < numberOfStalledClients; i++) {
+            Thread stalledClient = new Thread(() -> {
+                byte[] buffer = new byte[64];
+
+                while (stop.getCount() > 0) {
+                    try (Socket socket = BenchClients.connect(port)) {
+                        new DataOutputStream(socket.getOutputStream()).writeInt(GameMode.MODERN_TETRIS_QUICK_PLAY.ordinal());
+                        socket.setSoTimeout(100);
+
+                        while (stop.getCount() > 0) {
+                            try { if (socket.getInputStream().read(buffer) < 0) break; }
+                            catch (SocketTimeoutException ste) { }
+                        }
+                    }
+                    catch (IOException ioe) { ServerProcess.sleep(100); }
+                }
+            });
+
+            stalledClient.start();
+            stalledClients.add(stalledClient);
+        }
+
+        return stalledClients;
+    }
+
+    /**
+     * Runs the players on a selector for a phase: every player writes an update at every interval (the players are
+     * spread evenly over the interval) and the updates read are timed against the moment their rival wrote them.
+     *
+     * @param players   Every player, next to its rival.
+     * @param latencies Where the latencies are recorded.
+     * @param server    The server, whose threads and memory are read at the end of the phase.
+     * @return The threads and the resident kilobytes of the server at the end of the phase, or {@code null}.
+     * @throws IOException If the selector fails.
+     */
+    private long[] runLoad(Player[] players, LatencyRecorder latencies, ServerProcess server) throws IOException {
+        ByteBuffer readBuffer = ByteBuffer.allocate(4096);
+        long start = System.nanoTime(), recordFrom = start + WARM_UP_NANOSECONDS, end = recordFrom + phaseNanoseconds, now;
+        int nextPlayer = 0;
+
+        try (Selector selector = Selector.open()) {
+            for (int i = 0; i < players.length; i++) {
+                players[i].channel.configureBlocking(false);
+                players[i].channel.register(selector, SelectionKey.OP_READ, players[i]);
+                players[i].nextUpdate = start + updateIntervalNanoseconds * i / players.length;
+            }
+
+            while ((now = System.nanoTime()) < end) {
+                // The players whose update is due, in the order they are due
+                while (players.length > 0 && players[nextPlayer].nextUpdate <= now) {
+                    players[nextPlayer].sendUpdate(now);
+                    players[nextPlayer].nextUpdate += updateIntervalNanoseconds;
+                    nextPlayer = (nextPlayer + 1) % players.length;
+                }
+
+                selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(players.length > 0 ? players[nextPlayer].nextUpdate - now : 1)));
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    ((Player) key.attachment()).receiveUpdates(readBuffer, now >= recordFrom ? latencies : null, key);
+                }
+            }
+
+            return server.getThreadsAndResidentKilobytes();
+        }
+    }
+
+    // ---------------------------------------------------------------------------------
+    // Auxiliary methods
+
+    private static boolean supportsVirtualThreads() {
+        try {
+            Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return true;
+        }
+        catch (NoSuchMethodException nsme) { return false; }
+    }
+
+    /**
+     * A player of the load, with the times at which it has written the updates its rival has not read yet.
+     */
+    private static final class Player {
+        private final SocketChannel channel;
+        private final ByteBuffer update;
+        private Player rival;
+        private long[] sentAt;
+        private int firstSent;
+        private int numberOfSent;
+        private int bytesOfNextUpdate;
+        private long nextUpdate;
+        private long updatesSent;
+        private long updatesReceived;
+        private boolean closed;
+
+        private Player(SocketChannel channel) {
+            this.channel = channel;
+            update = ByteBuffer.allocate(BenchClients.UPDATE_LENGTH);
+            update.limit(0);
+            sentAt = new long[64];
+            firstSent = 0;
+            numberOfSent = 0;
+            bytesOfNextUpdate = 0;
+            updatesSent = 0;
+            updatesReceived = 0;
+            closed = false;
+        }
+
+        /**
+         * Writes the next update, unless the previous one is still being written (the relay is not keeping up).
+         *
+         * @param now The time the update is written at.
+         */
+        private void sendUpdate(long now) {
+            if (closed) return;
+
+            try {
+                if (!update.hasRemaining()) {
+                    BenchClients.putUpdate(update.array(), 0, (int) updatesSent);
+                    update.clear();
+                    addSentAt(now);
+                    updatesSent++;
+                }
+                channel.write(update);
+            }
+            catch (IOException ioe) { closed = true; }
+        }
+
+        /**
+         * Reads what has arrived and times every complete update against the moment the rival wrote it.
+         *
+         * @param latencies Where the latencies are recorded, or {@code null} while warming up.
+         */
+        private void receiveUpdates(ByteBuffer readBuffer, LatencyRecorder latencies, SelectionKey key) {
+            long now;
+            int length;
+
+            try {
+                readBuffer.clear();
+                length = channel.read(readBuffer);
+            }
+            catch (IOException ioe) { length = -1; }
+
+            if (length < 0) {
+                closed = true;
+                key.cancel();
+                return;
+            }
+
+            now = System.nanoTime();
+            for (bytesOfNextUpdate += length; bytesOfNextUpdate >= BenchClients.UPDATE_LENGTH; bytesOfNextUpdate -= BenchClients.UPDATE_LENGTH) {
+                long sentAt = rival.takeSentAt();
+
+                if (latencies != null) latencies.record(now - sentAt);
+                updatesReceived++;
+            }
+        }
+
+        private void addSentAt(long now) {
+            if (numberOfSent == sentAt.length) {
+                long[] grown = new long[sentAt.length * 2];
+                for (int i = 0; i < numberOfSent; i++) grown[i] = sentAt[(firstSent + i) % sentAt.length];
+                sentAt = grown;
+                firstSent = 0;
+            }
+
+            sentAt[(firstSent + numberOfSent) % sentAt.length] = now;
+            numberOfSent++;
+        }
+
+        private long takeSentAt() {
+            long oldest = sentAt[firstSent];
+
+            firstSent = (firstSent + 1) % sentAt.length;
+            numberOfSent--;
+            return oldest;
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package client;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static server.Server.PEER_LISTEN;
+
+/**
+ * Negotiates the direct connection between the two players of a match that the server has started with
+ * the {@link server.Server#PEER_TO_PEER} option (see {@link server.eventLoops.EventLoopMatch} for the protocol).
+ * <p>
+ * The result is the socket the match is played on: the direct connection to the rival if both players agreed on it,
+ * or the connection to the server otherwise, which then relays the match as usual. The game panels can not tell one
+ * from the other.
+ * </p>
+ */
+public class PeerConnector {
+    /** Time given to the direct connection to be opened, and then to the rival to confirm it. */
+    public static final int PEER_CONNECT_TIMEOUT_MILLISECONDS = 2000;
+
+    private PeerConnector() {}
+
+    /**
+     * Negotiates the direct connection, right after the seed has been read.
+     *
+     * @param serverSocket The connection to the server.
+     * @param dis          The input stream from the server.
+     * @param dos          The output stream to the server.
+     * @return The socket the match is played on.
+     * @throws IOException If the connection to the server fails.
+     */
+    public static Socket negotiate(Socket serverSocket, DataInputStream dis, DataOutputStream dos) throws IOException {
+        if (dis.readByte() == PEER_LISTEN) return listen(serverSocket, dis, dos);
+        else return connect(serverSocket, dis, dos);
+    }
+
+    // ---------------------------------------------------------------------------------
+    // Auxiliary methods
+
+    /**
+     * Listens for the rival until the server tells whether the rival has connected.
+     *
+     * @param serverSocket The connection to the server.
+     * @param dis          The input stream from the server.
+     * @param dos          The output stream to the server.
+     * @return The direct connection to the rival, or the connection to the server.
+     * @throws IOException If the connection to the server fails.
+     */
+    private static Socket listen(Socket serverSocket, DataInputStream dis, DataOutputStream dos) throws IOException {
+        long token = dis.readLong();
+        AtomicReference<Socket> peerSocket = new AtomicReference<>();
+        ServerSocket listener;
+        Thread acceptor;
+        boolean connected;
+
+        try { listener = new ServerSocket(0); }
+        catch (IOException ioe) {
+            // The rival is told there is nothing to connect to
+            dos.writeInt(0);
+            dos.flush();
+            dis.readByte();
+            return serverSocket;
+        }
+
+        acceptor = new Thread(() -> acceptRival(listener, token, peerSocket), "peer-listener");
+        acceptor.setDaemon(true);
+        acceptor.start();
+
+        dos.writeInt(listener.getLocalPort());
+        dos.flush();
+
+        // The server passes on the result of the rival, the accept is aborted if it has failed
+        try { connected = dis.readByte() == 1; }
+        finally {
+            closeQuietly(listener);
+            join(acceptor);
+        }
+
+        if (connected && peerSocket.get() != null) {
+            closeQuietly(serverSocket);
+            return peerSocket.get();
+        }
+
+        if (peerSocket.get() != null) closeQuietly(peerSocket.get());
+        return serverSocket;
+    }
+
+    /**
+     * Accepts connections until one sends the token (it is then confirmed with a byte 1) or the listener is closed.
+     *
+     * @param listener   The listening socket.
+     * @param token      The token of the match.
+     * @param peerSocket Where the connection of the rival is left.
+     */
+    private static void acceptRival(ServerSocket listener, long token, AtomicReference<Socket> peerSocket) {
+        Socket candidate;
+
+        while (!listener.isClosed()) {
+            try {
+                candidate = listener.accept();
+            }
+            catch (IOException ioe) { return; }
+
+            try {
+                candidate.setSoTimeout(PEER_CONNECT_TIMEOUT_MILLISECONDS);
+
+                if (new DataInputStream(candidate.getInputStream()).readLong() == token) {
+                    candidate.setSoTimeout(0);
+                    candidate.setTcpNoDelay(true);
+                    peerSocket.set(candidate);
+                    candidate.getOutputStream().write(1);
+                    return;
+                }
+
+                candidate.close();
+            }
+            catch (IOException ioe) { closeQuietly(candidate); }
+        }
+    }
+
+    /**
+     * Connects to the rival and tells the server whether it has succeeded.
+     *
+     * @param serverSocket The connection to the server.
+     * @param dis          The input stream from the server.
+     * @param dos          The output stream to the server.
+     * @return The direct connection to the rival, or the connection to the server.
+     * @throws IOException If the connection to the server fails.
+     */
+    private static Socket connect(Socket serverSocket, DataInputStream dis, DataOutputStream dos) throws IOException {
+        byte[] rivalHost = new byte[dis.readUnsignedByte()];
+        int rivalPort;
+        long token;
+        Socket peerSocket = null;
+        boolean connected = false;
+
+        dis.readFully(rivalHost);
+        rivalPort = dis.readInt();
+        token = dis.readLong();
+
+        if (rivalPort != 0) {
+            try {
+                peerSocket = new Socket();
+                peerSocket.connect(new InetSocketAddress(InetAddress.getByAddress(rivalHost), rivalPort), PEER_CONNECT_TIMEOUT_MILLISECONDS);
+                peerSocket.setSoTimeout(PEER_CONNECT_TIMEOUT_MILLISECONDS);
+                peerSocket.setTcpNoDelay(true);
+                new DataOutputStream(peerSocket.getOutputStream()).writeLong(token);
+
+                connected = peerSocket.getInputStream().read() == 1;
+                peerSocket.setSoTimeout(0);
+            }
+            catch (IOException ioe) { connected = false; }
+        }
+
+        dos.writeByte(connected ? 1 : 0);
+        dos.flush();
+
+        if (connected) {
+            closeQuietly(serverSocket);
+            return peerSocket;
+        }
+
+        if (peerSocket != null) closeQuietly(peerSocket);
+        return serverSocket;
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try { closeable.close(); }
+        catch (IOException e) { System.out.println("FATAL ERROR while trying to close socket after negotiating peer-to-peer connection"); } // This should never happen, if it does your computer is broken sry
+    }
+
+    private static void join(Thread thread) {
+        try { thread.join(); }
+        catch (InterruptedException ie) { Thread.currentThread().interrupt(); }
+    }
+}
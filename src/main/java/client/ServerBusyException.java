@@ -0,0 +1,15 @@
+package client;
+
+import java.io.IOException;
+
+/**
+ * Signals that the server rejected the connection with the {@link server.Server#SERVER_BUSY} reply (it has too many
+ * connections, or this address has connected too often).
+ */
+public class ServerBusyException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    public ServerBusyException() {
+        super("The server is busy");
+    }
+}
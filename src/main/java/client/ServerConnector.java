@@ -10,7 +10,21 @@ import javax.swing.*;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.PushbackInputStream;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+import static server.Server.COMPACT_BOARD_MESSAGES;
+import static server.Server.DATAGRAM_UPDATES;
+import static server.Server.FRAMED_BOARD_MESSAGES;
+import static server.Server.PEER_TO_PEER;
+import static server.Server.PROTOCOL_VERSION;
+import static server.Server.PROTOCOL_VERSION_SHIFT;
+import static server.Server.SERVER_BUSY;
+import static server.Server.SERVER_MATCH_READY;
+import static server.Server.SERVER_REDIRECT;
+import static server.Server.SERVER_RESTARTING;
 
 /**
  * Handles the logic for connecting the client to the game server.
@@ -19,6 +33,34 @@ import java.net.Socket;
  * handshake/negotiation protocol (selecting game mode, hosting/joining lobbies), and
  * transitioning the UI state based on the connection result.
  * </p>
+ * <p>
+ * A server over its limits answers any game mode with a single {@link server.Server#SERVER_BUSY} byte and closes
+ * the connection, which is reported to the user instead of a connection error. A draining server answers with
+ * {@link server.Server#SERVER_RESTARTING} instead (even while the client waits for a rival), and the client
+ * connects again with the same game mode, reaching the server that took over the port.
+ * </p>
+ * <p>
+ * A node of a cluster of servers may answer with {@link server.Server#SERVER_REDIRECT} and the address of another
+ * node instead (e.g., the room being joined belongs to it), and the client connects there with the same game mode
+ * and, when joining, the same Room ID.
+ * </p>
+ * <p>
+ * The whole handshake is sent in a single write (see {@link server.Server#PROTOCOL_VERSION}): the game mode with the
+ * protocol version and the capabilities of the client, the round trip time measured while opening the connection (so
+ * the server does not have to probe the client before queueing it) and, when joining, the Room ID, which is asked
+ * before connecting. The match starts with a single {@link server.Server#SERVER_MATCH_READY} frame with the seed and
+ * the options of the match.
+ * </p>
+ * <p>
+ * The client tells the server that it can play peer-to-peer. If its rival can too, the server starts the match with
+ * the {@link server.Server#PEER_TO_PEER} option and the {@link PeerConnector} tries to connect both players directly,
+ * falling back to the server relay when they can not reach each other.
+ * </p>
+ * <p>
+ * It also tells the server that it can use the compact encoding and the framing of the board messages, which the match
+ * uses when the server grants the {@link server.Server#COMPACT_BOARD_MESSAGES} and
+ * {@link server.Server#FRAMED_BOARD_MESSAGES} options (that is, when its rival can use them too).
+ * </p>
  */
 public class ServerConnector {
     /**
@@ -26,6 +68,12 @@ public class ServerConnector {
      */
     public static final String SERVER_IP = "localhost";
 
+    /** Time given to the new server to bind the port before reconnecting to it. */
+    public static final int RECONNECT_DELAY_MILLISECONDS = 1000;
+
+    /** Reconnections in a row (to a restarting server or to the node it was redirected to) after which the server is reported as down. */
+    public static final int MAX_RECONNECTIONS = 3;
+
     private final MainPanel mainPanel;
     private final WaitingOpponentPanel waitingOpponentPanel;
     private String serverIp;
@@ -59,25 +107,58 @@ public class ServerConnector {
      *
      * @param gameMode The game mode to initiate (Quick Play, Host, or Join).
      */
-    public void connect(GameMode gameMode){
+    public void connect(GameMode gameMode) { connect(gameMode, serverIp, serverPort, -1, MAX_RECONNECTIONS); }
+
+    /**
+     * Initiates a connection to a server in a separate thread, reconnecting if the server is restarting or redirects
+     * the client to another node.
+     *
+     * @param gameMode           The game mode to initiate (Quick Play, Host, or Join).
+     * @param ip                 The IP address of the server.
+     * @param port               The port of the server.
+     * @param roomId             The Room ID to join, or -1 to ask the user for it.
+     * @param reconnectionsLeft  The number of times the client may still reconnect.
+     */
+    private void connect(GameMode gameMode, String ip, int port, int roomId, int reconnectionsLeft){
         new Thread(() -> {
+            int roomIdToJoin = roomId;
             Socket boardsSocket = null;
+            PushbackInputStream pis;
             DataInputStream dis;
             DataOutputStream dos;
             boolean succesfulNegotiation = true;
             byte statusByte;
-            long seed;
+            long seed, connectStartedAt;
+            int roundTripMillis, options;
 
             waitingOpponentPanel.setRoomIdVisibility(false);
+
+            // The Room ID is asked before connecting, so it is sent with the game mode
+            if (gameMode == GameMode.JOIN_GAME && roomIdToJoin < 0) {
+                waitingOpponentPanel.setMessage("Waiting for a valid room ID...");
+                roomIdToJoin = askRoomId();
+
+                if (roomIdToJoin < 0) {
+                    mainPanel.backToStartMenu();
+                    return;
+                }
+            }
+
             waitingOpponentPanel.setMessage("Connecting to server...");
 
             try {
-                boardsSocket = new Socket(serverIp, serverPort);
+                // Opening the connection takes a round trip, which the server uses instead of measuring it again
+                boardsSocket = new Socket();
+                connectStartedAt = System.nanoTime();
+                boardsSocket.connect(new InetSocketAddress(ip, port));
+                roundTripMillis = (int) TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - connectStartedAt);
 
-                dis = new DataInputStream(boardsSocket.getInputStream());
+                // The first byte of every reply is peeked (and pushed back) to recognize the busy reply
+                pis = new PushbackInputStream(boardsSocket.getInputStream());
+                dis = new DataInputStream(pis);
                 dos = new DataOutputStream(boardsSocket.getOutputStream());
 
-                sendGameModeMessage(dos, gameMode);
+                sendHello(dos, gameMode, roundTripMillis, roomIdToJoin);
 
                 switch (gameMode) {
                     case MODERN_TETRIS_QUICK_PLAY:
@@ -85,27 +166,49 @@ public class ServerConnector {
                         waitingOpponentPanel.setMessage("Waiting for an opponent...");
                         break;
                     case HOST_GAME:
-                        hostGameNegotiation(dis);
+                        hostGameNegotiation(pis, dis);
                         waitingOpponentPanel.setMessage("Waiting for an opponent to join the room...");
                         break;
                     case JOIN_GAME:
-                        waitingOpponentPanel.setMessage("Waiting for a valid room ID...");
-                        succesfulNegotiation = joinGameNegotiation(dis, dos);
+                        succesfulNegotiation = joinGameNegotiation(pis, dis, roomIdToJoin);
                         break;
                 }
 
                 if (succesfulNegotiation) {
                     // Server keeps checking connection online by sending 0s as bytes until a player is found and then
-                    // server sends a 1 as a byte to notify of successful connection.
-                    while ((statusByte = dis.readByte()) != 1) {
+                    // server sends the match ready frame (or a 1 from the blocking server) to notify of successful connection.
+                    while ((statusByte = dis.readByte()) != 1 && statusByte != SERVER_MATCH_READY) {
+                        if (statusByte == SERVER_BUSY) throw new ServerBusyException();
+                        if (statusByte == SERVER_RESTARTING) throw new ServerRestartingException();
+                        if (statusByte == SERVER_REDIRECT) throw readRedirect(dis);
                         dos.writeByte(0);
                     }
 
-                    // Server sends the seed when a player is found and this is also the start game signal
+                    // Server sends the seed when a player is found and this is also the start game signal, followed by
+                    // the options of the match in the match ready frame
                     seed = dis.readLong();
-                    mainPanel.startOnlineGame(seed, boardsSocket, gameMode);
+                    options = statusByte == SERVER_MATCH_READY ? dis.readInt() : 0;
+                    if ((options & PEER_TO_PEER) != 0) {
+                        waitingOpponentPanel.setMessage("Connecting to the opponent...");
+                        boardsSocket = PeerConnector.negotiate(boardsSocket, dis, dos);
+                    }
+                    mainPanel.startOnlineGame(seed, boardsSocket, gameMode, options);
+                }
+                else {
+                    closeSocket(boardsSocket);
+                    mainPanel.backToStartMenu();
                 }
-                else mainPanel.backToStartMenu();
+            } catch (ServerBusyException sbe) {
+                closeSocket(boardsSocket);
+                mainPanel.backToStartMenu();
+                serverBusyErrorHandling();
+            } catch (ServerRestartingException sre) {
+                // The lobbies of a restarting server are gone, a joiner is asked for the Room ID again
+                closeSocket(boardsSocket);
+                reconnect(gameMode, ip, port, reconnectionsLeft);
+            } catch (ServerRedirectException sre) {
+                closeSocket(boardsSocket);
+                redirect(gameMode, sre, roomIdToJoin, reconnectionsLeft);
             } catch (IOException ioe){
                 try {
                     succesfulNegotiation = false;
@@ -120,14 +223,22 @@ public class ServerConnector {
     }
 
     /**
-     * Sends the selected game mode ordinal to the server.
+     * Sends the whole handshake to the server in a single write: the selected game mode ordinal (with the
+     * {@link server.Server#PEER_TO_PEER}, {@link server.Server#DATAGRAM_UPDATES},
+     * {@link server.Server#COMPACT_BOARD_MESSAGES} and {@link server.Server#FRAMED_BOARD_MESSAGES} flags and the
+     * {@link server.Server#PROTOCOL_VERSION}), the round trip time measured while connecting and, when joining, the
+     * Room ID.
      *
-     * @param dos      The output stream to the server.
-     * @param gameMode The selected connection mode.
+     * @param dos             The output stream to the server.
+     * @param gameMode        The selected connection mode.
+     * @param roundTripMillis The time it took to open the connection, in ms.
+     * @param roomId          The Room ID to join (ignored for the other game modes).
      * @throws IOException If the write fails.
      */
-    private void sendGameModeMessage(DataOutputStream dos, GameMode gameMode) throws IOException {
-        dos.writeInt(gameMode.ordinal());
+    private void sendHello(DataOutputStream dos, GameMode gameMode, int roundTripMillis, int roomId) throws IOException {
+        dos.writeInt(gameMode.ordinal() | PEER_TO_PEER | DATAGRAM_UPDATES | COMPACT_BOARD_MESSAGES | FRAMED_BOARD_MESSAGES | PROTOCOL_VERSION << PROTOCOL_VERSION_SHIFT);
+        dos.writeInt(roundTripMillis);
+        if (gameMode == GameMode.JOIN_GAME) dos.writeInt(roomId);
         dos.flush();
     }
 
@@ -135,28 +246,27 @@ public class ServerConnector {
      * Handles the specific protocol for hosting a private game.
      * Waits for the server to return a generated Room ID and displays it.
      *
+     * @param pis The input stream from the server, to peek the busy reply.
      * @param dis The input stream from the server.
-     * @throws IOException If the read fails.
+     * @throws IOException If the read fails ({@link ServerBusyException} if the server rejected the connection).
      */
-    private void hostGameNegotiation(DataInputStream dis) throws IOException {
-        int roomId = dis.readInt(); // Server sends the roomId when a lobby is created
+    private void hostGameNegotiation(PushbackInputStream pis, DataInputStream dis) throws IOException {
+        int roomId;
+
+        checkServerBusy(pis);
+        roomId = dis.readInt(); // Server sends the roomId when a lobby is created
 
         waitingOpponentPanel.setRoomId(roomId);
         waitingOpponentPanel.setRoomIdVisibility(true);
     }
 
     /**
-     * Handles the specific protocol for joining a private game.
-     * Prompts the user for a Room ID, sends it to the server, and checks if it exists.
+     * Prompts the user for the Room ID of the private game to join.
      *
-     * @param dis The input stream from the server.
-     * @param dos The output stream to the server.
-     * @return {@code true} if the lobby exists and join was successful, {@code false} otherwise.
-     * @throws IOException If network IO fails.
+     * @return The Room ID typed by the user, or -1 if the user cancelled.
      */
-    private boolean joinGameNegotiation(DataInputStream dis, DataOutputStream dos) throws IOException {
+    private int askRoomId() {
         LobbySearchDialog lobbySearchDialog;
-        boolean lobbyExists;
 
         // Show input dialog on the EDT (Event Dispatch Thread) would be ideal,
         // but since we are in a background thread, we must be careful.
@@ -165,14 +275,27 @@ public class ServerConnector {
         lobbySearchDialog = new LobbySearchDialog(mainPanel);
         lobbySearchDialog.setVisible(true);
 
-        // Send room ID
-        dos.writeInt(lobbySearchDialog.getRoomId());
-        dos.flush();
+        return lobbySearchDialog.getRoomId();
+    }
+
+    /**
+     * Handles the specific protocol for joining a private game.
+     * Checks if the Room ID sent with the game mode exists.
+     *
+     * @param pis    The input stream from the server, to peek the busy reply.
+     * @param dis    The input stream from the server.
+     * @param roomId The Room ID to join.
+     * @return {@code true} if the lobby exists and join was successful, {@code false} otherwise.
+     * @throws IOException If network IO fails ({@link ServerBusyException} if the server rejected the connection).
+     */
+    private boolean joinGameNegotiation(PushbackInputStream pis, DataInputStream dis, int roomId) throws IOException {
+        boolean lobbyExists;
 
         // Read if it exists
+        checkServerBusy(pis);
         lobbyExists = dis.readBoolean();
 
-        if (!lobbyExists && lobbySearchDialog.getRoomId() != -1) {
+        if (!lobbyExists) {
             CustomMessageDialog.showMessage(mainPanel,
                     "WARNING: The room doesn't exist.",
                     "No room found",
@@ -182,6 +305,103 @@ public class ServerConnector {
         return lobbyExists;
     }
 
+    /**
+     * Peeks the first byte of a reply from the server.
+     *
+     * @param pis The input stream from the server.
+     * @throws ServerBusyException       If the byte is the {@link server.Server#SERVER_BUSY} reply.
+     * @throws ServerRestartingException If the byte is the {@link server.Server#SERVER_RESTARTING} reply.
+     * @throws ServerRedirectException   If the byte is the {@link server.Server#SERVER_REDIRECT} reply.
+     * @throws IOException               If the read fails.
+     */
+    private void checkServerBusy(PushbackInputStream pis) throws IOException {
+        int firstByte = pis.read();
+
+        if (firstByte == SERVER_BUSY) throw new ServerBusyException();
+        if (firstByte == SERVER_RESTARTING) throw new ServerRestartingException();
+        if (firstByte == SERVER_REDIRECT) throw readRedirect(new DataInputStream(pis));
+        if (firstByte >= 0) pis.unread(firstByte);
+    }
+
+    /**
+     * Reads the address that follows a {@link server.Server#SERVER_REDIRECT} byte.
+     *
+     * @param dis The input stream from the server.
+     * @return The redirect to throw.
+     * @throws IOException If the read fails.
+     */
+    private ServerRedirectException readRedirect(DataInputStream dis) throws IOException {
+        String host = dis.readUTF();
+        int port = dis.readInt();
+
+        return new ServerRedirectException(host, port);
+    }
+
+    /**
+     * Connects again after a restarting server closed the connection, once the new server has had time to bind the
+     * port. After {@value #MAX_RECONNECTIONS} reconnections in a row the server is reported as down.
+     *
+     * @param gameMode          The game mode to initiate again.
+     * @param ip                The IP address of the restarting server.
+     * @param port              The port of the restarting server.
+     * @param reconnectionsLeft The number of times the client may still reconnect.
+     */
+    private void reconnect(GameMode gameMode, String ip, int port, int reconnectionsLeft) {
+        if (reconnectionsLeft == 0) {
+            mainPanel.backToStartMenu();
+            serverDownErrorHandling();
+            return;
+        }
+
+        waitingOpponentPanel.setMessage("The server is restarting, reconnecting...");
+
+        try { Thread.sleep(RECONNECT_DELAY_MILLISECONDS); }
+        catch (InterruptedException ie) { Thread.currentThread().interrupt(); }
+
+        connect(gameMode, ip, port, -1, reconnectionsLeft - 1);
+    }
+
+    /**
+     * Connects to the node of the cluster the client has been redirected to, right away. It counts as a reconnection,
+     * so nodes redirecting to each other are eventually reported as down.
+     *
+     * @param gameMode          The game mode to initiate again.
+     * @param redirect          The redirect, with the address of the node.
+     * @param roomId            The Room ID being joined (-1 if the game mode is not joining a room).
+     * @param reconnectionsLeft The number of times the client may still reconnect.
+     */
+    private void redirect(GameMode gameMode, ServerRedirectException redirect, int roomId, int reconnectionsLeft) {
+        if (reconnectionsLeft == 0) {
+            mainPanel.backToStartMenu();
+            serverDownErrorHandling();
+            return;
+        }
+
+        waitingOpponentPanel.setMessage("Connecting to another server...");
+        connect(gameMode, redirect.getHost(), redirect.getPort(), roomId, reconnectionsLeft - 1);
+    }
+
+    /**
+     * Closes the socket (if it was opened) after a failed or rejected negotiation.
+     *
+     * @param boardsSocket The socket connected to the server, or null.
+     */
+    private void closeSocket(Socket boardsSocket) {
+        try { if (boardsSocket != null) boardsSocket.close(); }
+        catch (IOException e) { System.out.println("FATAL ERROR while trying to close socket after failing negotiation with server"); } // This should never happen, if it does your computer is broken sry
+    }
+
+    /**
+     * Displays a warning when the server rejects the connection because it is busy.
+     */
+    private void serverBusyErrorHandling() {
+        CustomMessageDialog.showMessage(mainPanel,
+                "WARNING: The server is busy, please try again later.",
+                "Server busy",
+                JOptionPane.WARNING_MESSAGE);
+        mainPanel.backToStartMenu();
+    }
+
     /**
      * Displays an error message when the server cannot be reached.
      */
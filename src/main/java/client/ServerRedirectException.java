@@ -0,0 +1,23 @@
+package client;
+
+import java.io.IOException;
+
+/**
+ * Signals that a node of a cluster of servers told the client to continue on another node with the
+ * {@link server.Server#SERVER_REDIRECT} reply (e.g., the room being joined belongs to that node).
+ */
+public class ServerRedirectException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    private final String host;
+    private final int port;
+
+    public ServerRedirectException(String host, int port) {
+        super("Redirected to " + host + ":" + port);
+        this.host = host;
+        this.port = port;
+    }
+
+    public String getHost() { return host; }
+    public int getPort() { return port; }
+}
@@ -0,0 +1,15 @@
+package client;
+
+import java.io.IOException;
+
+/**
+ * Signals that the server is draining and told the client to reconnect with the
+ * {@link server.Server#SERVER_RESTARTING} reply (the port is taken over by a new server).
+ */
+public class ServerRestartingException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    public ServerRestartingException() {
+        super("The server is restarting");
+    }
+}
@@ -5,6 +5,7 @@ import client.userInterface.panels.tetris.singlePlayerPanels.SinglePlayerModernT
 import client.userInterface.panels.tetris.singlePlayerPanels.SinglePlayerNESPanel;
 import client.userInterface.panels.tetris.twoPlayerPanels.*;
 import server.GameMode;
+import server.Server;
 import tetris.boards.components.BoardGrid;
 import client.keyMaps.KeyInputHandler;
 
@@ -220,8 +221,9 @@ public class MainPanel extends JPanel {
      * @param seed     The random seed shared by the server to ensure deterministic gameplay.
      * @param socket   The active socket connection to the server/opponent.
      * @param gameMode The game mode being played (Modern or NES).
+     * @param options  The options of the match granted by the server (e.g., {@link Server#COMPACT_BOARD_MESSAGES}).
      */
-    public void startOnlineGame(long seed, Socket socket, GameMode gameMode) {
+    public void startOnlineGame(long seed, Socket socket, GameMode gameMode, int options) {
         waitingOpponentPanel.stopAnimation();
 
         OnlineTwoPlayersPanel onlineTwoPlayersPanel;
@@ -239,6 +241,8 @@ public class MainPanel extends JPanel {
 
         onlineTwoPlayersPanel.setSeed(seed);
         onlineTwoPlayersPanel.setSocket(socket);
+        onlineTwoPlayersPanel.setCompactBoardMessages((options & Server.COMPACT_BOARD_MESSAGES) != 0);
+        onlineTwoPlayersPanel.setFramedBoardMessages((options & Server.FRAMED_BOARD_MESSAGES) != 0);
         cardLayout.show(this, onlineTwoPlayersPanelName);
         onlineTwoPlayersPanel.startGame();
     }
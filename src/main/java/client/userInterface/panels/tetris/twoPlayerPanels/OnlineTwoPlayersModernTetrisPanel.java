@@ -62,11 +62,16 @@ public class OnlineTwoPlayersModernTetrisPanel extends OnlineTwoPlayersPanel {
 
             // Local board: Sends data to socket
             senderBoardOutputHandler = new SenderBoardOutputHandler(boardsSocket.getOutputStream(), this);
+            senderBoardOutputHandler.setCompactEncoding(compactBoardMessages);
+            senderBoardOutputHandler.setFraming(framedBoardMessages);
+            senderBoardOutputHandler.startWriter();
             boards[0] = new SenderModernTetrisBoardWithPhysics(BOARD1_X, BOARD1_Y, seed, senderBoardOutputHandler);
 
             // Remote board: Receives data from socket
             boards[1] = new ReceiverModernTetrisBoard(BOARD2_X, BOARD2_Y, seed);
             receiverBoardInputHandler = new ReceiverModernTetrisBoardInputHandler(boardsSocket.getInputStream(), (SenderModernTetrisBoardWithPhysics) boards[0], (ReceiverModernTetrisBoard) boards[1], this);
+            receiverBoardInputHandler.setCompactEncoding(compactBoardMessages);
+            receiverBoardInputHandler.setFraming(framedBoardMessages);
             receiverBoardInputHandler.start();
         }
         catch (IOException ioe) { handleConnectionError(); }
@@ -65,11 +65,16 @@ public class OnlineTwoPlayersNESPanel extends OnlineTwoPlayersPanel {
 
             // Local board: Sends data
             senderBoardOutputHandler = new SenderBoardOutputHandler(boardsSocket.getOutputStream(), this);
+            senderBoardOutputHandler.setCompactEncoding(compactBoardMessages);
+            senderBoardOutputHandler.setFraming(framedBoardMessages);
+            senderBoardOutputHandler.startWriter();
             boards[0] = new SenderNESBoardWithPhysics(BOARD1_X + 3*TETROMINO_HOLDER_WIDTH/4, BOARD1_Y, seed, senderBoardOutputHandler);
 
             // Remote board: Receives data
             boards[1] = new ReceiverNESBoard(BOARD2_X + TETROMINO_HOLDER_WIDTH/4, BOARD2_Y, seed);
             receiverBoardInputHandler = new ReceiverBoardInputHandler(boardsSocket.getInputStream(), (ReceiverBoard) boards[1], this);
+            receiverBoardInputHandler.setCompactEncoding(compactBoardMessages);
+            receiverBoardInputHandler.setFraming(framedBoardMessages);
             receiverBoardInputHandler.start();
         }
         catch (IOException ioe) { handleConnectionError(); }
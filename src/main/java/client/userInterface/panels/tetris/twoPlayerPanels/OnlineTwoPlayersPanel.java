@@ -2,6 +2,9 @@ package client.userInterface.panels.tetris.twoPlayerPanels;
 
 import client.userInterface.panels.MainPanel;
 import tetris.boards.BoardWithPhysics;
+import tetris.boards.io.BoardFrames;
+import tetris.boards.io.CompactBoardMessages;
+import tetris.boards.io.FallingTetrominoDatagrams;
 import tetris.boards.io.ReceiverBoardInputHandler;
 import tetris.boards.io.SenderBoardOutputHandler;
 
@@ -19,7 +22,9 @@ import java.net.Socket;
  * <b>Synchronization Strategy:</b><br>
  * Methods that modify connection state ({@code closeCommunications}, {@code handleConnectionError}) or
  * check game-over conditions are synchronized. This prevents race conditions where the socket might be
- * closed by one thread (e.g., input receiver) while another (e.g., game loop) tries to write to it.
+ * closed by one thread (e.g., input receiver) while another (e.g., game loop) tries to write to it. The lock of the
+ * panel is always taken before the one of the {@link SenderBoardOutputHandler} (which reports a broken connection only
+ * once it has released its own), never the other way around.
  * </p>
  */
 public abstract class OnlineTwoPlayersPanel extends TwoPlayersTetrisPanel {
@@ -32,9 +37,18 @@ public abstract class OnlineTwoPlayersPanel extends TwoPlayersTetrisPanel {
     /** Handler responsible for decoding network messages and applying them to the remote board representation. */
     protected ReceiverBoardInputHandler receiverBoardInputHandler;
 
+    /** Datagram socket carrying the falling tetromino updates, or {@code null} if they go over the boards socket. */
+    protected FallingTetrominoDatagrams fallingTetrominoDatagrams;
+
     /** The random seed used to initialize both boards deterministically. */
     protected long seed;
 
+    /** Whether the board messages are sent and received in the compact encoding (see {@link CompactBoardMessages}). */
+    protected boolean compactBoardMessages;
+
+    /** Whether the board messages are sent and received in frames (see {@link BoardFrames}). */
+    protected boolean framedBoardMessages;
+
     /** Flag indicating if the local player has topped out (Game Over). */
     protected boolean localLost;
 
@@ -54,7 +68,10 @@ public abstract class OnlineTwoPlayersPanel extends TwoPlayersTetrisPanel {
 
         boardsSocket = null;
         receiverBoardInputHandler = null;
+        fallingTetrominoDatagrams = null;
         seed = -1;
+        compactBoardMessages = false;
+        framedBoardMessages = false;
 
         localLost = false;
         opponentClosedOutput = false;
@@ -88,30 +105,51 @@ public abstract class OnlineTwoPlayersPanel extends TwoPlayersTetrisPanel {
      */
     public void setSeed(long seed) { this.seed = seed;}
 
+    /**
+     * Sets whether the board messages of the next game use the compact encoding.
+     *
+     * @param compactBoardMessages Whether the server has granted it for the match.
+     */
+    public void setCompactBoardMessages(boolean compactBoardMessages) { this.compactBoardMessages = compactBoardMessages; }
+
+    /**
+     * Sets whether the board messages of the next game are framed.
+     *
+     * @param framedBoardMessages Whether the server has granted it for the match.
+     */
+    public void setFramedBoardMessages(boolean framedBoardMessages) { this.framedBoardMessages = framedBoardMessages; }
+
     /**
      * Closes communications gracefully when the opponent finishes or disconnects.
      * <p>
-     * This method is synchronized to ensure it doesn't conflict with the update loop trying to write data.
-     * It marks the rival as "Game Over" and shuts down the input stream.
+     * The socket is closed in a synchronized block to ensure it doesn't conflict with the update loop trying to write
+     * data. It marks the rival as "Game Over" and shuts down the input stream.
      * </p>
      */
     @Override
-    public synchronized void closeCommunications() { // synchronized so that update and closeCommunications don't close the socket at the same time
+    public void closeCommunications() {
         // If the code reaches here means the rival has closed his output
         setOpponentClosedOutput(true);
 
-        if (isConnectionUp()) {
-            try {
-                boardsSocket.shutdownInput();
+        // The messages gathered since the last frame go before the end of the stream. Flushed without holding the lock,
+        // since it may wait for the writer thread and the game loop (and every getter of the panel) needs the lock
+        if (isConnectionUp() && hasLocalGameFinished() && !hasLocalLost()) senderBoardOutputHandler.flushMessages();
+
+        synchronized (this) { // synchronized so that update and closeCommunications don't close the socket at the same time
+            if (isConnectionUp()) {
+                try {
+                    boardsSocket.shutdownInput();
 
-                // In modern tetris the game will be over and if local has lost the output will be down, if opponent has lost the output will be up
-                // In NES tetris the game won't be over unless the local has lost (in that case the output will be down)
-                if (hasLocalGameFinished()) {
-                    if (!hasLocalLost()) boardsSocket.shutdownOutput();
-                    boardsSocket.close();
+                    // In modern tetris the game will be over and if local has lost the output will be down, if opponent has lost the output will be up
+                    // In NES tetris the game won't be over unless the local has lost (in that case the output will be down)
+                    if (hasLocalGameFinished()) {
+                        if (!hasLocalLost()) boardsSocket.shutdownOutput();
+                        boardsSocket.close();
+                        stopSending();
+                    }
                 }
+                catch (IOException e) { System.out.println("FATAL ERROR while trying to close socket to opponent boards"); } // This should never happen, if it does your computer is broken sry
             }
-            catch (IOException e) { System.out.println("FATAL ERROR while trying to close socket to opponent boards"); } // This should never happen, if it does your computer is broken sry
         }
     }
 
@@ -124,6 +162,7 @@ public abstract class OnlineTwoPlayersPanel extends TwoPlayersTetrisPanel {
         if (isConnectionUp() && (!checkGameOver())) {
             setConnectionLost(true);
             senderBoardOutputHandler.notifyConnectionLost();
+            stopSending();
 
             try { boardsSocket.close(); }
             catch (IOException e) {
@@ -132,6 +171,23 @@ public abstract class OnlineTwoPlayersPanel extends TwoPlayersTetrisPanel {
         }
     }
 
+    /**
+     * Opens the datagram socket to the server relaying the match and moves the falling tetromino updates to it. If it
+     * can not be opened they keep going over the boards socket.
+     *
+     * @param token The token identifying the player in the datagrams.
+     */
+    @Override
+    public synchronized void startDatagramUpdates(long token) {
+        if (fallingTetrominoDatagrams != null) return;
+
+        try { fallingTetrominoDatagrams = new FallingTetrominoDatagrams(boardsSocket.getInetAddress(), boardsSocket.getPort(), token); }
+        catch (IOException ioe) { return; }
+
+        senderBoardOutputHandler.startDatagramUpdates(fallingTetrominoDatagrams);
+        fallingTetrominoDatagrams.startReceiving(receiverBoardInputHandler);
+    }
+
     /**
      * Main update loop.
      * <p>
@@ -143,11 +199,17 @@ public abstract class OnlineTwoPlayersPanel extends TwoPlayersTetrisPanel {
     public void update() {
         super.update();
 
+        // The messages gathered since the last frame go before the end of the stream (flushed without holding the lock)
+        if (hasLocalLost() && isConnectionUp()) senderBoardOutputHandler.flushMessages();
+
         synchronized (this) { // synchronized so that closeCommunications and update don't close the socket at the same time
             if (hasLocalLost() && isConnectionUp()) {
                 try {
                     boardsSocket.shutdownOutput();
-                    if (hasOpponentClosedOutput()) boardsSocket.close();
+                    if (hasOpponentClosedOutput()) {
+                        boardsSocket.close();
+                        stopSending();
+                    }
                 }
                 catch (IOException e) { System.out.println("FATAL ERROR while trying to shutdown output to opponent boards"); } // This should never happen, if it does your computer is broken sry
             }
@@ -182,6 +244,7 @@ public abstract class OnlineTwoPlayersPanel extends TwoPlayersTetrisPanel {
      */
     @Override
     protected void resetGame() {
+        stopSending();
         super.resetGame();
         setLocalLost(false);
         setOpponentClosedOutput(false);
@@ -192,7 +255,10 @@ public abstract class OnlineTwoPlayersPanel extends TwoPlayersTetrisPanel {
     @Override
     public synchronized boolean isGameOver() { return super.isGameOver(); }
     @Override
-    protected synchronized void setGameOver(boolean gameOver) { super.setGameOver(gameOver); }
+    protected synchronized void setGameOver(boolean gameOver) {
+        if (gameOver && !super.isGameOver()) printTrafficStatistics();
+        super.setGameOver(gameOver);
+    }
 
     protected synchronized boolean hasLocalLost() { return localLost; }
     protected synchronized void setLocalLost(boolean localLost) { this.localLost = localLost; }
@@ -202,4 +268,27 @@ public abstract class OnlineTwoPlayersPanel extends TwoPlayersTetrisPanel {
 
     protected synchronized boolean isConnectionUp() { return !connectionLost; }
     protected synchronized void setConnectionLost(boolean connectionLost) { this.connectionLost = connectionLost; }
+
+    // ---------------------------------------------------------------------------------
+    // Auxiliary methods
+
+    /**
+     * Prints what the local board has sent during the match (see {@link SenderBoardOutputHandler}).
+     */
+    private void printTrafficStatistics() {
+        System.out.println("Match finished: sent " + senderBoardOutputHandler.getSentMessages() + " messages ("
+                + senderBoardOutputHandler.getSentBytes() + " bytes) in " + senderBoardOutputHandler.getWrites()
+                + " writes, skipped " + senderBoardOutputHandler.getSkippedUpdates() + " unchanged updates");
+    }
+
+    /**
+     * Stops the writer thread of the boards socket and closes the datagram socket of the match, if any.
+     */
+    private synchronized void stopSending() {
+        if (senderBoardOutputHandler != null) senderBoardOutputHandler.close();
+        if (fallingTetrominoDatagrams == null) return;
+
+        fallingTetrominoDatagrams.close();
+        fallingTetrominoDatagrams = null;
+    }
 }
\ No newline at end of file
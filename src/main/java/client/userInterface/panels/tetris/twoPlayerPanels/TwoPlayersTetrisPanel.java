@@ -43,6 +43,15 @@ public abstract class TwoPlayersTetrisPanel extends TetrisPanel {
      */
     public abstract void handleConnectionError();
 
+    /**
+     * Starts sending and receiving the updates of the falling tetrominoes as datagrams, when the server relaying the
+     * match offers it (see {@link tetris.boards.io.FallingTetrominoDatagrams}). Only online games are relayed, so it is
+     * ignored by default.
+     *
+     * @param token The token identifying the player in the datagrams.
+     */
+    public void startDatagramUpdates(long token) {}
+
     /**
      * Determines the winner of the match based on the current game state.
      *
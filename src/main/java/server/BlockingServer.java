@@ -0,0 +1,157 @@
+package server;
+
+import server.cluster.Cluster;
+import server.cluster.CoordinatorClient;
+import server.gameModeHandlers.LobbiesHandler;
+import server.lifecycle.ControlServer;
+import server.lifecycle.DrainableServer;
+import server.playerHandlers.GameCommunicationHandler;
+import server.playerHandlers.RelayMode;
+import server.rateLimiting.AdmissionController;
+import server.rateLimiting.AdmissionDecision;
+import server.recording.MatchLog;
+import server.spectating.MatchRegistry;
+import server.timeouts.WheelTimer;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * The original thread-per-connection server.
+ * <p>
+ * It initializes the handlers for different game modes (Quick Play, Lobbies) and runs a loop accepting client
+ * connections. Each accepted connection is checked by the {@link AdmissionController} and, if admitted, processed by
+ * a {@link MatchmakingHandler} in a separate thread (a platform or a virtual thread depending on the
+ * {@link ThreadType}).
+ * </p>
+ */
+public class BlockingServer implements DrainableServer {
+    private final ServerConfig config;
+    private final ExecutorService pool;
+    private final LobbiesHandler<WaitingClient> lobbiesHandler;
+    private final WheelTimer timer;
+    private final AdmissionController<Socket> admissionController;
+    private final MatchRegistry<GameCommunicationHandler> matchRegistry;
+    private final QuickPlayMatchmaker quickPlayMatchmaker;
+    private volatile ServerSocket serverSocket;
+    private volatile boolean draining;
+
+    /**
+     * Creates the server and its shared matchmaking resources (they are not started until {@link #run()}).
+     *
+     * @param config   The server configuration.
+     * @param matchLog The log where the matches are recorded, or {@code null} if they are not recorded.
+     * @throws IllegalStateException If the threads of the configured {@link ThreadType} are not available.
+     */
+    public BlockingServer(ServerConfig config, MatchLog matchLog) {
+        Cluster cluster = config.getCluster();
+
+        this.config = config;
+        this.pool = ExecutorFactory.createExecutor(config.getThreadType());
+        this.lobbiesHandler = cluster == null ? new LobbiesHandler<>() : new LobbiesHandler<>(cluster.getNodeIndex(), cluster.getNumberOfNodes());
+        this.timer = new WheelTimer("timeouts");
+        this.admissionController = new AdmissionController<>(config);
+        this.matchRegistry = cluster == null ? new MatchRegistry<>(matchLog) : new MatchRegistry<>(matchLog, cluster.getNodeIndex(), cluster.getNumberOfNodes());
+        this.quickPlayMatchmaker = new QuickPlayMatchmaker(config, pool, timer, admissionController, matchRegistry);
+        this.draining = false;
+    }
+
+    /**
+     * Starts the matchmaking and runs the accept loop on the calling thread until the server is drained and its last
+     * match has finished.
+     */
+    @Override
+    public void run() {
+        AdmissionDecision admissionDecision;
+
+        // Shared resources for matchmaking
+        timer.start();
+        quickPlayMatchmaker.start();
+
+        try (ServerSocket server = openServerSocket()) {
+            serverSocket = server;
+            System.out.println("Server is running on port " + config.getPort() + " with " + config.getThreadType().name().toLowerCase() + " threads");
+            if (config.getControlPort() != 0) ControlServer.start(config.getControlPort(), this);
+            if (config.getCluster() != null) CoordinatorClient.start(config.getCluster(), quickPlayMatchmaker);
+
+            while (!draining) {
+                try {
+                    // Block until a new connection is made
+                    Socket client = server.accept();
+
+                    // Reject it right away if the client or the server are over their limits
+                    admissionDecision = admissionController.admit(client, client.getInetAddress());
+                    if (admissionDecision != AdmissionDecision.ACCEPTED) {
+                        AdmissionController.reject(client, admissionDecision);
+                        continue;
+                    }
+
+                    System.out.println("New client connected: " + client.getInetAddress());
+
+                    // Hand off the connection to a worker thread
+                    pool.execute(new MatchmakingHandler(client, quickPlayMatchmaker, lobbiesHandler, config, pool, timer, admissionController, matchRegistry));
+                }
+                catch (IOException ioe) {
+                    // The server socket is closed by the drain
+                    if (!draining) System.out.println("FATAL ERROR while trying to accept client socket: " + ioe.getMessage());
+                }
+            }
+        }
+        catch (IOException ioe) {
+            System.out.println("FATAL ERROR while trying to create server socket on port " + config.getPort());
+            pool.shutdown();
+            return;
+        }
+
+        Server.waitForRunningMatches(this);
+        pool.shutdown();
+    }
+
+    @Override
+    public synchronized void drain() {
+        if (draining) return;
+
+        draining = true;
+
+        try { serverSocket.close(); }
+        catch (IOException ioe) { System.out.println("FATAL ERROR while trying to close server socket."); } // This should never happen, if it does your computer is broken sry
+
+        quickPlayMatchmaker.drain();
+        for (WaitingClient host : lobbiesHandler.close()) pool.execute(() -> MatchmakingHandler.sendRestarting(host, admissionController));
+    }
+
+    @Override
+    public boolean isDraining() { return draining; }
+
+    @Override
+    public int getNumberOfMatches() { return matchRegistry.getNumberOfMatches(); }
+
+    // ---------------------------------------------------------------------------------
+    // Auxiliary methods
+
+    /**
+     * Opens the listening socket.
+     * <p>
+     * {@link RelayMode#DIRECT} relays need the sockets' channels, which only exist when the sockets are accepted
+     * through a {@link ServerSocketChannel}, so in that case the server socket is the channel's socket.
+     * </p>
+     *
+     * @return The bound server socket.
+     * @throws IOException If the socket can not be created or bound.
+     */
+    private ServerSocket openServerSocket() throws IOException {
+        ServerSocket server;
+
+        if (config.getRelayMode() == RelayMode.DIRECT) server = ServerSocketChannel.open().socket();
+        else server = new ServerSocket();
+
+        // The port of a drained server is bound right away, while its matches are still running
+        server.setReuseAddress(true);
+        server.bind(new InetSocketAddress(config.getPort()), Server.ACCEPT_BACKLOG);
+        return server;
+    }
+}
@@ -0,0 +1,56 @@
+package server;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Factory class for creating the {@link ExecutorService} that runs the blocking server handlers.
+ * <p>
+ * The project is compiled for Java 8, so virtual threads are created through reflection: the executor is only
+ * available when the server runs on Java 21 or newer, and a clear error is reported otherwise.
+ * </p>
+ */
+public class ExecutorFactory {
+    /**
+     * Creates an executor that starts a new thread (or reuses an idle one) for every submitted task.
+     *
+     * @param type The kind of threads to use.
+     * @return A new executor.
+     * @throws IllegalStateException If virtual threads are requested and the running JVM does not support them.
+     */
+    public static ExecutorService createExecutor(ThreadType type) {
+        ExecutorService executor = null;
+
+        switch (type) {
+            case PLATFORM:
+                executor = Executors.newCachedThreadPool();
+                break;
+            case VIRTUAL:
+                executor = createVirtualThreadPerTaskExecutor();
+                break;
+        }
+
+        return executor;
+    }
+
+    /**
+     * Calls {@code Executors.newVirtualThreadPerTaskExecutor()}, available since Java 21.
+     *
+     * @return A new executor that runs every task on its own virtual thread.
+     * @throws IllegalStateException If the running JVM does not support virtual threads.
+     */
+    private static ExecutorService createVirtualThreadPerTaskExecutor() {
+        try {
+            Method factoryMethod = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factoryMethod.invoke(null);
+        }
+        catch (NoSuchMethodException nsme) {
+            throw new IllegalStateException("Virtual threads require Java 21 or newer (running on Java " + System.getProperty("java.version") + ")");
+        }
+        catch (IllegalAccessException | InvocationTargetException e) {
+            throw new IllegalStateException("Unable to create the virtual thread executor: " + e);
+        }
+    }
+}
@@ -26,5 +26,21 @@ public enum GameMode {
     /**
      * Request to join an existing private lobby using a Room ID.
      */
-    JOIN_GAME
+    JOIN_GAME,
+
+    /**
+     * Request to watch a running match using its Match ID (see {@link server.spectating.MatchStream}).
+     */
+    SPECTATE_GAME,
+
+    /**
+     * Request to create a multiplayer room (see {@link server.eventLoops.EventLoopRoom}) followed by its capacity,
+     * and wait for it to fill up. Only the event loop server offers rooms.
+     */
+    HOST_ROOM,
+
+    /**
+     * Request to join an existing multiplayer room using its Room ID.
+     */
+    JOIN_ROOM
 }
\ No newline at end of file
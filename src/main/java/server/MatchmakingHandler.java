@@ -1,57 +1,86 @@
 package server;
 
+import server.cluster.Cluster;
 import server.gameModeHandlers.LobbiesHandler;
-import server.gameModeHandlers.QuickPlayHandler;
 import server.playerHandlers.GameCommunicationHandler;
+import server.playerHandlers.SpectatorCommunicationHandler;
+import server.rateLimiting.AdmissionController;
+import server.spectating.MatchRegistry;
+import server.spectating.SpectatorCursor;
+import server.timeouts.Timeouts;
+import server.timeouts.WheelTimer;
 
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.Socket;
-
-import static server.GameMode.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Handles the initial negotiation (handshake) with a connected client.
  * <p>
  * This class implements {@link Runnable} to run on a separate thread. It reads the
- * client's intended {@link GameMode} (e.g., Quick Play, Host, Join) and routes
+ * client's intended {@link GameMode} (e.g., Quick Play, Host, Join, Spectate) and routes
  * the client to the appropriate handler.
  * </p>
+ * <p>
+ * Every read has a deadline (see {@link Timeouts}), so a client that never finishes its handshake does not hold its
+ * thread forever. Once the thread is gone, a waiting host is probed periodically by the {@link WheelTimer}, which
+ * also closes the lobby if nobody joins it in time.
+ * </p>
  */
 public class MatchmakingHandler implements Runnable {
-    private Socket player;
+    private final Socket player;
     private DataOutputStream dos;
     private DataInputStream dis;
-    private final QuickPlayHandler modernTetrisQuickPlayHandler;
-    private final QuickPlayHandler nesQuickPlayHandler;
-    private final LobbiesHandler lobbiesHandler;
+    private final QuickPlayMatchmaker quickPlayMatchmaker;
+    private final LobbiesHandler<WaitingClient> lobbiesHandler;
+    private final ServerConfig config;
+    private final ExecutorService executor;
+    private final WheelTimer timer;
+    private final AdmissionController<Socket> admissionController;
+    private final MatchRegistry<GameCommunicationHandler> matchRegistry;
 
     /**
      * Creates a new MatchmakingHandler.
      *
-     * @param player                       The socket connection to the client.
-     * @param modernTetrisQuickPlayHandler The handler for Modern Tetris quick play queue.
-     * @param nesQuickPlayHandler          The handler for NES Tetris quick play queue.
-     * @param lobbiesHandler               The handler for managing private lobbies.
+     * @param player              The socket connection to the client.
+     * @param quickPlayMatchmaker The quick play matchmaking (Modern and NES Tetris queues).
+     * @param lobbiesHandler      The handler for managing private lobbies.
+     * @param config              The server configuration.
+     * @param executor            The executor running the server handlers (matchmaking and relays).
+     * @param timer               The timer enforcing the timeouts and heartbeats.
+     * @param admissionController The admission control, which counts the open connections.
+     * @param matchRegistry       The registry of the running matches (the ones started here and the ones spectated).
      */
-    public MatchmakingHandler(Socket player, QuickPlayHandler modernTetrisQuickPlayHandler, QuickPlayHandler nesQuickPlayHandler, LobbiesHandler lobbiesHandler){
+    public MatchmakingHandler(Socket player, QuickPlayMatchmaker quickPlayMatchmaker, LobbiesHandler<WaitingClient> lobbiesHandler, ServerConfig config,
+                              ExecutorService executor, WheelTimer timer, AdmissionController<Socket> admissionController,
+                              MatchRegistry<GameCommunicationHandler> matchRegistry){
         this.player = player;
-        this.modernTetrisQuickPlayHandler = modernTetrisQuickPlayHandler;
-        this.nesQuickPlayHandler = nesQuickPlayHandler;
+        this.quickPlayMatchmaker = quickPlayMatchmaker;
         this.lobbiesHandler = lobbiesHandler;
+        this.config = config;
+        this.executor = executor;
+        this.timer = timer;
+        this.admissionController = admissionController;
+        this.matchRegistry = matchRegistry;
     }
 
     /**
      * Executes the matchmaking logic.
      * <p>
-     * Reads an integer from the client representing the {@link GameMode} ordinal,
-     * then executes the logic corresponding to that mode.
+     * Reads an integer from the client representing the {@link GameMode} ordinal (followed by the round trip time the
+     * client measured if it speaks a versioned handshake, see {@link Server#PROTOCOL_VERSION}), then executes the
+     * logic corresponding to that mode. Its matches always start with byte 1, the options of
+     * {@link Server#SERVER_MATCH_READY} are only granted by the event loop server.
      * </p>
      */
     @Override
     public void run() {
-        int gameModeSelectedId;
+        int gameModeSelectedId, protocolVersion;
+        long roundTripMillis = -1;
         GameMode gameModeSelected;
 
         try {
@@ -59,10 +88,23 @@ public class MatchmakingHandler implements Runnable {
             dos = new DataOutputStream(player.getOutputStream());
 
             // 1. Read the requested game mode
+            player.setSoTimeout(Timeouts.HANDSHAKE_TIMEOUT_MILLISECONDS);
             gameModeSelectedId = dis.readInt();
+            protocolVersion = (gameModeSelectedId & Server.PROTOCOL_VERSION_MASK) >>> Server.PROTOCOL_VERSION_SHIFT;
+
+            // A versioned client sends the round trip time it measured while connecting right after the game mode (a hint)
+            if (protocolVersion > 0 && protocolVersion <= Server.PROTOCOL_VERSION) {
+                roundTripMillis = Math.max(0, Math.min(dis.readInt(), Timeouts.PROBE_TIMEOUT_MILLISECONDS));
+            }
+            player.setSoTimeout(0);
+
+            // Peer-to-peer, datagram updates, the compact encoding and the framing are only handled by the event loop
+            // server, these matches are always relayed over TCP with one byte per field
+            gameModeSelectedId &= ~(Server.PEER_TO_PEER | Server.DATAGRAM_UPDATES | Server.COMPACT_BOARD_MESSAGES | Server.FRAMED_BOARD_MESSAGES |
+                    Server.PROTOCOL_VERSION_MASK);
 
             // Validate the input range
-            if (gameModeSelectedId < 0 || gameModeSelectedId >= GameMode.values().length) {
+            if (gameModeSelectedId < 0 || gameModeSelectedId >= GameMode.values().length || protocolVersion > Server.PROTOCOL_VERSION) {
                 closeSocket(player);
                 return;
             }
@@ -73,7 +115,7 @@ public class MatchmakingHandler implements Runnable {
             switch (gameModeSelected) {
                 case MODERN_TETRIS_QUICK_PLAY:
                 case NES_QUICK_PLAY:
-                    quickMatchSearch(gameModeSelected);
+                    quickPlayMatchmaker.search(player, gameModeSelected, roundTripMillis);
                     break;
                 case HOST_GAME:
                     hostGame();
@@ -81,198 +123,344 @@ public class MatchmakingHandler implements Runnable {
                 case JOIN_GAME:
                     joinGame();
                     break;
+                case SPECTATE_GAME:
+                    spectateGame();
+                    break;
+                case HOST_ROOM:
+                case JOIN_ROOM:
+                    // Rooms are only offered by the event loop server
+                    closeSocket(player);
+                    break;
             }
         }
         catch (IOException ioe) { closeSocket(player); }
     }
 
     /**
-     * Generic logic for Quick Play matchmaking.
+     * Handles the logic for hosting a private game lobby.
      * <p>
-     * If no one is waiting, this client becomes the waiting player.
-     * If someone is already waiting, a match is formed, and a {@link GameCommunicationHandler} is started.
+     * Requests a new Room ID from the {@link LobbiesHandler} and sends it back to the client.
+     * The client socket is then stored in the lobby registry waiting for a joiner. If every Room ID is taken
+     * the connection is closed, and if the server is draining the client is told to reconnect.
+     * </p>
+     * <p>
+     * While the lobby waits, the host is probed every {@value Timeouts#HEARTBEAT_INTERVAL_MILLISECONDS} ms and the
+     * lobby is closed after {@value Timeouts#LOBBY_EXPIRY_MILLISECONDS} ms (unless it is being joined at that moment).
      * </p>
-     *
-     * @param gameMode The specific Game Mode (Modern or NES) to use.
      */
-    private void quickMatchSearch(GameMode gameMode) {
-        QuickPlayHandler quickPlayHandler;
-        Socket opponent;
-        DataOutputStream opponentDos;
-        DataInputStream opponentDis;
-        boolean opponentIsOnline;
-        boolean playerIsOnline = true;
+    private void hostGame() {
+        WaitingClient host = new WaitingClient(player);
+        int roomId = lobbiesHandler.createLobby(host);
 
-        if (gameMode == MODERN_TETRIS_QUICK_PLAY) quickPlayHandler = modernTetrisQuickPlayHandler;
-        else quickPlayHandler = nesQuickPlayHandler;
+        // Every Room ID is taken, the request is rejected
+        if (roomId == LobbiesHandler.NO_ROOM_AVAILABLE) {
+            closeSocket(player);
+            return;
+        }
 
-        // synchronized check to prevent race conditions is handled inside the handler methods
-        opponent = quickPlayHandler.handlePlayer(player);
+        if (roomId == LobbiesHandler.LOBBIES_CLOSED) {
+            sendRestarting(player, admissionController);
+            return;
+        }
 
-        if (opponent != null) {
-            opponentIsOnline = true;
+        try {
+            dos.writeInt(roomId);
+            dos.flush();
+        } catch (IOException ioe) {
+            // CRITICAL: Remove the lobby so players don't try to join a dead room. The removal only happens if the
+            // lobby is still ours: if a joiner has already claimed it, the joiner's probe will find us dead.
+            lobbiesHandler.removeLobby(roomId, host);
+            closeSocket(player);
+            return;
+        }
 
-            // Check if player 1 is still online
-            try {
-                opponentDos = new DataOutputStream(opponent.getOutputStream());
-                opponentDis = new DataInputStream(opponent.getInputStream());
+        scheduleHostHeartbeat(roomId, host);
+        timer.schedule(() -> {
+            if (lobbiesHandler.removeLobby(roomId, host)) {
+                System.out.println("Lobby " + roomId + " expired");
+                closeSocket(player);
+            }
+        }, Timeouts.LOBBY_EXPIRY_MILLISECONDS);
+    }
+
+    /**
+     * Handles the logic for joining a private game lobby.
+     * <p>
+     * Reads the Room ID requested by the client and claims the lobby, so no other player can join it.
+     * Then the host is probed and, depending on the result, the pairing is committed (the Room ID is released and a
+     * {@link GameCommunicationHandler} is started) or the lobby is restored. Sends a boolean confirmation
+     * to the client. In a cluster, a joiner whose Room ID belongs to another node is redirected to it.
+     * </p>
+     * <p>
+     * No lock is held while talking to the clients, so a slow or dead host only delays its own joiner.
+     * </p>
+     */
+    private void joinGame() {
+        int roomId;
+        WaitingClient host;
+
+        try {
+            // The user types the Room ID while the connection is open
+            player.setSoTimeout(Timeouts.ROOM_ID_TIMEOUT_MILLISECONDS);
+            roomId = dis.readInt();
+            player.setSoTimeout(0);
 
-                opponentDos.writeByte(0);
-                opponentDos.flush();
-                opponentDis.readByte();
+            // 1. Claim the lobby (in a cluster the room may belong to another node, the joiner goes there instead)
+            if (redirectToOwner(roomId)) return;
+
+            // While the server drains the lobbies are gone, the joiner reconnects instead
+            if (lobbiesHandler.isClosed()) {
+                sendRestarting(player, admissionController);
+                return;
             }
-            catch (IOException ioe) {
-                opponentIsOnline = false;
-                closeSocket(opponent);
+
+            if ((host = lobbiesHandler.claimLobby(roomId)) == null) {
+                // Notify client that room does not exist
+                dos.writeBoolean(false);
+                dos.flush();
+                closeSocket(player);
+                return;
             }
 
-            // Check if player 2 is still online
+            // 2. Check if room host is still online
+            if (probe(host) < 0) {
+                closeSocket(host.getSocket());
+                lobbiesHandler.releaseLobby(roomId);
+
+                // Notify client that room does not exist
+                dos.writeBoolean(false);
+                dos.flush();
+                closeSocket(player);
+                return;
+            }
+
+            // 3. Commit the pairing or restore the lobby
             try {
-                dos.writeByte(0);
+                // Notify client that room exists
+                dos.writeBoolean(true);
                 dos.flush();
-                dis.readByte();
             }
             catch (IOException ioe) {
-                playerIsOnline = false;
+                // If player error happens communicating with player restore lobby
+                if (lobbiesHandler.restoreLobby(roomId, host)) scheduleHostHeartbeat(roomId, host);
+                else sendRestarting(host, admissionController);
                 closeSocket(player);
+                return;
             }
 
-            if (opponentIsOnline && playerIsOnline) new GameCommunicationHandler(opponent, player).startCommunicationBetweenPlayers();
-            else if (playerIsOnline) quickMatchSearch(gameMode);
-            else if (opponentIsOnline) {
-                setPlayer(opponent);
-                quickMatchSearch(gameMode);
-                new Thread(new MatchmakingHandler(opponent, modernTetrisQuickPlayHandler, quickPlayHandler, lobbiesHandler)).start();
-            }
+            lobbiesHandler.releaseLobby(roomId);
+            startGame(host.getSocket(), player);
         }
+        catch (IOException ioe) { closeSocket(player); }
     }
 
     /**
-     * Handles the logic for hosting a private game lobby.
+     * Handles the logic for watching a running match.
      * <p>
-     * Requests a new Room ID from the {@link LobbiesHandler} and sends it back to the client.
-     * The client socket is then stored in the lobby map waiting for a joiner.
+     * Reads the Match ID requested by the client and, if the match is running, sends {@code true}, the game mode the
+     * match comes from (as an int) and its seed, and then the match stream on this same thread (see
+     * {@link SpectatorCommunicationHandler}). Otherwise sends {@code false} and closes the connection. In a cluster, a
+     * spectator whose Match ID belongs to another node is redirected to it.
      * </p>
      */
-    private void hostGame() {
-        // This synchronized is because there is a scenario where the lobby with roomId is created, then a player
-        // joins the lobby (therefore removes the lobby from the lobbiesHandler), then a third player creates a
-        // lobby with the same id and finally this player throws and IOException and removes the third player's
-        // lobby from the lobbiesHandler. It wanted to remove the original lobby (the one the second player
-        // is connected to), however, it removes the third's player lobby leaving him to wait for eternity for someone
-        // to connect.
-        synchronized (lobbiesHandler) {
-            int roomId = lobbiesHandler.createLobby(player);
+    private void spectateGame() {
+        int matchId;
+        GameCommunicationHandler match;
+        SpectatorCursor cursor;
 
-            try {
-                dos.writeInt(roomId);
+        try {
+            player.setSoTimeout(Timeouts.ROOM_ID_TIMEOUT_MILLISECONDS);
+            matchId = dis.readInt();
+            player.setSoTimeout(0);
+
+            if (redirectToOwner(matchId)) return;
+
+            if ((match = matchRegistry.find(matchId)) == null) {
+                // Notify client that the match does not exist
+                dos.writeBoolean(false);
                 dos.flush();
-            } catch (IOException ioe) {
-                // CRITICAL: Remove the lobby so players don't try to join a dead room.
-                lobbiesHandler.getAndRemoveLobby(roomId);
                 closeSocket(player);
+                return;
             }
+
+            cursor = match.getMatchStream().attach(config.getLaggingSpectatorPolicy());
+
+            // Notify client that the match exists and how to reproduce it
+            dos.writeBoolean(true);
+            dos.writeInt(match.getMatchStream().getGameMode().ordinal());
+            dos.writeLong(match.getMatchStream().getSeed());
+            dos.flush();
+        }
+        catch (IOException ioe) {
+            closeSocket(player);
+            return;
         }
+
+        new SpectatorCommunicationHandler(player, cursor, admissionController).run();
     }
 
     /**
-     * Handles the logic for joining a private game lobby.
+     * Checks if a waiting client is still online by sending it a 0 and waiting for its answer, measuring the round
+     * trip time. A client that does not answer within {@value Timeouts#PROBE_TIMEOUT_MILLISECONDS} ms is considered
+     * offline.
      * <p>
-     * Reads the Room ID requested by the client. If valid, retrieves the host's socket
-     * and starts a {@link GameCommunicationHandler}. Sends a boolean confirmation to the client.
+     * The probe holds the client's lock, so the heartbeats and the matchmaking never probe the same client at the
+     * same time (which would leave an echo behind for the relay).
      * </p>
+     *
+     * @param waitingPlayer The waiting client.
+     * @return The round trip time in milliseconds, or -1 if the client did not answer the probe.
      */
-    private void joinGame() {
-        int roomId;
-        Socket host;
-        DataOutputStream hostDos;
-        DataInputStream hostDis;
-        boolean hostIsOnline;
+    static long probe(WaitingClient waitingPlayer) {
+        Socket socket = waitingPlayer.getSocket();
+        long probeSentAt;
 
+        waitingPlayer.lock();
         try {
-            roomId = dis.readInt();
+            DataOutputStream waitingPlayerDos = new DataOutputStream(socket.getOutputStream());
+            DataInputStream waitingPlayerDis = new DataInputStream(socket.getInputStream());
 
-            // This synchronized is because there is a scenario where te player tries to connect to the lobby
-            // but fails, in that case the lobby will be removed and added again, and we don't want for that lobby
-            // id to be given to other players
-            synchronized (lobbiesHandler) {
-                if ((host = lobbiesHandler.getAndRemoveLobby(roomId)) != null) {
-                    hostIsOnline = true;
-
-                    // Check if room host is still online
-                    try {
-                        hostDos = new DataOutputStream(host.getOutputStream());
-                        hostDis = new DataInputStream(host.getInputStream());
-
-                        hostDos.writeByte(0);
-                        hostDos.flush();
-                        hostDis.readByte();
-                    }
-                    catch (IOException ioe) {
-                        hostIsOnline = false;
-                        closeSocket(host);
-                    }
-
-                    if (hostIsOnline) {
-                        try {
-                            // Notify client that room exists
-                            dos.writeBoolean(true);
-                            dos.flush();
-                        }
-                        catch (IOException ioe) {
-                            // If player error happens communicating with player restore lobby
-                            lobbiesHandler.restoreLobby(roomId, host);
-                            closeSocket(player);
-                        }
-
-                        // Starts the game
-                        startGame(host, player);
-                    }
-                    else {
-                        // Notify client that room does not exist
-                        dos.writeBoolean(false);
-                        dos.flush();
-                    }
-                } else {
-                    // Notify client that room does not exist
-                    dos.writeBoolean(false);
-                    dos.flush();
-                }
-            }
+            socket.setSoTimeout(Timeouts.PROBE_TIMEOUT_MILLISECONDS);
+            probeSentAt = System.nanoTime();
+            waitingPlayerDos.writeByte(0);
+            waitingPlayerDos.flush();
+            waitingPlayerDis.readByte();
+            socket.setSoTimeout(0);
+
+            return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - probeSentAt);
         }
-        catch (IOException ioe) { closeSocket(player); }
+        catch (IOException ioe) { return -1; }
+        finally { waitingPlayer.unlock(); }
     }
 
     /**
-     * Starts the communications between players
+     * Tells a client of a draining server to reconnect (see {@link Server#SERVER_RESTARTING}) and closes its
+     * socket.
      *
-     * @param player1 The socket of the first player (e.g., host or first in queue).
-     * @param player2 The socket of the second player (e.g., joiner or second in queue).
+     * @param player              The socket of the client (one that is not waiting for a rival, so nobody probes it).
+     * @param admissionController The admission control that admitted the client.
      */
-    private void startGame(Socket player1, Socket player2) {
-        new GameCommunicationHandler(player1, player2).startCommunicationBetweenPlayers();
+    static void sendRestarting(Socket player, AdmissionController<Socket> admissionController) {
+        sendFinalReply(player, new byte[] {Server.SERVER_RESTARTING}, admissionController);
     }
 
     /**
-     * Sets the given player as the player to search a game for and updates the streams
-     * (input and output) to be the one's associated with the given player's socket.
+     * Tells a waiting client of a draining server to reconnect, like {@link #sendRestarting(Socket, AdmissionController)}.
+     * It holds the client's lock, so it never interleaves with a probe.
      *
-     * @param player The socket of the player to search a game for
+     * @param player              The waiting client.
+     * @param admissionController The admission control that admitted the client.
      */
-    private void setPlayer(Socket player) {
-        this.player = player;
+    static void sendRestarting(WaitingClient player, AdmissionController<Socket> admissionController) {
+        player.lock();
+        try { sendRestarting(player.getSocket(), admissionController); }
+        finally { player.unlock(); }
+    }
+
+    /**
+     * Tells a waiting client to continue on another node of the cluster (see {@link Server#SERVER_REDIRECT}) and
+     * closes its socket. It holds the client's lock, so it never interleaves with a probe.
+     *
+     * @param player              The waiting client.
+     * @param node                The node the client has to connect to.
+     * @param admissionController The admission control that admitted the client.
+     */
+    static void sendRedirect(WaitingClient player, InetSocketAddress node, AdmissionController<Socket> admissionController) {
+        player.lock();
+        try { sendRedirect(player.getSocket(), node, admissionController); }
+        finally { player.unlock(); }
+    }
+
+    /**
+     * Tells a client to continue on another node of the cluster (see {@link Server#SERVER_REDIRECT}) and closes its
+     * socket.
+     *
+     * @param player              The socket of the client (one that is not waiting for a rival, so nobody probes it).
+     * @param node                The node the client has to connect to.
+     * @param admissionController The admission control that admitted the client.
+     */
+    private static void sendRedirect(Socket player, InetSocketAddress node, AdmissionController<Socket> admissionController) {
+        sendFinalReply(player, Cluster.encodeRedirect(node), admissionController);
+    }
+
+    /**
+     * Redirects the client to the node of the cluster that owns a Room ID or Match ID, if it is not this one.
+     *
+     * @param id The Room ID or Match ID sent by the client.
+     * @return {@code true} if the client has been redirected (and its socket closed).
+     */
+    private boolean redirectToOwner(int id) {
+        InetSocketAddress owner;
+
+        if (config.getCluster() == null || (owner = config.getCluster().getRemoteOwner(id)) == null) return false;
+
+        sendRedirect(player, owner, admissionController);
+        return true;
+    }
+
+    /**
+     * Sends the last reply to a client and closes its socket.
+     *
+     * @param player              The socket of the client.
+     * @param reply               The reply.
+     * @param admissionController The admission control that admitted the client.
+     */
+    private static void sendFinalReply(Socket player, byte[] reply, AdmissionController<Socket> admissionController) {
+        admissionController.release(player);
 
         try {
-            dis = new DataInputStream(player.getInputStream());
-            dos = new DataOutputStream(player.getOutputStream());
+            player.getOutputStream().write(reply);
+            player.close();
         }
-        catch (IOException ioe) { closeSocket(player); }
+        catch (IOException ioe) {
+            try { player.close(); }
+            catch (IOException e) { System.out.println("FATAL ERROR while trying to close socket after sending the last reply to client."); } // This should never happen, if it does your computer is broken sry
+        }
+    }
+
+    /**
+     * Schedules the next heartbeat of a lobby host: the host is probed while it still hosts the lobby and, if it does
+     * not answer, the lobby is removed. The heartbeats stop when the lobby is claimed (they are scheduled again if it
+     * is restored).
+     *
+     * @param roomId The Room ID of the lobby.
+     * @param host   The host.
+     */
+    private void scheduleHostHeartbeat(int roomId, WaitingClient host) {
+        timer.schedule(() -> executor.execute(() -> {
+            // Checked under the host's lock, so a joiner that claims the lobby meanwhile waits for the probe to end
+            host.lock();
+            try {
+                if (!lobbiesHandler.isLobbyHostedBy(roomId, host)) return;
+
+                if (probe(host) < 0) {
+                    lobbiesHandler.removeLobby(roomId, host);
+                    closeSocket(host.getSocket());
+                    return;
+                }
+            }
+            finally { host.unlock(); }
+
+            scheduleHostHeartbeat(roomId, host);
+        }), Timeouts.HEARTBEAT_INTERVAL_MILLISECONDS);
+    }
+
+    /**
+     * Starts the communications between players
+     *
+     * @param player1 The socket of the first player (e.g., host or first in queue).
+     * @param player2 The socket of the second player (e.g., joiner or second in queue).
+     */
+    private void startGame(Socket player1, Socket player2) {
+        new GameCommunicationHandler(player1, player2, GameMode.HOST_GAME, config, executor, timer, admissionController, matchRegistry).startCommunicationBetweenPlayers();
     }
 
     /**
      * Closes the client socket safely.
      */
     private void closeSocket(Socket player) {
+        admissionController.release(player);
+
         try { player.close(); }
         catch (IOException e) { System.out.println("FATAL ERROR while trying to close socket after failing negotiation with client."); } // This should never happen, if it does your computer is broken sry
     }
@@ -0,0 +1,290 @@
+package server;
+
+import server.cluster.Cluster;
+import server.cluster.ClusterCoordinator;
+import server.cluster.QuickPlayOverflow;
+import server.gameModeHandlers.QuickPlayHandler;
+import server.playerHandlers.GameCommunicationHandler;
+import server.rateLimiting.AdmissionController;
+import server.spectating.MatchRegistry;
+import server.timeouts.Timeouts;
+import server.timeouts.WheelTimer;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import static server.GameMode.*;
+
+/**
+ * Quick play matchmaking of the thread-per-connection server.
+ * <p>
+ * It owns the {@link QuickPlayHandler} of each quick play {@link GameMode}. A player's RTT is measured with a liveness
+ * probe when it arrives and it then waits in the queue of its game mode. An arriving player's thread and the periodic
+ * matchmaking tick (needed because the windows of the waiting players widen with time) drain the queue: each
+ * candidate pair is checked on its own task, which probes both players in parallel and starts a game as soon as both
+ * have answered, so a player that is slow to answer only delays its own pair.
+ * </p>
+ * <p>
+ * The queued players are also probed every {@value Timeouts#HEARTBEAT_INTERVAL_MILLISECONDS} ms, so a half-open
+ * connection does not keep its place in the queue.
+ * </p>
+ * <p>
+ * When the server drains, the queues are closed (see {@link #drain()}) and the players are told to reconnect.
+ * </p>
+ * <p>
+ * On a cluster node, the players that can not be paired here are forwarded to another node when the
+ * {@link ClusterCoordinator} says so (see {@link QuickPlayOverflow}).
+ * </p>
+ */
+public class QuickPlayMatchmaker implements QuickPlayOverflow {
+    private final QuickPlayHandler<WaitingClient> modernTetrisQuickPlayHandler;
+    private final QuickPlayHandler<WaitingClient> nesQuickPlayHandler;
+    private final ServerConfig config;
+    private final ExecutorService executor;
+    private final WheelTimer timer;
+    private final AdmissionController<Socket> admissionController;
+    private final MatchRegistry<GameCommunicationHandler> matchRegistry;
+
+    /**
+     * Creates the matchmaking with empty queues.
+     *
+     * @param config              The server configuration.
+     * @param executor            The executor running the server handlers (probes and relays).
+     * @param timer               The timer running the matchmaking tick and the heartbeats.
+     * @param admissionController The admission control, which counts the open connections.
+     * @param matchRegistry       The registry where the started matches are visible to spectators.
+     */
+    public QuickPlayMatchmaker(ServerConfig config, ExecutorService executor, WheelTimer timer, AdmissionController<Socket> admissionController,
+                               MatchRegistry<GameCommunicationHandler> matchRegistry) {
+        this.modernTetrisQuickPlayHandler = new QuickPlayHandler<>();
+        this.nesQuickPlayHandler = new QuickPlayHandler<>();
+        this.config = config;
+        this.executor = executor;
+        this.timer = timer;
+        this.admissionController = admissionController;
+        this.matchRegistry = matchRegistry;
+    }
+
+    /**
+     * Starts the periodic matchmaking tick, which pairs the waiting players whose windows have widened.
+     */
+    public void start() {
+        timer.schedule(() -> {
+            executor.execute(() -> matchWaitingPlayers(MODERN_TETRIS_QUICK_PLAY));
+            executor.execute(() -> matchWaitingPlayers(NES_QUICK_PLAY));
+            start();
+        }, QuickPlayHandler.WINDOW_WIDENING_INTERVAL_MILLISECONDS);
+    }
+
+    /**
+     * Puts a player in the queue of its game mode (once its RTT is measured, unless the player has sent the one it
+     * measured itself in its handshake) and drains the queue. A reported RTT is only a hint: it is verified by the
+     * probe of the player's first pair (see {@link #matchPair}).
+     *
+     * @param socket          The socket of the player searching a game.
+     * @param gameMode        The quick play game mode (Modern or NES).
+     * @param roundTripMillis The RTT sent by the player, or -1 to measure it with a probe.
+     */
+    public void search(Socket socket, GameMode gameMode, long roundTripMillis) {
+        WaitingClient player = new WaitingClient(socket);
+
+        if (roundTripMillis < 0) roundTripMillis = MatchmakingHandler.probe(player);
+        else player.setReportedRoundTripMillis(roundTripMillis);
+
+        if (roundTripMillis < 0) {
+            closeSocket(socket);
+            return;
+        }
+
+        if (!getQuickPlayHandler(gameMode).addPlayer(player, roundTripMillis)) {
+            MatchmakingHandler.sendRestarting(player, admissionController);
+            return;
+        }
+
+        scheduleHeartbeat(player, getQuickPlayHandler(gameMode));
+        matchWaitingPlayers(gameMode);
+    }
+
+    /**
+     * Closes both queues (see {@link QuickPlayHandler#close()}) and tells the players waiting in them to reconnect.
+     */
+    public void drain() {
+        List<WaitingClient> waitingPlayers = new ArrayList<>(modernTetrisQuickPlayHandler.close());
+
+        waitingPlayers.addAll(nesQuickPlayHandler.close());
+        for (WaitingClient player : waitingPlayers) executor.execute(() -> MatchmakingHandler.sendRestarting(player, admissionController));
+    }
+
+    @Override
+    public int countOverflowPlayers(GameMode gameMode) {
+        return getQuickPlayHandler(gameMode).countPlayersWaitingLongerThan(ClusterCoordinator.OVERFLOW_WAIT_MILLISECONDS);
+    }
+
+    @Override
+    public void forwardOverflowPlayers(GameMode gameMode, InetSocketAddress node) {
+        List<WaitingClient> players = getQuickPlayHandler(gameMode).removePlayersWaitingLongerThan(ClusterCoordinator.OVERFLOW_WAIT_MILLISECONDS);
+
+        if (players.isEmpty()) return;
+
+        System.out.println("Forwarding " + players.size() + " quick play players (" + gameMode + ") to node " + Cluster.format(node));
+        for (WaitingClient player : players) executor.execute(() -> MatchmakingHandler.sendRedirect(player, node, admissionController));
+    }
+
+    // ---------------------------------------------------------------------------------
+    // Auxiliary methods
+
+    /**
+     * Schedules the next heartbeat of a quick play player: while it waits in the queue it is probed and, if it does
+     * not answer, it is removed. The players of a batch in flight are skipped (their pair probes them) and the
+     * heartbeats stop once the player is matched or gone.
+     *
+     * @param player           The waiting player.
+     * @param quickPlayHandler The queue the player waits in.
+     */
+    private void scheduleHeartbeat(WaitingClient player, QuickPlayHandler<WaitingClient> quickPlayHandler) {
+        timer.schedule(() -> executor.execute(() -> {
+            // Checked under the player's lock, so a batch that takes the player meanwhile waits for the probe to end
+            player.lock();
+            try {
+                if (!quickPlayHandler.isWaiting(player)) return;
+
+                if (quickPlayHandler.isQueued(player) && MatchmakingHandler.probe(player) < 0) {
+                    quickPlayHandler.removeWaitingPlayer(player);
+                    closeSocket(player.getSocket());
+                    return;
+                }
+            }
+            finally { player.unlock(); }
+
+            scheduleHeartbeat(player, quickPlayHandler);
+        }), Timeouts.HEARTBEAT_INTERVAL_MILLISECONDS);
+    }
+
+    /**
+     * Takes the next batches of candidate pairs until there are no more, and checks each pair on its own task.
+     *
+     * @param gameMode The quick play game mode.
+     */
+    private void matchWaitingPlayers(GameMode gameMode) {
+        QuickPlayHandler<WaitingClient> quickPlayHandler = getQuickPlayHandler(gameMode);
+        List<WaitingClient> batch;
+
+        while (!(batch = quickPlayHandler.pollBatch()).isEmpty()) {
+            System.out.println("Quick play batch (" + gameMode + "): " + batch.size() / 2 + " pairs, " + quickPlayHandler.getStatistics());
+
+            for (int i = 0; i < batch.size(); i += 2) {
+                WaitingClient player1 = batch.get(i), player2 = batch.get(i + 1);
+
+                executor.execute(() -> matchPair(gameMode, quickPlayHandler, player1, player2));
+            }
+        }
+    }
+
+    /**
+     * Probes both players of a candidate pair in parallel and, once both have answered, starts a
+     * {@link GameCommunicationHandler} if both are online or gives the survivor back to the queue. If a player was
+     * queued with a round trip time it reported and its probe has found it slower than that, the pair was chosen from
+     * the wrong bucket: both players go back to the queue, the liar with the measured round trip time.
+     *
+     * @param gameMode         The game mode of the queue.
+     * @param quickPlayHandler The queue the pair was taken from.
+     * @param player1          The player that has been waiting longer.
+     * @param player2          The other player.
+     */
+    private void matchPair(GameMode gameMode, QuickPlayHandler<WaitingClient> quickPlayHandler, WaitingClient player1, WaitingClient player2) {
+        long player1ReportedRoundTripMillis = player1.takeReportedRoundTripMillis(), player2ReportedRoundTripMillis = player2.takeReportedRoundTripMillis();
+        Future<Long> player2Probe = executor.submit(() -> MatchmakingHandler.probe(player2));
+        long player1RoundTripMillis = MatchmakingHandler.probe(player1);
+        long player2RoundTripMillis = waitForProbe(player2Probe);
+        boolean bucketsConfirmed = isBucketConfirmed(player1ReportedRoundTripMillis, player1RoundTripMillis)
+                && isBucketConfirmed(player2ReportedRoundTripMillis, player2RoundTripMillis);
+
+        // A reported round trip time is kept if it is higher, it can only be wrong to the cost of its own player
+        if (player1RoundTripMillis >= 0) player1RoundTripMillis = Math.max(player1RoundTripMillis, player1ReportedRoundTripMillis);
+        if (player2RoundTripMillis >= 0) player2RoundTripMillis = Math.max(player2RoundTripMillis, player2ReportedRoundTripMillis);
+
+        if (player1RoundTripMillis >= 0 && player2RoundTripMillis >= 0 && bucketsConfirmed) {
+            quickPlayHandler.matched(player1, player2);
+            new GameCommunicationHandler(player1.getSocket(), player2.getSocket(), gameMode, config, executor, timer, admissionController, matchRegistry).startCommunicationBetweenPlayers();
+            return;
+        }
+
+        if (player1RoundTripMillis < 0) dropOfflinePlayer(quickPlayHandler, player1);
+        else requeue(quickPlayHandler, player1, player1RoundTripMillis);
+
+        if (player2RoundTripMillis < 0) dropOfflinePlayer(quickPlayHandler, player2);
+        else requeue(quickPlayHandler, player2, player2RoundTripMillis);
+
+        // The survivor may be paired with a player that is already waiting
+        matchWaitingPlayers(gameMode);
+    }
+
+    /**
+     * @param reportedRoundTripMillis The RTT a player reported in its handshake, or -1 if it did not report one.
+     * @param measuredRoundTripMillis The RTT measured by its probe.
+     * @return {@code false} if the player was queued in a faster RTT bucket than the measured RTT.
+     */
+    private static boolean isBucketConfirmed(long reportedRoundTripMillis, long measuredRoundTripMillis) {
+        return reportedRoundTripMillis < 0 || measuredRoundTripMillis <= reportedRoundTripMillis
+                || QuickPlayHandler.isSameRoundTripBucket(reportedRoundTripMillis, measuredRoundTripMillis);
+    }
+
+    /**
+     * Gives a live player whose pair was not started back to the queue, or tells it to reconnect if the queue has been
+     * closed meanwhile.
+     *
+     * @param quickPlayHandler The queue the player was taken from.
+     * @param player           The player.
+     * @param roundTripMillis  The RTT measured by its last probe.
+     */
+    private void requeue(QuickPlayHandler<WaitingClient> quickPlayHandler, WaitingClient player, long roundTripMillis) {
+        if (!quickPlayHandler.requeue(player, roundTripMillis)) MatchmakingHandler.sendRestarting(player, admissionController);
+    }
+
+    /**
+     * Stops tracking a player that did not answer its probe and closes its connection.
+     *
+     * @param quickPlayHandler The queue the player was taken from.
+     * @param player           The player.
+     */
+    private void dropOfflinePlayer(QuickPlayHandler<WaitingClient> quickPlayHandler, WaitingClient player) {
+        quickPlayHandler.removeWaitingPlayer(player);
+        closeSocket(player.getSocket());
+    }
+
+    /**
+     * Waits for the result of a liveness probe.
+     *
+     * @param probe The probe submitted to the executor.
+     * @return The measured RTT in milliseconds, or -1 if the player did not answer.
+     */
+    private long waitForProbe(Future<Long> probe) {
+        try { return probe.get(); }
+        catch (InterruptedException | ExecutionException e) { return -1; }
+    }
+
+    /**
+     * @param gameMode A quick play game mode.
+     * @return The queue for the given game mode.
+     */
+    private QuickPlayHandler<WaitingClient> getQuickPlayHandler(GameMode gameMode) {
+        if (gameMode == MODERN_TETRIS_QUICK_PLAY) return modernTetrisQuickPlayHandler;
+        else return nesQuickPlayHandler;
+    }
+
+    /**
+     * Closes the client socket safely.
+     */
+    private void closeSocket(Socket player) {
+        admissionController.release(player);
+
+        try { player.close(); }
+        catch (IOException e) { System.out.println("FATAL ERROR while trying to close socket after failing negotiation with client."); } // This should never happen, if it does your computer is broken sry
+    }
+}
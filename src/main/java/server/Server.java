@@ -1,20 +1,29 @@
 package server;
 
-import server.gameModeHandlers.LobbiesHandler;
-import server.gameModeHandlers.QuickPlayHandler;
+import server.eventLoops.EventLoopServer;
+import server.lifecycle.ControlServer;
+import server.lifecycle.DrainableServer;
+import server.recording.MatchLog;
+import server.timeouts.Timeouts;
 
 import java.io.IOException;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 /**
  * The main entry point for the Tetris Server.
  * <p>
- * This class is responsible for setting up the server socket and listening for incoming
- * client connections. It uses a cached thread pool to handle multiple connection requests
- * concurrently, delegating the specific handshake logic to {@link MatchmakingHandler}.
+ * This class is responsible for setting up the server that listens for incoming client connections. By default,
+ * connections are multiplexed over a few selector-based event loops (see {@link EventLoopServer}). The original
+ * thread-per-connection model, which delegates the handshake logic to {@link MatchmakingHandler}, is still available
+ * with {@code --io=blocking} (see {@link BlockingServer}), running either on platform or on virtual threads.
+ * </p>
+ * <p>
+ * Both servers can be drained through their control socket (see {@link ControlServer}), and a new server can take
+ * over the port of a running one with {@code --take-over=true}, so a deploy does not end the running matches.
+ * </p>
+ * <p>
+ * Several servers can also run as the nodes of a cluster (see {@link server.cluster.Cluster}), which split the Room
+ * IDs and Match IDs between them and redirect the clients to the node that owns their room.
  * </p>
  */
 public class Server {
@@ -23,51 +32,172 @@ public class Server {
      */
     public static final int SERVER_PORT = 7777;
 
+    /**
+     * Byte sent instead of any reply to a client whose connection is rejected (the replies of every game mode start
+     * with a 0 or a 1, so the client can always tell it apart).
+     */
+    public static final int SERVER_BUSY = 2;
+
+    /**
+     * Byte sent by a draining server instead of any reply or probe to a client that has not started a match yet (e.g.,
+     * a host waiting in its lobby). The client connects again, and reaches the server that took over the port.
+     */
+    public static final int SERVER_RESTARTING = 3;
+
+    /**
+     * Byte sent by a cluster node instead of a reply (or a probe) to a client that has to continue on another node:
+     * a joiner or a spectator whose ID is owned by another node, or a quick play player forwarded to another node.
+     * It is followed by the host ({@code writeUTF}) and the port (an int) of the node, see
+     * {@link server.cluster.Cluster}. The client connects there with the same game mode (and the same ID).
+     */
+    public static final int SERVER_REDIRECT = 4;
+
+    /**
+     * Flag a client ORs into the game mode it sends when it can play a match peer-to-peer. Clients without it (and the
+     * blocking server, which ignores it) always play through the server relay.
+     */
+    public static final int PEER_TO_PEER = 0x100;
+
+    /**
+     * Flag a client ORs into the game mode it sends when it can receive the falling tetromino updates as datagrams (see
+     * {@link server.eventLoops.DatagramRelay}). Only the event loop server relays them, and only between two clients
+     * with the flag.
+     */
+    public static final int DATAGRAM_UPDATES = 0x200;
+
+    /**
+     * Flag a client of {@link #PROTOCOL_VERSION} 1 or newer ORs into the game mode it sends when it can send and receive
+     * the board messages in the compact encoding (see {@link tetris.boards.io.CompactBoardMessages}). Only the event
+     * loop server grants it, in the options of {@link #SERVER_MATCH_READY}, and only to two clients with the flag;
+     * every other match keeps one byte per field.
+     */
+    public static final int COMPACT_BOARD_MESSAGES = 0x400;
+
+    /**
+     * Flag a client of {@link #PROTOCOL_VERSION} 1 or newer ORs into the game mode it sends when it can send and receive
+     * the board messages in frames (see {@link tetris.boards.io.BoardFrames}). Only the event loop server grants it, in
+     * the options of {@link #SERVER_MATCH_READY}, and only to two clients with the flag.
+     */
+    public static final int FRAMED_BOARD_MESSAGES = 0x800;
+
+    /**
+     * Version of the handshake a client ORs into the game mode it sends, shifted by {@link #PROTOCOL_VERSION_SHIFT}
+     * (clients without it are version 0). From version 1 the game mode is followed in the same write by the round trip
+     * time the client measured while connecting (an int, in ms), so the server does not probe it before queueing it,
+     * and by the Room ID when joining. The matches of version 1 clients start with {@link #SERVER_MATCH_READY}. Clients
+     * with a version newer than the server's are closed.
+     */
+    public static final int PROTOCOL_VERSION = 1;
+
+    /** Position of the protocol version in the game mode sent by the client. */
+    public static final int PROTOCOL_VERSION_SHIFT = 16;
+
+    /** Bits of the protocol version in the game mode sent by the client. */
+    public static final int PROTOCOL_VERSION_MASK = 0xFF << PROTOCOL_VERSION_SHIFT;
+
+    /**
+     * Byte sent instead of 1 to start a match between two clients that can both play peer-to-peer. It is followed by
+     * the seed and the peer-to-peer negotiation (see {@link server.eventLoops.EventLoopMatch}): the role of each player
+     * ({@link #PEER_LISTEN} or {@link #PEER_CONNECT}) and what it needs to reach its rival.
+     */
+    public static final int SERVER_START_PEER_TO_PEER = 5;
+
+    /**
+     * Byte sent instead of 1 (or {@link #SERVER_START_PEER_TO_PEER}) to start the match of a client of
+     * {@link #PROTOCOL_VERSION} 1 or newer. It is followed by the seed and the options of the match (an int with the
+     * {@link #PEER_TO_PEER}, {@link #DATAGRAM_UPDATES}, {@link #COMPACT_BOARD_MESSAGES} and
+     * {@link #FRAMED_BOARD_MESSAGES} flags the server has granted to both players), so the client learns how the match is played from a single frame. With {@link #PEER_TO_PEER} the peer-to-peer
+     * negotiation follows, as after {@link #SERVER_START_PEER_TO_PEER}. The blocking server, which grants no option,
+     * starts every match with 1.
+     */
+    public static final int SERVER_MATCH_READY = 6;
+
+    /** Role of the player that listens for the direct connection of its rival. */
+    public static final int PEER_LISTEN = 0;
+
+    /** Role of the player that opens the direct connection to its rival. */
+    public static final int PEER_CONNECT = 1;
+
+    /** Maximum number of pending connections queued by the OS before they are accepted (bursts of connects). */
+    public static final int ACCEPT_BACKLOG = 1024;
+
+    /** Time between two checks of the matches still running on a draining server. */
+    public static final int DRAIN_CHECK_INTERVAL_MILLISECONDS = 1000;
+
     /**
      * The main method that starts the server.
      * <p>
-     * It initializes the handlers for different game modes (Quick Play, Lobbies) and enters
-     * an infinite loop to accept client connections. Each accepted connection is processed
-     * in a separate thread.
+     * It parses the {@link ServerConfig} and starts the server with the selected {@link ServerIoMode}. With
+     * {@code --take-over=true} the server running on the same control port is drained first, and its port is bound as
+     * soon as it is free.
      * </p>
      *
-     * @param args Command line arguments if there is an arg, it will be used as the server port.
+     * @param args Command line arguments: {@code [port] [--name=value ...]}, see {@link ServerConfig}.
      */
     public static void main(String[] args) {
-        int serverPort;
+        ServerConfig config;
+        MatchLog matchLog = null;
+        DrainableServer server = null;
 
-        if (args != null && args.length > 0) serverPort = Integer.parseInt(args[0]);
-        else serverPort = SERVER_PORT;
+        try {
+            config = ServerConfig.fromArgs(args);
+        }
+        catch (IllegalArgumentException iae) {
+            System.out.println("FATAL ERROR invalid arguments: " + iae.getMessage());
+            return;
+        }
 
-        // Shared resources for matchmaking
-        QuickPlayHandler modernTetrisQuickPlayHandler = new QuickPlayHandler();
-        QuickPlayHandler nesQuickPlayHandler = new QuickPlayHandler();
-        LobbiesHandler lobbiesHandler = new LobbiesHandler();
+        if (config.getRecordDirectory() != null) {
+            try { matchLog = MatchLog.open(config.getRecordDirectory(), config.getRecordSegmentSize()); }
+            catch (IOException ioe) {
+                System.out.println("FATAL ERROR while trying to open the match log in " + config.getRecordDirectory() + ": " + ioe.getMessage());
+                return;
+            }
+        }
 
-        ExecutorService pool = Executors.newCachedThreadPool();
+        switch (config.getIoMode()) {
+            case EVENT_LOOP:
+                try { server = new EventLoopServer(config, matchLog); }
+                catch (IOException ioe) {
+                    System.out.println("FATAL ERROR while trying to create event loops: " + ioe.getMessage());
+                    return;
+                }
+                break;
+            case BLOCKING:
+                try { server = new BlockingServer(config, matchLog); }
+                catch (IllegalStateException ise) {
+                    System.out.println("FATAL ERROR " + ise.getMessage());
+                    return;
+                }
+                break;
+        }
 
-        try (ServerSocket server = new ServerSocket(serverPort)) {
-            System.out.println("Server is running on port " + serverPort);
+        // Everything is ready before the running server is drained, so its port is only closed while it is bound again
+        if (config.isTakeOver() && !ControlServer.requestDrain(config.getControlPort())) return;
 
-            while (true) {
-                try {
-                    // Block until a new connection is made
-                    Socket client = server.accept();
-                    System.out.println("New client connected: " + client.getInetAddress());
+        if (config.getCluster() != null) System.out.println("Running as cluster " + config.getCluster());
+        server.run();
 
-                    // Hand off the connection to a worker thread
-                    pool.execute(new MatchmakingHandler(client, modernTetrisQuickPlayHandler, nesQuickPlayHandler, lobbiesHandler));
-                }
-                catch (IOException ioe) {
-                    System.out.println("FATAL ERROR while trying to accept client socket: " + ioe.getMessage());
-                }
+        // The server only returns once it is drained (or if it could not bind its port), its threads are stopped
+        if (server.isDraining()) System.out.println("Server drained, every match has finished");
+        System.exit(server.isDraining() ? 0 : 1);
+    }
+
+    /**
+     * Waits until a draining server has no matches running. The pairings in flight when the drain started are given
+     * the time of a liveness probe to start their matches before the server is considered empty.
+     *
+     * @param server The draining server.
+     */
+    public static void waitForRunningMatches(DrainableServer server) {
+        long drainStartedAt = System.nanoTime();
+
+        try {
+            while (server.getNumberOfMatches() > 0 ||
+                    System.nanoTime() - drainStartedAt < TimeUnit.MILLISECONDS.toNanos(Timeouts.PROBE_TIMEOUT_MILLISECONDS)) {
+                Thread.sleep(DRAIN_CHECK_INTERVAL_MILLISECONDS);
             }
         }
-        catch (IOException ioe) {
-            System.out.println("FATAL ERROR while trying to create server socket on port " + SERVER_PORT);
-        }
-        finally {
-            pool.shutdown();
-        }
+        catch (InterruptedException ie) { Thread.currentThread().interrupt(); }
     }
 }
@@ -0,0 +1,409 @@
+package server;
+
+import server.cluster.Cluster;
+import server.cluster.ClusterCoordinator;
+import server.playerHandlers.RelayMode;
+import server.playerHandlers.SlowConsumerPolicy;
+import server.rooms.GarbageTargetingPolicy;
+import server.spectating.LaggingSpectatorPolicy;
+
+import java.net.InetSocketAddress;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Startup configuration of the server, built from the command line arguments.
+ * <p>
+ * The first argument may be the port number (kept for backwards compatibility with
+ * {@code java server.Server [port]}). Every other setting is given as a {@code --name=value} option:
+ * </p>
+ * <ul>
+ * <li><b>--io</b>: {@code event-loop} (default) or {@code blocking}, see {@link ServerIoMode}.</li>
+ * <li><b>--event-loops</b>: Number of event loops used by the event loop server (defaults to the number of cores).</li>
+ * <li><b>--relay</b>: {@code buffered} (default), {@code direct} or {@code byte-by-byte}, see {@link RelayMode} (blocking server only).</li>
+ * <li><b>--threads</b>: {@code platform} (default) or {@code virtual}, see {@link ThreadType} (blocking server only).</li>
+ * <li><b>--flush-window-us</b>: Microseconds a buffered relay waits for more bytes before writing what it has read
+ * (0, the default, writes immediately; at most {@value #MAX_FLUSH_WINDOW_MICROSECONDS}).</li>
+ * <li><b>--max-connections</b>: Maximum number of concurrent connections (defaults to {@value #DEFAULT_MAX_CONNECTIONS}).</li>
+ * <li><b>--connect-rate</b>: Connections per second an address may open (defaults to {@value #DEFAULT_CONNECTIONS_PER_SECOND_PER_ADDRESS}).</li>
+ * <li><b>--connect-burst</b>: Connections an address may open at once (defaults to {@value #DEFAULT_CONNECTION_BURST_PER_ADDRESS}).</li>
+ * <li><b>--relay-rate</b>: Bytes per second a player may send during a match (defaults to
+ * {@value #DEFAULT_RELAY_BYTES_PER_SECOND}, 0 means unlimited).</li>
+ * <li><b>--relay-high-watermark</b>: Bytes pending for a receiver over which its rival stops being read (defaults to
+ * {@value #DEFAULT_RELAY_HIGH_WATERMARK}, at least {@value #MIN_RELAY_HIGH_WATERMARK}).</li>
+ * <li><b>--relay-low-watermark</b>: Bytes pending for a receiver under which its rival is read again (defaults to
+ * {@value #DEFAULT_RELAY_LOW_WATERMARK}, it must be lower than the high watermark).</li>
+ * <li><b>--slow-consumer</b>: {@code drop-superseded} or {@code disconnect}, see {@link SlowConsumerPolicy}.
+ * {@code drop-superseded} needs the relay queues of the blocking server, where it is the default, so {@code disconnect}
+ * is the default and the only policy of the event loop server and of the {@code direct} relay.</li>
+ * <li><b>--slow-consumer-timeout-ms</b>: Milliseconds a receiver can stay over the watermarks before being
+ * disconnected with the {@code disconnect} policy (defaults to {@value #DEFAULT_SLOW_CONSUMER_TIMEOUT_MILLISECONDS}).</li>
+ * <li><b>--spectator-buffer</b>: Size in bytes of the ring buffer shared by the spectators of a match (defaults to
+ * {@value #DEFAULT_SPECTATOR_BUFFER_SIZE}, at least {@value #MIN_SPECTATOR_BUFFER_SIZE}).</li>
+ * <li><b>--lagging-spectator</b>: {@code resync} (default) or {@code disconnect}, see {@link LaggingSpectatorPolicy}.</li>
+ * <li><b>--keyframe-interval-ms</b>: Milliseconds between the board keyframes sent to the spectators of a match
+ * (defaults to {@value #DEFAULT_KEYFRAME_INTERVAL_MILLISECONDS}, 0 to keep no board replicas nor keyframes).</li>
+ * <li><b>--record-dir</b>: Directory where every match is recorded, see {@link server.recording.MatchLog} (matches
+ * are not recorded by default).</li>
+ * <li><b>--record-segment-mb</b>: Size in megabytes of each segment of the recording (defaults to
+ * {@value #DEFAULT_RECORD_SEGMENT_MEGABYTES}, at most {@value #MAX_RECORD_SEGMENT_MEGABYTES}).</li>
+ * <li><b>--control-port</b>: Local port of the control socket used to drain the server, see
+ * {@link server.lifecycle.ControlServer} (0, the default, opens no control socket).</li>
+ * <li><b>--take-over</b>: {@code true} to drain the server running on the same control port and take over its port
+ * ({@code false} by default, it needs a control port).</li>
+ * <li><b>--cluster-nodes</b>: Comma separated {@code host:port} addresses of every node of a cluster, as the clients
+ * reach them and in the same order on every node, see {@link Cluster} (the server runs on its own by default).</li>
+ * <li><b>--cluster-node-index</b>: Index of this server in the cluster nodes (0 by default).</li>
+ * <li><b>--cluster-coordinator</b>: {@code host:port} address of the {@link ClusterCoordinator} that forwards the
+ * quick play overflow between the nodes (quick play is not forwarded by default).</li>
+ * <li><b>--garbage-targeting</b>: {@code random} (default), {@code attackers} or {@code kos}, see
+ * {@link GarbageTargetingPolicy} (event loop server only, the only one with multiplayer rooms).</li>
+ * <li><b>--datagram-updates</b>: {@code false} to relay the falling tetromino updates over TCP only ({@code true} by
+ * default, see {@link server.eventLoops.DatagramRelay}; event loop server only).</li>
+ * </ul>
+ */
+public class ServerConfig {
+    /** Upper bound of the flush coalescing window, it must stay well below a frame (16 ms) to be invisible. */
+    public static final int MAX_FLUSH_WINDOW_MICROSECONDS = 1000;
+
+    public static final int DEFAULT_MAX_CONNECTIONS = 10000;
+    public static final int DEFAULT_CONNECTIONS_PER_SECOND_PER_ADDRESS = 10;
+    public static final int DEFAULT_CONNECTION_BURST_PER_ADDRESS = 30;
+
+    /** Default relay limit, far above what a client sends while playing (an update of a few bytes per frame). */
+    public static final int DEFAULT_RELAY_BYTES_PER_SECOND = 16384;
+
+    /** Default bytes pending per relay direction before the sender is stopped (a few seconds of updates). */
+    public static final int DEFAULT_RELAY_HIGH_WATERMARK = 4096;
+    public static final int DEFAULT_RELAY_LOW_WATERMARK = 1024;
+
+    /**
+     * The event loop server keeps the handshake replies in the same buffer and copies whole spectator records into it,
+     * so it can not be smaller than this.
+     */
+    public static final int MIN_RELAY_HIGH_WATERMARK = 512;
+
+    public static final int DEFAULT_SLOW_CONSUMER_TIMEOUT_MILLISECONDS = 5000;
+
+    /** Default spectator ring buffer, about a minute of a match (only allocated for matches that are watched). */
+    public static final int DEFAULT_SPECTATOR_BUFFER_SIZE = 65536;
+    public static final int MIN_SPECTATOR_BUFFER_SIZE = 1024;
+
+    /** Default keyframe interval, a spectator joining a match receives at most this much of the match before it. */
+    public static final int DEFAULT_KEYFRAME_INTERVAL_MILLISECONDS = 1000;
+
+    public static final int DEFAULT_RECORD_SEGMENT_MEGABYTES = 64;
+
+    /** Segments are mapped as a whole, and a mapping can not be larger than 2 GB. */
+    public static final int MAX_RECORD_SEGMENT_MEGABYTES = 1024;
+
+    private int port;
+    private ServerIoMode ioMode;
+    private int numberOfEventLoops;
+    private RelayMode relayMode;
+    private int flushWindowMicroseconds;
+    private ThreadType threadType;
+    private int maxConnections;
+    private int connectionsPerSecondPerAddress;
+    private int connectionBurstPerAddress;
+    private int relayBytesPerSecond;
+    private int relayHighWatermark;
+    private int relayLowWatermark;
+    private SlowConsumerPolicy slowConsumerPolicy;
+    private int slowConsumerTimeoutMilliseconds;
+    private int spectatorBufferSize;
+    private LaggingSpectatorPolicy laggingSpectatorPolicy;
+    private int keyframeIntervalMilliseconds;
+    private Path recordDirectory;
+    private int recordSegmentSize;
+    private int controlPort;
+    private boolean takeOver;
+    private List<InetSocketAddress> clusterNodes;
+    private int clusterNodeIndex;
+    private InetSocketAddress clusterCoordinator;
+    private Cluster cluster;
+    private GarbageTargetingPolicy garbageTargetingPolicy;
+    private boolean datagramUpdates;
+
+    /**
+     * Creates a configuration with the default values.
+     */
+    public ServerConfig() {
+        port = Server.SERVER_PORT;
+        ioMode = ServerIoMode.EVENT_LOOP;
+        numberOfEventLoops = Runtime.getRuntime().availableProcessors();
+        relayMode = RelayMode.BUFFERED;
+        flushWindowMicroseconds = 0;
+        threadType = ThreadType.PLATFORM;
+        maxConnections = DEFAULT_MAX_CONNECTIONS;
+        connectionsPerSecondPerAddress = DEFAULT_CONNECTIONS_PER_SECOND_PER_ADDRESS;
+        connectionBurstPerAddress = DEFAULT_CONNECTION_BURST_PER_ADDRESS;
+        relayBytesPerSecond = DEFAULT_RELAY_BYTES_PER_SECOND;
+        relayHighWatermark = DEFAULT_RELAY_HIGH_WATERMARK;
+        relayLowWatermark = DEFAULT_RELAY_LOW_WATERMARK;
+        slowConsumerPolicy = null;
+        slowConsumerTimeoutMilliseconds = DEFAULT_SLOW_CONSUMER_TIMEOUT_MILLISECONDS;
+        spectatorBufferSize = DEFAULT_SPECTATOR_BUFFER_SIZE;
+        laggingSpectatorPolicy = LaggingSpectatorPolicy.RESYNC;
+        keyframeIntervalMilliseconds = DEFAULT_KEYFRAME_INTERVAL_MILLISECONDS;
+        recordDirectory = null;
+        recordSegmentSize = DEFAULT_RECORD_SEGMENT_MEGABYTES << 20;
+        controlPort = 0;
+        takeOver = false;
+        clusterNodes = null;
+        clusterNodeIndex = 0;
+        clusterCoordinator = null;
+        cluster = null;
+        garbageTargetingPolicy = GarbageTargetingPolicy.RANDOM;
+        datagramUpdates = true;
+    }
+
+    /**
+     * Parses the command line arguments of the server.
+     *
+     * @param args The command line arguments.
+     * @return The resulting configuration.
+     * @throws IllegalArgumentException If an argument is unknown or has an invalid value.
+     */
+    public static ServerConfig fromArgs(String[] args) {
+        ServerConfig config = new ServerConfig();
+
+        if (args == null) return config;
+
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+
+            if (i == 0 && !arg.startsWith("--")) {
+                config.port = parseInt("port", arg);
+                continue;
+            }
+
+            int separatorIndex = arg.indexOf('=');
+            if (!arg.startsWith("--") || separatorIndex < 0) throw new IllegalArgumentException("Invalid argument: " + arg);
+
+            String name = arg.substring(2, separatorIndex);
+            String value = arg.substring(separatorIndex + 1);
+
+            switch (name) {
+                case "io":
+                    config.ioMode = parseEnum(ServerIoMode.class, name, value);
+                    break;
+                case "event-loops":
+                    config.numberOfEventLoops = parseInt(name, value);
+                    if (config.numberOfEventLoops < 1) throw new IllegalArgumentException("There must be at least one event loop");
+                    break;
+                case "threads":
+                    config.threadType = parseEnum(ThreadType.class, name, value);
+                    break;
+                case "relay":
+                    config.relayMode = parseEnum(RelayMode.class, name, value);
+                    break;
+                case "flush-window-us":
+                    config.flushWindowMicroseconds = parseInt(name, value);
+                    if (config.flushWindowMicroseconds < 0 || config.flushWindowMicroseconds > MAX_FLUSH_WINDOW_MICROSECONDS)
+                        throw new IllegalArgumentException("The flush window must be between 0 and " + MAX_FLUSH_WINDOW_MICROSECONDS + " microseconds");
+                    break;
+                case "max-connections":
+                    config.maxConnections = parsePositiveInt(name, value);
+                    break;
+                case "connect-rate":
+                    config.connectionsPerSecondPerAddress = parsePositiveInt(name, value);
+                    break;
+                case "connect-burst":
+                    config.connectionBurstPerAddress = parsePositiveInt(name, value);
+                    break;
+                case "relay-rate":
+                    config.relayBytesPerSecond = parseInt(name, value);
+                    if (config.relayBytesPerSecond < 0) throw new IllegalArgumentException("The relay rate can not be negative");
+                    break;
+                case "relay-high-watermark":
+                    config.relayHighWatermark = parseInt(name, value);
+                    if (config.relayHighWatermark < MIN_RELAY_HIGH_WATERMARK) throw new IllegalArgumentException("The relay high watermark must be at least " + MIN_RELAY_HIGH_WATERMARK + " bytes");
+                    break;
+                case "relay-low-watermark":
+                    config.relayLowWatermark = parseInt(name, value);
+                    if (config.relayLowWatermark < 0) throw new IllegalArgumentException("The relay low watermark can not be negative");
+                    break;
+                case "slow-consumer":
+                    config.slowConsumerPolicy = parseEnum(SlowConsumerPolicy.class, name, value);
+                    break;
+                case "slow-consumer-timeout-ms":
+                    config.slowConsumerTimeoutMilliseconds = parsePositiveInt(name, value);
+                    break;
+                case "spectator-buffer":
+                    config.spectatorBufferSize = parseInt(name, value);
+                    if (config.spectatorBufferSize < MIN_SPECTATOR_BUFFER_SIZE) throw new IllegalArgumentException("The spectator buffer must be at least " + MIN_SPECTATOR_BUFFER_SIZE + " bytes");
+                    break;
+                case "lagging-spectator":
+                    config.laggingSpectatorPolicy = parseEnum(LaggingSpectatorPolicy.class, name, value);
+                    break;
+                case "keyframe-interval-ms":
+                    config.keyframeIntervalMilliseconds = parseInt(name, value);
+                    if (config.keyframeIntervalMilliseconds < 0) throw new IllegalArgumentException("The keyframe interval can not be negative");
+                    break;
+                case "record-dir":
+                    config.recordDirectory = Paths.get(value);
+                    break;
+                case "record-segment-mb":
+                    config.recordSegmentSize = parsePositiveInt(name, value);
+                    if (config.recordSegmentSize > MAX_RECORD_SEGMENT_MEGABYTES) throw new IllegalArgumentException("The record segments can not be larger than " + MAX_RECORD_SEGMENT_MEGABYTES + " MB");
+                    config.recordSegmentSize <<= 20;
+                    break;
+                case "control-port":
+                    config.controlPort = parseInt(name, value);
+                    if (config.controlPort < 0 || config.controlPort > 65535) throw new IllegalArgumentException("The control port must be between 0 and 65535");
+                    break;
+                case "take-over":
+                    config.takeOver = parseBoolean(name, value);
+                    break;
+                case "cluster-nodes":
+                    config.clusterNodes = new ArrayList<>();
+                    for (String node : value.split(",")) config.clusterNodes.add(parseAddress(name, node));
+                    if (config.clusterNodes.size() > Cluster.MAX_NUMBER_OF_NODES) throw new IllegalArgumentException("A cluster can not have more than " + Cluster.MAX_NUMBER_OF_NODES + " nodes");
+                    break;
+                case "cluster-node-index":
+                    config.clusterNodeIndex = parseInt(name, value);
+                    break;
+                case "cluster-coordinator":
+                    config.clusterCoordinator = parseAddress(name, value);
+                    break;
+                case "garbage-targeting":
+                    config.garbageTargetingPolicy = parseEnum(GarbageTargetingPolicy.class, name, value);
+                    break;
+                case "datagram-updates":
+                    config.datagramUpdates = parseBoolean(name, value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: --" + name);
+            }
+        }
+
+        if (config.slowConsumerPolicy == null) {
+            config.slowConsumerPolicy = config.hasQueuedRelay() ? SlowConsumerPolicy.DROP_SUPERSEDED : SlowConsumerPolicy.DISCONNECT;
+        }
+        else if (config.slowConsumerPolicy == SlowConsumerPolicy.DROP_SUPERSEDED && !config.hasQueuedRelay()) {
+            throw new IllegalArgumentException("Only the buffered and byte-by-byte relays of the blocking server can drop superseded updates (use --slow-consumer=disconnect)");
+        }
+        if (config.relayLowWatermark >= config.relayHighWatermark) throw new IllegalArgumentException("The relay low watermark must be lower than the high watermark");
+        if (config.takeOver && config.controlPort == 0) throw new IllegalArgumentException("Taking over a server needs its --control-port");
+        if (config.controlPort == config.port) throw new IllegalArgumentException("The control port must be different from the port");
+
+        if (config.clusterNodes != null) {
+            if (config.clusterNodeIndex < 0 || config.clusterNodeIndex >= config.clusterNodes.size()) throw new IllegalArgumentException("The cluster node index must be between 0 and " + (config.clusterNodes.size() - 1));
+            config.cluster = new Cluster(config.clusterNodes, config.clusterNodeIndex, config.clusterCoordinator);
+        }
+        else if (config.clusterNodeIndex != 0 || config.clusterCoordinator != null) throw new IllegalArgumentException("A cluster node needs the --cluster-nodes");
+
+        return config;
+    }
+
+    public int getPort() { return port; }
+    public ServerIoMode getIoMode() { return ioMode; }
+    public int getNumberOfEventLoops() { return numberOfEventLoops; }
+    public RelayMode getRelayMode() { return relayMode; }
+    public int getFlushWindowMicroseconds() { return flushWindowMicroseconds; }
+    public ThreadType getThreadType() { return threadType; }
+    public int getMaxConnections() { return maxConnections; }
+    public int getConnectionsPerSecondPerAddress() { return connectionsPerSecondPerAddress; }
+    public int getConnectionBurstPerAddress() { return connectionBurstPerAddress; }
+    public int getRelayBytesPerSecond() { return relayBytesPerSecond; }
+    public int getRelayHighWatermark() { return relayHighWatermark; }
+    public int getRelayLowWatermark() { return relayLowWatermark; }
+    public SlowConsumerPolicy getSlowConsumerPolicy() { return slowConsumerPolicy; }
+    public int getSlowConsumerTimeoutMilliseconds() { return slowConsumerTimeoutMilliseconds; }
+    public int getSpectatorBufferSize() { return spectatorBufferSize; }
+    public LaggingSpectatorPolicy getLaggingSpectatorPolicy() { return laggingSpectatorPolicy; }
+    public int getKeyframeIntervalMilliseconds() { return keyframeIntervalMilliseconds; }
+    public Path getRecordDirectory() { return recordDirectory; }
+    public int getRecordSegmentSize() { return recordSegmentSize; }
+    public int getControlPort() { return controlPort; }
+    public boolean isTakeOver() { return takeOver; }
+    public Cluster getCluster() { return cluster; }
+    public GarbageTargetingPolicy getGarbageTargetingPolicy() { return garbageTargetingPolicy; }
+    public boolean hasDatagramUpdates() { return datagramUpdates; }
+
+    // ---------------------------------------------------------------------------------
+    // Auxiliary methods
+
+    /**
+     * @return Whether the relay of the server queues the bytes of each direction split into messages, which is what
+     *         lets it drop the superseded updates (only the blocking server does, and not with the {@code direct} relay).
+     */
+    private boolean hasQueuedRelay() {
+        return ioMode == ServerIoMode.BLOCKING && relayMode != RelayMode.DIRECT;
+    }
+
+    /**
+     * Parses an integer option.
+     *
+     * @param name  The option name (used in the error message).
+     * @param value The value to parse.
+     * @return The parsed value.
+     */
+    private static int parseInt(String name, String value) {
+        try { return Integer.parseInt(value); }
+        catch (NumberFormatException nfe) { throw new IllegalArgumentException("Invalid value for " + name + ": " + value); }
+    }
+
+    /**
+     * Parses an integer option that must be at least 1.
+     *
+     * @param name  The option name (used in the error message).
+     * @param value The value to parse.
+     * @return The parsed value.
+     */
+    private static int parsePositiveInt(String name, String value) {
+        int parsedValue = parseInt(name, value);
+
+        if (parsedValue < 1) throw new IllegalArgumentException("The value of " + name + " must be at least 1");
+        return parsedValue;
+    }
+
+    /**
+     * Parses a {@code host:port} option. The host is not resolved, so a node can start before the others are up.
+     *
+     * @param name  The option name (used in the error message).
+     * @param value The value to parse.
+     * @return The parsed (unresolved) address.
+     */
+    private static InetSocketAddress parseAddress(String name, String value) {
+        int separatorIndex = value.lastIndexOf(':');
+        int port;
+
+        if (separatorIndex <= 0) throw new IllegalArgumentException("Invalid value for " + name + ": " + value);
+
+        port = parseInt(name, value.substring(separatorIndex + 1));
+        if (port < 1 || port > 65535) throw new IllegalArgumentException("Invalid value for " + name + ": " + value);
+
+        return InetSocketAddress.createUnresolved(value.substring(0, separatorIndex), port);
+    }
+
+    /**
+     * Parses a boolean option ({@code true} or {@code false}).
+     *
+     * @param name  The option name (used in the error message).
+     * @param value The value to parse.
+     * @return The parsed value.
+     */
+    private static boolean parseBoolean(String name, String value) {
+        if (value.equals("true")) return true;
+        if (value.equals("false")) return false;
+
+        throw new IllegalArgumentException("Invalid value for " + name + ": " + value);
+    }
+
+    /**
+     * Parses an enum option written in lower case with hyphens (e.g., {@code event-loop} for {@code EVENT_LOOP}).
+     *
+     * @param enumClass The enum type.
+     * @param name      The option name (used in the error message).
+     * @param value     The value to parse.
+     * @return The parsed constant.
+     */
+    private static <E extends Enum<E>> E parseEnum(Class<E> enumClass, String name, String value) {
+        try { return Enum.valueOf(enumClass, value.toUpperCase().replace('-', '_')); }
+        catch (IllegalArgumentException iae) { throw new IllegalArgumentException("Invalid value for " + name + ": " + value); }
+    }
+}
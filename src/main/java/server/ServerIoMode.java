@@ -0,0 +1,21 @@
+package server;
+
+/**
+ * Enumeration of the I/O models the server can run with.
+ * <p>
+ * Both models speak exactly the same wire protocol, so clients cannot tell them apart.
+ * </p>
+ */
+public enum ServerIoMode {
+    /**
+     * A small fixed number of selector-based event loops multiplex every connection (handshake,
+     * matchmaking and relay). This is the default mode.
+     */
+    EVENT_LOOP,
+
+    /**
+     * The original thread-per-connection model: a {@link MatchmakingHandler} thread per accepted socket
+     * and two relay threads per match.
+     */
+    BLOCKING
+}
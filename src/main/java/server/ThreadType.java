@@ -0,0 +1,18 @@
+package server;
+
+/**
+ * Enumeration of the kinds of threads the thread-per-connection server can run its handlers on.
+ */
+public enum ThreadType {
+    /**
+     * Regular OS threads from a cached pool (default). Every connection and relay direction holds one
+     * OS thread and its stack while it is blocked.
+     */
+    PLATFORM,
+
+    /**
+     * Virtual threads (Java 21 or newer). Blocked connections and relays only keep a small heap object,
+     * so the same heap sustains far more concurrent matches.
+     */
+    VIRTUAL
+}
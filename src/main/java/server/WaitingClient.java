@@ -0,0 +1,57 @@
+package server;
+
+import server.timeouts.Timeouts;
+
+import java.net.Socket;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A client of the thread-per-connection server that waits for a rival, in a lobby or in a quick play queue, with the
+ * lock that keeps the probes, the heartbeats and the last reply sent to it from interleaving.
+ * <p>
+ * The lock is a {@link ReentrantLock} instead of the socket's monitor: a probe holds it while it waits up to
+ * {@value Timeouts#PROBE_TIMEOUT_MILLISECONDS} ms for the client, and a virtual thread that blocks on a socket while it
+ * holds a monitor stays pinned to its carrier thread, so a few clients that do not answer would stop the server.
+ * </p>
+ */
+public class WaitingClient {
+    private final Socket socket;
+    private final ReentrantLock lock;
+    private long reportedRoundTripMillis;
+
+    /**
+     * @param socket The socket of the client.
+     */
+    public WaitingClient(Socket socket) {
+        this.socket = socket;
+        this.lock = new ReentrantLock();
+        this.reportedRoundTripMillis = -1;
+    }
+
+    public Socket getSocket() { return socket; }
+
+    /**
+     * @param reportedRoundTripMillis The round trip time the client measured itself and sent in its handshake, which
+     *                                is only a hint until a probe verifies it.
+     */
+    public void setReportedRoundTripMillis(long reportedRoundTripMillis) { this.reportedRoundTripMillis = reportedRoundTripMillis; }
+
+    /**
+     * Takes the round trip time the client reported in its handshake, so it is compared with a measured one only once.
+     *
+     * @return The reported round trip time in ms, or -1 if the client did not report one or it has already been taken.
+     */
+    public long takeReportedRoundTripMillis() {
+        long reported = reportedRoundTripMillis;
+
+        reportedRoundTripMillis = -1;
+        return reported;
+    }
+
+    /**
+     * Acquires the lock of the client, waiting for the probe in progress (if any) to end.
+     */
+    public void lock() { lock.lock(); }
+
+    public void unlock() { lock.unlock(); }
+}
@@ -0,0 +1,100 @@
+package server.cluster;
+
+import server.Server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The membership of a cluster of servers, as seen by one of its nodes.
+ * <p>
+ * Every node is started with the same list of node addresses (the ones clients can reach) and its own index in it.
+ * The Room IDs and Match IDs are split between the nodes: node {@code i} of {@code n} only hands out the IDs
+ * {@code id % n == i} (see {@link server.gameModeHandlers.LobbiesHandler} and
+ * {@link server.spectating.MatchRegistry}), so any node knows which node owns an ID without asking anyone, and a
+ * client that reaches the wrong node is redirected to the owner (see {@link Server#SERVER_REDIRECT}).
+ * </p>
+ * <p>
+ * Quick play is local to each node, but the players a node can not pair are forwarded to another node through the
+ * {@link ClusterCoordinator}, if the cluster has one.
+ * </p>
+ */
+public class Cluster {
+    /** Maximum number of nodes, so the Room IDs of every node fit in an int. */
+    public static final int MAX_NUMBER_OF_NODES = 1024;
+
+    private final List<InetSocketAddress> nodes;
+    private final int nodeIndex;
+    private final InetSocketAddress coordinator;
+
+    /**
+     * Creates the membership of a node.
+     *
+     * @param nodes       The addresses of every node of the cluster, in the same order on every node.
+     * @param nodeIndex   The index of this node in the list.
+     * @param coordinator The address of the {@link ClusterCoordinator}, or {@code null} if quick play is not forwarded.
+     */
+    public Cluster(List<InetSocketAddress> nodes, int nodeIndex, InetSocketAddress coordinator) {
+        this.nodes = Collections.unmodifiableList(new ArrayList<>(nodes));
+        this.nodeIndex = nodeIndex;
+        this.coordinator = coordinator;
+    }
+
+    public int getNodeIndex() { return nodeIndex; }
+    public int getNumberOfNodes() { return nodes.size(); }
+    public InetSocketAddress getNode(int nodeIndex) { return nodes.get(nodeIndex); }
+    public InetSocketAddress getCoordinator() { return coordinator; }
+
+    /**
+     * @param id A Room ID or Match ID sent by a client.
+     * @return The address of the node that owns the ID, or {@code null} if this node owns it (or the ID is negative,
+     * which no node owns, so this node rejects it).
+     */
+    public InetSocketAddress getRemoteOwner(int id) {
+        if (id < 0 || id % nodes.size() == nodeIndex) return null;
+
+        return nodes.get(id % nodes.size());
+    }
+
+    /**
+     * Encodes the reply that redirects a client to another node: the {@link Server#SERVER_REDIRECT} byte, the host
+     * (as written by {@link DataOutputStream#writeUTF(String)}) and the port (as an int).
+     *
+     * @param node The node the client has to connect to.
+     * @return The reply.
+     */
+    public static byte[] encodeRedirect(InetSocketAddress node) {
+        ByteArrayOutputStream reply = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(reply);
+
+        try {
+            dos.writeByte(Server.SERVER_REDIRECT);
+            dos.writeUTF(node.getHostString());
+            dos.writeInt(node.getPort());
+        }
+        catch (IOException ioe) { System.out.println("FATAL ERROR while trying to encode redirect to " + node); } // This should never happen, if it does your computer is broken sry
+
+        return reply.toByteArray();
+    }
+
+    /**
+     * @param address A node or coordinator address.
+     * @return The address as written in the command line ({@code host:port}), it is never resolved.
+     */
+    public static String format(InetSocketAddress address) { return address.getHostString() + ":" + address.getPort(); }
+
+    @Override
+    public String toString() {
+        StringBuilder description = new StringBuilder("node " + nodeIndex + " of " + nodes.size() + ":");
+
+        for (InetSocketAddress node : nodes) description.append(' ').append(format(node));
+        if (coordinator != null) description.append(", coordinator ").append(format(coordinator));
+
+        return description.toString();
+    }
+}
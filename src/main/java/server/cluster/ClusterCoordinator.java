@@ -0,0 +1,174 @@
+package server.cluster;
+
+import server.GameMode;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Map;
+
+import static server.GameMode.*;
+
+/**
+ * The coordinator of a cluster of servers, a small standalone process that forwards quick play overflow between them.
+ * <p>
+ * Every node with a coordinator (see {@link Cluster}) keeps a connection open to it, through its
+ * {@link CoordinatorClient}. Every {@value #REPORT_INTERVAL_MILLISECONDS} ms the node reports, for each game mode of
+ * {@link #QUICK_PLAY_MODES}, how many of its players overflow (see {@link QuickPlayOverflow}), and the coordinator
+ * replies, for each game mode, the index of the node those players have to be forwarded to (or {@link #NO_NODE}).
+ * Every value is an int.
+ * </p>
+ * <p>
+ * The players of a game mode are gathered on the node with the most overflowing players (the lowest index between
+ * equals), so two lone players on different nodes end up on the same one and are paired there. The coordinator
+ * only keeps the last report of each node: it holds no players nor rooms, so it can be restarted at any time (the
+ * nodes reconnect to it) and the cluster keeps working without it, only without forwarding quick play.
+ * </p>
+ */
+public class ClusterCoordinator {
+    public static final int DEFAULT_PORT = 7800;
+
+    /** Time between two reports of a node. */
+    public static final int REPORT_INTERVAL_MILLISECONDS = 1000;
+
+    /**
+     * Time after which a waiting player overflows: by then its window has widened enough to be paired with any close
+     * rival on its node.
+     */
+    public static final int OVERFLOW_WAIT_MILLISECONDS = 5000;
+
+    /** Value replied when the overflowing players of a game mode stay where they are. */
+    public static final int NO_NODE = -1;
+
+    /** The quick play game modes, in the order of the reports and replies. */
+    public static final GameMode[] QUICK_PLAY_MODES = {MODERN_TETRIS_QUICK_PLAY, NES_QUICK_PLAY};
+
+    private final Map<Integer, int[]> overflowPlayers;
+
+    private ClusterCoordinator() {
+        overflowPlayers = new HashMap<>();
+    }
+
+    /**
+     * Starts the coordinator.
+     *
+     * @param args Command line arguments: {@code [port]} ({@value #DEFAULT_PORT} by default).
+     */
+    public static void main(String[] args) {
+        ClusterCoordinator coordinator = new ClusterCoordinator();
+        int port = DEFAULT_PORT;
+
+        if (args.length > 0) {
+            try { port = Integer.parseInt(args[0]); }
+            catch (NumberFormatException nfe) {
+                System.out.println("FATAL ERROR invalid port: " + args[0]);
+                return;
+            }
+        }
+
+        try (ServerSocket server = new ServerSocket(port)) {
+            System.out.println("Cluster coordinator is running on port " + port);
+
+            while (true) {
+                Socket node = server.accept();
+                new Thread(() -> coordinator.serveNode(node), "node " + node.getRemoteSocketAddress()).start();
+            }
+        }
+        catch (IOException ioe) {
+            System.out.println("FATAL ERROR while trying to run the cluster coordinator on port " + port + ": " + ioe.getMessage());
+        }
+    }
+
+    // ---------------------------------------------------------------------------------
+    // Auxiliary methods
+
+    /**
+     * Replies to the reports of a node until it disconnects, and then forgets its players.
+     *
+     * @param node The connection of the node.
+     */
+    private void serveNode(Socket node) {
+        int nodeIndex = NO_NODE;
+        int[] report = new int[QUICK_PLAY_MODES.length];
+        int[] targets;
+
+        try (Socket connection = node) {
+            DataInputStream dis = new DataInputStream(connection.getInputStream());
+            DataOutputStream dos = new DataOutputStream(connection.getOutputStream());
+
+            nodeIndex = dis.readInt();
+            System.out.println("Node " + nodeIndex + " connected from " + connection.getRemoteSocketAddress());
+
+            while (true) {
+                for (int i = 0; i < report.length; i++) report[i] = dis.readInt();
+
+                targets = handleReport(nodeIndex, report);
+                for (int target : targets) dos.writeInt(target);
+                dos.flush();
+            }
+        }
+        catch (IOException ioe) {
+            if (nodeIndex != NO_NODE) {
+                System.out.println("Node " + nodeIndex + " disconnected");
+                forgetNode(nodeIndex);
+            }
+        }
+    }
+
+    /**
+     * Records the report of a node and decides where its overflowing players go. The players forwarded are counted
+     * on their new node right away, so the nodes reporting next forward their players to the same one.
+     *
+     * @param nodeIndex The index of the node.
+     * @param report    The number of overflowing players of the node for each game mode.
+     * @return The node each game mode's players are forwarded to, or {@link #NO_NODE}.
+     */
+    private synchronized int[] handleReport(int nodeIndex, int[] report) {
+        int[] nodeOverflow = report.clone();
+        int[] targets = new int[report.length];
+        int target;
+
+        overflowPlayers.put(nodeIndex, nodeOverflow);
+
+        for (int i = 0; i < report.length; i++) {
+            target = NO_NODE;
+            if (report[i] > 0) target = getNodeWithMostOverflow(i);
+
+            if (target == nodeIndex) target = NO_NODE;
+            if (target != NO_NODE) {
+                System.out.println("Forwarding " + report[i] + " " + QUICK_PLAY_MODES[i] + " players from node " + nodeIndex + " to node " + target);
+                overflowPlayers.get(target)[i] += report[i];
+                nodeOverflow[i] = 0;
+            }
+
+            targets[i] = target;
+        }
+
+        return targets;
+    }
+
+    /**
+     * @param gameModeIndex The index of a game mode in {@link #QUICK_PLAY_MODES}.
+     * @return The node with the most overflowing players of the game mode (the lowest index between equals).
+     */
+    private int getNodeWithMostOverflow(int gameModeIndex) {
+        int bestNode = NO_NODE;
+        int bestOverflow = 0;
+
+        for (Map.Entry<Integer, int[]> node : overflowPlayers.entrySet()) {
+            int overflow = node.getValue()[gameModeIndex];
+
+            if (overflow > bestOverflow || (overflow == bestOverflow && overflow > 0 && node.getKey() < bestNode)) {
+                bestNode = node.getKey();
+                bestOverflow = overflow;
+            }
+        }
+
+        return bestNode;
+    }
+
+    private synchronized void forgetNode(int nodeIndex) { overflowPlayers.remove(nodeIndex); }
+}
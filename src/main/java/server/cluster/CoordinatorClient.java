@@ -0,0 +1,127 @@
+package server.cluster;
+
+import server.GameMode;
+import server.timeouts.Timeouts;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/**
+ * The connection of a cluster node to the {@link ClusterCoordinator}.
+ * <p>
+ * It runs on its own daemon thread: every {@value ClusterCoordinator#REPORT_INTERVAL_MILLISECONDS} ms it reports the
+ * quick play overflow of the node and forwards the overflowing players wherever the coordinator says. If the
+ * coordinator is unreachable, the node keeps working on its own and the connection is retried every
+ * {@value #RECONNECT_DELAY_MILLISECONDS} ms.
+ * </p>
+ */
+public class CoordinatorClient implements Runnable {
+    public static final int RECONNECT_DELAY_MILLISECONDS = 5000;
+
+    private final Cluster cluster;
+    private final QuickPlayOverflow quickPlayOverflow;
+
+    private CoordinatorClient(Cluster cluster, QuickPlayOverflow quickPlayOverflow) {
+        this.cluster = cluster;
+        this.quickPlayOverflow = quickPlayOverflow;
+    }
+
+    /**
+     * Starts reporting to the coordinator of the cluster on a new daemon thread, if the cluster has one.
+     *
+     * @param cluster           The cluster membership of the node.
+     * @param quickPlayOverflow The quick play matchmaking of the node.
+     */
+    public static void start(Cluster cluster, QuickPlayOverflow quickPlayOverflow) {
+        Thread thread;
+
+        if (cluster.getCoordinator() == null) return;
+
+        thread = new Thread(new CoordinatorClient(cluster, quickPlayOverflow), "cluster-coordinator");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Reports to the coordinator, reconnecting whenever the connection is lost.
+     */
+    @Override
+    public void run() {
+        boolean connectionErrorLogged = false;
+
+        while (true) {
+            try (Socket coordinator = new Socket()) {
+                coordinator.connect(resolve(cluster.getCoordinator()), Timeouts.HANDSHAKE_TIMEOUT_MILLISECONDS);
+                coordinator.setSoTimeout(Timeouts.HANDSHAKE_TIMEOUT_MILLISECONDS);
+                System.out.println("Connected to the cluster coordinator " + Cluster.format(cluster.getCoordinator()));
+                connectionErrorLogged = false;
+
+                report(coordinator);
+            }
+            catch (IOException ioe) {
+                // Logged once until the coordinator is reached again, the node works on its own meanwhile
+                if (!connectionErrorLogged) System.out.println("FATAL ERROR can not reach the cluster coordinator " + Cluster.format(cluster.getCoordinator()) + ": " + ioe.getMessage());
+                connectionErrorLogged = true;
+            }
+
+            if (!sleep(RECONNECT_DELAY_MILLISECONDS)) return;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------
+    // Auxiliary methods
+
+    /**
+     * Sends the index of the node and then its reports, until the connection fails.
+     *
+     * @param coordinator The connection to the coordinator.
+     * @throws IOException If the connection fails.
+     */
+    private void report(Socket coordinator) throws IOException {
+        DataInputStream dis = new DataInputStream(coordinator.getInputStream());
+        DataOutputStream dos = new DataOutputStream(coordinator.getOutputStream());
+        int target;
+
+        dos.writeInt(cluster.getNodeIndex());
+        dos.flush();
+
+        while (sleep(ClusterCoordinator.REPORT_INTERVAL_MILLISECONDS)) {
+            for (GameMode gameMode : ClusterCoordinator.QUICK_PLAY_MODES) dos.writeInt(quickPlayOverflow.countOverflowPlayers(gameMode));
+            dos.flush();
+
+            for (GameMode gameMode : ClusterCoordinator.QUICK_PLAY_MODES) {
+                target = dis.readInt();
+
+                if (target >= 0 && target < cluster.getNumberOfNodes() && target != cluster.getNodeIndex()) {
+                    quickPlayOverflow.forwardOverflowPlayers(gameMode, cluster.getNode(target));
+                }
+            }
+        }
+    }
+
+    /**
+     * @param address An address as given in the command line.
+     * @return The same address, resolved (so the coordinator's name is looked up again on every reconnection).
+     */
+    private static InetSocketAddress resolve(InetSocketAddress address) {
+        return new InetSocketAddress(address.getHostString(), address.getPort());
+    }
+
+    /**
+     * @param milliseconds The time to sleep.
+     * @return {@code false} if the thread was interrupted.
+     */
+    private static boolean sleep(long milliseconds) {
+        try {
+            Thread.sleep(milliseconds);
+            return true;
+        }
+        catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package server.cluster;
+
+import server.GameMode;
+
+import java.net.InetSocketAddress;
+
+/**
+ * The quick play matchmaking of a cluster node, as seen by the {@link CoordinatorClient}.
+ * <p>
+ * A player that has waited {@value ClusterCoordinator#OVERFLOW_WAIT_MILLISECONDS} ms has no rival on its node (by
+ * then its window covers every close bucket), so it overflows: the coordinator may tell the node to forward it to
+ * another node with overflowing players of the same game mode.
+ * </p>
+ */
+public interface QuickPlayOverflow {
+    /**
+     * @param gameMode A quick play game mode.
+     * @return The number of players of that game mode that have waited at least
+     * {@value ClusterCoordinator#OVERFLOW_WAIT_MILLISECONDS} ms.
+     */
+    int countOverflowPlayers(GameMode gameMode);
+
+    /**
+     * Takes the overflowing players of a game mode out of their queue and redirects them to another node (see
+     * {@link server.Server#SERVER_REDIRECT}), where they search a rival again.
+     *
+     * @param gameMode A quick play game mode.
+     * @param node     The node the players are forwarded to.
+     */
+    void forwardOverflowPlayers(GameMode gameMode, InetSocketAddress node);
+}
@@ -0,0 +1,632 @@
+package server.eventLoops;
+
+import server.GameMode;
+import server.Server;
+import server.cluster.Cluster;
+import server.rateLimiting.AdmissionController;
+import server.timeouts.Timeout;
+import server.timeouts.Timeouts;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * A non-blocking client connection owned by an {@link EventLoop}.
+ * <p>
+ * The connection keeps the bytes received during the handshake and the bytes pending to be sent, and reacts to
+ * the readiness events dispatched by its loop according to its {@link ConnectionState}. Matchmaking decisions are
+ * delegated to the {@link EventLoopMatchmakingHandler} and, once matched, the byte relay to its
+ * {@link EventLoopMatch} (which also sends the match stream to the connections that spectate it), or to its
+ * {@link EventLoopRoom}.
+ * </p>
+ * <p>
+ * <b>Threading:</b> every method must be called from the owning loop's thread. A connection changes owner only
+ * through {@link #moveTo(EventLoop, Consumer)}.
+ * </p>
+ */
+public class ClientConnection {
+    private final SocketChannel channel;
+    private final EventLoopMatchmakingHandler matchmakingHandler;
+    private final AdmissionController<SocketChannel> admissionController;
+    private final ByteBuffer handshakeBuffer;
+    private final ByteBuffer outboundBuffer;
+    private EventLoop eventLoop;
+    private SelectionKey key;
+    private int interestOps;
+    private ConnectionState state;
+    private GameMode gameMode;
+    private int roomId;
+    private EventLoopMatch match;
+    private EventLoopRoom room;
+    private boolean peerToPeer;
+    private boolean datagramUpdates;
+    private boolean compactBoardMessages;
+    private boolean framedBoardMessages;
+    private int protocolVersion;
+    private Consumer<Boolean> probeCallback;
+    private long probeSequence;
+    private long probeSentAt;
+    private long roundTripMillis;
+    private long reportedRoundTripMillis;
+    private boolean roundTripVerified;
+    private long lastHeardAt;
+    private Timeout heartbeat;
+    private long lobbyCreatedAt;
+    private boolean shutdownOutputPending;
+    private boolean closePending;
+
+    /**
+     * Creates a connection for a freshly accepted channel.
+     *
+     * @param channel             The non-blocking channel.
+     * @param eventLoop           The loop that owns the connection.
+     * @param matchmakingHandler  The matchmaking logic shared by every loop.
+     * @param admissionController The admission control that admitted the channel.
+     * @param outboundBufferSize  Size of the buffer holding the bytes pending to be sent to this client (the high
+     *                            watermark of the relay direction towards it).
+     */
+    public ClientConnection(SocketChannel channel, EventLoop eventLoop, EventLoopMatchmakingHandler matchmakingHandler,
+                            AdmissionController<SocketChannel> admissionController, int outboundBufferSize) {
+        this.channel = channel;
+        this.eventLoop = eventLoop;
+        this.matchmakingHandler = matchmakingHandler;
+        this.admissionController = admissionController;
+        handshakeBuffer = ByteBuffer.allocate(Integer.BYTES);
+        outboundBuffer = ByteBuffer.allocate(outboundBufferSize);
+        interestOps = SelectionKey.OP_READ;
+        state = ConnectionState.READING_GAME_MODE;
+        roomId = -1;
+        reportedRoundTripMillis = -1;
+    }
+
+    public EventLoop getEventLoop() { return eventLoop; }
+    public ConnectionState getState() { return state; }
+    public void setState(ConnectionState state) { this.state = state; }
+    public GameMode getGameMode() { return gameMode; }
+    public void setGameMode(GameMode gameMode) { this.gameMode = gameMode; }
+    public int getRoomId() { return roomId; }
+    public boolean isPeerToPeer() { return peerToPeer; }
+    public void setPeerToPeer(boolean peerToPeer) { this.peerToPeer = peerToPeer; }
+    public boolean hasDatagramUpdates() { return datagramUpdates; }
+    public void setDatagramUpdates(boolean datagramUpdates) { this.datagramUpdates = datagramUpdates; }
+    public boolean hasCompactBoardMessages() { return compactBoardMessages; }
+    public void setCompactBoardMessages(boolean compactBoardMessages) { this.compactBoardMessages = compactBoardMessages; }
+    public boolean hasFramedBoardMessages() { return framedBoardMessages; }
+    public void setFramedBoardMessages(boolean framedBoardMessages) { this.framedBoardMessages = framedBoardMessages; }
+    public int getProtocolVersion() { return protocolVersion; }
+    public void setProtocolVersion(int protocolVersion) { this.protocolVersion = protocolVersion; }
+    public void setRoomId(int roomId) { this.roomId = roomId; }
+    public boolean isOpen() { return state != ConnectionState.CLOSED; }
+    public long getRoundTripMillis() { return roundTripMillis; }
+    public long getLobbyCreatedAt() { return lobbyCreatedAt; }
+    public void setLobbyCreatedAt(long lobbyCreatedAt) { this.lobbyCreatedAt = lobbyCreatedAt; }
+    SocketChannel getChannel() { return channel; }
+    ByteBuffer getOutboundBuffer() { return outboundBuffer; }
+
+    /**
+     * Sets the round trip time the client measured itself and sent in its handshake. It is only a hint until a probe
+     * verifies it: the next {@link #checkOnline(Consumer)} always probes the client, and the round trip time is then
+     * never lower than the one measured by the probe.
+     *
+     * @param reportedRoundTripMillis The round trip time sent by the client, in ms.
+     */
+    public void reportRoundTrip(long reportedRoundTripMillis) {
+        this.reportedRoundTripMillis = reportedRoundTripMillis;
+        this.roundTripMillis = reportedRoundTripMillis;
+    }
+
+    /**
+     * Takes the round trip time the client reported in its handshake, so it is compared with the verified one only
+     * once.
+     *
+     * @return The reported round trip time in ms, or -1 if the client did not report one or it has already been taken.
+     */
+    public long takeReportedRoundTripMillis() {
+        long reported = reportedRoundTripMillis;
+
+        reportedRoundTripMillis = -1;
+        return reported;
+    }
+
+    /**
+     * Registers the channel on the given loop's selector. Must be called from that loop's thread.
+     *
+     * @param eventLoop The loop that now owns the connection.
+     */
+    void attach(EventLoop eventLoop) {
+        this.eventLoop = eventLoop;
+
+        try {
+            key = eventLoop.registerChannel(channel, this);
+            key.interestOps(interestOps);
+        }
+        catch (IOException ioe) { close(); }
+    }
+
+    /**
+     * Transfers the ownership of this connection to another loop, so that both players of a match end up
+     * in the same loop. Can be called from any thread.
+     *
+     * @param target    The loop that will own the connection.
+     * @param onArrival Called on the target loop with {@code true} if the connection arrived open, {@code false} if it had been closed.
+     */
+    public void moveTo(EventLoop target, Consumer<Boolean> onArrival) {
+        EventLoop source = eventLoop;
+
+        source.execute(() -> {
+            if (!isOpen()) {
+                target.execute(() -> onArrival.accept(false));
+                return;
+            }
+
+            state = ConnectionState.PAIRING;
+            if (source == target) {
+                onArrival.accept(true);
+                return;
+            }
+
+            // The channel can be registered with the target selector right away, the cancelled key is
+            // deregistered from the source selector on its next selection.
+            key.cancel();
+            key = null;
+            target.execute(() -> {
+                attach(target);
+                onArrival.accept(isOpen());
+            });
+        });
+    }
+
+    /**
+     * Sends a liveness probe (byte 0) that the client must echo, measuring the round trip time (see
+     * {@link #getRoundTripMillis()}). A client that does not answer within
+     * {@value Timeouts#PROBE_TIMEOUT_MILLISECONDS} ms is closed (e.g., a half-open connection that will never fail on its own).
+     * <p>
+     * The state of the connection is not changed. Only one probe is sent at a time: if there is already one waiting
+     * for its echo (e.g., a heartbeat), the callback waits for that same echo, since a second byte 0 would be
+     * answered with an echo arriving after the match has started.
+     * </p>
+     *
+     * @param callback Called with {@code true} when the echo arrives or with {@code false} if the connection is lost.
+     */
+    public void probe(Consumer<Boolean> callback) {
+        EventLoop probingLoop = eventLoop;
+        long sequence;
+
+        if (!isOpen()) {
+            callback.accept(false);
+            return;
+        }
+
+        if (probeCallback != null) probeCallback = probeCallback.andThen(callback);
+        else {
+            probeCallback = callback;
+            probeSequence++;
+            probeSentAt = System.nanoTime();
+            writeByte(0);
+        }
+
+        sequence = probeSequence;
+        probingLoop.schedule(() -> {
+            if (eventLoop == probingLoop && probeCallback != null && probeSequence == sequence) close();
+        }, Timeouts.PROBE_TIMEOUT_MILLISECONDS);
+    }
+
+    /**
+     * Checks that the client is still online before it is matched: a client heard from in the last
+     * {@value Timeouts#LIVENESS_FRESHNESS_MILLISECONDS} ms (its handshake or the echo of a probe) is considered online
+     * right away, saving a round trip, and any other client is probed (see {@link #probe(Consumer)}). A client whose
+     * round trip time has not been measured by a probe yet (see {@link #reportRoundTrip(long)}) is always probed.
+     *
+     * @param callback Called with {@code true} if the client is online or with {@code false} if the connection is lost.
+     */
+    public void checkOnline(Consumer<Boolean> callback) {
+        // A pending probe must be answered first, or its echo would arrive after the match has started
+        if (isOpen() && probeCallback == null && roundTripVerified
+                && System.nanoTime() - lastHeardAt < TimeUnit.MILLISECONDS.toNanos(Timeouts.LIVENESS_FRESHNESS_MILLISECONDS)) {
+            callback.accept(true);
+            return;
+        }
+
+        probe(callback);
+    }
+
+    /**
+     * Closes the connection if it is still in the given state after the given time (e.g., a client that never
+     * sends its game mode). Must be called when the connection enters that state.
+     *
+     * @param waitingState        The state the connection must have left before the deadline.
+     * @param timeoutMilliseconds The time the connection has to leave the state.
+     */
+    public void setDeadline(ConnectionState waitingState, long timeoutMilliseconds) {
+        EventLoop deadlineLoop = eventLoop;
+
+        deadlineLoop.schedule(() -> {
+            if (eventLoop == deadlineLoop && state == waitingState) close();
+        }, timeoutMilliseconds);
+    }
+
+    /**
+     * Schedules the next heartbeat of a connection waiting for a rival, replacing the pending one. The heartbeat is
+     * handled by {@link EventLoopMatchmakingHandler#handleHeartbeat(ClientConnection)} after
+     * {@value Timeouts#HEARTBEAT_INTERVAL_MILLISECONDS} ms, unless the connection has moved to another loop meanwhile.
+     */
+    public void startHeartbeat() {
+        EventLoop heartbeatLoop = eventLoop;
+
+        if (heartbeat != null) heartbeat.cancel();
+        heartbeat = heartbeatLoop.schedule(() -> {
+            if (eventLoop == heartbeatLoop && isOpen()) matchmakingHandler.handleHeartbeat(this);
+        }, Timeouts.HEARTBEAT_INTERVAL_MILLISECONDS);
+    }
+
+    /**
+     * Hands the connection to a match. From now on every received byte is relayed by the match.
+     *
+     * @param match The match this connection belongs to.
+     */
+    void startRelaying(EventLoopMatch match) {
+        this.match = match;
+        state = ConnectionState.RELAYING;
+    }
+
+    /**
+     * Hands the connection to a match it watches. From now on the match sends it its stream.
+     *
+     * @param match The match this connection watches.
+     */
+    void startSpectating(EventLoopMatch match) {
+        this.match = match;
+        state = ConnectionState.SPECTATING;
+    }
+
+    /**
+     * Hands the connection to a room it has joined. From now on the room tracks it.
+     *
+     * @param room The room this connection waits in.
+     */
+    void joinRoom(EventLoopRoom room) {
+        this.room = room;
+        state = ConnectionState.WAITING_ROOM;
+    }
+
+    /**
+     * Starts playing in the room this connection has joined. From now on every received byte is read by the room.
+     */
+    void startPlayingRoom() {
+        state = ConnectionState.PLAYING_ROOM;
+    }
+
+    // ---------------------------------------------------------------------------------
+    // Events dispatched by the event loop
+
+    /**
+     * Handles read readiness according to the current state.
+     */
+    void handleReadable() {
+        try {
+            // While a probe is pending the only byte the client sends is its echo
+            if (probeCallback != null) {
+                readProbeEcho();
+                return;
+            }
+
+            switch (state) {
+                case READING_GAME_MODE:
+                    if (readHandshakeInt()) matchmakingHandler.handleGameMode(this, handshakeBuffer.getInt(0));
+                    break;
+                case READING_ROUND_TRIP:
+                    if (readHandshakeInt()) matchmakingHandler.handleRoundTrip(this, handshakeBuffer.getInt(0));
+                    break;
+                case READING_ROOM_ID:
+                    if (readHandshakeInt()) matchmakingHandler.handleRoomId(this, handshakeBuffer.getInt(0));
+                    break;
+                case RELAYING:
+                    match.relay(this);
+                    break;
+                case PLAYING_ROOM:
+                    room.read(this);
+                    break;
+                default:
+                    // The client is not expected to send anything, but reading detects a disconnection
+                    discardInput();
+                    break;
+            }
+        }
+        catch (IOException ioe) { close(); }
+    }
+
+    /**
+     * Handles write readiness by sending as many pending bytes as possible.
+     */
+    void handleWritable() {
+        flush();
+        if (match != null && isOpen()) match.onOutboundDrained(this);
+        if (state == ConnectionState.PLAYING_ROOM) room.onWritable(this);
+    }
+
+    // ---------------------------------------------------------------------------------
+    // Output
+
+    public void writeByte(int value) {
+        putByte(value);
+        flush();
+    }
+
+    public void writeBoolean(boolean value) { writeByte(value ? 1 : 0); }
+
+    public void writeInt(int value) {
+        putInt(value);
+        flush();
+    }
+
+    public void writeLong(long value) {
+        putLong(value);
+        flush();
+    }
+
+    public void writeBytes(byte[] values) {
+        putBytes(values);
+        flush();
+    }
+
+    /*
+     * The put methods queue the bytes without sending them, so the fields of a message go out in a single write
+     * (and a single segment) when the caller flushes. A client whose outbound buffer can not hold them is closed.
+     */
+
+    void putByte(int value) {
+        if (reserveOutbound(Byte.BYTES)) outboundBuffer.put((byte) value);
+    }
+
+    void putBoolean(boolean value) { putByte(value ? 1 : 0); }
+
+    void putInt(int value) {
+        if (reserveOutbound(Integer.BYTES)) outboundBuffer.putInt(value);
+    }
+
+    void putLong(long value) {
+        if (reserveOutbound(Long.BYTES)) outboundBuffer.putLong(value);
+    }
+
+    void putBytes(byte[] values) {
+        if (reserveOutbound(values.length)) outboundBuffer.put(values);
+    }
+
+    /**
+     * @return {@code true} if there is still room to queue bytes for this client.
+     */
+    boolean hasOutboundSpace() { return outboundBuffer.hasRemaining(); }
+
+    /**
+     * @return The number of bytes queued for this client that have not been sent yet.
+     */
+    int getPendingOutboundBytes() { return outboundBuffer.position(); }
+
+    /**
+     * Writes as many pending bytes as the socket accepts, registering write interest for the rest.
+     * Performs the pending output shutdown or close once everything has been sent.
+     */
+    void flush() {
+        if (!isOpen()) return;
+
+        try {
+            outboundBuffer.flip();
+            if (outboundBuffer.hasRemaining()) channel.write(outboundBuffer);
+            boolean drained = !outboundBuffer.hasRemaining();
+            outboundBuffer.compact();
+
+            setInterest(SelectionKey.OP_WRITE, !drained);
+
+            if (drained && shutdownOutputPending) {
+                shutdownOutputPending = false;
+                channel.shutdownOutput();
+            }
+            if (drained && closePending) close();
+        }
+        catch (IOException ioe) { close(); }
+    }
+
+    // ---------------------------------------------------------------------------------
+    // Lifecycle
+
+    /**
+     * Reads from the channel into the given buffer.
+     *
+     * @param destination The buffer to fill.
+     * @return The number of bytes read, or -1 at end of stream.
+     * @throws IOException If the read fails.
+     */
+    int read(ByteBuffer destination) throws IOException {
+        return channel.read(destination);
+    }
+
+    /**
+     * Enables or disables read readiness notifications (used to stop reading a sender whose rival is not consuming).
+     *
+     * @param enabled Whether reads should be notified.
+     */
+    void setReadInterest(boolean enabled) { setInterest(SelectionKey.OP_READ, enabled); }
+
+    /**
+     * Enables or disables write readiness notifications (used by a room for the frames it writes to the channel itself).
+     *
+     * @param enabled Whether writes should be notified.
+     */
+    void setWriteInterest(boolean enabled) { setInterest(SelectionKey.OP_WRITE, enabled); }
+
+    /**
+     * Signals the end of the incoming stream: nothing else will be read from this client.
+     */
+    void shutdownInput() {
+        setReadInterest(false);
+
+        try { channel.shutdownInput(); }
+        catch (IOException ioe) { close(); }
+    }
+
+    /**
+     * Shuts down the output as soon as every pending byte has been sent.
+     */
+    void shutdownOutputAfterFlush() {
+        shutdownOutputPending = true;
+        flush();
+    }
+
+    /**
+     * Tells a client of a draining server to reconnect (see {@link Server#SERVER_RESTARTING}) and closes the
+     * connection once the reply is sent. Must be called from the loop thread, on a connection that is not in a match.
+     */
+    public void sendRestarting() {
+        if (!isOpen()) return;
+
+        if (heartbeat != null) heartbeat.cancel();
+        writeByte(Server.SERVER_RESTARTING);
+        closeAfterFlush();
+    }
+
+    /**
+     * Tells a client to continue on another node of the cluster (see {@link Server#SERVER_REDIRECT}) and closes the
+     * connection once the reply is sent. Must be called from the loop thread, on a connection that is not in a match.
+     *
+     * @param node The node the client has to connect to.
+     */
+    public void sendRedirect(InetSocketAddress node) {
+        if (!isOpen()) return;
+
+        if (heartbeat != null) heartbeat.cancel();
+        putBytes(Cluster.encodeRedirect(node));
+        closeAfterFlush();
+    }
+
+    /**
+     * Closes the connection as soon as every pending byte has been sent.
+     */
+    public void closeAfterFlush() {
+        closePending = true;
+        flush();
+    }
+
+    /**
+     * Closes the connection immediately and notifies whoever is tracking it (a pending probe, the match, the room or
+     * the matchmaking logic).
+     */
+    public void close() {
+        if (!isOpen()) return;
+
+        ConnectionState previousState = state;
+        state = ConnectionState.CLOSED;
+
+        if (key != null) key.cancel();
+        try { channel.close(); }
+        catch (IOException e) { System.out.println("FATAL ERROR while trying to close client channel."); } // This should never happen, if it does your computer is broken sry
+        admissionController.release(channel);
+
+        if (heartbeat != null) heartbeat.cancel();
+        if (probeCallback != null) {
+            Consumer<Boolean> callback = probeCallback;
+            probeCallback = null;
+            callback.accept(false);
+        }
+
+        if (match != null) match.onConnectionClosed(this);
+        else if (room != null) room.onConnectionClosed(this, previousState);
+        else matchmakingHandler.handleConnectionClosed(this, previousState);
+    }
+
+    // ---------------------------------------------------------------------------------
+    // Auxiliary methods
+
+    /**
+     * Checks that the outbound buffer can hold the given number of bytes, closing the connection if it can not: a
+     * client that lets that many bytes pile up is not reading them anyway.
+     *
+     * @param length The number of bytes to queue.
+     * @return {@code true} if the bytes can be put in the outbound buffer.
+     */
+    private boolean reserveOutbound(int length) {
+        if (!isOpen()) return false;
+
+        if (outboundBuffer.remaining() < length) {
+            System.out.println("Closing client whose outbound buffer is full (" + outboundBuffer.position() + " bytes pending)");
+            close();
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Reads the pending bytes of a handshake integer.
+     *
+     * @return {@code true} if the integer is complete (it can then be read at index 0 of the handshake buffer).
+     * @throws IOException If the read fails.
+     */
+    private boolean readHandshakeInt() throws IOException {
+        if (channel.read(handshakeBuffer) < 0) {
+            close();
+            return false;
+        }
+
+        if (handshakeBuffer.hasRemaining()) return false;
+
+        handshakeBuffer.clear();
+        lastHeardAt = System.nanoTime();
+        return true;
+    }
+
+    /**
+     * Reads the echo of a liveness probe and reports it.
+     *
+     * @throws IOException If the read fails.
+     */
+    private void readProbeEcho() throws IOException {
+        ByteBuffer scratchBuffer = eventLoop.getScratchBuffer();
+        int bytesRead;
+
+        scratchBuffer.clear().limit(1);
+        bytesRead = channel.read(scratchBuffer);
+
+        if (bytesRead < 0) close();
+        else if (bytesRead > 0) {
+            Consumer<Boolean> callback = probeCallback;
+            probeCallback = null;
+            lastHeardAt = System.nanoTime();
+            // The round trip time the client reported is kept if it is higher, it can only be wrong to its own cost
+            roundTripMillis = Math.max(TimeUnit.NANOSECONDS.toMillis(lastHeardAt - probeSentAt), reportedRoundTripMillis);
+            roundTripVerified = true;
+            callback.accept(true);
+        }
+    }
+
+    /**
+     * Reads and drops unexpected bytes, closing the connection at end of stream.
+     *
+     * @throws IOException If the read fails.
+     */
+    private void discardInput() throws IOException {
+        ByteBuffer scratchBuffer = eventLoop.getScratchBuffer();
+
+        scratchBuffer.clear();
+        if (channel.read(scratchBuffer) < 0) close();
+    }
+
+    /**
+     * Adds or removes an operation from the interest set.
+     *
+     * @param operation The {@link SelectionKey} operation.
+     * @param enabled   Whether it should be part of the interest set.
+     */
+    private void setInterest(int operation, boolean enabled) {
+        int newInterestOps = enabled ? (interestOps | operation) : (interestOps & ~operation);
+
+        if (newInterestOps == interestOps) return;
+
+        interestOps = newInterestOps;
+        if (key != null && key.isValid()) key.interestOps(interestOps);
+    }
+}
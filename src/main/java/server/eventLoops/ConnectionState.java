@@ -0,0 +1,49 @@
+package server.eventLoops;
+
+/**
+ * Enumeration of the protocol states an event loop {@link ClientConnection} goes through.
+ * <p>
+ * The states mirror the steps the blocking {@link server.MatchmakingHandler} performs sequentially on
+ * its own thread, so the wire protocol stays exactly the same.
+ * </p>
+ */
+public enum ConnectionState {
+    /** Waiting for the 4 bytes of the requested {@link server.GameMode} ordinal. */
+    READING_GAME_MODE,
+
+    /** Waiting for the 4 bytes of the round trip time a client of protocol version 1 or newer sends after its game mode. */
+    READING_ROUND_TRIP,
+
+    /**
+     * Waiting for the 4 bytes of the Room ID the client wants to join (or the Match ID it wants to watch, or the
+     * capacity of the room it hosts).
+     */
+    READING_ROOM_ID,
+
+    /** Queued in a quick play queue waiting for a rival. */
+    WAITING_OPPONENT,
+
+    /** Hosting a private lobby waiting for someone to join. */
+    HOSTING,
+
+    /** Joining a lobby while its host is being contacted. */
+    JOINING,
+
+    /** Claimed for a match (e.g., moving between event loops or waiting for its own or its rival's liveness check). */
+    PAIRING,
+
+    /** Matched, the connection is relaying bytes to and from its rival. */
+    RELAYING,
+
+    /** In a room, waiting for it to fill up. */
+    WAITING_ROOM,
+
+    /** Playing in a room, the connection sends its board messages to the room. */
+    PLAYING_ROOM,
+
+    /** Watching a match, the connection receives the match stream. */
+    SPECTATING,
+
+    /** The connection has been closed. */
+    CLOSED
+}
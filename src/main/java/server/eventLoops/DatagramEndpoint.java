@@ -0,0 +1,107 @@
+package server.eventLoops;
+
+import server.rateLimiting.TokenBucket;
+import tetris.boards.io.BoardMessageType;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One player of a match whose falling tetromino updates go through the {@link DatagramRelay}: its token, the address
+ * its datagrams come from, the endpoint of its rival and its latest update not passed to the match yet.
+ * <p>
+ * <b>Threading:</b> the address and the byte rate limit are only used by the relay thread. The latest update is
+ * stored by the relay thread and taken by the loop of the match. The rest is set before the endpoint is registered.
+ * </p>
+ */
+class DatagramEndpoint {
+    /** Value of the latest update when the loop has already taken it. */
+    private static final int NO_UPDATE = -1;
+
+    private final long token;
+    private final EventLoopMatch match;
+    private final int source;
+    private final TokenBucket byteRateLimit;
+    private DatagramEndpoint rival;
+    private InetSocketAddress address;
+    private final AtomicInteger latestUpdate;
+    private final byte[] message;
+    private final Runnable updateTask;
+
+    /**
+     * Creates the endpoint of a player.
+     *
+     * @param token           The token the player sends in its datagrams.
+     * @param match           The match of the player.
+     * @param source          The player in the match stream ({@link server.spectating.MatchStream#PLAYER_1} or
+     *                        {@link server.spectating.MatchStream#PLAYER_2}).
+     * @param bytesPerSecond  The maximum rate of the player (0 for no limit, with bursts of up to a second's worth of
+     *                        bytes). Datagrams over it are dropped.
+     */
+    DatagramEndpoint(long token, EventLoopMatch match, int source, int bytesPerSecond) {
+        this.token = token;
+        this.match = match;
+        this.source = source;
+        byteRateLimit = bytesPerSecond > 0 ? new TokenBucket(bytesPerSecond, bytesPerSecond) : null;
+        rival = null;
+        address = null;
+        latestUpdate = new AtomicInteger(NO_UPDATE);
+        message = new byte[1 + BoardMessageType.UPDATE_FALLING_TETROMINO.getPayloadLength()];
+        updateTask = this::passUpdateToMatch;
+    }
+
+    long getToken() { return token; }
+    EventLoopMatch getMatch() { return match; }
+    int getSource() { return source; }
+    DatagramEndpoint getRival() { return rival; }
+    void setRival(DatagramEndpoint rival) { this.rival = rival; }
+    InetSocketAddress getAddress() { return address; }
+    void setAddress(InetSocketAddress address) { this.address = address; }
+
+    /**
+     * Charges a datagram to the player's byte rate limit.
+     *
+     * @param length The length of the datagram.
+     * @return {@code true} if the datagram is under the limit and can be relayed.
+     */
+    boolean tryConsume(int length) { return byteRateLimit == null || byteRateLimit.tryConsume(length); }
+
+    /**
+     * Stores the latest update of the player, replacing the one the loop of the match has not taken yet (if any): the
+     * updates are latest-wins, so the match only needs the last one. Called from the relay thread.
+     *
+     * @param x             X coordinate.
+     * @param y             Y coordinate.
+     * @param rotationIndex Rotation state (0-3).
+     * @return {@code true} if no update was waiting, so the loop has to be given {@link #getUpdateTask()}.
+     */
+    boolean offerUpdate(byte x, byte y, byte rotationIndex) {
+        return latestUpdate.getAndSet((x & 0xFF) << 16 | (y & 0xFF) << 8 | (rotationIndex & 0xFF)) == NO_UPDATE;
+    }
+
+    /**
+     * @return The task that passes the latest update to the match, to be run on its loop.
+     */
+    Runnable getUpdateTask() { return updateTask; }
+
+    // ---------------------------------------------------------------------------------
+    // Auxiliary methods
+
+    /**
+     * Takes the latest update and passes it to the match, as the message the player would have sent over TCP.
+     */
+    private void passUpdateToMatch() {
+        int update = latestUpdate.getAndSet(NO_UPDATE);
+
+        if (update == NO_UPDATE) return;
+
+        // Protocol: [X] [Y] [ROT] [LOCK_BOOL], only the updates of pieces that have not locked are sent as datagrams
+        message[0] = (byte) BoardMessageType.UPDATE_FALLING_TETROMINO.ordinal();
+        message[1] = (byte) (update >>> 16);
+        message[2] = (byte) (update >>> 8);
+        message[3] = (byte) update;
+        message[4] = 0;
+
+        match.onDatagramUpdate(source, message);
+    }
+}
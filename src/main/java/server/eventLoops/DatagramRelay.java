@@ -0,0 +1,193 @@
+package server.eventLoops;
+
+import server.spectating.MatchStream;
+import tetris.boards.io.BoardMessageType;
+import tetris.boards.io.FallingTetrominoDatagrams;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.security.SecureRandom;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Relays the falling tetromino updates that the players of a match send as datagrams (see
+ * {@link FallingTetrominoDatagrams}), on the UDP port with the same number as the server's.
+ * <p>
+ * The updates are latest-wins, so they do not need the TCP relay: a lost one is replaced by the next one, a frame
+ * later, instead of holding back every update after it until it is retransmitted. The locks, holds and garbage rows,
+ * which must arrive exactly once and in order, keep going through the TCP relay.
+ * </p>
+ * <p>
+ * Every player of a match relayed this way gets a random token in a {@link BoardMessageType#START_DATAGRAM_UPDATES}
+ * message (see {@link EventLoopMatch}). The relay learns the address of the player from the datagrams carrying its
+ * token (so a player behind a NAT is reached back through the mapping its own datagrams open), and forwards every
+ * update to the last address of the rival without the token. Datagrams with an unknown token or the wrong length, or
+ * over the byte rate limit of their sender, are dropped.
+ * </p>
+ * <p>
+ * <b>Threading:</b> it runs on its own thread, blocked on the channel. The updates are forwarded right there, from the
+ * buffer they were received in. The latest update of each player is then stored in its endpoint, and the loop of the
+ * match takes it on its next pass (the update counts as activity for its idle check and is added to the match stream
+ * for the spectators). The loop is only given a task when no update was waiting, so a burst of updates costs a single
+ * task and nothing is allocated per datagram.
+ * </p>
+ */
+public class DatagramRelay implements Runnable {
+    /** Time between two attempts to bind the port while it is still held (e.g., by the server being taken over). */
+    public static final int BIND_RETRY_INTERVAL_MILLISECONDS = 5000;
+
+    private static final SecureRandom TOKEN_GENERATOR = new SecureRandom();
+
+    private final DatagramChannel channel;
+    private final Map<Long, DatagramEndpoint> endpoints;
+
+    private DatagramRelay(DatagramChannel channel) {
+        this.channel = channel;
+        this.endpoints = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Binds the UDP port and relays it on a new daemon thread.
+     *
+     * @param port The port of the server.
+     * @return The relay, or {@code null} if the port could not be bound.
+     */
+    public static DatagramRelay start(int port) {
+        DatagramChannel channel;
+        DatagramRelay datagramRelay;
+        Thread thread;
+
+        try {
+            channel = DatagramChannel.open();
+            channel.bind(new InetSocketAddress(port));
+        }
+        catch (IOException ioe) { return null; }
+
+        System.out.println("Relaying datagram updates on UDP port " + port);
+
+        datagramRelay = new DatagramRelay(channel);
+        thread = new Thread(datagramRelay, "datagram-relay");
+        thread.setDaemon(true);
+        thread.start();
+
+        return datagramRelay;
+    }
+
+    /**
+     * Creates the endpoints of both players of a match.
+     *
+     * @param match          The match.
+     * @param bytesPerSecond The maximum rate of each player (0 for no limit).
+     * @return The endpoints of player 1 and player 2, or {@code null} if a token was already in use.
+     */
+    DatagramEndpoint[] register(EventLoopMatch match, int bytesPerSecond) {
+        DatagramEndpoint player1Endpoint = new DatagramEndpoint(TOKEN_GENERATOR.nextLong(), match, MatchStream.PLAYER_1, bytesPerSecond);
+        DatagramEndpoint player2Endpoint = new DatagramEndpoint(TOKEN_GENERATOR.nextLong(), match, MatchStream.PLAYER_2, bytesPerSecond);
+
+        player1Endpoint.setRival(player2Endpoint);
+        player2Endpoint.setRival(player1Endpoint);
+
+        // The tokens are random longs, a collision is so unlikely that the match is just relayed over TCP
+        if (endpoints.putIfAbsent(player1Endpoint.getToken(), player1Endpoint) != null) return null;
+        if (endpoints.putIfAbsent(player2Endpoint.getToken(), player2Endpoint) != null) {
+            endpoints.remove(player1Endpoint.getToken(), player1Endpoint);
+            return null;
+        }
+
+        return new DatagramEndpoint[] { player1Endpoint, player2Endpoint };
+    }
+
+    /**
+     * Stops relaying the datagrams of both players of a match.
+     *
+     * @param matchEndpoints The endpoints returned by {@link #register(EventLoopMatch, int)}.
+     */
+    void unregister(DatagramEndpoint[] matchEndpoints) {
+        for (DatagramEndpoint endpoint : matchEndpoints) endpoints.remove(endpoint.getToken(), endpoint);
+    }
+
+    /**
+     * Closes the channel, which also stops the relay thread.
+     */
+    public void close() {
+        try { channel.close(); }
+        catch (IOException ioe) { System.out.println("FATAL ERROR while trying to close datagram relay channel."); } // This should never happen, if it does your computer is broken sry
+    }
+
+    /**
+     * Receives and relays datagrams until the channel is closed.
+     */
+    @Override
+    public void run() {
+        // One byte more than an update, so longer datagrams are recognized instead of truncated
+        ByteBuffer buffer = ByteBuffer.allocate(FallingTetrominoDatagrams.DATAGRAM_LENGTH + 1);
+        InetSocketAddress senderAddress;
+
+        while (channel.isOpen()) {
+            buffer.clear();
+
+            try { senderAddress = (InetSocketAddress) channel.receive(buffer); }
+            catch (IOException ioe) {
+                if (channel.isOpen()) System.out.println("FATAL ERROR while receiving datagram: " + ioe.getMessage());
+                continue;
+            }
+
+            buffer.flip();
+            relay(buffer, senderAddress);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------
+    // Auxiliary methods
+
+    /**
+     * Relays a datagram: a token alone only gives the address of its player, an update is forwarded to the rival.
+     *
+     * @param datagram      The datagram received.
+     * @param senderAddress The address it comes from.
+     */
+    private void relay(ByteBuffer datagram, InetSocketAddress senderAddress) {
+        int length = datagram.remaining(), updatePosition;
+        DatagramEndpoint endpoint;
+        InetSocketAddress rivalAddress;
+
+        if (length != Long.BYTES && length != FallingTetrominoDatagrams.DATAGRAM_LENGTH) return;
+
+        endpoint = endpoints.get(datagram.getLong());
+        if (endpoint == null || !endpoint.tryConsume(length)) return;
+
+        endpoint.setAddress(senderAddress);
+        if (!datagram.hasRemaining()) return;
+
+        updatePosition = datagram.position();
+        rivalAddress = endpoint.getRival().getAddress();
+        if (rivalAddress != null) {
+            try { channel.send(datagram, rivalAddress); }
+            catch (IOException ioe) { /* Lost like any other datagram, the next update replaces it */ }
+
+            // Sent from the received buffer itself, the update is read again from the same position
+            datagram.position(updatePosition);
+        }
+
+        notifyMatch(endpoint, datagram);
+    }
+
+    /**
+     * Stores an update in the endpoint of its player, and tells the loop of its match to take it if it was not
+     * already waiting for one.
+     *
+     * @param endpoint The endpoint of the player.
+     * @param update   The update, right after the token.
+     */
+    private void notifyMatch(DatagramEndpoint endpoint, ByteBuffer update) {
+        // Protocol: [EPOCH] [SEQUENCE] [X] [Y] [ROT]
+        int offset = update.position() + Integer.BYTES + Integer.BYTES;
+
+        if (endpoint.offerUpdate(update.get(offset), update.get(offset + 1), update.get(offset + 2))) {
+            endpoint.getMatch().getEventLoop().execute(endpoint.getUpdateTask());
+        }
+    }
+}
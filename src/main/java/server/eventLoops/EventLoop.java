@@ -0,0 +1,199 @@
+package server.eventLoops;
+
+import server.rateLimiting.AdmissionController;
+import server.timeouts.Timeout;
+import server.timeouts.Timeouts;
+import server.timeouts.TimingWheel;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A single-threaded selector loop that multiplexes many non-blocking connections.
+ * <p>
+ * Every {@link ClientConnection} is owned by exactly one event loop and its state is only ever touched
+ * from that loop's thread. Other threads interact with a loop by submitting tasks through
+ * {@link #execute(Runnable)}, which are run by the loop between two selections. Tasks can also be delayed with
+ * {@link #schedule(Runnable, long)} (e.g., timeouts and heartbeats). They are kept in a {@link TimingWheel}, so a
+ * loop can keep a few timeouts per connection for hundreds of thousands of connections at O(1) cost each.
+ * </p>
+ */
+public class EventLoop implements Runnable {
+    private static final int SCRATCH_BUFFER_SIZE = 256;
+
+    private final Selector selector;
+    private final ByteBuffer scratchBuffer;
+    private final Queue<Runnable> tasks;
+    private final TimingWheel timingWheel;
+    private final String name;
+    private Thread thread;
+
+    /**
+     * Creates a new event loop with its own selector.
+     *
+     * @param name The name given to the loop thread.
+     * @throws IOException If the selector cannot be opened.
+     */
+    public EventLoop(String name) throws IOException {
+        this.selector = Selector.open();
+        this.tasks = new ConcurrentLinkedQueue<>();
+        this.timingWheel = new TimingWheel(Timeouts.TICK_MILLISECONDS, Timeouts.NUMBER_OF_WHEEL_SLOTS);
+        this.name = name;
+        scratchBuffer = ByteBuffer.allocate(SCRATCH_BUFFER_SIZE);
+    }
+
+    /**
+     * Starts the loop on a new thread.
+     */
+    public void start() {
+        thread = new Thread(this, name);
+        thread.start();
+    }
+
+    /**
+     * Schedules a task to be run on this loop's thread.
+     *
+     * @param task The task to run.
+     */
+    public void execute(Runnable task) {
+        tasks.add(task);
+        if (!inEventLoop()) selector.wakeup();
+    }
+
+    /**
+     * Schedules a task to be run on this loop's thread after the given delay. Can be called from any thread.
+     *
+     * @param task              The task to run.
+     * @param delayMilliseconds The delay in milliseconds.
+     * @return The timeout, which can be used to cancel the task.
+     */
+    public Timeout schedule(Runnable task, long delayMilliseconds) {
+        Timeout timeout = TimingWheel.newTimeout(task, delayMilliseconds);
+
+        if (inEventLoop()) timingWheel.add(timeout);
+        else execute(() -> timingWheel.add(timeout));
+
+        return timeout;
+    }
+
+    /**
+     * @return {@code true} if the calling thread is this loop's thread.
+     */
+    public boolean inEventLoop() { return Thread.currentThread() == thread; }
+
+    /**
+     * Returns a buffer for short-lived reads whose content is not kept (e.g., probe echoes). It is shared by
+     * every connection of the loop, so it must only be used from the loop thread and never kept between events.
+     *
+     * @return The loop's scratch buffer.
+     */
+    ByteBuffer getScratchBuffer() { return scratchBuffer; }
+
+    /**
+     * Registers a freshly accepted channel on this loop. Can be called from any thread. The client has
+     * {@value Timeouts#HANDSHAKE_TIMEOUT_MILLISECONDS} ms to send its game mode.
+     *
+     * @param channel             The accepted channel.
+     * @param matchmakingHandler  The matchmaking logic the new connection will report to.
+     * @param admissionController The admission control that admitted the channel (it is released when closed).
+     * @param outboundBufferSize  Size of the connection's outbound buffer (the relay high watermark).
+     */
+    public void register(SocketChannel channel, EventLoopMatchmakingHandler matchmakingHandler, AdmissionController<SocketChannel> admissionController,
+                         int outboundBufferSize) {
+        execute(() -> {
+            ClientConnection connection = new ClientConnection(channel, this, matchmakingHandler, admissionController, outboundBufferSize);
+            connection.attach(this);
+            connection.setDeadline(ConnectionState.READING_GAME_MODE, Timeouts.HANDSHAKE_TIMEOUT_MILLISECONDS);
+        });
+    }
+
+    /**
+     * Registers the channel with this loop's selector. Must be called from the loop thread.
+     *
+     * @param channel    The channel to register.
+     * @param connection The connection that will handle the channel events.
+     * @return The selection key.
+     * @throws ClosedChannelException If the channel is closed.
+     */
+    SelectionKey registerChannel(SocketChannel channel, ClientConnection connection) throws ClosedChannelException {
+        return channel.register(selector, SelectionKey.OP_READ, connection);
+    }
+
+    /**
+     * The loop itself: waits for ready channels, dispatches their events and runs the pending tasks.
+     */
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                long millisecondsUntilNextTick = timingWheel.getMillisecondsUntilNextTick();
+
+                if (millisecondsUntilNextTick < 0) selector.select();
+                else selector.select(millisecondsUntilNextTick);
+            }
+            catch (IOException ioe) {
+                System.out.println("FATAL ERROR while selecting on " + name + ": " + ioe.getMessage());
+                return;
+            }
+
+            processSelectedKeys();
+            runTasks();
+            timingWheel.expireTimeouts();
+        }
+    }
+
+    // ---------------------------------------------------------------------------------
+    // Auxiliary methods
+
+    /**
+     * Dispatches the read and write readiness of every selected key to its connection. A connection whose handler
+     * throws is closed, so a bug triggered by one client does not stop the loop of every other one.
+     */
+    private void processSelectedKeys() {
+        Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+
+        while (iterator.hasNext()) {
+            SelectionKey key = iterator.next();
+            ClientConnection connection = (ClientConnection) key.attachment();
+            iterator.remove();
+
+            try {
+                if (key.isValid() && key.isReadable()) connection.handleReadable();
+                if (key.isValid() && key.isWritable()) connection.handleWritable();
+            }
+            catch (RuntimeException re) {
+                System.out.println("ERROR while handling a client on " + name + ": " + re);
+                closeAfterError(connection);
+            }
+        }
+    }
+
+    /**
+     * Closes a connection whose handler has thrown, without letting a second failure escape the loop.
+     *
+     * @param connection The connection.
+     */
+    private void closeAfterError(ClientConnection connection) {
+        try { connection.close(); }
+        catch (RuntimeException re) { System.out.println("ERROR while closing a client on " + name + ": " + re); }
+    }
+
+    /**
+     * Runs every task submitted so far (including the ones submitted by the tasks themselves).
+     */
+    private void runTasks() {
+        Runnable task;
+
+        while ((task = tasks.poll()) != null) {
+            try { task.run(); }
+            catch (RuntimeException re) { System.out.println("ERROR while running task on " + name + ": " + re); }
+        }
+    }
+}
@@ -0,0 +1,765 @@
+package server.eventLoops;
+
+import server.GameMode;
+import server.Server;
+import server.ServerConfig;
+import server.playerHandlers.SlowConsumerPolicy;
+import server.rateLimiting.TokenBucket;
+import server.spectating.LaggingSpectatorPolicy;
+import server.recording.MatchRecording;
+import server.spectating.MatchRegistry;
+import server.spectating.MatchStream;
+import server.spectating.SpectatorCursor;
+import server.timeouts.Timeout;
+import server.timeouts.Timeouts;
+import tetris.boards.io.BoardFrameReader;
+import tetris.boards.io.BoardFrames;
+import tetris.boards.io.BoardMessageType;
+import tetris.boards.io.CompactBoardMessageExpander;
+import tetris.boards.io.CompactBoardMessages;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A game session between two matched connections owned by the same {@link EventLoop}.
+ * <p>
+ * This is the event loop counterpart of {@link server.playerHandlers.GameCommunicationHandler} and its two
+ * {@link server.playerHandlers.PlayerCommunicationHandler} threads. It sends the connection confirmation and the
+ * shared seed to both players and then relays every byte each player sends to its rival. The bytes of each
+ * direction are read straight into the receiver's outbound buffer, whose size is the relay high watermark, so it
+ * also bounds the data buffered per direction: when it is full the sender is not read until the receiver has
+ * brought it down to the low watermark.
+ * </p>
+ * <p>
+ * A receiver that keeps its rival stopped for longer than the slow consumer timeout is closed (and so is the match),
+ * which is {@link SlowConsumerPolicy#DISCONNECT}, the only policy of this server. The bytes are relayed as they are
+ * read, without splitting them into messages, and the framed and compact encodings can not lose a message without
+ * being rewritten, so {@link SlowConsumerPolicy#DROP_SUPERSEDED} is not available here.
+ * </p>
+ * <p>
+ * The shutdown semantics are the same as in the blocking relay: the end of stream of one player is propagated to
+ * the other one by shutting down its output, both connections are closed when both directions have finished, and
+ * any error closes both connections.
+ * </p>
+ * <p>
+ * Clients send an update at least four times per second while they play, so a direction that has not carried a byte
+ * for {@value Timeouts#MATCH_IDLE_TIMEOUT_MILLISECONDS} ms means the sender is gone (e.g., a half-open connection)
+ * and the match is closed.
+ * </p>
+ * <p>
+ * Each direction also limits the bytes per second its sender can send: a sender over its limit is not read (its bytes
+ * wait in the socket buffers) until it is back under it, so a flooding client can not starve the other connections
+ * of its loop.
+ * </p>
+ * <p>
+ * Every byte relayed is also written once to the match's {@link MatchStream}. The spectators of the match are moved
+ * to its loop, and each one copies the new records from the stream into its outbound buffer with its own
+ * {@link SpectatorCursor} after every relay (or when it has made room), so a slow spectator never holds the players.
+ * </p>
+ * <p>
+ * When both players can play peer-to-peer (see {@link Server#PEER_TO_PEER}), the match starts with
+ * {@link Server#SERVER_START_PEER_TO_PEER} instead (or with the {@link Server#PEER_TO_PEER} option of
+ * {@link Server#SERVER_MATCH_READY} for the clients of a versioned handshake) and the server brokers a direct
+ * connection between them before relaying anything:
+ * </p>
+ * <ol>
+ * <li>Player 1 receives {@link Server#PEER_LISTEN} and a random token (a long), opens a listening socket and replies
+ * its port (an int, 0 if it could not open it).</li>
+ * <li>Player 2 receives {@link Server#PEER_CONNECT}, the address of player 1 as the server sees it (a byte with its
+ * length and its bytes), the port and the token. It connects, sends the token and waits for a byte 1 back, and then
+ * replies whether it succeeded (a byte, 1 or 0).</li>
+ * <li>Player 1 receives that byte. With a 1 both players continue on the direct connection and the server closes
+ * the match (it is neither spectated nor recorded from then on); with a 0 the relay starts as usual.</li>
+ * </ol>
+ * <p>
+ * Only the player expected to reply is read meanwhile, and a match that has not agreed after
+ * {@value Timeouts#PEER_TO_PEER_NEGOTIATION_TIMEOUT_MILLISECONDS} ms is closed.
+ * </p>
+ * <p>
+ * When both players can receive datagrams (see {@link Server#DATAGRAM_UPDATES}) and the server runs a
+ * {@link DatagramRelay}, the first message each player receives when the relay starts is
+ * {@link BoardMessageType#START_DATAGRAM_UPDATES} with its token, and from then on the updates of the falling
+ * tetrominoes that have not locked go through the datagram relay. They count as activity for the idle check, and they
+ * are added to the match stream between the messages relayed over TCP (only when the board replica of the player
+ * shows the TCP stream is between two messages, so an update may be missing for the spectators but never breaks the
+ * stream).
+ * </p>
+ * <p>
+ * When both players can use the compact encoding of the board messages (see {@link Server#COMPACT_BOARD_MESSAGES}),
+ * the match ready frame grants it and the players send each other compact frames, which are relayed as they are. Each
+ * direction is also expanded back to one byte per field (see {@link CompactBoardMessageExpander}) before it is added to
+ * the match stream and the recording, so spectators and replays do not depend on the encoding of the match.
+ * </p>
+ * <p>
+ * In the same way, when both players can use the framing (see {@link Server#FRAMED_BOARD_MESSAGES}) the frames are
+ * relayed as they are, and the messages are taken out of them (see {@link BoardFrameReader}) before they are added to
+ * the match stream. The {@link BoardMessageType#START_DATAGRAM_UPDATES} of such a match is sent in a frame of the
+ * server.
+ * </p>
+ */
+public class EventLoopMatch {
+    private static final SecureRandom TOKEN_GENERATOR = new SecureRandom();
+
+    private final ClientConnection player1;
+    private final ClientConnection player2;
+    private boolean communicationFromPlayer1ToPlayer2Down;
+    private boolean communicationFromPlayer2ToPlayer1Down;
+    private long lastReceivedFromPlayer1;
+    private long lastReceivedFromPlayer2;
+    private final TokenBucket player1ByteRateLimit;
+    private final TokenBucket player2ByteRateLimit;
+    private boolean player1Throttled;
+    private boolean player2Throttled;
+    private final int lowWatermark;
+    private final SlowConsumerPolicy slowConsumerPolicy;
+    private final long slowConsumerTimeoutMilliseconds;
+    private Timeout player1SlowConsumerTimeout;
+    private Timeout player2SlowConsumerTimeout;
+    private final MatchRegistry<EventLoopMatch> matchRegistry;
+    private final GameMode gameMode;
+    private final int spectatorBufferSize;
+    private final int keyframeIntervalMilliseconds;
+    private final LaggingSpectatorPolicy laggingSpectatorPolicy;
+    private final Map<ClientConnection, SpectatorCursor> spectators;
+    private int matchId;
+    private MatchStream matchStream;
+    private MatchRecording matchRecording;
+    private boolean finished;
+    private boolean negotiatingPeerToPeer;
+    private ByteBuffer negotiationBuffer;
+    private long peerToPeerToken;
+    private final DatagramRelay datagramRelay;
+    private final int datagramBytesPerSecond;
+    private DatagramEndpoint[] datagramEndpoints;
+    private CompactBoardMessageExpander player1MessageExpander;
+    private CompactBoardMessageExpander player2MessageExpander;
+    private BoardFrameReader player1FrameReader;
+    private BoardFrameReader player2FrameReader;
+
+    /**
+     * Creates a match between two connections.
+     *
+     * @param player1       The first player (e.g., host or first in queue).
+     * @param player2       The second player (e.g., joiner or second in queue).
+     * @param gameMode      The game mode the match comes from (a quick play mode or {@link GameMode#HOST_GAME}).
+     * @param config        The server configuration: the maximum rate of each player (0 for no limit, with bursts of up
+     *                      to a second's worth of bytes), the relay low watermark, the slow consumer policy and the
+     *                      spectator settings.
+     * @param matchRegistry The registry of the running matches, where spectators look for them.
+     * @param datagramRelay The relay of the falling tetromino updates sent as datagrams, or {@code null} if the server
+     *                      does not run one.
+     */
+    public EventLoopMatch(ClientConnection player1, ClientConnection player2, GameMode gameMode, ServerConfig config, MatchRegistry<EventLoopMatch> matchRegistry,
+                          DatagramRelay datagramRelay) {
+        int bytesPerSecond = config.getRelayBytesPerSecond();
+
+        this.player1 = player1;
+        this.player2 = player2;
+        communicationFromPlayer1ToPlayer2Down = false;
+        communicationFromPlayer2ToPlayer1Down = false;
+        lastReceivedFromPlayer1 = System.nanoTime();
+        lastReceivedFromPlayer2 = lastReceivedFromPlayer1;
+        player1ByteRateLimit = bytesPerSecond > 0 ? new TokenBucket(bytesPerSecond, bytesPerSecond) : null;
+        player2ByteRateLimit = bytesPerSecond > 0 ? new TokenBucket(bytesPerSecond, bytesPerSecond) : null;
+        player1Throttled = false;
+        player2Throttled = false;
+        lowWatermark = config.getRelayLowWatermark();
+        slowConsumerPolicy = config.getSlowConsumerPolicy();
+        slowConsumerTimeoutMilliseconds = config.getSlowConsumerTimeoutMilliseconds();
+        this.matchRegistry = matchRegistry;
+        this.gameMode = gameMode;
+        spectatorBufferSize = config.getSpectatorBufferSize();
+        keyframeIntervalMilliseconds = config.getKeyframeIntervalMilliseconds();
+        laggingSpectatorPolicy = config.getLaggingSpectatorPolicy();
+        spectators = new LinkedHashMap<>();
+        finished = false;
+        this.datagramRelay = datagramRelay;
+        datagramBytesPerSecond = bytesPerSecond;
+        datagramEndpoints = null;
+        player1MessageExpander = null;
+        player2MessageExpander = null;
+        player1FrameReader = null;
+        player2FrameReader = null;
+    }
+
+    /**
+     * Starts the game: notifies the successful connection (byte 1, or {@link Server#SERVER_START_PEER_TO_PEER} if both
+     * players can play peer-to-peer) and sends the seed to both players. A player of protocol version 1 or newer gets
+     * {@link Server#SERVER_MATCH_READY} instead, followed by the seed and the options of the match.
+     */
+    public void start() {
+        // Generate a seed based on server time to ensure both players generate the same pieces
+        long seed = System.currentTimeMillis();
+        boolean peerToPeer = player1.isPeerToPeer() && player2.isPeerToPeer();
+        boolean compactBoardMessages = hasCompactBoardMessages(player1) && hasCompactBoardMessages(player2);
+        boolean framedBoardMessages = hasFramedBoardMessages(player1) && hasFramedBoardMessages(player2);
+        int options = (peerToPeer ? Server.PEER_TO_PEER : 0) | (hasDatagramUpdates() ? Server.DATAGRAM_UPDATES : 0) |
+                (compactBoardMessages ? Server.COMPACT_BOARD_MESSAGES : 0) | (framedBoardMessages ? Server.FRAMED_BOARD_MESSAGES : 0);
+
+        // Make the game visible to spectators before anything is relayed
+        matchStream = new MatchStream(gameMode, seed, spectatorBufferSize, keyframeIntervalMilliseconds);
+        matchId = matchRegistry.register(this);
+        matchRecording = matchRegistry.startRecording(matchId, gameMode, seed);
+
+        if (compactBoardMessages) {
+            player1MessageExpander = new CompactBoardMessageExpander();
+            player2MessageExpander = new CompactBoardMessageExpander();
+        }
+
+        if (framedBoardMessages) {
+            player1FrameReader = new BoardFrameReader();
+            player2FrameReader = new BoardFrameReader();
+        }
+
+        player1.startRelaying(this);
+        player2.startRelaying(this);
+
+        for (ClientConnection player : new ClientConnection[] { player1, player2 }) {
+            // Notify successful connection and start game by sending the seed, in a single write
+            if (player.getProtocolVersion() > 0) {
+                player.putByte(Server.SERVER_MATCH_READY);
+                player.putLong(seed);
+                player.putInt(options);
+            }
+            else {
+                player.putByte(peerToPeer ? Server.SERVER_START_PEER_TO_PEER : 1);
+                player.putLong(seed);
+            }
+            player.flush();
+        }
+
+        scheduleIdleCheck();
+        System.out.println("Game started. Match ID: " + matchId + ", seed: " + seed);
+
+        if (peerToPeer) startPeerToPeerNegotiation();
+        else startDatagramUpdates();
+    }
+
+    /**
+     * @return The loop owning both players (and the spectators).
+     */
+    public EventLoop getEventLoop() { return player1.getEventLoop(); }
+
+    /**
+     * Attaches a spectator that has been moved to this match's loop: it is told whether the match is still running,
+     * the game mode the match comes from (as an int) and its seed, and from then on it receives the match stream.
+     *
+     * @param spectator The spectating connection.
+     */
+    void addSpectator(ClientConnection spectator) {
+        SpectatorCursor cursor;
+
+        if (finished) {
+            // Notify client that the match does not exist anymore
+            spectator.writeBoolean(false);
+            spectator.closeAfterFlush();
+            return;
+        }
+
+        cursor = matchStream.attach(laggingSpectatorPolicy);
+        spectators.put(spectator, cursor);
+        spectator.startSpectating(this);
+
+        // Notify client that the match exists and how to reproduce it
+        spectator.putBoolean(true);
+        spectator.putInt(gameMode.ordinal());
+        spectator.putLong(matchStream.getSeed());
+        spectator.flush();
+    }
+
+    /**
+     * Relays the bytes available from the sender into its rival's outbound buffer.
+     *
+     * @param sender The connection that is ready to be read.
+     */
+    void relay(ClientConnection sender) {
+        ClientConnection receiver = getRival(sender);
+        ByteBuffer outboundBuffer = receiver.getOutboundBuffer();
+        CompactBoardMessageExpander messageExpander = sender == player1 ? player1MessageExpander : player2MessageExpander;
+        BoardFrameReader frameReader = sender == player1 ? player1FrameReader : player2FrameReader;
+        byte[] messages;
+        int bytesRead, source, offset, length;
+
+        if (negotiatingPeerToPeer) {
+            negotiatePeerToPeer(sender);
+            return;
+        }
+
+        try {
+            bytesRead = sender.read(outboundBuffer);
+        }
+        catch (IOException ioe) {
+            sender.close();
+            return;
+        }
+
+        if (bytesRead < 0) {
+            processUnidirectionalShutdown(sender);
+            return;
+        }
+
+        if (sender == player1) lastReceivedFromPlayer1 = System.nanoTime();
+        else lastReceivedFromPlayer2 = System.nanoTime();
+
+        // The bytes just read are still in the receiver's outbound buffer (a heap buffer) right before its position
+        source = (sender == player1) ? MatchStream.PLAYER_1 : MatchStream.PLAYER_2;
+        messages = outboundBuffer.array();
+        offset = outboundBuffer.arrayOffset() + outboundBuffer.position() - bytesRead;
+        length = bytesRead;
+
+        // The stream keeps the messages without the framing and with one byte per field
+        if (frameReader != null) {
+            length = frameReader.read(messages, offset, length);
+            messages = frameReader.getMessages();
+            offset = 0;
+        }
+        if (messageExpander != null) {
+            length = messageExpander.expand(messages, offset, length);
+            messages = messageExpander.getMessages();
+            offset = 0;
+        }
+        appendToStream(source, messages, offset, length);
+
+        receiver.flush();
+
+        // Stop reading the sender while its rival is not consuming what it has been sent
+        if (receiver.isOpen() && !receiver.hasOutboundSpace()) {
+            sender.setReadInterest(false);
+            startSlowConsumerTimeout(receiver);
+        }
+
+        throttle(sender, bytesRead);
+    }
+
+    /**
+     * Resumes reading the rival of a connection that has brought its outbound buffer down to the low watermark (or,
+     * for a spectator, sends it the next records).
+     *
+     * @param receiver The connection that has sent pending bytes.
+     */
+    void onOutboundDrained(ClientConnection receiver) {
+        ClientConnection sender = getRival(receiver);
+
+        if (spectators.containsKey(receiver)) {
+            sendToSpectator(receiver, spectators.get(receiver));
+            return;
+        }
+
+        // Only the player expected to reply is read while the players negotiate the direct connection
+        if (negotiatingPeerToPeer || receiver.getPendingOutboundBytes() > lowWatermark) return;
+
+        cancelSlowConsumerTimeout(receiver);
+        if (sender.isOpen() && !isCommunicationDown(sender) && !isThrottled(sender)) sender.setReadInterest(true);
+    }
+
+    /**
+     * Takes note of a falling tetromino update a player has sent through the {@link DatagramRelay}.
+     *
+     * @param source  The player that sent it ({@link MatchStream#PLAYER_1} or {@link MatchStream#PLAYER_2}).
+     * @param message The update as the player would have sent it over TCP.
+     */
+    void onDatagramUpdate(int source, byte[] message) {
+        if (finished) return;
+
+        if (source == MatchStream.PLAYER_1) lastReceivedFromPlayer1 = System.nanoTime();
+        else lastReceivedFromPlayer2 = System.nanoTime();
+
+        if (!matchStream.appendMessage(source, message)) return;
+
+        if (matchRecording != null) matchRecording.append(source, message, 0, message.length);
+        sendToSpectators();
+    }
+
+    /**
+     * Closes the rival of a connection that has been closed, unless the game had already finished normally (or the
+     * connection was a spectator, which just stops watching).
+     *
+     * @param closedPlayer The connection that has been closed.
+     */
+    void onConnectionClosed(ClientConnection closedPlayer) {
+        // A spectator leaving does not affect the match
+        if (spectators.remove(closedPlayer) != null) return;
+
+        if (communicationFromPlayer1ToPlayer2Down && communicationFromPlayer2ToPlayer1Down) return;
+
+        communicationFromPlayer1ToPlayer2Down = true;
+        communicationFromPlayer2ToPlayer1Down = true;
+        getRival(closedPlayer).close();
+        finishMatch();
+        System.out.println("Closed connection bidirectionally");
+    }
+
+    // ---------------------------------------------------------------------------------
+    // Auxiliary methods
+
+    /**
+     * Asks player 1 to listen for the direct connection of player 2, and stops reading player 2 until player 1 has
+     * replied its port.
+     */
+    private void startPeerToPeerNegotiation() {
+        negotiatingPeerToPeer = true;
+        negotiationBuffer = ByteBuffer.allocate(Integer.BYTES);
+        peerToPeerToken = TOKEN_GENERATOR.nextLong();
+
+        player2.setReadInterest(false);
+        player1.putByte(Server.PEER_LISTEN);
+        player1.putLong(peerToPeerToken);
+        player1.flush();
+
+        player1.getEventLoop().schedule(() -> {
+            if (!negotiatingPeerToPeer || finished) return;
+
+            System.out.println("Closing game whose peer-to-peer negotiation timed out");
+            player1.close();
+        }, Timeouts.PEER_TO_PEER_NEGOTIATION_TIMEOUT_MILLISECONDS);
+    }
+
+    /**
+     * Reads the reply of the player expected to reply in the peer-to-peer negotiation: the port of player 1, which is
+     * passed to player 2, or the result of player 2, which is passed to player 1 and decides whether the match
+     * continues peer-to-peer or through the relay.
+     *
+     * @param sender The connection that is ready to be read (the only one being read).
+     */
+    private void negotiatePeerToPeer(ClientConnection sender) {
+        InetSocketAddress listenerAddress;
+        byte[] listenerHost;
+        int bytesRead;
+
+        try {
+            bytesRead = sender.read(negotiationBuffer);
+        }
+        catch (IOException ioe) {
+            sender.close();
+            return;
+        }
+
+        if (bytesRead < 0) {
+            sender.close();
+            return;
+        }
+
+        if (negotiationBuffer.hasRemaining()) return;
+
+        if (sender == player1) {
+            // Player 2 connects to the address player 1 has reached the server from
+            try { listenerAddress = (InetSocketAddress) player1.getChannel().getRemoteAddress(); }
+            catch (IOException ioe) {
+                player1.close();
+                return;
+            }
+            listenerHost = listenerAddress.getAddress().getAddress();
+
+            player1.setReadInterest(false);
+            player2.setReadInterest(true);
+            player2.putByte(Server.PEER_CONNECT);
+            player2.putByte(listenerHost.length);
+            player2.putBytes(listenerHost);
+            player2.putInt(negotiationBuffer.getInt(0));
+            player2.putLong(peerToPeerToken);
+            player2.flush();
+
+            negotiationBuffer.clear().limit(1);
+            return;
+        }
+
+        negotiatingPeerToPeer = false;
+        player1.writeByte(negotiationBuffer.get(0));
+
+        if (negotiationBuffer.get(0) == 1) {
+            communicationFromPlayer1ToPlayer2Down = true;
+            communicationFromPlayer2ToPlayer1Down = true;
+            player1.closeAfterFlush();
+            player2.closeAfterFlush();
+            finishMatch();
+            System.out.println("Match " + matchId + " continues peer-to-peer");
+            return;
+        }
+
+        lastReceivedFromPlayer1 = System.nanoTime();
+        lastReceivedFromPlayer2 = lastReceivedFromPlayer1;
+        player1.setReadInterest(true);
+        startDatagramUpdates();
+        System.out.println("Match " + matchId + " falls back to the relay");
+    }
+
+    /**
+     * Gives each player its token for the datagram relay, if both players can receive datagrams. It must be sent
+     * before anything is relayed, since clients only accept it as the first message.
+     */
+    private void startDatagramUpdates() {
+        if (!hasDatagramUpdates()) return;
+
+        datagramEndpoints = datagramRelay.register(this, datagramBytesPerSecond);
+        if (datagramEndpoints == null) return;
+
+        sendDatagramToken(player1, datagramEndpoints[0].getToken());
+        sendDatagramToken(player2, datagramEndpoints[1].getToken());
+    }
+
+    /**
+     * Sends a player the {@link BoardMessageType#START_DATAGRAM_UPDATES} message with its token, in the encoding of
+     * the match (and in a frame of the server, with the framing).
+     *
+     * @param player The player.
+     * @param token  Its token for the datagram relay.
+     */
+    private void sendDatagramToken(ClientConnection player, long token) {
+        byte[] payload = ByteBuffer.allocate(Long.BYTES).putLong(token).array();
+        byte[] message;
+
+        if (player1MessageExpander != null) message = CompactBoardMessages.encode(BoardMessageType.START_DATAGRAM_UPDATES, payload);
+        else message = ByteBuffer.allocate(1 + Long.BYTES).put((byte) BoardMessageType.START_DATAGRAM_UPDATES.ordinal()).put(payload).array();
+
+        if (player1FrameReader != null) message = BoardFrames.encode(message, message.length, BoardFrames.SERVER_FRAME_NUMBER, 0);
+        player.writeBytes(message);
+    }
+
+    /**
+     * @return {@code true} if the falling tetromino updates of this match can go through the datagram relay (there is
+     *         one and both players can receive datagrams).
+     */
+    private boolean hasDatagramUpdates() {
+        return datagramRelay != null && player1.hasDatagramUpdates() && player2.hasDatagramUpdates();
+    }
+
+    /**
+     * @param player One of the players.
+     * @return {@code true} if the player can use the compact encoding (only the match ready frame can grant it).
+     */
+    private boolean hasCompactBoardMessages(ClientConnection player) {
+        return player.getProtocolVersion() > 0 && player.hasCompactBoardMessages();
+    }
+
+    /**
+     * @param player One of the players.
+     * @return {@code true} if the player can use the framing (only the match ready frame can grant it).
+     */
+    private boolean hasFramedBoardMessages(ClientConnection player) {
+        return player.getProtocolVersion() > 0 && player.hasFramedBoardMessages();
+    }
+
+    /**
+     * Adds bytes sent by a player, with one byte per field, to the match stream and the recording, and sends them to
+     * the spectators.
+     *
+     * @param source The player that sent them ({@link MatchStream#PLAYER_1} or {@link MatchStream#PLAYER_2}).
+     * @param bytes  The buffer holding the bytes.
+     * @param offset The index of the first byte.
+     * @param length The number of bytes.
+     */
+    private void appendToStream(int source, byte[] bytes, int offset, int length) {
+        if (length == 0) return;
+
+        matchStream.append(source, bytes, offset, length);
+        if (matchRecording != null) matchRecording.append(source, bytes, offset, length);
+        sendToSpectators();
+    }
+
+    /**
+     * Copies the new records of the match stream to every spectator.
+     */
+    private void sendToSpectators() {
+        if (spectators.isEmpty()) return;
+
+        // Copied, since a spectator that fails is removed from the map while iterating
+        for (Map.Entry<ClientConnection, SpectatorCursor> spectator : new ArrayList<>(spectators.entrySet())) {
+            sendToSpectator(spectator.getKey(), spectator.getValue());
+        }
+    }
+
+    /**
+     * Copies as many new records as fit into a spectator's outbound buffer and sends them. A spectator that has
+     * received the whole stream of a finished match is closed, and so is one that falls too far behind with
+     * {@link LaggingSpectatorPolicy#DISCONNECT}.
+     *
+     * @param spectator The spectating connection.
+     * @param cursor    Its cursor in the match stream.
+     */
+    private void sendToSpectator(ClientConnection spectator, SpectatorCursor cursor) {
+        int copied;
+
+        do {
+            copied = cursor.copyTo(spectator.getOutboundBuffer());
+
+            if (copied == SpectatorCursor.DISCONNECT) {
+                System.out.println("Disconnecting lagging spectator");
+                spectator.close();
+                return;
+            }
+
+            spectator.flush();
+        } while (copied > 0 && spectator.isOpen() && spectator.hasOutboundSpace());
+
+        if (cursor.isFinished()) spectator.closeAfterFlush();
+    }
+
+    /**
+     * Removes the match from the registry and ends its stream, so the spectators are closed once they have received
+     * it all, and its recording.
+     */
+    private void finishMatch() {
+        finished = true;
+        matchRegistry.remove(matchId, this);
+        if (datagramEndpoints != null) datagramRelay.unregister(datagramEndpoints);
+        matchStream.close();
+        if (matchRecording != null) matchRecording.finish();
+        sendToSpectators();
+    }
+
+    /**
+     * Charges the bytes just read to the sender's byte rate limit and, if it is over the limit, stops reading it
+     * until it is back under it.
+     *
+     * @param sender    The connection that has been read.
+     * @param bytesRead The number of bytes read.
+     */
+    private void throttle(ClientConnection sender, int bytesRead) {
+        TokenBucket byteRateLimit = sender == player1 ? player1ByteRateLimit : player2ByteRateLimit;
+        long delayNanoseconds;
+
+        if (byteRateLimit == null || (delayNanoseconds = byteRateLimit.consume(bytesRead)) == 0) return;
+
+        setThrottled(sender, true);
+        sender.setReadInterest(false);
+        sender.getEventLoop().schedule(() -> {
+            setThrottled(sender, false);
+            onOutboundDrained(getRival(sender));
+        }, TimeUnit.NANOSECONDS.toMillis(delayNanoseconds));
+    }
+
+    /**
+     * Starts counting the time a receiver keeps its rival stopped, closing it when the slow consumer timeout expires
+     * (only with {@link SlowConsumerPolicy#DISCONNECT}).
+     *
+     * @param receiver The connection whose outbound buffer is full.
+     */
+    private void startSlowConsumerTimeout(ClientConnection receiver) {
+        Timeout slowConsumerTimeout;
+
+        if (slowConsumerPolicy != SlowConsumerPolicy.DISCONNECT || getSlowConsumerTimeout(receiver) != null) return;
+
+        slowConsumerTimeout = receiver.getEventLoop().schedule(() -> {
+            setSlowConsumerTimeout(receiver, null);
+            if (!receiver.isOpen() || receiver.getPendingOutboundBytes() <= lowWatermark) return;
+
+            System.out.println("Closing game with a slow consumer");
+            receiver.close();
+        }, slowConsumerTimeoutMilliseconds);
+        setSlowConsumerTimeout(receiver, slowConsumerTimeout);
+    }
+
+    /**
+     * Stops counting the time a receiver keeps its rival stopped, since it has caught up.
+     *
+     * @param receiver The connection that has brought its outbound buffer down to the low watermark.
+     */
+    private void cancelSlowConsumerTimeout(ClientConnection receiver) {
+        Timeout slowConsumerTimeout = getSlowConsumerTimeout(receiver);
+
+        if (slowConsumerTimeout == null) return;
+
+        slowConsumerTimeout.cancel();
+        setSlowConsumerTimeout(receiver, null);
+    }
+
+    /**
+     * Schedules the next activity check on the loop owning both players.
+     */
+    private void scheduleIdleCheck() {
+        player1.getEventLoop().schedule(this::checkIdle, Timeouts.MATCH_IDLE_CHECK_INTERVAL_MILLISECONDS);
+    }
+
+    /**
+     * Closes the match if a direction that has not finished has been idle for too long.
+     */
+    private void checkIdle() {
+        long idleTimeoutNanoseconds = TimeUnit.MILLISECONDS.toNanos(Timeouts.MATCH_IDLE_TIMEOUT_MILLISECONDS);
+        long now = System.nanoTime();
+
+        if (communicationFromPlayer1ToPlayer2Down && communicationFromPlayer2ToPlayer1Down) return;
+
+        if ((!communicationFromPlayer1ToPlayer2Down && now - lastReceivedFromPlayer1 > idleTimeoutNanoseconds) ||
+                (!communicationFromPlayer2ToPlayer1Down && now - lastReceivedFromPlayer2 > idleTimeoutNanoseconds)) {
+            System.out.println("Closing idle game");
+            player1.close();
+            return;
+        }
+
+        scheduleIdleCheck();
+    }
+
+    /**
+     * Propagates the end of stream of the sender to its rival and closes both connections once both directions
+     * have finished (after sending every pending byte).
+     *
+     * @param shutDownStarter The connection whose input has reached end of stream.
+     */
+    private void processUnidirectionalShutdown(ClientConnection shutDownStarter) {
+        ClientConnection receiver = getRival(shutDownStarter);
+
+        shutDownStarter.shutdownInput();
+        receiver.shutdownOutputAfterFlush();
+
+        if (shutDownStarter == player1) {
+            communicationFromPlayer1ToPlayer2Down = true;
+            System.out.println("Closed connection from player 1 to player 2");
+        }
+        else {
+            communicationFromPlayer2ToPlayer1Down = true;
+            System.out.println("Closed connection from player 2 to player 1");
+        }
+
+        if (communicationFromPlayer1ToPlayer2Down && communicationFromPlayer2ToPlayer1Down) {
+            player1.closeAfterFlush();
+            player2.closeAfterFlush();
+            finishMatch();
+            System.out.println("Closed connection completely");
+        }
+    }
+
+    /**
+     * @param sender One of the players.
+     * @return Whether the communication from the given player to its rival has finished.
+     */
+    private boolean isCommunicationDown(ClientConnection sender) {
+        return sender == player1 ? communicationFromPlayer1ToPlayer2Down : communicationFromPlayer2ToPlayer1Down;
+    }
+
+    /**
+     * @param sender One of the players.
+     * @return Whether the player is not being read because it is over its byte rate limit.
+     */
+    private boolean isThrottled(ClientConnection sender) {
+        return sender == player1 ? player1Throttled : player2Throttled;
+    }
+
+    private void setThrottled(ClientConnection sender, boolean throttled) {
+        if (sender == player1) player1Throttled = throttled;
+        else player2Throttled = throttled;
+    }
+
+    private Timeout getSlowConsumerTimeout(ClientConnection receiver) {
+        return receiver == player1 ? player1SlowConsumerTimeout : player2SlowConsumerTimeout;
+    }
+
+    private void setSlowConsumerTimeout(ClientConnection receiver, Timeout slowConsumerTimeout) {
+        if (receiver == player1) player1SlowConsumerTimeout = slowConsumerTimeout;
+        else player2SlowConsumerTimeout = slowConsumerTimeout;
+    }
+
+    /**
+     * @param player One of the players.
+     * @return The other player.
+     */
+    private ClientConnection getRival(ClientConnection player) {
+        return player == player1 ? player2 : player1;
+    }
+}
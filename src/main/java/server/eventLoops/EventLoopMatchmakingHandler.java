@@ -0,0 +1,688 @@
+package server.eventLoops;
+
+import server.GameMode;
+import server.Server;
+import server.ServerConfig;
+import server.cluster.Cluster;
+import server.cluster.ClusterCoordinator;
+import server.cluster.QuickPlayOverflow;
+import server.gameModeHandlers.LobbiesHandler;
+import server.gameModeHandlers.QuickPlayHandler;
+import server.recording.MatchLog;
+import server.spectating.MatchRegistry;
+import server.timeouts.Timeouts;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import static server.GameMode.*;
+
+/**
+ * The event loop counterpart of {@link server.MatchmakingHandler}.
+ * <p>
+ * It implements the same negotiation (quick play, hosting and joining lobbies, spectating) but as reactions to the events
+ * of non-blocking {@link ClientConnection}s, so no thread is ever blocked waiting for a client. A single instance
+ * is shared by every {@link EventLoop}; the shared queues and lobbies are the thread-safe
+ * {@link QuickPlayHandler} and {@link LobbiesHandler}.
+ * </p>
+ * <p>
+ * It also hosts the multiplayer rooms (see {@link EventLoopRoom}), which only the event loop server offers: their Room
+ * IDs come from a registry of their own, and the players that join a room are moved to the loop that runs it.
+ * </p>
+ * <p>
+ * Before a match starts both players always end up owned by the same loop (see
+ * {@link ClientConnection#moveTo(EventLoop, java.util.function.Consumer)}), so the relay of a match never
+ * crosses threads.
+ * </p>
+ * <p>
+ * The clients waiting for a rival are probed every {@value Timeouts#HEARTBEAT_INTERVAL_MILLISECONDS} ms, so a
+ * half-open connection does not keep its lobby or its place in a queue, and lobbies nobody joins are closed after
+ * {@value Timeouts#LOBBY_EXPIRY_MILLISECONDS} ms.
+ * </p>
+ * <p>
+ * When the server drains (see {@link #drain()}), the queues and lobbies are closed and every client that has not
+ * started a match is told to reconnect instead.
+ * </p>
+ * <p>
+ * On a cluster node, the joiners and spectators whose ID belongs to another node are redirected to it, and the quick
+ * play players that can not be paired here are forwarded to another node when the {@link ClusterCoordinator} says so
+ * (see {@link QuickPlayOverflow}).
+ * </p>
+ */
+public class EventLoopMatchmakingHandler implements QuickPlayOverflow {
+    private final QuickPlayHandler<ClientConnection> modernTetrisQuickPlayHandler;
+    private final QuickPlayHandler<ClientConnection> nesQuickPlayHandler;
+    private final LobbiesHandler<ClientConnection> lobbiesHandler;
+    private final LobbiesHandler<EventLoopRoom> roomsHandler;
+    private final AtomicInteger numberOfRunningRooms;
+    private final ServerConfig config;
+    private final MatchRegistry<EventLoopMatch> matchRegistry;
+    private volatile DatagramRelay datagramRelay;
+
+    /**
+     * Creates the matchmaking logic with empty queues and lobbies.
+     *
+     * @param config   The server configuration.
+     * @param matchLog The log where the matches are recorded, or {@code null} if they are not recorded.
+     */
+    public EventLoopMatchmakingHandler(ServerConfig config, MatchLog matchLog) {
+        Cluster cluster = config.getCluster();
+
+        this.config = config;
+        modernTetrisQuickPlayHandler = new QuickPlayHandler<>();
+        nesQuickPlayHandler = new QuickPlayHandler<>();
+        lobbiesHandler = cluster == null ? new LobbiesHandler<>() : new LobbiesHandler<>(cluster.getNodeIndex(), cluster.getNumberOfNodes());
+        roomsHandler = cluster == null ? new LobbiesHandler<>() : new LobbiesHandler<>(cluster.getNodeIndex(), cluster.getNumberOfNodes());
+        numberOfRunningRooms = new AtomicInteger(0);
+        matchRegistry = cluster == null ? new MatchRegistry<>(matchLog) : new MatchRegistry<>(matchLog, cluster.getNodeIndex(), cluster.getNumberOfNodes());
+        datagramRelay = null;
+    }
+
+    /**
+     * Sets the relay of the falling tetromino updates sent as datagrams, used by the matches started from then on.
+     *
+     * @param datagramRelay The datagram relay.
+     */
+    public void setDatagramRelay(DatagramRelay datagramRelay) { this.datagramRelay = datagramRelay; }
+
+    /**
+     * Reads the requested {@link GameMode} ordinal of a client and routes it, once the round trip time that follows it
+     * has been read if the client speaks a versioned handshake (see {@link Server#PROTOCOL_VERSION}).
+     *
+     * @param player             The client connection.
+     * @param gameModeSelectedId The ordinal sent by the client (with the {@link Server#PEER_TO_PEER} flag if it can play
+     *                           peer-to-peer, the {@link Server#DATAGRAM_UPDATES} flag if it can receive datagrams,
+     *                           the {@link Server#COMPACT_BOARD_MESSAGES} flag if it can use the compact encoding,
+     *                           the {@link Server#FRAMED_BOARD_MESSAGES} flag if it can use the framing and
+     *                           its protocol version).
+     */
+    public void handleGameMode(ClientConnection player, int gameModeSelectedId) {
+        player.setPeerToPeer((gameModeSelectedId & Server.PEER_TO_PEER) != 0);
+        player.setDatagramUpdates((gameModeSelectedId & Server.DATAGRAM_UPDATES) != 0);
+        player.setCompactBoardMessages((gameModeSelectedId & Server.COMPACT_BOARD_MESSAGES) != 0);
+        player.setFramedBoardMessages((gameModeSelectedId & Server.FRAMED_BOARD_MESSAGES) != 0);
+        player.setProtocolVersion((gameModeSelectedId & Server.PROTOCOL_VERSION_MASK) >>> Server.PROTOCOL_VERSION_SHIFT);
+        gameModeSelectedId &= ~(Server.PEER_TO_PEER | Server.DATAGRAM_UPDATES | Server.COMPACT_BOARD_MESSAGES | Server.FRAMED_BOARD_MESSAGES |
+                Server.PROTOCOL_VERSION_MASK);
+
+        // Validate the input range
+        if (gameModeSelectedId < 0 || gameModeSelectedId >= GameMode.values().length || player.getProtocolVersion() > Server.PROTOCOL_VERSION) {
+            player.close();
+            return;
+        }
+
+        player.setGameMode(GameMode.values()[gameModeSelectedId]);
+
+        if (player.getProtocolVersion() > 0) {
+            // Sent in the same write as the game mode, it is already here or about to arrive
+            player.setState(ConnectionState.READING_ROUND_TRIP);
+            player.setDeadline(ConnectionState.READING_ROUND_TRIP, Timeouts.HANDSHAKE_TIMEOUT_MILLISECONDS);
+        }
+        else routeGameMode(player);
+    }
+
+    /**
+     * Routes a client of a versioned handshake once the round trip time it measured while connecting has been read.
+     * A quick play player is queued with it instead of being probed first (capped at the time a probe may take), but
+     * it is only a hint: the player is probed before its first pair starts, and the pair is not started if the
+     * measured round trip time belongs to a slower bucket than the reported one (see {@link #resolvePair}).
+     *
+     * @param player          The client connection.
+     * @param roundTripMillis The round trip time sent by the client, in ms.
+     */
+    public void handleRoundTrip(ClientConnection player, int roundTripMillis) {
+        player.reportRoundTrip(Math.max(0, Math.min(roundTripMillis, Timeouts.PROBE_TIMEOUT_MILLISECONDS)));
+        routeGameMode(player);
+    }
+
+    /**
+     * Handles a join request once the Room ID has been read.
+     * <p>
+     * The lobby is claimed atomically, its host is moved to the joiner's loop and checked (see
+     * {@link ClientConnection#checkOnline(Consumer)}). If the host is alive the joiner is notified with {@code true}
+     * and the game starts, otherwise the joiner is notified with {@code false}.
+     * In both cases the Room ID is released, unless the joiner left meanwhile, which gives the lobby back to the host.
+     * </p>
+     * <p>
+     * For a spectator the ID read is a Match ID instead (see {@link #spectateGame(ClientConnection, int)}), for a room
+     * host it is the capacity of its room (see {@link #hostRoom(ClientConnection, int)}) and for a room joiner the Room
+     * ID of a room (see {@link #joinRoom(ClientConnection, int)}). In a cluster, a joiner or spectator whose ID belongs
+     * to another node is redirected to it.
+     * </p>
+     *
+     * @param player The joining client.
+     * @param roomId The requested Room ID.
+     */
+    public void handleRoomId(ClientConnection player, int roomId) {
+        ClientConnection host;
+        InetSocketAddress owner;
+
+        if (player.getGameMode() == HOST_ROOM) {
+            hostRoom(player, roomId);
+            return;
+        }
+
+        if (config.getCluster() != null && (owner = config.getCluster().getRemoteOwner(roomId)) != null) {
+            player.sendRedirect(owner);
+            return;
+        }
+
+        if (player.getGameMode() == SPECTATE_GAME) {
+            spectateGame(player, roomId);
+            return;
+        }
+
+        if (player.getGameMode() == JOIN_ROOM) {
+            joinRoom(player, roomId);
+            return;
+        }
+
+        // While the server drains the lobbies are gone, the joiner reconnects instead
+        if (lobbiesHandler.isClosed()) {
+            player.sendRestarting();
+            return;
+        }
+
+        player.setState(ConnectionState.JOINING);
+        host = lobbiesHandler.claimLobby(roomId);
+
+        if (host == null) {
+            rejectJoin(player);
+            return;
+        }
+
+        host.moveTo(player.getEventLoop(), hostArrived -> {
+            if (!hostArrived) {
+                lobbiesHandler.releaseLobby(roomId);
+                rejectJoin(player);
+                return;
+            }
+
+            // Check if room host is still online
+            host.checkOnline(hostIsOnline -> {
+                if (!hostIsOnline) {
+                    lobbiesHandler.releaseLobby(roomId);
+                    rejectJoin(player);
+                }
+                else if (!player.isOpen()) {
+                    // The joiner left while the host was checked, give the lobby back to the host
+                    host.setState(ConnectionState.HOSTING);
+                    host.startHeartbeat();
+                    if (!lobbiesHandler.restoreLobby(roomId, host)) host.sendRestarting();
+                }
+                else {
+                    // Notify client that room exists and start the game (it goes out with the start of the match)
+                    lobbiesHandler.releaseLobby(roomId);
+                    player.putBoolean(true);
+                    startGame(host, player);
+                }
+            });
+        });
+    }
+
+    /**
+     * Pairs the quick play players whose windows have widened since the last batch. Called periodically, every
+     * {@value QuickPlayHandler#WINDOW_WIDENING_INTERVAL_MILLISECONDS} ms, from any loop.
+     */
+    public void matchWaitingPlayers() {
+        matchNextBatch(modernTetrisQuickPlayHandler);
+        matchNextBatch(nesQuickPlayHandler);
+    }
+
+    /**
+     * Closes the queues, the lobbies and the rooms that have not started and tells the clients waiting in them to
+     * reconnect (each one on its own loop). Can be called from any thread.
+     */
+    public void drain() {
+        List<ClientConnection> waitingClients = new ArrayList<>(modernTetrisQuickPlayHandler.close());
+
+        waitingClients.addAll(nesQuickPlayHandler.close());
+        waitingClients.addAll(lobbiesHandler.close());
+
+        for (ClientConnection waitingClient : waitingClients) waitingClient.getEventLoop().execute(waitingClient::sendRestarting);
+        for (EventLoopRoom room : roomsHandler.close()) room.getEventLoop().execute(room::sendRestarting);
+    }
+
+    @Override
+    public int countOverflowPlayers(GameMode gameMode) {
+        return getQuickPlayHandler(gameMode).countPlayersWaitingLongerThan(ClusterCoordinator.OVERFLOW_WAIT_MILLISECONDS);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Each player is redirected on its own loop. Can be called from any thread.
+     * </p>
+     */
+    @Override
+    public void forwardOverflowPlayers(GameMode gameMode, InetSocketAddress node) {
+        List<ClientConnection> players = getQuickPlayHandler(gameMode).removePlayersWaitingLongerThan(ClusterCoordinator.OVERFLOW_WAIT_MILLISECONDS);
+
+        if (players.isEmpty()) return;
+
+        System.out.println("Forwarding " + players.size() + " quick play players (" + gameMode + ") to node " + Cluster.format(node));
+        for (ClientConnection player : players) player.getEventLoop().execute(() -> player.sendRedirect(node));
+    }
+
+    /**
+     * @return The number of running matches (rooms included).
+     */
+    public int getNumberOfMatches() { return matchRegistry.getNumberOfMatches() + numberOfRunningRooms.get(); }
+
+    /**
+     * Removes a room that has started from the registry, so nobody else can find it. Called from the room's loop.
+     *
+     * @param room The room that has started.
+     */
+    void handleRoomStarted(EventLoopRoom room) {
+        roomsHandler.removeLobby(room.getRoomId(), room);
+        numberOfRunningRooms.incrementAndGet();
+    }
+
+    /**
+     * Forgets a room that has finished. Called from the room's loop.
+     *
+     * @param room The room that has finished.
+     */
+    void handleRoomFinished(EventLoopRoom room) { numberOfRunningRooms.decrementAndGet(); }
+
+    /**
+     * Removes a room that has been closed before starting (it expired, its players left or the server is draining)
+     * from the registry. Called from the room's loop.
+     *
+     * @param room The closed room.
+     */
+    void handleRoomClosed(EventLoopRoom room) { roomsHandler.removeLobby(room.getRoomId(), room); }
+
+    /**
+     * Checks a client that is still waiting for a rival (see {@link ClientConnection#startHeartbeat()}): an expired
+     * lobby is closed, otherwise the client is probed and its next heartbeat is scheduled if it answers. Clients that
+     * are no longer waiting are left alone.
+     *
+     * @param player The client connection (owned by the calling loop).
+     */
+    public void handleHeartbeat(ClientConnection player) {
+        switch (player.getState()) {
+            case HOSTING:
+                if (System.nanoTime() - player.getLobbyCreatedAt() >= TimeUnit.MILLISECONDS.toNanos(Timeouts.LOBBY_EXPIRY_MILLISECONDS)) {
+                    // Nobody has joined for too long (a lobby being joined right now is spared)
+                    if (lobbiesHandler.removeLobby(player.getRoomId(), player)) {
+                        System.out.println("Lobby " + player.getRoomId() + " expired");
+                        player.close();
+                    }
+                    return;
+                }
+
+                // Not expired yet, probed like any other waiting client
+                probeWaitingClient(player);
+                break;
+            case WAITING_OPPONENT:
+            case WAITING_ROOM:
+                probeWaitingClient(player);
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Cleans up the matchmaking structures when a client disconnects before being matched.
+     *
+     * @param player             The closed connection.
+     * @param stateBeforeClosing The state the connection was in when it closed.
+     */
+    public void handleConnectionClosed(ClientConnection player, ConnectionState stateBeforeClosing) {
+        switch (stateBeforeClosing) {
+            case WAITING_OPPONENT:
+                getQuickPlayHandler(player.getGameMode()).removeWaitingPlayer(player);
+                break;
+            case HOSTING:
+                lobbiesHandler.removeLobby(player.getRoomId(), player);
+                break;
+            default:
+                break;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------
+    // Auxiliary methods
+
+    /**
+     * Routes a client to the logic of its game mode, once its whole handshake has been read.
+     *
+     * @param player The client connection.
+     */
+    private void routeGameMode(ClientConnection player) {
+        switch (player.getGameMode()) {
+            case MODERN_TETRIS_QUICK_PLAY:
+            case NES_QUICK_PLAY:
+                quickMatchSearch(player);
+                break;
+            case HOST_GAME:
+                hostGame(player);
+                break;
+            case JOIN_GAME:
+            case SPECTATE_GAME:
+            case HOST_ROOM:
+            case JOIN_ROOM:
+                player.setState(ConnectionState.READING_ROOM_ID);
+                player.setDeadline(ConnectionState.READING_ROOM_ID, Timeouts.ROOM_ID_TIMEOUT_MILLISECONDS);
+                break;
+        }
+    }
+
+    /**
+     * Quick play matchmaking: the player's RTT is measured with a liveness probe (unless the player has sent the one it
+     * measured itself in its handshake), then it joins the queue of its game mode and the queue is drained.
+     *
+     * @param player The player searching a game (owned by the calling loop).
+     */
+    private void quickMatchSearch(ClientConnection player) {
+        QuickPlayHandler<ClientConnection> quickPlayHandler = getQuickPlayHandler(player.getGameMode());
+        Consumer<Boolean> joinQueue = isOnline -> {
+            if (!isOnline) return;
+
+            if (!quickPlayHandler.addPlayer(player, player.getRoundTripMillis())) {
+                player.sendRestarting();
+                return;
+            }
+
+            player.setState(ConnectionState.WAITING_OPPONENT);
+            player.startHeartbeat();
+            matchNextBatch(quickPlayHandler);
+        };
+
+        player.setState(ConnectionState.PAIRING);
+        if (player.getProtocolVersion() > 0) joinQueue.accept(true);
+        else player.probe(joinQueue);
+    }
+
+    /**
+     * Takes the next batches of candidate pairs until there are no more and checks that the players of every pair are
+     * online at the same time, each one on its own loop (see {@link ClientConnection#checkOnline(Consumer)}, only the
+     * players that have not been heard from recently are probed). Each pair is resolved as soon as both of its checks
+     * have answered, so a player that is slow to answer only delays its own pair.
+     *
+     * @param quickPlayHandler The queue to drain.
+     */
+    private void matchNextBatch(QuickPlayHandler<ClientConnection> quickPlayHandler) {
+        List<ClientConnection> batch;
+
+        while (!(batch = quickPlayHandler.pollBatch()).isEmpty()) {
+            System.out.println("Quick play batch (" + batch.get(0).getGameMode() + "): " + batch.size() / 2 + " pairs, " + quickPlayHandler.getStatistics());
+
+            for (int i = 0; i < batch.size(); i += 2) checkPair(quickPlayHandler, batch.get(i), batch.get(i + 1));
+        }
+    }
+
+    /**
+     * Checks both players of a candidate pair at the same time, each one on its own loop, and resolves the pair once
+     * both checks have answered.
+     *
+     * @param quickPlayHandler The queue the pair was taken from.
+     * @param player1          The player that has been waiting longer.
+     * @param player2          The other player.
+     */
+    private void checkPair(QuickPlayHandler<ClientConnection> quickPlayHandler, ClientConnection player1, ClientConnection player2) {
+        boolean[] playersAreOnline = new boolean[2];
+        AtomicInteger pendingChecks = new AtomicInteger(2);
+
+        player1.getEventLoop().execute(() -> player1.checkOnline(isOnline -> {
+            playersAreOnline[0] = isOnline;
+            if (pendingChecks.decrementAndGet() == 0) resolvePair(quickPlayHandler, player1, player2, playersAreOnline);
+        }));
+        player2.getEventLoop().execute(() -> player2.checkOnline(isOnline -> {
+            playersAreOnline[1] = isOnline;
+            if (pendingChecks.decrementAndGet() == 0) resolvePair(quickPlayHandler, player1, player2, playersAreOnline);
+        }));
+    }
+
+    /**
+     * Starts a checked pair whose players are both online, or gives the survivor back to the queue (on its own loop).
+     * If a player was queued with a round trip time it reported and its probe has found it slower than that, the pair
+     * was chosen from the wrong bucket: both players go back to the queue, the liar with the measured round trip time.
+     *
+     * @param quickPlayHandler The queue the pair was taken from.
+     * @param player1          The player that has been waiting longer.
+     * @param player2          The other player.
+     * @param playersAreOnline The result of each player's check.
+     */
+    private void resolvePair(QuickPlayHandler<ClientConnection> quickPlayHandler, ClientConnection player1, ClientConnection player2, boolean[] playersAreOnline) {
+        if (!playersAreOnline[0]) quickPlayHandler.removeWaitingPlayer(player1);
+        if (!playersAreOnline[1]) quickPlayHandler.removeWaitingPlayer(player2);
+
+        if (playersAreOnline[0] && playersAreOnline[1]) {
+            boolean player1Underreported = hasUnderreportedRoundTrip(player1), player2Underreported = hasUnderreportedRoundTrip(player2);
+
+            if (!player1Underreported && !player2Underreported) {
+                pair(quickPlayHandler, player1, player2);
+                return;
+            }
+        }
+
+        if (playersAreOnline[0]) player1.getEventLoop().execute(() -> requeue(quickPlayHandler, player1));
+        if (playersAreOnline[1]) player2.getEventLoop().execute(() -> requeue(quickPlayHandler, player2));
+    }
+
+    /**
+     * Compares, only once, the round trip time a player reported in its handshake with the one measured by its probe.
+     *
+     * @param player A checked player.
+     * @return {@code true} if the player was queued in a faster RTT bucket than the measured round trip time.
+     */
+    private static boolean hasUnderreportedRoundTrip(ClientConnection player) {
+        long reportedRoundTripMillis = player.takeReportedRoundTripMillis();
+
+        return reportedRoundTripMillis >= 0 && !QuickPlayHandler.isSameRoundTripBucket(reportedRoundTripMillis, player.getRoundTripMillis());
+    }
+
+    /**
+     * Gathers two live players in the same loop and starts their match. If one of them left meanwhile, the other
+     * one goes back to the queue.
+     *
+     * @param quickPlayHandler The queue both players come from.
+     * @param player1          The player that has been waiting longer.
+     * @param player2          The other player.
+     */
+    private void pair(QuickPlayHandler<ClientConnection> quickPlayHandler, ClientConnection player1, ClientConnection player2) {
+        player2.moveTo(player1.getEventLoop(), player2Arrived -> {
+            if (player2Arrived && player1.isOpen()) {
+                quickPlayHandler.matched(player1, player2);
+                startGame(player1, player2);
+                return;
+            }
+
+            if (player2Arrived) requeue(quickPlayHandler, player2);
+            else quickPlayHandler.removeWaitingPlayer(player2);
+
+            if (player1.isOpen()) requeue(quickPlayHandler, player1);
+            else quickPlayHandler.removeWaitingPlayer(player1);
+        });
+    }
+
+    /**
+     * Puts a live player whose rival was gone back in the queue. Must be called from the player's loop.
+     *
+     * @param quickPlayHandler The queue the player comes from.
+     * @param player           The player to requeue.
+     */
+    private void requeue(QuickPlayHandler<ClientConnection> quickPlayHandler, ClientConnection player) {
+        if (!player.isOpen()) {
+            quickPlayHandler.removeWaitingPlayer(player);
+            return;
+        }
+
+        if (!quickPlayHandler.requeue(player, player.getRoundTripMillis())) {
+            player.sendRestarting();
+            return;
+        }
+
+        player.setState(ConnectionState.WAITING_OPPONENT);
+        player.startHeartbeat();
+        matchNextBatch(quickPlayHandler);
+    }
+
+    /**
+     * Creates a lobby for the host and sends back its Room ID. If every Room ID is taken the connection is closed, and
+     * if the server is draining the host is told to reconnect.
+     *
+     * @param host The hosting client.
+     */
+    private void hostGame(ClientConnection host) {
+        int roomId = lobbiesHandler.createLobby(host);
+
+        if (roomId == LobbiesHandler.NO_ROOM_AVAILABLE) {
+            host.close();
+            return;
+        }
+
+        if (roomId == LobbiesHandler.LOBBIES_CLOSED) {
+            host.sendRestarting();
+            return;
+        }
+
+        host.setRoomId(roomId);
+        host.setLobbyCreatedAt(System.nanoTime());
+        host.setState(ConnectionState.HOSTING);
+        host.startHeartbeat();
+        host.writeInt(roomId);
+    }
+
+    /**
+     * Creates a room for the host on the host's loop and sends back its Room ID. If the capacity is not valid or every
+     * Room ID is taken the connection is closed, and if the server is draining the host is told to reconnect.
+     *
+     * @param host     The hosting client.
+     * @param capacity The number of players of the room, host included.
+     */
+    private void hostRoom(ClientConnection host, int capacity) {
+        EventLoopRoom room;
+        int roomId;
+
+        if (capacity < EventLoopRoom.MIN_PLAYERS || capacity > EventLoopRoom.MAX_PLAYERS) {
+            host.close();
+            return;
+        }
+
+        room = new EventLoopRoom(host.getEventLoop(), capacity, config, this);
+        roomId = roomsHandler.createLobby(room);
+
+        if (roomId == LobbiesHandler.NO_ROOM_AVAILABLE) {
+            host.close();
+            return;
+        }
+
+        if (roomId == LobbiesHandler.LOBBIES_CLOSED) {
+            host.sendRestarting();
+            return;
+        }
+
+        // Joiners moved to this loop meanwhile are added after this task, so the host is always the first player
+        room.open(roomId);
+        room.addPlayer(host);
+        host.writeInt(roomId);
+        System.out.println("Room " + roomId + " created for " + capacity + " players");
+    }
+
+    /**
+     * Moves a joiner to the loop of the room it wants to join, which adds it. If the room does not exist (or is no
+     * longer joinable) the joiner is told so ({@code false}) and its connection is closed, otherwise it is told
+     * {@code true} and the room starts if it is now full.
+     *
+     * @param player The joining client.
+     * @param roomId The requested Room ID.
+     */
+    private void joinRoom(ClientConnection player, int roomId) {
+        EventLoopRoom room;
+
+        // While the server drains the rooms are gone, the joiner reconnects instead
+        if (roomsHandler.isClosed()) {
+            player.sendRestarting();
+            return;
+        }
+
+        room = roomsHandler.findLobby(roomId);
+        if (room == null) {
+            rejectJoin(player);
+            return;
+        }
+
+        player.moveTo(room.getEventLoop(), playerArrived -> {
+            if (!playerArrived) return;
+
+            if (!room.addPlayer(player)) {
+                rejectJoin(player);
+                return;
+            }
+
+            player.writeBoolean(true);
+            room.startIfFull();
+        });
+    }
+
+    /**
+     * Moves a spectator to the loop of the match it wants to watch, which attaches it to its stream. If there is no
+     * such match the spectator is told so ({@code false}) and its connection is closed.
+     *
+     * @param spectator The spectating client.
+     * @param matchId   The requested Match ID.
+     */
+    private void spectateGame(ClientConnection spectator, int matchId) {
+        EventLoopMatch match = matchRegistry.find(matchId);
+
+        if (match == null) {
+            rejectJoin(spectator);
+            return;
+        }
+
+        spectator.moveTo(match.getEventLoop(), spectatorArrived -> {
+            if (spectatorArrived) match.addSpectator(spectator);
+        });
+    }
+
+    /**
+     * Tells the joiner that the room does not exist (or is no longer available) and closes its connection.
+     *
+     * @param player The joining client.
+     */
+    private void rejectJoin(ClientConnection player) {
+        if (!player.isOpen()) return;
+
+        player.writeBoolean(false);
+        player.closeAfterFlush();
+    }
+
+    /**
+     * Probes a client that is still waiting for a rival, and schedules its next heartbeat if it answers.
+     *
+     * @param player The waiting client.
+     */
+    private void probeWaitingClient(ClientConnection player) {
+        player.probe(isOnline -> {
+            if (isOnline) player.startHeartbeat();
+        });
+    }
+
+    /**
+     * Starts the relay between two players owned by the same loop.
+     *
+     * @param player1 The first player (e.g., host or first in queue).
+     * @param player2 The second player (e.g., joiner or second in queue).
+     */
+    private void startGame(ClientConnection player1, ClientConnection player2) {
+        new EventLoopMatch(player1, player2, player1.getGameMode(), config, matchRegistry, datagramRelay).start();
+    }
+
+    /**
+     * @param gameMode A quick play game mode.
+     * @return The queue for the given game mode.
+     */
+    private QuickPlayHandler<ClientConnection> getQuickPlayHandler(GameMode gameMode) {
+        if (gameMode == MODERN_TETRIS_QUICK_PLAY) return modernTetrisQuickPlayHandler;
+        else return nesQuickPlayHandler;
+    }
+}
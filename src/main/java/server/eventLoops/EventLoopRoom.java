@@ -0,0 +1,510 @@
+package server.eventLoops;
+
+import server.ServerConfig;
+import server.rateLimiting.TokenBucket;
+import server.rooms.GarbageTargeting;
+import server.rooms.GarbageTargetingPolicy;
+import server.timeouts.Timeouts;
+import tetris.boards.io.BoardMessageType;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A game session between {@value #MIN_PLAYERS} to {@value #MAX_PLAYERS} connections owned by the same
+ * {@link EventLoop} (see {@link server.GameMode#HOST_ROOM}).
+ * <p>
+ * The room waits until it is full and then sends the connection confirmation (byte 1), the shared seed (a long), the
+ * number of players and the index of each player (a byte each). From then on the server splits what each player sends
+ * into board messages (see {@link BoardMessageType}) and every player receives the messages of every other one as
+ * records of {@code [byte sender][byte target][message]}. The target is {@value #EVERYONE} for board updates, and
+ * {@link BoardMessageType#SEND_GARBAGE_ROWS} goes to the single player chosen by the room's
+ * {@link GarbageTargetingPolicy}: every player receives the record (to show the attack), but only the target adds
+ * the garbage rows to its board.
+ * </p>
+ * <p>
+ * The messages read during a pass of the loop are appended once to a frame, which is flushed at the end of the pass
+ * (see {@link EventLoop#execute(Runnable)}) by writing the same read-only buffer to every player's channel. Only the
+ * bytes a player's socket does not take right away are queued, as views of the shared frame, so a frame is copied
+ * once whatever the number of players. A player whose queued frames exceed {@value #MAX_PENDING_BYTES} bytes can not
+ * keep up with the room and is disconnected. Since every player receives the same bytes, each one also receives its
+ * own records (a fraction {@code 1 / n} of the frame), which tell it who its garbage rows went to.
+ * </p>
+ * <p>
+ * The end of stream of a player (it has topped out) or its disconnection knocks it out: every player receives a
+ * {@value #KNOCKED_OUT} record whose sender is the player knocked out and whose target is the player credited with it
+ * (or {@value #EVERYONE}). The players knocked out keep receiving the room until it finishes, when at most one player
+ * is left alive: then every connection is closed once it has received every record.
+ * </p>
+ * <p>
+ * As in {@link EventLoopMatch}, a player that sends nothing for {@value Timeouts#MATCH_IDLE_TIMEOUT_MILLISECONDS} ms
+ * is closed and each player is limited to the relay byte rate.
+ * </p>
+ */
+public class EventLoopRoom {
+    public static final int MIN_PLAYERS = 4;
+    public static final int MAX_PLAYERS = 99;
+
+    /** Target of the records every player applies. */
+    public static final int EVERYONE = 0xFF;
+
+    /** Message type of the records that tell a player has been knocked out (it has no payload). */
+    public static final int KNOCKED_OUT = 0xFF;
+
+    /** Bytes that can be queued for a player before it is disconnected. */
+    public static final int MAX_PENDING_BYTES = 256 * 1024;
+
+    private static final int FRAME_CAPACITY = 64 * 1024;
+    private static final int INBOUND_BUFFER_SIZE = 256;
+    private static final int INITIAL_WRITE_VIEWS = 16;
+    private static final int RECORD_HEADER_SIZE = 2;
+    private static final byte[] KNOCKED_OUT_MESSAGE = { (byte) KNOCKED_OUT };
+    private static final BoardMessageType[] MESSAGE_TYPES = BoardMessageType.values();
+
+    private final EventLoop eventLoop;
+    private final int capacity;
+    private final ServerConfig config;
+    private final EventLoopMatchmakingHandler matchmakingHandler;
+    private final List<ClientConnection> players;
+    private final Map<ClientConnection, Integer> playerIndexes;
+    private final ByteBuffer frame;
+    private final Runnable flushTask;
+    private int roomId;
+    private boolean started;
+    private boolean closed;
+    private boolean finished;
+    private boolean flushScheduled;
+    private GarbageTargeting garbageTargeting;
+    private ByteBuffer[] inboundBuffers;
+    private ArrayDeque<ByteBuffer>[] pendingFrames;
+    private ByteBuffer[] writeViews;
+    private long[] pendingBytes;
+    private boolean[] inputDown;
+    private boolean[] closeWhenSent;
+    private long[] lastReceived;
+    private TokenBucket[] byteRateLimits;
+
+    /**
+     * Creates an empty room.
+     *
+     * @param eventLoop          The loop that runs the room (and owns its players).
+     * @param capacity           The number of players the room waits for.
+     * @param config             The server configuration: the garbage targeting policy and the maximum rate of each
+     *                           player (0 for no limit, with bursts of up to a second's worth of bytes).
+     * @param matchmakingHandler The matchmaking logic, which keeps the registry of the rooms.
+     */
+    public EventLoopRoom(EventLoop eventLoop, int capacity, ServerConfig config, EventLoopMatchmakingHandler matchmakingHandler) {
+        this.eventLoop = eventLoop;
+        this.capacity = capacity;
+        this.config = config;
+        this.matchmakingHandler = matchmakingHandler;
+        players = new ArrayList<>(capacity);
+        playerIndexes = new IdentityHashMap<>(capacity);
+        frame = ByteBuffer.allocate(FRAME_CAPACITY);
+        flushTask = this::flushFrame;
+        roomId = -1;
+    }
+
+    public EventLoop getEventLoop() { return eventLoop; }
+    public int getRoomId() { return roomId; }
+
+    /**
+     * Makes the room joinable with its Room ID, and closes it if nobody has started it after
+     * {@value Timeouts#LOBBY_EXPIRY_MILLISECONDS} ms. Must be called from the room's loop.
+     *
+     * @param roomId The Room ID of the room.
+     */
+    void open(int roomId) {
+        this.roomId = roomId;
+
+        eventLoop.schedule(() -> {
+            if (started || closed) return;
+
+            System.out.println("Room " + roomId + " expired");
+            closeWaitingPlayers();
+            for (ClientConnection player : new ArrayList<>(players)) player.close();
+        }, Timeouts.LOBBY_EXPIRY_MILLISECONDS);
+    }
+
+    /**
+     * Adds a player that has been moved to the room's loop, which waits (probed like any other waiting client) until
+     * the room is full.
+     *
+     * @param player The joining connection.
+     * @return {@code false} if the room is no longer joinable (it is full, started or closed).
+     */
+    boolean addPlayer(ClientConnection player) {
+        if (started || closed || players.size() == capacity) return false;
+
+        players.add(player);
+        player.joinRoom(this);
+        player.startHeartbeat();
+        return true;
+    }
+
+    /**
+     * Starts the game if the room is full: the room is removed from the registry and every player receives the
+     * connection confirmation, the seed, the number of players and its index.
+     */
+    @SuppressWarnings("unchecked")
+    void startIfFull() {
+        int numberOfPlayers = players.size();
+        long seed;
+
+        if (started || closed || numberOfPlayers < capacity) return;
+
+        started = true;
+        matchmakingHandler.handleRoomStarted(this);
+
+        // Generate a seed based on server time to ensure every player generates the same pieces
+        seed = System.currentTimeMillis();
+        garbageTargeting = new GarbageTargeting(config.getGarbageTargetingPolicy(), numberOfPlayers);
+        inboundBuffers = new ByteBuffer[numberOfPlayers];
+        pendingFrames = (ArrayDeque<ByteBuffer>[]) new ArrayDeque<?>[numberOfPlayers];
+        writeViews = new ByteBuffer[INITIAL_WRITE_VIEWS];
+        pendingBytes = new long[numberOfPlayers];
+        inputDown = new boolean[numberOfPlayers];
+        closeWhenSent = new boolean[numberOfPlayers];
+        lastReceived = new long[numberOfPlayers];
+        byteRateLimits = new TokenBucket[numberOfPlayers];
+        Arrays.fill(lastReceived, System.nanoTime());
+
+        for (int i = 0; i < numberOfPlayers; i++) {
+            ClientConnection player = players.get(i);
+            int bytesPerSecond = config.getRelayBytesPerSecond();
+
+            playerIndexes.put(player, i);
+            inboundBuffers[i] = ByteBuffer.allocate(INBOUND_BUFFER_SIZE);
+            pendingFrames[i] = new ArrayDeque<>();
+            if (bytesPerSecond > 0) byteRateLimits[i] = new TokenBucket(bytesPerSecond, bytesPerSecond);
+
+            player.startPlayingRoom();
+
+            // Notify successful connection and start game by sending the seed, the size of the room and the player's index
+            player.putByte(1);
+            player.putLong(seed);
+            player.putByte(numberOfPlayers);
+            player.putByte(i);
+            player.flush();
+        }
+
+        scheduleIdleCheck();
+        System.out.println("Room " + roomId + " started with " + numberOfPlayers + " players, seed: " + seed + ", targeting: " + config.getGarbageTargetingPolicy());
+    }
+
+    /**
+     * Tells the players waiting in a room of a draining server to reconnect. A room that has started is left alone.
+     */
+    void sendRestarting() {
+        if (started || closed) return;
+
+        closeWaitingPlayers();
+        for (ClientConnection player : new ArrayList<>(players)) player.sendRestarting();
+    }
+
+    /**
+     * Reads the messages available from a player and appends them to the frame.
+     *
+     * @param sender The player that is ready to be read.
+     */
+    void read(ClientConnection sender) {
+        Integer index = playerIndexes.get(sender);
+        int bytesRead;
+
+        if (index == null) return;
+
+        try {
+            bytesRead = sender.read(inboundBuffers[index]);
+        }
+        catch (IOException ioe) {
+            sender.close();
+            return;
+        }
+
+        if (bytesRead < 0) {
+            // The player has topped out
+            inputDown[index] = true;
+            sender.shutdownInput();
+            knockOut(index);
+            return;
+        }
+
+        lastReceived[index] = System.nanoTime();
+
+        if (!appendMessages(index)) {
+            System.out.println("Closing room player that sent an unknown message");
+            sender.close();
+            return;
+        }
+
+        throttle(sender, index, bytesRead);
+    }
+
+    /**
+     * Sends the frames queued for a player once its outbound buffer is empty, and closes it if the room has finished
+     * and it has received every record.
+     *
+     * @param receiver The connection that is ready to be written.
+     */
+    void onWritable(ClientConnection receiver) {
+        Integer index = playerIndexes.get(receiver);
+        ArrayDeque<ByteBuffer> queue;
+
+        if (index == null) return;
+
+        queue = pendingFrames[index];
+
+        // The start of the game is still in the outbound buffer, the frames go after it
+        if (receiver.getPendingOutboundBytes() > 0) return;
+
+        if (!queue.isEmpty()) {
+            int numberOfViews = 0;
+
+            // The array of the gathering write is reused, and only grows with the longest queue
+            if (queue.size() > writeViews.length) writeViews = new ByteBuffer[Math.max(2 * writeViews.length, queue.size())];
+            for (ByteBuffer view : queue) writeViews[numberOfViews++] = view;
+
+            try {
+                pendingBytes[index] -= receiver.getChannel().write(writeViews, 0, numberOfViews);
+            }
+            catch (IOException ioe) {
+                receiver.close();
+                return;
+            }
+            finally { Arrays.fill(writeViews, 0, numberOfViews, null); }
+
+            while (!queue.isEmpty() && !queue.peek().hasRemaining()) queue.poll();
+        }
+
+        receiver.setWriteInterest(!queue.isEmpty());
+        if (queue.isEmpty() && closeWhenSent[index]) receiver.closeAfterFlush();
+    }
+
+    /**
+     * Removes a player that leaves a room that has not started, or knocks out a player that leaves a running one.
+     *
+     * @param player             The connection that has been closed.
+     * @param stateBeforeClosing The state the connection was in when it closed.
+     */
+    void onConnectionClosed(ClientConnection player, ConnectionState stateBeforeClosing) {
+        Integer index;
+
+        if (stateBeforeClosing == ConnectionState.WAITING_ROOM) {
+            players.remove(player);
+
+            // An empty room is gone, its Room ID can be reused
+            if (players.isEmpty() && !closed) closeWaitingPlayers();
+            return;
+        }
+
+        if ((index = playerIndexes.get(player)) == null) return;
+
+        pendingFrames[index].clear();
+        pendingBytes[index] = 0;
+        knockOut(index);
+    }
+
+    // ---------------------------------------------------------------------------------
+    // Auxiliary methods
+
+    /**
+     * Splits the bytes read from a player into board messages and appends the complete ones to the frame, keeping
+     * the incomplete one for the next read. The messages of a player that is no longer alive are dropped.
+     *
+     * @param sender The index of the player.
+     * @return {@code false} if the player has sent an unknown message type (or one only the server sends).
+     */
+    private boolean appendMessages(int sender) {
+        ByteBuffer inbound = inboundBuffers[sender];
+        boolean alive = !finished && garbageTargeting.isAlive(sender);
+        int type, length, target;
+
+        inbound.flip();
+
+        while (inbound.hasRemaining()) {
+            type = inbound.get(inbound.position()) & 0xFF;
+            if (type >= MESSAGE_TYPES.length || MESSAGE_TYPES[type] == BoardMessageType.START_DATAGRAM_UPDATES) return false;
+
+            length = 1 + MESSAGE_TYPES[type].getPayloadLength();
+            if (inbound.remaining() < length) break;
+
+            target = EVERYONE;
+            if (MESSAGE_TYPES[type] == BoardMessageType.SEND_GARBAGE_ROWS && alive) target = garbageTargeting.chooseTarget(sender);
+
+            if (alive && target != GarbageTargeting.NO_PLAYER) appendRecord(sender, target, inbound.array(), inbound.position(), length);
+            inbound.position(inbound.position() + length);
+        }
+
+        inbound.compact();
+        return true;
+    }
+
+    /**
+     * Knocks a player out and finishes the room if at most one player is left alive.
+     *
+     * @param index The index of the player.
+     */
+    private void knockOut(int index) {
+        int attacker;
+
+        if (finished || !garbageTargeting.isAlive(index)) return;
+
+        attacker = garbageTargeting.knockOut(index);
+        appendRecord(index, attacker == GarbageTargeting.NO_PLAYER ? EVERYONE : attacker, KNOCKED_OUT_MESSAGE, 0, KNOCKED_OUT_MESSAGE.length);
+
+        if (garbageTargeting.getNumberOfPlayersAlive() <= 1) {
+            finished = true;
+            // Runs after the flush of the last frame, which is already scheduled
+            eventLoop.execute(this::finishRoom);
+        }
+    }
+
+    /**
+     * Appends a record to the frame, flushing it first if the record does not fit, and schedules the flush of the
+     * frame at the end of the current pass of the loop.
+     *
+     * @param sender  The index of the player the message comes from.
+     * @param target  The index of the player the message is aimed at, or {@link #EVERYONE}.
+     * @param message The array holding the message.
+     * @param offset  The offset of the message in the array.
+     * @param length  The length of the message.
+     */
+    private void appendRecord(int sender, int target, byte[] message, int offset, int length) {
+        if (frame.remaining() < RECORD_HEADER_SIZE + length) flushFrame();
+
+        frame.put((byte) sender).put((byte) target).put(message, offset, length);
+
+        if (!flushScheduled) {
+            flushScheduled = true;
+            eventLoop.execute(flushTask);
+        }
+    }
+
+    /**
+     * Sends the frame to every open player. The frame is copied once into a buffer of its own size, which is then
+     * shared by every player.
+     */
+    private void flushFrame() {
+        ByteBuffer sharedFrame;
+
+        flushScheduled = false;
+        if (frame.position() == 0) return;
+
+        sharedFrame = ByteBuffer.wrap(Arrays.copyOf(frame.array(), frame.position())).asReadOnlyBuffer();
+        frame.clear();
+
+        for (int i = 0; i < players.size(); i++) send(i, sharedFrame.duplicate());
+    }
+
+    /**
+     * Writes a frame to a player's channel, queueing the bytes its socket does not take.
+     *
+     * @param index The index of the player.
+     * @param view  A view of the shared frame of its own.
+     */
+    private void send(int index, ByteBuffer view) {
+        ClientConnection receiver = players.get(index);
+
+        if (!receiver.isOpen()) return;
+
+        if (pendingFrames[index].isEmpty() && receiver.getPendingOutboundBytes() == 0) {
+            try { receiver.getChannel().write(view); }
+            catch (IOException ioe) {
+                receiver.close();
+                return;
+            }
+
+            if (!view.hasRemaining()) return;
+        }
+
+        pendingFrames[index].add(view);
+        pendingBytes[index] += view.remaining();
+
+        if (pendingBytes[index] > MAX_PENDING_BYTES) {
+            System.out.println("Closing room player that can not keep up");
+            receiver.close();
+            return;
+        }
+
+        receiver.setWriteInterest(true);
+    }
+
+    /**
+     * Closes every connection once it has received every record, and takes the room out of the running ones.
+     */
+    private void finishRoom() {
+        int winner = GarbageTargeting.NO_PLAYER;
+
+        flushFrame();
+
+        for (int i = 0; i < players.size(); i++) {
+            if (garbageTargeting.isAlive(i)) winner = i;
+
+            if (pendingFrames[i].isEmpty()) players.get(i).closeAfterFlush();
+            else closeWhenSent[i] = true;
+        }
+
+        matchmakingHandler.handleRoomFinished(this);
+        System.out.println("Room " + roomId + " finished, winner: " + (winner == GarbageTargeting.NO_PLAYER ? "none" : "player " + winner + " (" + garbageTargeting.getKnockOuts(winner) + " KOs)"));
+    }
+
+    /**
+     * Makes a room that has not started unjoinable and removes it from the registry.
+     */
+    private void closeWaitingPlayers() {
+        closed = true;
+        matchmakingHandler.handleRoomClosed(this);
+    }
+
+    /**
+     * Charges the bytes just read to the sender's byte rate limit and, if it is over the limit, stops reading it
+     * until it is back under it.
+     *
+     * @param sender    The connection that has been read.
+     * @param index     The index of the player.
+     * @param bytesRead The number of bytes read.
+     */
+    private void throttle(ClientConnection sender, int index, int bytesRead) {
+        long delayNanoseconds;
+
+        if (byteRateLimits[index] == null || (delayNanoseconds = byteRateLimits[index].consume(bytesRead)) == 0) return;
+
+        sender.setReadInterest(false);
+        eventLoop.schedule(() -> {
+            if (sender.isOpen() && !inputDown[index]) sender.setReadInterest(true);
+        }, TimeUnit.NANOSECONDS.toMillis(delayNanoseconds));
+    }
+
+    /**
+     * Schedules the next activity check.
+     */
+    private void scheduleIdleCheck() {
+        eventLoop.schedule(this::checkIdle, Timeouts.MATCH_IDLE_CHECK_INTERVAL_MILLISECONDS);
+    }
+
+    /**
+     * Closes the players still alive that have been idle for too long.
+     */
+    private void checkIdle() {
+        long idleTimeoutNanoseconds = TimeUnit.MILLISECONDS.toNanos(Timeouts.MATCH_IDLE_TIMEOUT_MILLISECONDS);
+        long now = System.nanoTime();
+
+        if (finished) return;
+
+        for (int i = 0; i < players.size(); i++) {
+            if (!inputDown[i] && players.get(i).isOpen() && now - lastReceived[i] > idleTimeoutNanoseconds) {
+                System.out.println("Closing idle room player");
+                players.get(i).close();
+            }
+        }
+
+        if (!finished) scheduleIdleCheck();
+    }
+}
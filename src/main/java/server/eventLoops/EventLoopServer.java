@@ -0,0 +1,178 @@
+package server.eventLoops;
+
+import server.Server;
+import server.ServerConfig;
+import server.gameModeHandlers.QuickPlayHandler;
+import server.cluster.CoordinatorClient;
+import server.lifecycle.ControlServer;
+import server.lifecycle.DrainableServer;
+import server.rateLimiting.AdmissionController;
+import server.rateLimiting.AdmissionDecision;
+import server.recording.MatchLog;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * A server that multiplexes every client over a small fixed number of {@link EventLoop}s.
+ * <p>
+ * Instead of a thread per connection (plus two relay threads per match), accepted connections are spread
+ * round-robin over the loops, which run the whole handshake, matchmaking and relay without blocking. The number of
+ * loops defaults to the number of cores, so the server is bound by CPU rather than by threads and memory.
+ * Connections over the limits of the {@link AdmissionController} are rejected by the accept loop before reaching
+ * any event loop.
+ * </p>
+ * <p>
+ * When the server is drained, the accept loop stops and {@link #run()} returns once the last match has finished.
+ * </p>
+ * <p>
+ * The falling tetromino updates go through a {@link DatagramRelay} on the UDP port with the same number, unless
+ * disabled. A server taking over the port of a draining one can only bind it once the old server has finished its
+ * matches, so it keeps trying every {@value DatagramRelay#BIND_RETRY_INTERVAL_MILLISECONDS} ms and its matches are
+ * relayed over TCP only until then.
+ * </p>
+ */
+public class EventLoopServer implements DrainableServer {
+    private final ServerConfig config;
+    private final EventLoop[] eventLoops;
+    private final EventLoopMatchmakingHandler matchmakingHandler;
+    private final AdmissionController<SocketChannel> admissionController;
+    private volatile ServerSocketChannel serverChannel;
+    private volatile DatagramRelay datagramRelay;
+    private volatile boolean draining;
+
+    /**
+     * Creates the server and its event loops (they are not started until {@link #run()}).
+     *
+     * @param config   The server configuration.
+     * @param matchLog The log where the matches are recorded, or {@code null} if they are not recorded.
+     * @throws IOException If a selector cannot be opened.
+     */
+    public EventLoopServer(ServerConfig config, MatchLog matchLog) throws IOException {
+        this.config = config;
+        this.matchmakingHandler = new EventLoopMatchmakingHandler(config, matchLog);
+        this.admissionController = new AdmissionController<>(config);
+        this.eventLoops = new EventLoop[config.getNumberOfEventLoops()];
+
+        for (int i = 0; i < eventLoops.length; i++) {
+            eventLoops[i] = new EventLoop("event-loop-" + i);
+        }
+
+        this.draining = false;
+    }
+
+    /**
+     * Starts the event loops and runs the accept loop on the calling thread until the server is drained and its last
+     * match has finished.
+     */
+    @Override
+    public void run() {
+        int nextEventLoop = 0;
+        AdmissionDecision admissionDecision;
+
+        for (EventLoop eventLoop : eventLoops) eventLoop.start();
+        scheduleMatchmakingTick(eventLoops[0]);
+
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            // The port of a drained server is bound right away, while its matches are still running
+            server.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            server.bind(new InetSocketAddress(config.getPort()), Server.ACCEPT_BACKLOG);
+            serverChannel = server;
+            System.out.println("Server is running on port " + config.getPort() + " with " + eventLoops.length + " event loops");
+            if (config.getControlPort() != 0) ControlServer.start(config.getControlPort(), this);
+            if (config.getCluster() != null) CoordinatorClient.start(config.getCluster(), matchmakingHandler);
+            if (config.hasDatagramUpdates()) startDatagramRelay(eventLoops[0], true);
+
+            while (!draining) {
+                try {
+                    // Block until a new connection is made
+                    SocketChannel client = server.accept();
+
+                    // Reject it right away (while the channel is still blocking) if the client or the server are over their limits
+                    admissionDecision = admissionController.admit(client, client.socket().getInetAddress());
+                    if (admissionDecision != AdmissionDecision.ACCEPTED) {
+                        AdmissionController.reject(client.socket(), admissionDecision);
+                        continue;
+                    }
+
+                    client.configureBlocking(false);
+                    System.out.println("New client connected: " + client.socket().getInetAddress());
+
+                    // Hand off the connection to the next event loop
+                    eventLoops[nextEventLoop].register(client, matchmakingHandler, admissionController, config.getRelayHighWatermark());
+                    nextEventLoop = (nextEventLoop + 1) % eventLoops.length;
+                }
+                catch (IOException ioe) {
+                    // The server channel is closed by the drain
+                    if (!draining) System.out.println("FATAL ERROR while trying to accept client socket: " + ioe.getMessage());
+                }
+            }
+        }
+        catch (IOException ioe) {
+            System.out.println("FATAL ERROR while trying to create server socket on port " + config.getPort());
+            return;
+        }
+
+        Server.waitForRunningMatches(this);
+        if (datagramRelay != null) datagramRelay.close();
+    }
+
+    @Override
+    public synchronized void drain() {
+        if (draining) return;
+
+        draining = true;
+
+        try { serverChannel.close(); }
+        catch (IOException ioe) { System.out.println("FATAL ERROR while trying to close server socket."); } // This should never happen, if it does your computer is broken sry
+
+        matchmakingHandler.drain();
+    }
+
+    @Override
+    public boolean isDraining() { return draining; }
+
+    @Override
+    public int getNumberOfMatches() { return matchmakingHandler.getNumberOfMatches(); }
+
+    // ---------------------------------------------------------------------------------
+    // Auxiliary methods
+
+    /**
+     * Binds the datagram relay, or schedules another attempt on the given loop if the port is still held by another
+     * server.
+     *
+     * @param eventLoop    The loop running the next attempts.
+     * @param firstAttempt Whether this is the first attempt (only its failure is reported).
+     */
+    private void startDatagramRelay(EventLoop eventLoop, boolean firstAttempt) {
+        if (draining) return;
+
+        datagramRelay = DatagramRelay.start(config.getPort());
+
+        if (datagramRelay != null) {
+            matchmakingHandler.setDatagramRelay(datagramRelay);
+            return;
+        }
+
+        if (firstAttempt) System.out.println("UDP port " + config.getPort() + " is in use, the matches are relayed over TCP only until it is free");
+        eventLoop.schedule(() -> startDatagramRelay(eventLoop, false), DatagramRelay.BIND_RETRY_INTERVAL_MILLISECONDS);
+    }
+
+    /**
+     * Runs the quick play matchmaking tick on the given loop every
+     * {@value QuickPlayHandler#WINDOW_WIDENING_INTERVAL_MILLISECONDS} ms, so waiting players are paired as their
+     * windows widen even if nobody else arrives.
+     *
+     * @param eventLoop The loop running the tick.
+     */
+    private void scheduleMatchmakingTick(EventLoop eventLoop) {
+        eventLoop.schedule(() -> {
+            matchmakingHandler.matchWaitingPlayers();
+            scheduleMatchmakingTick(eventLoop);
+        }, QuickPlayHandler.WINDOW_WIDENING_INTERVAL_MILLISECONDS);
+    }
+}
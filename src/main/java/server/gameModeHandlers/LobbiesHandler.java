@@ -1,92 +1,354 @@
 package server.gameModeHandlers;
 
-import java.io.IOException;
-import java.net.Socket;
-import java.util.HashMap;
-import java.util.Random;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Manages private game lobbies.
  * <p>
- * This class is responsible for creating unique Room IDs, storing the host's socket connection,
- * and retrieving it when a challenger joins. It guarantees thread safety using synchronization,
- * as multiple threads (MatchmakingHandlers) may access the lobby map simultaneously.
+ * This class is responsible for creating unique Room IDs, storing the host's connection,
+ * and retrieving it when a challenger joins. Many threads (MatchmakingHandlers or event loops) access the registry
+ * simultaneously, so instead of a single lock the Room IDs are split into {@value #NUMBER_OF_SHARDS} shards, each one
+ * with its own lock, a free-id bitmap and the hosts of its lobbies. Room ID {@code r} belongs to shard
+ * {@code r % NUMBER_OF_SHARDS}, so while the server is not busy the Room IDs stay short.
  * </p>
+ * <p>
+ * In a cluster (see {@link server.cluster.Cluster}) each node only owns one residue class of the Room IDs: the
+ * registry of node {@code i} of {@code n} hands out the Room IDs {@code r * n + i}, where {@code r} is the ID it would
+ * hand out on its own, and it finds none of the Room IDs of the other nodes.
+ * </p>
+ * <p>
+ * A lobby goes through these states: created (joinable), claimed by a joiner (its Room ID is still reserved, but
+ * nobody else can join it), and then either restored (joinable again) or released (its Room ID is free).
+ * </p>
+ * <p>
+ * When the server drains, the registry is closed with {@link #close()}: the open lobbies are removed and no more
+ * lobbies are created or restored.
+ * </p>
+ *
+ * @param <T> The type used to represent a connected host (a socket or an event loop connection).
  */
-public class LobbiesHandler {
-    private final HashMap<Integer, Socket> lobbies;
-    private static final int MAX_NUMBER_OF_LOBBIES = 1000;
+public class LobbiesHandler<T> {
+    /** Value returned by {@link #createLobby(Object)} when every Room ID is taken. */
+    public static final int NO_ROOM_AVAILABLE = -1;
+
+    /** Value returned by {@link #createLobby(Object)} when the registry is closed. */
+    public static final int LOBBIES_CLOSED = -2;
+
+    private static final int NUMBER_OF_SHARDS = 64;
+    private static final int SHARD_CAPACITY = 16384;
+    public static final int MAX_NUMBER_OF_LOBBIES = NUMBER_OF_SHARDS * SHARD_CAPACITY;
+
+    private final int nodeIndex;
+    private final int numberOfNodes;
+    private final LobbyShard<T>[] shards;
+    private final AtomicInteger numberOfLobbies;
+    private volatile boolean closed;
 
     /**
      * Creates a new LobbiesHandler with an empty registry.
      */
     public LobbiesHandler(){
-        lobbies = new HashMap<>();
+        this(0, 1);
+    }
+
+    /**
+     * Creates a new LobbiesHandler with an empty registry for a node of a cluster.
+     *
+     * @param nodeIndex     The index of the node.
+     * @param numberOfNodes The number of nodes of the cluster.
+     */
+    @SuppressWarnings("unchecked")
+    public LobbiesHandler(int nodeIndex, int numberOfNodes){
+        this.nodeIndex = nodeIndex;
+        this.numberOfNodes = numberOfNodes;
+
+        shards = (LobbyShard<T>[]) new LobbyShard<?>[NUMBER_OF_SHARDS];
+        for (int i = 0; i < NUMBER_OF_SHARDS; i++) shards[i] = new LobbyShard<>();
+
+        numberOfLobbies = new AtomicInteger(0);
+        closed = false;
     }
 
     /**
-     * Creates a new lobby for the provided host socket.
+     * Creates a new lobby for the provided host.
      * <p>
-     * Generates a random Room ID (0-999). If the ID is taken or the server is full,
-     * it handles collision resolution or waits.
+     * The lobby is placed in a random shard (the next ones are tried if it is full), which hands out its lowest
+     * free Room ID. This method never waits: when every Room ID is taken the request is rejected.
      * </p>
      *
-     * @param host The socket of the player hosting the game.
-     * @return The unique Room ID generated for this lobby.
+     * @param host The player hosting the game.
+     * @return The unique Room ID generated for this lobby, {@link #NO_ROOM_AVAILABLE} if the registry is full or
+     * {@link #LOBBIES_CLOSED} if it is closed.
      */
-    public int createLobby(Socket host){
-        Random random = new Random();
-        int numberOfLobbies;
-        int roomId;
+    public int createLobby(T host){
+        int firstShard;
+        int shardIndex;
+        int localId;
 
-        synchronized (this) {
-            numberOfLobbies = lobbies.size();
-
-            if (numberOfLobbies < MAX_NUMBER_OF_LOBBIES) {
-                // Generate a unique ID
-                roomId = random.nextInt(MAX_NUMBER_OF_LOBBIES - lobbies.size());
-                // Simple linear probing strategy to find a free slot
-                while(lobbies.containsKey(roomId)) {
-                    roomId = (roomId + 1) % MAX_NUMBER_OF_LOBBIES;
-                }
+        // Reserve a Room ID first, so a full registry is rejected without touching the shards
+        if (numberOfLobbies.incrementAndGet() > MAX_NUMBER_OF_LOBBIES) {
+            numberOfLobbies.decrementAndGet();
+            return NO_ROOM_AVAILABLE;
+        }
 
-                lobbies.put(roomId, host);
+        // The reservation guarantees that some shard has a free Room ID
+        firstShard = ThreadLocalRandom.current().nextInt(NUMBER_OF_SHARDS);
+        for (int i = 0; ; i++) {
+            shardIndex = (firstShard + i) % NUMBER_OF_SHARDS;
+            localId = shards[shardIndex].allocate(host);
 
-                return roomId;
+            if (localId == LobbyShard.CLOSED) {
+                numberOfLobbies.decrementAndGet();
+                return LOBBIES_CLOSED;
             }
+            if (localId != -1) return toRoomId(localId * NUMBER_OF_SHARDS + shardIndex);
         }
-
-        try {
-            Thread.sleep(100);
-            return createLobby(host);
-        } catch (InterruptedException e) {
-            System.out.println("FATAL ERROR lobbies handler interrupted.");
-            return -1;
-        } // This should never happen, if it does your computer is broken sry
     }
 
     /**
-     * Retrieves and removes the host socket associated with a Room ID.
+     * Claims the lobby with the given Room ID for a joiner.
      * <p>
-     * This is called when a second player successfully joins the lobby. The lobby is
-     * removed immediately to prevent others from joining the same session.
+     * The host is taken out of the lobby so nobody else can join it, but the Room ID stays reserved until
+     * the claimer either calls {@link #restoreLobby(int, Object)} (e.g., the joiner left) or
+     * {@link #releaseLobby(int)} (the game started or the host is gone).
      * </p>
      *
      * @param roomId The ID of the room to join.
-     * @return The {@link Socket} of the waiting host, or null if not found.
+     * @return The waiting host, or null if not found (or already claimed).
+     */
+    public T claimLobby(int roomId) {
+        int registryId = toRegistryId(roomId);
+
+        if (registryId < 0 || registryId >= MAX_NUMBER_OF_LOBBIES) return null;
+
+        return getShard(registryId).claim(getLocalId(registryId));
+    }
+
+    /**
+     * Looks up the lobby with the given Room ID without claiming it (used by the rooms, which admit several joiners).
+     *
+     * @param roomId The ID of the room to join.
+     * @return The host of the lobby, or null if not found (or claimed).
      */
-    public synchronized Socket getAndRemoveLobby(int roomId) {
-        return lobbies.remove(roomId);
+    public T findLobby(int roomId) {
+        int registryId = toRegistryId(roomId);
+
+        if (registryId < 0 || registryId >= MAX_NUMBER_OF_LOBBIES) return null;
+
+        return getShard(registryId).find(getLocalId(registryId));
     }
 
     /**
-     * Restores the lobby due to failure when connecting rival by adding the roomId with its host back to the online
-     * lobbies
+     * Restores a claimed lobby due to failure when connecting rival, so other players can join it again with the
+     * same Room ID.
      *
      * @param roomId The roomId of the lobby to restore
      * @param host   The host of the lobby to restore
+     * @return {@code false} if the registry has been closed meanwhile (the Room ID is released instead).
+     */
+    public boolean restoreLobby(int roomId, T host) {
+        int registryId = toRegistryId(roomId);
+
+        if (getShard(registryId).restore(getLocalId(registryId), host)) return true;
+
+        numberOfLobbies.decrementAndGet();
+        return false;
+    }
+
+    /**
+     * Frees the Room ID of a claimed lobby.
+     *
+     * @param roomId The roomId of the claimed lobby.
+     */
+    public void releaseLobby(int roomId) {
+        int registryId = toRegistryId(roomId);
+
+        getShard(registryId).free(getLocalId(registryId));
+        numberOfLobbies.decrementAndGet();
+    }
+
+    /**
+     * Removes the lobby only if it is still hosted by the given host. Used when the host leaves
+     * while waiting, so that a lobby already claimed by a joiner (or reused by another host) is not touched.
+     *
+     * @param roomId The roomId of the lobby to remove
+     * @param host   The host that is expected to own the lobby
+     * @return {@code true} if the lobby was removed, {@code false} otherwise.
+     */
+    public boolean removeLobby(int roomId, T host) {
+        int registryId = toRegistryId(roomId);
+
+        if (registryId < 0 || registryId >= MAX_NUMBER_OF_LOBBIES) return false;
+        if (!getShard(registryId).remove(getLocalId(registryId), host)) return false;
+
+        numberOfLobbies.decrementAndGet();
+        return true;
+    }
+
+    /**
+     * @param roomId The roomId of a lobby.
+     * @param host   A host.
+     * @return {@code true} if the lobby exists, is not claimed and is hosted by the given host.
+     */
+    public boolean isLobbyHostedBy(int roomId, T host) {
+        int registryId = toRegistryId(roomId);
+
+        if (registryId < 0 || registryId >= MAX_NUMBER_OF_LOBBIES) return false;
+
+        return getShard(registryId).isHostedBy(getLocalId(registryId), host);
+    }
+
+    /**
+     * Closes the registry: the open lobbies are removed and no more lobbies are created or restored. The lobbies
+     * claimed by a joiner are left to the joiner, which either starts the game or fails to restore them.
+     *
+     * @return The hosts of the removed lobbies.
      */
-    public synchronized void restoreLobby(int roomId, Socket host) {
-        lobbies.put(roomId, host);
+    public List<T> close() {
+        List<T> hosts = new ArrayList<>();
+
+        closed = true;
+        for (LobbyShard<T> shard : shards) shard.close(hosts);
+
+        numberOfLobbies.addAndGet(-hosts.size());
+        return hosts;
+    }
+
+    /**
+     * @return {@code true} if the registry has been closed (the server is draining).
+     */
+    public boolean isClosed() { return closed; }
+
+    // ---------------------------------------------------------------------------------
+    // Auxiliary methods
+
+    private LobbyShard<T> getShard(int registryId) { return shards[registryId % NUMBER_OF_SHARDS]; }
+    private int getLocalId(int registryId) { return registryId / NUMBER_OF_SHARDS; }
+    private int toRoomId(int registryId) { return registryId * numberOfNodes + nodeIndex; }
+
+    /**
+     * @param roomId A Room ID.
+     * @return The ID of the lobby in this node's registry, or -1 if the Room ID is negative or owned by another node.
+     */
+    private int toRegistryId(int roomId) {
+        if (roomId < 0 || roomId % numberOfNodes != nodeIndex) return -1;
+
+        return roomId / numberOfNodes;
+    }
+
+    /**
+     * A slice of the registry with its own lock.
+     * <p>
+     * Allocated ids are tracked in a bitmap, plus a second bitmap with one bit per word of the first one telling
+     * whether that word still has a free id. Finding a free id only checks a handful of words, so allocation and
+     * release take constant time.
+     * </p>
+     *
+     * @param <T> The type used to represent a connected host.
+     */
+    private static class LobbyShard<T> {
+        static final int CLOSED = -2;
+
+        private final long[] allocatedIds;
+        private final long[] wordsWithFreeIds;
+        private final Object[] hosts;
+        private boolean closed;
+
+        LobbyShard() {
+            allocatedIds = new long[SHARD_CAPACITY / Long.SIZE];
+            wordsWithFreeIds = new long[allocatedIds.length / Long.SIZE];
+            hosts = new Object[SHARD_CAPACITY];
+
+            // Every word starts with free ids
+            for (int i = 0; i < wordsWithFreeIds.length; i++) wordsWithFreeIds[i] = -1L;
+        }
+
+        /**
+         * @param host The host of the new lobby.
+         * @return The lowest free local id (now hosted by the given host), -1 if the shard is full or {@link #CLOSED}.
+         */
+        synchronized int allocate(T host) {
+            int word;
+            int bit;
+            int localId;
+
+            if (closed) return CLOSED;
+
+            for (int i = 0; i < wordsWithFreeIds.length; i++) {
+                if (wordsWithFreeIds[i] == 0) continue;
+
+                word = i * Long.SIZE + Long.numberOfTrailingZeros(wordsWithFreeIds[i]);
+                bit = Long.numberOfTrailingZeros(~allocatedIds[word]);
+
+                allocatedIds[word] |= 1L << bit;
+                if (allocatedIds[word] == -1L) wordsWithFreeIds[i] &= ~(1L << (word % Long.SIZE));
+
+                localId = word * Long.SIZE + bit;
+                hosts[localId] = host;
+                return localId;
+            }
+
+            return -1;
+        }
+
+        @SuppressWarnings("unchecked")
+        synchronized T claim(int localId) {
+            T host = (T) hosts[localId];
+
+            hosts[localId] = null;
+            return host;
+        }
+
+        @SuppressWarnings("unchecked")
+        synchronized T find(int localId) {
+            return (T) hosts[localId];
+        }
+
+        synchronized boolean restore(int localId, T host) {
+            if (closed) {
+                free(localId);
+                return false;
+            }
+
+            hosts[localId] = host;
+            return true;
+        }
+
+        synchronized boolean remove(int localId, T host) {
+            if (host == null || hosts[localId] != host) return false;
+
+            free(localId);
+            return true;
+        }
+
+        synchronized boolean isHostedBy(int localId, T host) {
+            return host != null && hosts[localId] == host;
+        }
+
+        /**
+         * @param removedHosts The list where the hosts of the open lobbies are added (their ids are freed).
+         */
+        @SuppressWarnings("unchecked")
+        synchronized void close(List<T> removedHosts) {
+            closed = true;
+
+            for (int localId = 0; localId < hosts.length; localId++) {
+                if (hosts[localId] == null) continue;
+
+                removedHosts.add((T) hosts[localId]);
+                free(localId);
+            }
+        }
+
+        synchronized void free(int localId) {
+            int word = localId / Long.SIZE;
+
+            hosts[localId] = null;
+            allocatedIds[word] &= ~(1L << (localId % Long.SIZE));
+            wordsWithFreeIds[word / Long.SIZE] |= 1L << (word % Long.SIZE);
+        }
     }
-}
\ No newline at end of file
+}
@@ -1,41 +1,453 @@
 package server.gameModeHandlers;
 
-import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 /**
- * Manages the matchmaking queue for Quick Play modes.
+ * Manages the matchmaking queue for a Quick Play mode.
  * <p>
- * This class acts as a simple thread-safe holder for a waiting player.
- * Since the game is 1v1, we only need to store one "waiting" socket.
- * If a new player arrives and someone is waiting, a match is made.
- * If no one is waiting, the new player becomes the waiting player.
+ * Every waiting player has a measured round trip time (RTT). Players are indexed in buckets that group RTTs in
+ * ranges that grow with the RTT (see {@link #RTT_BUCKET_LIMITS_MILLISECONDS}). Each bucket keeps its players in
+ * arrival order. Players are not rated: the clients are anonymous and the server does not know who wins a match.
  * </p>
+ * <p>
+ * A player is first paired within its own bucket. Every {@value #WINDOW_WIDENING_INTERVAL_MILLISECONDS} ms it has
+ * been waiting, its window grows by one bucket on each side, so no player waits forever for a perfect rival.
+ * The oldest players are served first and, within their window, the closest bucket is preferred. Since only the
+ * oldest player of each bucket has to be looked at, a pairing decision costs the same with a hundred or with tens of
+ * thousands of players waiting.
+ * </p>
+ * <p>
+ * Pairs are handed out in batches: the caller polls a batch of candidate pairs, checks the liveness of their players
+ * in parallel and, as soon as both checks of a pair have answered, starts it if both players are online or gives the
+ * survivor back with {@link #requeue(Object, long)}. The players of a batch are no longer in the queue, so batches
+ * can overlap and a player that is slow to answer only delays its own pair. Since windows grow with time, the caller
+ * must also poll periodically, not only when a player arrives.
+ * </p>
+ * <p>
+ * When the server drains, the queue is closed with {@link #close()}: no more batches are handed out and no more
+ * players are accepted, so the caller tells them to reconnect instead.
+ * </p>
+ * <p>
+ * The handler also keeps the statistics of the queue: its depth and the percentiles of the time to match of the
+ * last {@value #TIME_TO_MATCH_SAMPLES} matched players.
+ * </p>
+ * <p>
+ * The handler is generic over the player representation so the same queue logic can be shared by the
+ * thread-per-connection server (which stores plain sockets) and the event loop server (which stores its
+ * own connection objects).
+ * </p>
+ *
+ * @param <T> The type used to represent a connected player.
  */
-public class QuickPlayHandler {
-    private Socket waitingPlayer;
+public class QuickPlayHandler<T> {
+    /** Maximum number of pairs handed out in a single batch. */
+    public static final int MAX_PAIRS_PER_BATCH = 32;
+
+    /** Time a player has to wait for its window to grow by one bucket on each side. */
+    public static final int WINDOW_WIDENING_INTERVAL_MILLISECONDS = 1000;
+
+    private static final long[] RTT_BUCKET_LIMITS_MILLISECONDS = {30, 60, 120, 250};
+    private static final int NUMBER_OF_RTT_BUCKETS = RTT_BUCKET_LIMITS_MILLISECONDS.length + 1;
+
+    /** Number of recent time to match samples the percentiles are computed from. */
+    private static final int TIME_TO_MATCH_SAMPLES = 1024;
+
+    private final ArrayDeque<WaitingPlayer<T>>[] buckets;
+    private final IdentityHashMap<T, WaitingPlayer<T>> waitingPlayers;
+    private int queueDepth;
+    private final long[] timeToMatchSamples;
+    private int numberOfTimeToMatchSamples;
+    private int nextTimeToMatchSample;
+    private boolean closed;
 
     /**
      * Creates a new QuickPlayHandler with no players waiting.
      */
+    @SuppressWarnings("unchecked")
     public QuickPlayHandler() {
-        waitingPlayer = null;
+        buckets = (ArrayDeque<WaitingPlayer<T>>[]) new ArrayDeque<?>[NUMBER_OF_RTT_BUCKETS];
+        for (int i = 0; i < buckets.length; i++) buckets[i] = new ArrayDeque<>();
+
+        waitingPlayers = new IdentityHashMap<>();
+        queueDepth = 0;
+        timeToMatchSamples = new long[TIME_TO_MATCH_SAMPLES];
+        numberOfTimeToMatchSamples = 0;
+        nextTimeToMatchSample = 0;
+        closed = false;
     }
 
     /**
-     * If there is a waiting player returns the waiting player. Otherwise, sets the given player as a waiting player and returns null
+     * Puts the given player in the queue.
      *
-     * @param player The player to handle (either returning its rival or putting it to wait)
-     * @return If there is a waiting player, it returns its socket, otherwise, it returns null.
+     * @param player           The player searching a game.
+     * @param roundTripMillis  The measured round trip time to the player in milliseconds.
+     * @return {@code false} if the queue is closed (the player has not been added).
      */
-    public synchronized Socket handlePlayer(Socket player) {
-        Socket opponent = null;
+    public synchronized boolean addPlayer(T player, long roundTripMillis) {
+        WaitingPlayer<T> waitingPlayer;
 
-        if (waitingPlayer == null) waitingPlayer = player;
-        else {
-            opponent = waitingPlayer;
-            waitingPlayer = null;
+        if (closed) return false;
+
+        waitingPlayer = new WaitingPlayer<>(player, System.nanoTime());
+        waitingPlayers.put(player, waitingPlayer);
+        insert(waitingPlayer, roundTripMillis, false);
+        return true;
+    }
+
+    /**
+     * @param roundTripMillis1 A round trip time in milliseconds.
+     * @param roundTripMillis2 Another round trip time in milliseconds.
+     * @return {@code true} if a player would be queued in the same RTT bucket with either of them.
+     */
+    public static boolean isSameRoundTripBucket(long roundTripMillis1, long roundTripMillis2) {
+        return getRoundTripBucket(roundTripMillis1) == getRoundTripBucket(roundTripMillis2);
+    }
+
+    /**
+     * Takes the next batch of candidate pairs out of the queue. The caller owns their players until it starts or
+     * requeues them.
+     *
+     * @return Up to {@value #MAX_PAIRS_PER_BATCH} pairs flattened in a list (the players at {@code 2i} and
+     * {@code 2i + 1} form a pair, the first of them has been waiting longer), or an empty list if there is no batch.
+     */
+    public synchronized List<T> pollBatch() {
+        List<T> batch = new ArrayList<>();
+        boolean[] unpairableBuckets;
+        long now;
+        int bucket;
+        int opponentBucket;
+        WaitingPlayer<T> player;
+        WaitingPlayer<T> opponent;
+
+        if (closed || queueDepth < 2) return batch;
+
+        unpairableBuckets = new boolean[buckets.length];
+        now = System.nanoTime();
+
+        while (batch.size() < 2 * MAX_PAIRS_PER_BATCH && (bucket = getBucketWithOldestPlayer(unpairableBuckets)) != -1) {
+            player = buckets[bucket].pollFirst();
+            opponentBucket = getClosestBucketInWindow(bucket, getWindow(player, now));
+
+            if (opponentBucket == -1) {
+                // The younger players of this bucket have smaller windows, they can not be paired either
+                buckets[bucket].addFirst(player);
+                unpairableBuckets[bucket] = true;
+                continue;
+            }
+
+            opponent = buckets[opponentBucket].pollFirst();
+            player.queued = false;
+            opponent.queued = false;
+            queueDepth -= 2;
+            batch.add(player.player);
+            batch.add(opponent.player);
         }
 
-        return opponent;
+        return batch;
+    }
+
+    /**
+     * Gives a live player whose rival was gone back to the queue. It keeps its arrival time (and so its window) and
+     * goes in front of the players of its bucket.
+     *
+     * @param player          The player to requeue.
+     * @param roundTripMillis The round trip time measured by the last liveness check.
+     * @return {@code false} if the queue is closed (the player is no longer tracked).
+     */
+    public synchronized boolean requeue(T player, long roundTripMillis) {
+        WaitingPlayer<T> waitingPlayer;
+
+        if (closed) {
+            waitingPlayers.remove(player);
+            return false;
+        }
+
+        waitingPlayer = waitingPlayers.get(player);
+        if (waitingPlayer != null) insert(waitingPlayer, roundTripMillis, true);
+        return true;
+    }
+
+    /**
+     * Records the time to match of two paired players, which are no longer tracked by the queue.
+     *
+     * @param player1 The first player.
+     * @param player2 The second player.
+     */
+    public synchronized void matched(T player1, T player2) {
+        long now = System.nanoTime();
+
+        recordTimeToMatch(now, waitingPlayers.remove(player1));
+        recordTimeToMatch(now, waitingPlayers.remove(player2));
+    }
+
+    /**
+     * Stops tracking the given player (e.g., because it disconnected while waiting for a rival or failed its
+     * liveness check).
+     *
+     * @param player The player to remove.
+     * @return {@code true} if the player was waiting in the queue and has been removed, {@code false} otherwise.
+     */
+    public synchronized boolean removeWaitingPlayer(T player) {
+        WaitingPlayer<T> waitingPlayer = waitingPlayers.remove(player);
+
+        if (waitingPlayer == null || !waitingPlayer.queued) return false;
+
+        // Lazy removal: the entry is skipped when it reaches the front of its bucket
+        waitingPlayer.queued = false;
+        queueDepth--;
+        return true;
+    }
+
+    /**
+     * @param waitingMillis A waiting time in milliseconds.
+     * @return The number of players waiting in the queue (not in a batch in flight) for at least that time.
+     */
+    public synchronized int countPlayersWaitingLongerThan(long waitingMillis) {
+        long now = System.nanoTime();
+        int numberOfPlayers = 0;
+
+        for (WaitingPlayer<T> waitingPlayer : waitingPlayers.values()) {
+            if (waitingPlayer.queued && hasWaitedLongerThan(waitingPlayer, waitingMillis, now)) numberOfPlayers++;
+        }
+
+        return numberOfPlayers;
+    }
+
+    /**
+     * Takes out of the queue the players that have been waiting in it (not in a batch in flight) for at least the
+     * given time, e.g., to search a rival for them somewhere else. They are no longer tracked.
+     *
+     * @param waitingMillis A waiting time in milliseconds.
+     * @return The players removed.
+     */
+    public synchronized List<T> removePlayersWaitingLongerThan(long waitingMillis) {
+        List<T> removedPlayers = new ArrayList<>();
+        long now = System.nanoTime();
+
+        waitingPlayers.values().removeIf(waitingPlayer -> {
+            if (!waitingPlayer.queued || !hasWaitedLongerThan(waitingPlayer, waitingMillis, now)) return false;
+
+            // Lazy removal: the entry is skipped when it reaches the front of its bucket
+            waitingPlayer.queued = false;
+            queueDepth--;
+            removedPlayers.add(waitingPlayer.player);
+            return true;
+        });
+
+        return removedPlayers;
+    }
+
+    /**
+     * Closes the queue: no more players are added or requeued and no more batches are handed out. The players of the
+     * batches in flight are still paired, or rejected by {@link #requeue(Object, long)}.
+     *
+     * @return The players that were waiting in the queue, which are no longer tracked.
+     */
+    public synchronized List<T> close() {
+        List<T> queuedPlayers = new ArrayList<>();
+
+        closed = true;
+        waitingPlayers.values().removeIf(waitingPlayer -> {
+            if (waitingPlayer.queued) queuedPlayers.add(waitingPlayer.player);
+            return waitingPlayer.queued;
+        });
+
+        for (ArrayDeque<WaitingPlayer<T>> bucket : buckets) bucket.clear();
+        queueDepth = 0;
+
+        return queuedPlayers;
+    }
+
+    /**
+     * @param player A player.
+     * @return {@code true} if the player is tracked by the queue: it is waiting in the queue or in a batch in flight.
+     */
+    public synchronized boolean isWaiting(T player) { return waitingPlayers.containsKey(player); }
+
+    /**
+     * @param player A player.
+     * @return {@code true} if the player is waiting in the queue (not in a batch in flight).
+     */
+    public synchronized boolean isQueued(T player) {
+        WaitingPlayer<T> waitingPlayer = waitingPlayers.get(player);
+
+        return waitingPlayer != null && waitingPlayer.queued;
+    }
+
+    /**
+     * @return The number of players waiting in the queue (without the batches in flight).
+     */
+    public synchronized int getQueueDepth() { return queueDepth; }
+
+    /**
+     * Computes a percentile of the time to match of the last matched players.
+     *
+     * @param percentile The percentile, between 0 and 100.
+     * @return The time to match in milliseconds, or 0 if nobody has been matched yet.
+     */
+    public synchronized long getTimeToMatchPercentile(double percentile) {
+        long[] samples;
+        int rank;
+
+        if (numberOfTimeToMatchSamples == 0) return 0;
+
+        samples = Arrays.copyOf(timeToMatchSamples, numberOfTimeToMatchSamples);
+        Arrays.sort(samples);
+
+        // Nearest-rank percentile
+        rank = (int) Math.ceil(percentile / 100 * samples.length);
+        return TimeUnit.NANOSECONDS.toMillis(samples[Math.max(rank, 1) - 1]);
+    }
+
+    /**
+     * @return A one line summary of the queue statistics, for the server log.
+     */
+    public synchronized String getStatistics() {
+        return "queue depth " + getQueueDepth() + ", time to match p50 " + getTimeToMatchPercentile(50) +
+                " ms, p90 " + getTimeToMatchPercentile(90) + " ms, p99 " + getTimeToMatchPercentile(99) + " ms";
+    }
+
+    // ---------------------------------------------------------------------------------
+    // Auxiliary methods
+
+    /**
+     * Puts a player in the bucket of its RTT.
+     *
+     * @param waitingPlayer   The player.
+     * @param roundTripMillis The player's RTT in milliseconds.
+     * @param atFront         {@code true} to put it before the players already in the bucket.
+     */
+    private void insert(WaitingPlayer<T> waitingPlayer, long roundTripMillis, boolean atFront) {
+        int rttBucket = getRoundTripBucket(roundTripMillis);
+
+        waitingPlayer.queued = true;
+        if (atFront) buckets[rttBucket].addFirst(waitingPlayer);
+        else buckets[rttBucket].addLast(waitingPlayer);
+        queueDepth++;
+    }
+
+    private static int getRoundTripBucket(long roundTripMillis) {
+        int rttBucket = 0;
+
+        while (rttBucket < RTT_BUCKET_LIMITS_MILLISECONDS.length && roundTripMillis >= RTT_BUCKET_LIMITS_MILLISECONDS[rttBucket]) rttBucket++;
+
+        return rttBucket;
+    }
+
+    /**
+     * Finds the bucket whose first player has been waiting the longest.
+     *
+     * @param excludedBuckets The buckets to skip.
+     * @return The bucket index, or -1 if every bucket is empty or excluded.
+     */
+    private int getBucketWithOldestPlayer(boolean[] excludedBuckets) {
+        int oldestBucket = -1;
+        WaitingPlayer<T> first;
+        WaitingPlayer<T> oldest = null;
+
+        for (int i = 0; i < buckets.length; i++) {
+            if (excludedBuckets[i] || (first = peekFirst(i)) == null) continue;
+
+            if (oldest == null || first.waitingSince - oldest.waitingSince < 0) {
+                oldest = first;
+                oldestBucket = i;
+            }
+        }
+
+        return oldestBucket;
+    }
+
+    /**
+     * Finds the non-empty bucket closest to the given one within a window (the same bucket is the closest one).
+     * Between equally close buckets, the one whose first player has been waiting the longest is chosen.
+     *
+     * @param bucket The bucket of the player to pair (already taken out of it).
+     * @param window The number of buckets the player accepts on each side.
+     * @return The bucket index, or -1 if there is nobody within the window.
+     */
+    private int getClosestBucketInWindow(int bucket, int window) {
+        int closestBucket = -1;
+        int closestDistance = Integer.MAX_VALUE;
+        int distance;
+        WaitingPlayer<T> first;
+        WaitingPlayer<T> closest = null;
+
+        for (int candidate = Math.max(0, bucket - window); candidate <= Math.min(NUMBER_OF_RTT_BUCKETS - 1, bucket + window); candidate++) {
+            if ((first = peekFirst(candidate)) == null) continue;
+
+            distance = Math.abs(candidate - bucket);
+            if (distance < closestDistance || (distance == closestDistance && first.waitingSince - closest.waitingSince < 0)) {
+                closestBucket = candidate;
+                closestDistance = distance;
+                closest = first;
+            }
+        }
+
+        return closestBucket;
+    }
+
+    /**
+     * Returns the first player of a bucket, dropping the removed players found at its front.
+     *
+     * @param bucket The bucket index.
+     * @return The first player still waiting, or null if the bucket is empty.
+     */
+    private WaitingPlayer<T> peekFirst(int bucket) {
+        WaitingPlayer<T> first;
+
+        while ((first = buckets[bucket].peekFirst()) != null && !first.queued) buckets[bucket].pollFirst();
+
+        return first;
+    }
+
+    /**
+     * @param waitingPlayer A waiting player.
+     * @param now           The current time in nanoseconds.
+     * @return The number of buckets the player accepts on each side, which grows with its waiting time.
+     */
+    private int getWindow(WaitingPlayer<T> waitingPlayer, long now) {
+        long waitingMillis = TimeUnit.NANOSECONDS.toMillis(now - waitingPlayer.waitingSince);
+
+        return (int) Math.min(NUMBER_OF_RTT_BUCKETS, waitingMillis / WINDOW_WIDENING_INTERVAL_MILLISECONDS);
+    }
+
+    private boolean hasWaitedLongerThan(WaitingPlayer<T> waitingPlayer, long waitingMillis, long now) {
+        return now - waitingPlayer.waitingSince >= TimeUnit.MILLISECONDS.toNanos(waitingMillis);
+    }
+
+    /**
+     * Stores a time to match sample, replacing the oldest one when the sample buffer is full.
+     *
+     * @param now           The current time in nanoseconds.
+     * @param waitingPlayer The matched player (null if it was not tracked).
+     */
+    private void recordTimeToMatch(long now, WaitingPlayer<T> waitingPlayer) {
+        if (waitingPlayer == null) return;
+
+        timeToMatchSamples[nextTimeToMatchSample] = now - waitingPlayer.waitingSince;
+        nextTimeToMatchSample = (nextTimeToMatchSample + 1) % TIME_TO_MATCH_SAMPLES;
+        if (numberOfTimeToMatchSamples < TIME_TO_MATCH_SAMPLES) numberOfTimeToMatchSamples++;
+    }
+
+    /**
+     * A player tracked by the queue, from its arrival until it is matched or removed.
+     *
+     * @param <T> The type used to represent a connected player.
+     */
+    private static class WaitingPlayer<T> {
+        private final T player;
+        private final long waitingSince;
+        private boolean queued;
+
+        WaitingPlayer(T player, long waitingSince) {
+            this.player = player;
+            this.waitingSince = waitingSince;
+            this.queued = false;
+        }
     }
-}
\ No newline at end of file
+}
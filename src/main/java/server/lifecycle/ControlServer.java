@@ -0,0 +1,154 @@
+package server.lifecycle;
+
+import server.timeouts.Timeouts;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The control socket of the server, used to drain it without killing its matches (e.g., on a deploy).
+ * <p>
+ * It only listens on the loopback interface. Every connection sends one command line and gets one reply line:
+ * </p>
+ * <ul>
+ * <li><b>DRAIN:</b> drains the server (see {@link DrainableServer#drain()}) and closes the control socket, replying
+ * {@code DRAINING <matches>} once both ports are free.</li>
+ * <li><b>STATUS:</b> replies {@code RUNNING <matches>} or {@code DRAINING <matches>}.</li>
+ * </ul>
+ * <p>
+ * A new server started with {@code --take-over=true} sends the DRAIN command to the running one (see
+ * {@link #requestDrain(int)}) and then binds the freed ports, so the port is only closed for the time it takes to bind
+ * it again. The clients waiting for a rival in the old server reconnect to the new one, while the old server finishes
+ * its matches and exits.
+ * </p>
+ */
+public class ControlServer implements Runnable {
+    public static final String DRAIN_COMMAND = "DRAIN";
+    public static final String STATUS_COMMAND = "STATUS";
+
+    private final ServerSocket serverSocket;
+    private final DrainableServer server;
+
+    private ControlServer(ServerSocket serverSocket, DrainableServer server) {
+        this.serverSocket = serverSocket;
+        this.server = server;
+    }
+
+    /**
+     * Opens the control socket of a server and serves it on a new daemon thread.
+     *
+     * @param controlPort The control port.
+     * @param server      The server it controls.
+     */
+    public static void start(int controlPort, DrainableServer server) {
+        ServerSocket serverSocket;
+        Thread thread;
+
+        try {
+            serverSocket = new ServerSocket();
+            serverSocket.setReuseAddress(true);
+            serverSocket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), controlPort));
+        }
+        catch (IOException ioe) {
+            System.out.println("FATAL ERROR while trying to create control socket on port " + controlPort + ", the server can not be drained: " + ioe.getMessage());
+            return;
+        }
+
+        System.out.println("Control socket listening on port " + controlPort);
+
+        thread = new Thread(new ControlServer(serverSocket, server), "control");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Asks the server listening on the control port to drain, so its ports can be taken over.
+     *
+     * @param controlPort The control port of the running server.
+     * @return {@code true} if the server has drained (or there was no server running), {@code false} if it could not
+     * be asked to.
+     */
+    public static boolean requestDrain(int controlPort) {
+        String reply;
+
+        try (Socket control = new Socket(InetAddress.getLoopbackAddress(), controlPort)) {
+            PrintWriter writer = new PrintWriter(control.getOutputStream(), true);
+            BufferedReader reader = new BufferedReader(new InputStreamReader(control.getInputStream(), StandardCharsets.US_ASCII));
+
+            writer.println(DRAIN_COMMAND);
+            reply = reader.readLine();
+        }
+        catch (ConnectException ce) {
+            System.out.println("No server to take over on control port " + controlPort);
+            return true;
+        }
+        catch (IOException ioe) {
+            System.out.println("FATAL ERROR while trying to take over the server on control port " + controlPort + ": " + ioe.getMessage());
+            return false;
+        }
+
+        if (reply == null || !reply.startsWith("DRAINING")) {
+            System.out.println("FATAL ERROR the server on control port " + controlPort + " did not drain: " + reply);
+            return false;
+        }
+
+        System.out.println("Took over the server on control port " + controlPort + " (" + reply + ")");
+        return true;
+    }
+
+    /**
+     * Serves one command at a time until the server is drained.
+     */
+    @Override
+    public void run() {
+        while (!serverSocket.isClosed()) {
+            try (Socket control = serverSocket.accept()) {
+                control.setSoTimeout(Timeouts.HANDSHAKE_TIMEOUT_MILLISECONDS);
+                handleCommand(control);
+            }
+            catch (IOException ioe) {
+                if (!serverSocket.isClosed()) System.out.println("FATAL ERROR while trying to serve control connection: " + ioe.getMessage());
+            }
+        }
+    }
+
+    // ---------------------------------------------------------------------------------
+    // Auxiliary methods
+
+    /**
+     * Reads a command and replies to it.
+     *
+     * @param control The control connection.
+     * @throws IOException If the connection fails.
+     */
+    private void handleCommand(Socket control) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(control.getInputStream(), StandardCharsets.US_ASCII));
+        PrintWriter writer = new PrintWriter(control.getOutputStream(), true);
+        String command = reader.readLine();
+
+        if (command == null) return;
+
+        switch (command.trim().toUpperCase()) {
+            case DRAIN_COMMAND:
+                System.out.println("Draining the server, " + server.getNumberOfMatches() + " matches running");
+                server.drain();
+                serverSocket.close();
+                writer.println("DRAINING " + server.getNumberOfMatches());
+                break;
+            case STATUS_COMMAND:
+                writer.println((server.isDraining() ? "DRAINING " : "RUNNING ") + server.getNumberOfMatches());
+                break;
+            default:
+                writer.println("ERROR unknown command: " + command);
+                break;
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package server.lifecycle;
+
+/**
+ * A server that can be drained through its {@link ControlServer}: it stops taking new players but lets its running
+ * matches finish. Its {@link #run()} method returns once it is drained and its last match has finished.
+ */
+public interface DrainableServer extends Runnable {
+    /**
+     * Starts draining the server (it can be called more than once). The listening socket is closed, no more lobbies
+     * nor quick play pairings are created and the clients waiting for a rival are told to reconnect (see
+     * {@link server.Server#SERVER_RESTARTING}). The running matches and their spectators are not affected.
+     * <p>
+     * Returns once the port is free, so another server can bind it right away.
+     * </p>
+     */
+    void drain();
+
+    /**
+     * @return {@code true} if {@link #drain()} has been called.
+     */
+    boolean isDraining();
+
+    /**
+     * @return The number of matches running.
+     */
+    int getNumberOfMatches();
+}
@@ -0,0 +1,59 @@
+package server.playerHandlers;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A thread-safe pool of fixed-size direct buffers.
+ * <p>
+ * Direct buffers live outside the Java heap and can be handed to the OS without an intermediate copy, but they
+ * are expensive to allocate and are only freed when collected. The pool lets relays reuse them across matches:
+ * a buffer is acquired when a relay starts and given back when it finishes, so a server in steady state
+ * allocates nothing. The pool keeps at most {@code maxPooledBuffers} idle buffers, the extra ones are dropped.
+ * </p>
+ */
+public class DirectBufferPool {
+    private final int bufferSize;
+    private final ByteBuffer[] pooledBuffers;
+    private int numberOfPooledBuffers;
+
+    /**
+     * Creates an empty pool.
+     *
+     * @param bufferSize       The capacity of every buffer.
+     * @param maxPooledBuffers The maximum number of idle buffers kept for reuse.
+     */
+    public DirectBufferPool(int bufferSize, int maxPooledBuffers) {
+        this.bufferSize = bufferSize;
+        this.pooledBuffers = new ByteBuffer[maxPooledBuffers];
+        this.numberOfPooledBuffers = 0;
+    }
+
+    /**
+     * Takes an idle buffer from the pool or allocates a new one if there are none.
+     *
+     * @return A cleared direct buffer.
+     */
+    public ByteBuffer acquire() {
+        synchronized (this) {
+            if (numberOfPooledBuffers > 0) {
+                ByteBuffer buffer = pooledBuffers[--numberOfPooledBuffers];
+                pooledBuffers[numberOfPooledBuffers] = null;
+                return buffer;
+            }
+        }
+
+        return ByteBuffer.allocateDirect(bufferSize);
+    }
+
+    /**
+     * Gives a buffer back to the pool. The buffer must not be used after calling this method.
+     *
+     * @param buffer A buffer previously obtained with {@link #acquire()}.
+     */
+    public synchronized void release(ByteBuffer buffer) {
+        if (numberOfPooledBuffers == pooledBuffers.length) return;
+
+        buffer.clear();
+        pooledBuffers[numberOfPooledBuffers++] = buffer;
+    }
+}
@@ -1,11 +1,18 @@
 package server.playerHandlers;
 
 import server.GameMode;
+import server.ServerConfig;
+import server.rateLimiting.AdmissionController;
+import server.recording.MatchRecording;
+import server.spectating.MatchRegistry;
+import server.spectating.MatchStream;
+import server.timeouts.Timeouts;
+import server.timeouts.WheelTimer;
 
 import java.io.IOException;
 import java.net.Socket;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Initializes and manages a game session between two matched players.
@@ -13,45 +20,125 @@ import java.util.concurrent.Executors;
  * This class is responsible for:
  * 1. Generating a shared random seed for deterministic gameplay.
  * 2. Sending the seed to both players.
- * 3. Spawning two {@link PlayerCommunicationHandler} threads to relay inputs bi-directionally.
+ * 3. Running two {@link PlayerCommunicationHandler}s on the server executor to relay inputs bi-directionally
+ *    (each one with a reader and a writer task, joined by a bounded {@link RelayQueue}, or a single task in
+ *    {@link RelayMode#DIRECT} mode).
+ * 4. Closing the game if a player that has not finished stops sending for
+ *    {@value Timeouts#MATCH_IDLE_TIMEOUT_MILLISECONDS} ms (clients send an update at least four times per second while they play).
+ * 5. In {@link RelayMode#DIRECT} mode, which queues nothing, closing the game if a write to a player stays blocked for
+ *    longer than the slow consumer timeout (the queues enforce it in the other modes).
+ * 6. Registering the game in the {@link MatchRegistry} and writing what both players send to its
+ *    {@link MatchStream}, which the spectators of the game read.
  * </p>
  */
 public class GameCommunicationHandler{
     private final Socket player1;
     private final Socket player2;
+    private final GameMode gameMode;
+    private final ServerConfig config;
+    private final ExecutorService executor;
+    private final WheelTimer timer;
+    private final AdmissionController<Socket> admissionController;
+    private final RelayQueue relayQueueToPlayer1;
+    private final RelayQueue relayQueueToPlayer2;
+    private final MatchRegistry<GameCommunicationHandler> matchRegistry;
+    private int matchId;
+    private MatchStream matchStream;
+    private MatchRecording matchRecording;
+    private PlayerCommunicationHandler relayFromPlayer1;
+    private PlayerCommunicationHandler relayFromPlayer2;
     private boolean communicationFromPlayer1ToPlayer2Down;
     private boolean communicationFromPlayer2ToPlayer1Down;
+    private volatile long lastReceivedFromPlayer1;
+    private volatile long lastReceivedFromPlayer2;
 
     /**
      * Creates a new handler for a match between two players.
      *
-     * @param player1 The socket of the first player (e.g., host or first in queue).
-     * @param player2 The socket of the second player (e.g., joiner or second in queue).
+     * @param player1             The socket of the first player (e.g., host or first in queue).
+     * @param player2             The socket of the second player (e.g., joiner or second in queue).
+     * @param gameMode            The game mode the match comes from (a quick play mode or {@link GameMode#HOST_GAME}).
+     * @param config              The server configuration (it selects how the relays forward and queue the bytes).
+     * @param executor            The executor that runs the relays.
+     * @param timer               The timer that checks the activity of the game.
+     * @param admissionController The admission control, which counts the open connections.
+     * @param matchRegistry       The registry of the running matches, where spectators look for them.
      */
-    public GameCommunicationHandler(Socket player1, Socket player2){
+    public GameCommunicationHandler(Socket player1, Socket player2, GameMode gameMode, ServerConfig config, ExecutorService executor, WheelTimer timer,
+                                    AdmissionController<Socket> admissionController, MatchRegistry<GameCommunicationHandler> matchRegistry){
         this.player1 = player1;
         this.player2 = player2;
+        this.gameMode = gameMode;
+        this.config = config;
+        this.executor = executor;
+        this.timer = timer;
+        this.admissionController = admissionController;
+        this.relayQueueToPlayer1 = newRelayQueue(config);
+        this.relayQueueToPlayer2 = newRelayQueue(config);
+        this.matchRegistry = matchRegistry;
         communicationFromPlayer1ToPlayer2Down = false;
         communicationFromPlayer2ToPlayer1Down = false;
+        lastReceivedFromPlayer1 = System.nanoTime();
+        lastReceivedFromPlayer2 = lastReceivedFromPlayer1;
     }
 
     /**
      * Starts the game initialization process.
      */
     public void startCommunicationBetweenPlayers() {
-        // We need 2 threads: Client1 -> Client2 AND Client2 -> Client1
-        ExecutorService pool = Executors.newFixedThreadPool(2);
-
         // Generate a seed based on server time to ensure both players generate the same pieces
         long seed = System.currentTimeMillis();
 
-        // Start the input relays
-        pool.execute(new PlayerCommunicationHandler(this, player1, player2, seed));
-        pool.execute(new PlayerCommunicationHandler(this, player2, player1, seed));
+        // Make the game visible to spectators before anything is relayed
+        matchStream = new MatchStream(gameMode, seed, config.getSpectatorBufferSize(), config.getKeyframeIntervalMilliseconds());
+        matchId = matchRegistry.register(this);
+        matchRecording = matchRegistry.startRecording(matchId, gameMode, seed);
+
+        // Start the input relays: Client1 -> Client2 AND Client2 -> Client1
+        relayFromPlayer1 = new PlayerCommunicationHandler(this, player1, player2, seed, relayQueueToPlayer2, config);
+        relayFromPlayer2 = new PlayerCommunicationHandler(this, player2, player1, seed, relayQueueToPlayer1, config);
+
+        if (config.getRelayMode() == RelayMode.DIRECT) {
+            executor.execute(relayFromPlayer1::relayDirect);
+            executor.execute(relayFromPlayer2::relayDirect);
+            scheduleStallCheck();
+        }
+        else {
+            executor.execute(relayFromPlayer1::writeToReceiver);
+            executor.execute(relayFromPlayer1::readFromSender);
+            executor.execute(relayFromPlayer2::writeToReceiver);
+            executor.execute(relayFromPlayer2::readFromSender);
+        }
+
+        scheduleIdleCheck();
+        System.out.println("Game started. Match ID: " + matchId + ", seed: " + seed);
+    }
 
-        System.out.println("Game started. Seed: " + seed);
+    public MatchStream getMatchStream() { return matchStream; }
 
-        pool.shutdown();
+    /**
+     * Records that bytes have just been received from a player.
+     *
+     * @param sender The socket the bytes were read from.
+     */
+    void recordActivity(Socket sender) {
+        if (sender == player1) lastReceivedFromPlayer1 = System.nanoTime();
+        else lastReceivedFromPlayer2 = System.nanoTime();
+    }
+
+    /**
+     * Writes bytes received from a player to the stream read by the spectators and to the recording of the match.
+     *
+     * @param sender The socket the bytes were read from.
+     * @param bytes  The buffer holding the bytes.
+     * @param offset The index of the first byte.
+     * @param length The number of bytes.
+     */
+    void publish(Socket sender, byte[] bytes, int offset, int length) {
+        int source = (sender == player1) ? MatchStream.PLAYER_1 : MatchStream.PLAYER_2;
+
+        matchStream.append(source, bytes, offset, length);
+        if (matchRecording != null) matchRecording.append(source, bytes, offset, length);
     }
 
     /**
@@ -73,6 +160,10 @@ public class GameCommunicationHandler{
         }
 
         if (communicationFromPlayer1ToPlayer2Down && communicationFromPlayer2ToPlayer1Down) {
+            finishMatch();
+            admissionController.release(player1);
+            admissionController.release(player2);
+
             try {
                 player1.close();
                 player2.close();
@@ -82,9 +173,18 @@ public class GameCommunicationHandler{
         }
     }
 
+    /**
+     * Closes both sockets and discards what the relays have queued (e.g., a player has disconnected or is too slow
+     * consuming), which also stops the relay tasks.
+     */
     public synchronized void processBidirectionalShutdown() {
         communicationFromPlayer1ToPlayer2Down = true;
         communicationFromPlayer2ToPlayer1Down = true;
+        if (relayQueueToPlayer1 != null) relayQueueToPlayer1.abort();
+        if (relayQueueToPlayer2 != null) relayQueueToPlayer2.abort();
+        finishMatch();
+        admissionController.release(player1);
+        admissionController.release(player2);
 
         try {
             player1.close();
@@ -93,4 +193,79 @@ public class GameCommunicationHandler{
         }
         catch (IOException e) { System.out.println("FATAL ERROR while trying to close socket after disconnection of one player."); } // This should never happen, if it does your computer is broken sry
     }
-}
\ No newline at end of file
+
+    // ---------------------------------------------------------------------------------
+    // Auxiliary methods
+
+    /**
+     * Removes the game from the registry and ends its stream, so the spectators finish once they have received it all,
+     * and its recording.
+     */
+    private void finishMatch() {
+        matchRegistry.remove(matchId, this);
+        matchStream.close();
+        if (matchRecording != null) matchRecording.finish();
+    }
+
+    /**
+     * @param config The server configuration.
+     * @return A relay queue with the configured watermarks and slow consumer policy, or {@code null} in
+     *         {@link RelayMode#DIRECT} mode, which does not queue.
+     */
+    private static RelayQueue newRelayQueue(ServerConfig config) {
+        if (config.getRelayMode() == RelayMode.DIRECT) return null;
+
+        return new RelayQueue(config.getRelayHighWatermark(), config.getRelayLowWatermark(), config.getSlowConsumerPolicy(), config.getSlowConsumerTimeoutMilliseconds());
+    }
+
+    /**
+     * Schedules the next activity check of the game.
+     */
+    private void scheduleIdleCheck() {
+        timer.schedule(this::checkIdle, Timeouts.MATCH_IDLE_CHECK_INTERVAL_MILLISECONDS);
+    }
+
+    /**
+     * Closes the game if a direction that has not finished has been idle for too long. Runs on the timer thread.
+     */
+    private synchronized void checkIdle() {
+        long idleTimeoutNanoseconds = TimeUnit.MILLISECONDS.toNanos(Timeouts.MATCH_IDLE_TIMEOUT_MILLISECONDS);
+        long now = System.nanoTime();
+
+        if (communicationFromPlayer1ToPlayer2Down && communicationFromPlayer2ToPlayer1Down) return;
+
+        if ((!communicationFromPlayer1ToPlayer2Down && now - lastReceivedFromPlayer1 > idleTimeoutNanoseconds) ||
+                (!communicationFromPlayer2ToPlayer1Down && now - lastReceivedFromPlayer2 > idleTimeoutNanoseconds)) {
+            System.out.println("Closing idle game");
+            processBidirectionalShutdown();
+            return;
+        }
+
+        scheduleIdleCheck();
+    }
+
+    /**
+     * Schedules the next check of the writes of a {@link RelayMode#DIRECT} game (twice per slow consumer timeout).
+     */
+    private void scheduleStallCheck() {
+        timer.schedule(this::checkStalledWrites, Math.max(1, config.getSlowConsumerTimeoutMilliseconds() / 2));
+    }
+
+    /**
+     * Closes the game if a write to a player has been blocked for longer than the slow consumer timeout (that player
+     * does not consume what its rival sends, which is not read meanwhile). Runs on the timer thread.
+     */
+    private synchronized void checkStalledWrites() {
+        long slowConsumerTimeoutNanoseconds = TimeUnit.MILLISECONDS.toNanos(config.getSlowConsumerTimeoutMilliseconds());
+
+        if (communicationFromPlayer1ToPlayer2Down && communicationFromPlayer2ToPlayer1Down) return;
+
+        if (relayFromPlayer1.isWriteStalled(slowConsumerTimeoutNanoseconds) || relayFromPlayer2.isWriteStalled(slowConsumerTimeoutNanoseconds)) {
+            System.out.println("Closing game with a slow consumer: a write has been blocked for more than " + config.getSlowConsumerTimeoutMilliseconds() + " ms");
+            processBidirectionalShutdown();
+            return;
+        }
+
+        scheduleStallCheck();
+    }
+}
@@ -1,21 +1,75 @@
 package server.playerHandlers;
 
+import server.ServerConfig;
+import server.rateLimiting.TokenBucket;
+
 import java.io.*;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * A unidirectional relay that forwards data from one player to another.
  * <p>
- * This class reads bytes from the 'sender' socket and writes them immediately to the
- * 'receiver' socket. Two instances of this class are needed to establish full-duplex
- * communication for a game.
+ * This class reads bytes from the 'sender' socket and writes them to the 'receiver' socket. Two instances
+ * of this class are needed to establish full-duplex communication for a game.
+ * </p>
+ * <p>
+ * Each relay is run by two tasks: {@link #readFromSender()} puts the bytes read from the sender in a bounded
+ * {@link RelayQueue} and {@link #writeToReceiver()} takes them out and writes them to the receiver. A receiver that
+ * stops consuming (e.g., a stalled TCP window) only blocks the writer: the queue applies its
+ * {@link SlowConsumerPolicy} and stops the reader at the high watermark, so the server never buffers more than a
+ * bounded amount of bytes for it and, with {@link SlowConsumerPolicy#DISCONNECT}, it is closed after a while.
+ * </p>
+ * <p>
+ * In {@link RelayMode#BUFFERED} mode every read takes whatever the sender has already sent (e.g., a whole
+ * 5 byte movement update) and every write forwards whatever is queued, instead of one read, write and flush per byte
+ * ({@link RelayMode#BYTE_BY_BYTE}). With a flush window, the reader keeps gathering the bytes that arrive
+ * during that window before queueing them, trading a few microseconds of latency for fewer writes.
+ * The number of reads and writes performed is logged when the relay finishes, so the modes can be compared.
+ * </p>
+ * <p>
+ * {@link RelayMode#DIRECT} is run by a single task instead, {@link #relayDirect()}: it reads the sender's channel
+ * into a pooled direct buffer and writes that same buffer to the receiver's channel, so the payload is never copied into
+ * the Java heap. Nothing is queued in this mode: while the receiver does not consume, the write blocks and the sender is
+ * not read (its bytes wait in the socket buffers), so the only slow consumer policy is
+ * {@link SlowConsumerPolicy#DISCONNECT}, enforced by the match through {@link #isWriteStalled(long)}.
+ * </p>
+ * <p>
+ * Every byte read is also written to the match's {@link server.spectating.MatchStream}, for its spectators, and to its recording.
+ * </p>
+ * <p>
+ * Every relay limits the bytes per second its sender can send: a flooding client only slows down its own
+ * direction (its socket buffers fill up and its writes block), instead of starving the other relays of the server.
  * </p>
  */
-public class PlayerCommunicationHandler implements Runnable {
+public class PlayerCommunicationHandler {
+    /** Size of the reusable relay buffers (much larger than any burst of messages sent in a frame). */
+    public static final int RELAY_BUFFER_SIZE = 2048;
+
+    /** Maximum number of idle direct buffers kept for the next matches. */
+    public static final int MAX_POOLED_DIRECT_BUFFERS = 1024;
+
+    /** Direct buffers shared by every {@link RelayMode#DIRECT} relay of the server. */
+    private static final DirectBufferPool DIRECT_BUFFER_POOL = new DirectBufferPool(RELAY_BUFFER_SIZE, MAX_POOLED_DIRECT_BUFFERS);
+
+    /** Time slept between two checks for more bytes while a flush window is open. */
+    private static final long FLUSH_WINDOW_POLL_NANOSECONDS = TimeUnit.MICROSECONDS.toNanos(50);
+
     private final GameCommunicationHandler gameCommunicationHandler;
     private final Socket sender;
     private final Socket receiver;
     private final long seed;
+    private final RelayQueue relayQueue;
+    private final RelayMode relayMode;
+    private final long flushWindowNanoseconds;
+    private final TokenBucket byteRateLimit;
+    private volatile long numberOfReads;
+    private long numberOfWrites;
+    private long bytesRelayed;
+    private volatile long writeStartedAt;
 
     /**
      * Creates a relay between two sockets.
@@ -24,42 +78,63 @@ public class PlayerCommunicationHandler implements Runnable {
      * @param sender                   The socket acting as the source of data.
      * @param receiver                 The socket acting as the destination of data.
      * @param seed                     The seed for random generator of tetrominoes for the game.
+     * @param relayQueue               The queue between the reader and the writer of this direction, or {@code null}
+     *                                 in {@link RelayMode#DIRECT} mode.
+     * @param config                   The server configuration: the relay mode, the flush window (in buffered mode) and
+     *                                 the maximum rate of the sender, with bursts of up to a second's worth of bytes.
      */
-    public PlayerCommunicationHandler(GameCommunicationHandler gameCommunicationHandler, Socket sender, Socket receiver, long seed){
+    public PlayerCommunicationHandler(GameCommunicationHandler gameCommunicationHandler, Socket sender, Socket receiver, long seed,
+                                      RelayQueue relayQueue, ServerConfig config){
         this.gameCommunicationHandler = gameCommunicationHandler;
         this.sender = sender;
         this.receiver = receiver;
         this.seed = seed;
+        this.relayQueue = relayQueue;
+        this.relayMode = config.getRelayMode();
+        this.flushWindowNanoseconds = TimeUnit.MICROSECONDS.toNanos(config.getFlushWindowMicroseconds());
+        this.byteRateLimit = config.getRelayBytesPerSecond() > 0 ? new TokenBucket(config.getRelayBytesPerSecond(), config.getRelayBytesPerSecond()) : null;
     }
 
     /**
-     * Continuously relays bytes until a connection is closed.
+     * Sends the connection confirmation and the seed to the receiver and then relays the sender in
+     * {@link RelayMode#DIRECT} mode: every read from the sender's channel goes into a pooled direct buffer and that same
+     * buffer is written to the receiver's channel, until the sender's stream ends (it is then propagated to the
+     * receiver) or a connection fails.
+     * <p>
+     * The match stream needs the bytes on the heap (its ring, the board replicas and the recording are heap arrays),
+     * so each read is copied once, in bulk, into a reusable array for it. The bytes sent to the receiver are not.
+     * </p>
      */
-    @Override
-    public void run() {
-        byte byteRead;
-        DataInputStream dis;
-        DataOutputStream dos;
+    public void relayDirect() {
+        ByteBuffer buffer = DIRECT_BUFFER_POOL.acquire();
+        byte[] publishedBytes = new byte[RELAY_BUFFER_SIZE];
+        SocketChannel senderChannel = sender.getChannel();
+        SocketChannel receiverChannel = receiver.getChannel();
+        int length;
 
         try {
-            dis = new DataInputStream(sender.getInputStream());
-            dos = new DataOutputStream(receiver.getOutputStream());
-
-            // Notify successful connection
-            dos.writeByte(1);
-            dos.flush();
-
-            // Start game by sending the seed
-            dos.writeLong(seed);
-            dos.flush();
+            // Notify successful connection and start game by sending the seed
+            buffer.put((byte) 1).putLong(seed);
+            buffer.flip();
+            writeFully(receiverChannel, buffer);
 
             while (true) {
-                // Wait for the next byte
-                byteRead = dis.readByte();
+                // Wait for the next bytes
+                buffer.clear();
+                length = senderChannel.read(buffer);
+                if (length < 0) throw new EOFException();
+                numberOfReads++;
+                gameCommunicationHandler.recordActivity(sender);
+
+                buffer.flip();
+                buffer.get(publishedBytes, 0, length);
+                gameCommunicationHandler.publish(sender, publishedBytes, 0, length);
 
-                // Forward the byte to the opponent
-                dos.write(byteRead);
-                dos.flush();
+                // Forward the same buffer to the opponent
+                buffer.rewind();
+                writeFully(receiverChannel, buffer);
+                bytesRelayed += length;
+                throttle(length);
             }
         }
         catch (EOFException eofe) {
@@ -73,5 +148,217 @@ public class PlayerCommunicationHandler implements Runnable {
         catch (IOException ioe) {
             gameCommunicationHandler.processBidirectionalShutdown();
         }
+        finally {
+            DIRECT_BUFFER_POOL.release(buffer);
+            System.out.println("Relay finished (" + relayMode + "): " + bytesRelayed + " bytes in " + numberOfReads + " reads and " + numberOfWrites + " writes");
+        }
+    }
+
+    /**
+     * Continuously reads the sender into the relay queue until its stream ends (the queue is then closed, so the
+     * writer propagates the end of stream once it has written everything) or a connection fails.
+     */
+    public void readFromSender() {
+        try {
+            if (relayMode == RelayMode.BUFFERED) readBuffered(sender.getInputStream());
+            else readByteByByte(new DataInputStream(sender.getInputStream()));
+        }
+        catch (EOFException eofe) {
+            try {
+                sender.shutdownInput();
+                relayQueue.close();
+            }
+            catch (IOException e) { System.out.println("FATAL ERROR while trying to shutDown unidirectional communication after one player's game being finished."); } // This should never happen, if it does your computer is broken sry
+        }
+        catch (SlowConsumerException sce) {
+            System.out.println("Closing game with a slow consumer: " + sce.getMessage());
+            gameCommunicationHandler.processBidirectionalShutdown();
+        }
+        catch (IOException ioe) {
+            gameCommunicationHandler.processBidirectionalShutdown();
+        }
+    }
+
+    /**
+     * Sends the connection confirmation and the seed to the receiver and then writes everything the reader queues,
+     * until the queue is closed (the end of stream is then propagated to the receiver) or a connection fails.
+     */
+    public void writeToReceiver() {
+        try {
+            writeStream(new DataOutputStream(receiver.getOutputStream()));
+
+            receiver.shutdownOutput();
+            gameCommunicationHandler.processUnidirectionalShutdown(sender);
+        }
+        catch (IOException ioe) {
+            gameCommunicationHandler.processBidirectionalShutdown();
+        }
+        finally {
+            System.out.println("Relay finished (" + relayMode + "): " + bytesRelayed + " bytes in " + numberOfReads + " reads and " + numberOfWrites + " writes, "
+                    + relayQueue.getNumberOfDroppedMessages() + " superseded updates dropped");
+        }
+    }
+
+    /**
+     * Returns whether a write to the receiver has been blocked for too long (in {@link RelayMode#DIRECT} mode a
+     * receiver that does not consume blocks the write, and the sender is not read meanwhile).
+     *
+     * @param timeoutNanoseconds The time a write may stay blocked.
+     * @return Whether the write in progress started more than the timeout ago.
+     */
+    public boolean isWriteStalled(long timeoutNanoseconds) {
+        long startedAt = writeStartedAt;
+
+        return startedAt != 0 && System.nanoTime() - startedAt > timeoutNanoseconds;
+    }
+
+    // ---------------------------------------------------------------------------------
+    // Auxiliary methods
+
+    /**
+     * Reads every byte on its own.
+     *
+     * @param dis The sender's input.
+     * @throws IOException If a read fails ({@link EOFException} when the sender closes its output).
+     */
+    private void readByteByByte(DataInputStream dis) throws IOException {
+        byte[] byteRead = new byte[1];
+
+        while (true) {
+            // Wait for the next byte
+            byteRead[0] = dis.readByte();
+            numberOfReads++;
+            gameCommunicationHandler.recordActivity(sender);
+
+            gameCommunicationHandler.publish(sender, byteRead, 0, 1);
+            relayQueue.put(byteRead, 0, 1);
+            throttle(1);
+        }
+    }
+
+    /**
+     * Reads the available bytes in bulk: each read fills the reusable buffer with as much as the sender
+     * has sent (plus what arrives during the flush window) and queues it at once.
+     *
+     * @param inputStream The sender's input.
+     * @throws IOException If a read fails ({@link EOFException} when the sender closes its output).
+     */
+    private void readBuffered(InputStream inputStream) throws IOException {
+        byte[] buffer = new byte[RELAY_BUFFER_SIZE];
+        int length;
+
+        while (true) {
+            // Wait for the next bytes
+            length = inputStream.read(buffer);
+            if (length < 0) throw new EOFException();
+            numberOfReads++;
+            gameCommunicationHandler.recordActivity(sender);
+
+            if (flushWindowNanoseconds > 0) length = coalesce(inputStream, buffer, length);
+
+            gameCommunicationHandler.publish(sender, buffer, 0, length);
+            relayQueue.put(buffer, 0, length);
+            throttle(length);
+        }
+    }
+
+    /**
+     * Sends the connection confirmation and the seed, and then writes the queued bytes to the receiver's stream
+     * (one byte and flush at a time in {@link RelayMode#BYTE_BY_BYTE} mode, everything queued at once otherwise).
+     *
+     * @param dos The receiver's output (unbuffered, so every write goes straight to the socket).
+     * @throws IOException If a write fails or the queue is aborted.
+     */
+    private void writeStream(DataOutputStream dos) throws IOException {
+        byte[] buffer = new byte[RELAY_BUFFER_SIZE];
+        int length;
+
+        // Notify successful connection
+        dos.writeByte(1);
+        dos.flush();
+
+        // Start game by sending the seed
+        dos.writeLong(seed);
+        dos.flush();
+
+        while ((length = relayQueue.take(buffer)) >= 0) {
+            if (relayMode == RelayMode.BYTE_BY_BYTE) {
+                for (int i = 0; i < length; i++) {
+                    dos.write(buffer[i]);
+                    dos.flush();
+                    numberOfWrites++;
+                }
+            }
+            else {
+                // Forward everything to the opponent with a single write
+                dos.write(buffer, 0, length);
+                numberOfWrites++;
+            }
+
+            bytesRelayed += length;
+        }
+    }
+
+    /**
+     * Waits until the sender is back under its byte rate limit (the bytes it sends meanwhile wait in the socket
+     * buffers).
+     *
+     * @param length The number of bytes just relayed.
+     */
+    private void throttle(int length) {
+        long delayNanoseconds;
+
+        if (byteRateLimit == null || (delayNanoseconds = byteRateLimit.consume(length)) == 0) return;
+
+        LockSupport.parkNanos(delayNanoseconds);
+    }
+
+    /**
+     * Writes every remaining byte of the buffer to a blocking channel.
+     *
+     * @param channel The destination channel.
+     * @param buffer  The buffer to send (ready to be read).
+     * @throws IOException If the write fails.
+     */
+    private void writeFully(SocketChannel channel, ByteBuffer buffer) throws IOException {
+        // Recorded so that the match can tell a receiver that does not consume (see isWriteStalled)
+        writeStartedAt = System.nanoTime();
+
+        try {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+                numberOfWrites++;
+            }
+        }
+        finally {
+            writeStartedAt = 0;
+        }
+    }
+
+    /**
+     * Keeps reading the bytes that arrive during the flush window into the buffer.
+     *
+     * @param inputStream The sender's input.
+     * @param buffer      The relay buffer.
+     * @param length      The number of bytes already in the buffer.
+     * @return The number of bytes in the buffer when the window closes (or the buffer is full).
+     * @throws IOException If a read fails.
+     */
+    private int coalesce(InputStream inputStream, byte[] buffer, int length) throws IOException {
+        long deadline = System.nanoTime() + flushWindowNanoseconds;
+        int available;
+
+        while (length < buffer.length && System.nanoTime() < deadline) {
+            available = inputStream.available();
+
+            if (available > 0) {
+                // available() bytes can be read without blocking
+                length += inputStream.read(buffer, length, Math.min(available, buffer.length - length));
+                numberOfReads++;
+            }
+            else LockSupport.parkNanos(FLUSH_WINDOW_POLL_NANOSECONDS);
+        }
+
+        return length;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,28 @@
+package server.playerHandlers;
+
+/**
+ * Enumeration of the strategies a {@link PlayerCommunicationHandler} can use to forward bytes.
+ */
+public enum RelayMode {
+    /**
+     * Reads whatever is available into a reusable buffer and forwards it with a single write
+     * (optionally waiting a short window to coalesce more bytes into the same write). This is the default mode.
+     */
+    BUFFERED,
+
+    /**
+     * Relays each direction from a single task through the sockets' {@link java.nio.channels.SocketChannel}s: every
+     * read goes into a pooled direct buffer and that same buffer is written to the receiver, so the relayed payload is
+     * never copied into the Java heap and the relay allocates nothing once started. The match stream (spectators,
+     * keyframes and recording) still gets one bulk copy of each read into a reusable heap array. Nothing is queued: a
+     * receiver that does not consume blocks its sender's relay, so superseded updates can not be dropped and the only
+     * slow consumer policy is {@link SlowConsumerPolicy#DISCONNECT}.
+     * It requires sockets accepted through a {@link java.nio.channels.ServerSocketChannel}.
+     */
+    DIRECT,
+
+    /**
+     * The original relay: every byte is read, written and flushed on its own.
+     */
+    BYTE_BY_BYTE
+}
@@ -0,0 +1,274 @@
+package server.playerHandlers;
+
+import tetris.boards.io.BoardMessageType;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded queue with the bytes relayed in one direction of a match, between the thread that reads the sender and
+ * the thread that writes to the receiver.
+ * <p>
+ * The bytes put in the queue are split into board messages (see {@link BoardMessageType}), so a message is only
+ * handed to the writer once it is complete and the queue knows which ones can be dropped. If the sender sends a byte
+ * that is not a message type, the queue stops splitting and relays the rest of the stream as it comes.
+ * </p>
+ * <p>
+ * When the queued bytes go over the high watermark the queue applies its {@link SlowConsumerPolicy} and, if it is
+ * still over it, blocks the reader until the writer has brought it down to the low watermark. The sender is not read
+ * meanwhile (its bytes wait in the socket buffers), so the queue never holds more than the high watermark plus one
+ * read, however slow the receiver is.
+ * </p>
+ * <p>
+ * The reader and the writer wait on the conditions of a {@link ReentrantLock} instead of the queue's monitor: a
+ * virtual thread waiting on a monitor stays pinned to its carrier thread, and a writer waits for most of its match.
+ * </p>
+ */
+public class RelayQueue {
+    /** Length of the longest message (the type byte and its payload). */
+    private static final int MAX_MESSAGE_LENGTH = 1 + Arrays.stream(BoardMessageType.values()).mapToInt(BoardMessageType::getPayloadLength).max().orElse(0);
+
+    /** Index of the lock status in a falling tetromino update ({@code [TYPE, X, Y, ROTATION, LOCK_STATUS]}). */
+    private static final int LOCK_STATUS_INDEX = 4;
+
+    private static final BoardMessageType[] MESSAGE_TYPES = BoardMessageType.values();
+
+    private final int highWatermark;
+    private final int lowWatermark;
+    private final SlowConsumerPolicy slowConsumerPolicy;
+    private final long slowConsumerTimeoutNanoseconds;
+    private final Deque<byte[]> messages;
+    private final byte[] partialMessage;
+    private int partialMessageLength;
+    private int expectedMessageLength;
+    private boolean splittingMessages;
+    private int queuedBytes;
+    private long numberOfDroppedMessages;
+    private boolean closed;
+    private boolean aborted;
+    private final ReentrantLock lock;
+    private final Condition messagesQueued;
+    private final Condition messagesTaken;
+
+    /**
+     * Creates an empty queue.
+     *
+     * @param highWatermark                   Queued bytes over which the reader is blocked.
+     * @param lowWatermark                    Queued bytes under which a blocked reader is resumed.
+     * @param slowConsumerPolicy              What to do when the high watermark is crossed.
+     * @param slowConsumerTimeoutMilliseconds Time a reader can stay blocked with {@link SlowConsumerPolicy#DISCONNECT}.
+     */
+    public RelayQueue(int highWatermark, int lowWatermark, SlowConsumerPolicy slowConsumerPolicy, long slowConsumerTimeoutMilliseconds) {
+        this.highWatermark = highWatermark;
+        this.lowWatermark = lowWatermark;
+        this.slowConsumerPolicy = slowConsumerPolicy;
+        this.slowConsumerTimeoutNanoseconds = TimeUnit.MILLISECONDS.toNanos(slowConsumerTimeoutMilliseconds);
+        this.messages = new ArrayDeque<>();
+        this.partialMessage = new byte[MAX_MESSAGE_LENGTH];
+        this.splittingMessages = true;
+        this.lock = new ReentrantLock();
+        this.messagesQueued = lock.newCondition();
+        this.messagesTaken = lock.newCondition();
+    }
+
+    public long getNumberOfDroppedMessages() {
+        lock.lock();
+        try { return numberOfDroppedMessages; }
+        finally { lock.unlock(); }
+    }
+
+    /**
+     * Queues the bytes read from the sender, blocking while the receiver is over the watermarks.
+     *
+     * @param bytes  The buffer holding the bytes.
+     * @param offset The index of the first byte.
+     * @param length The number of bytes.
+     * @throws SlowConsumerException If the receiver does not catch up within the slow consumer timeout.
+     * @throws IOException           If the queue has been aborted.
+     */
+    public void put(byte[] bytes, int offset, int length) throws IOException {
+        lock.lock();
+        try {
+            if (aborted) throw new IOException("The relay has been aborted");
+
+            if (splittingMessages) splitMessages(bytes, offset, length);
+            else enqueue(Arrays.copyOfRange(bytes, offset, offset + length));
+
+            messagesQueued.signal();
+            if (queuedBytes > highWatermark) waitForReceiver();
+        }
+        finally { lock.unlock(); }
+    }
+
+    /**
+     * Takes as many whole messages as fit in the destination, blocking until there is at least one.
+     *
+     * @param destination The buffer to fill (at least as large as the largest put).
+     * @return The number of bytes taken, or -1 if the queue is closed and every message has been taken.
+     * @throws IOException If the queue has been aborted.
+     */
+    public int take(byte[] destination) throws IOException {
+        int length = 0;
+
+        lock.lock();
+        try {
+            while (messages.isEmpty() && !closed && !aborted) messagesQueued.await();
+
+            if (aborted) throw new IOException("The relay has been aborted");
+            if (messages.isEmpty()) return -1;
+
+            while (!messages.isEmpty() && length + messages.peekFirst().length <= destination.length) {
+                byte[] message = messages.pollFirst();
+                System.arraycopy(message, 0, destination, length, message.length);
+                length += message.length;
+            }
+
+            queuedBytes -= length;
+            messagesTaken.signal();
+            return length;
+        }
+        catch (InterruptedException ie) {
+            throw new InterruptedIOException("Interrupted while waiting for the sender");
+        }
+        finally { lock.unlock(); }
+    }
+
+    /**
+     * Marks the end of the sender's stream: the writer takes what is left and then gets -1. An incomplete message
+     * is relayed as it is.
+     */
+    public void close() {
+        lock.lock();
+        try {
+            if (partialMessageLength > 0) {
+                enqueue(Arrays.copyOf(partialMessage, partialMessageLength));
+                partialMessageLength = 0;
+            }
+
+            closed = true;
+            messagesQueued.signal();
+        }
+        finally { lock.unlock(); }
+    }
+
+    /**
+     * Discards the queue (the match is being closed), waking up the reader and the writer with an {@link IOException}.
+     */
+    public void abort() {
+        lock.lock();
+        try {
+            aborted = true;
+            messages.clear();
+            queuedBytes = 0;
+            messagesQueued.signal();
+            messagesTaken.signal();
+        }
+        finally { lock.unlock(); }
+    }
+
+    // ---------------------------------------------------------------------------------
+    // Auxiliary methods
+
+    /**
+     * Appends the bytes to the message being assembled, queueing every message that is completed.
+     *
+     * @param bytes  The buffer holding the bytes.
+     * @param offset The index of the first byte.
+     * @param length The number of bytes.
+     */
+    private void splitMessages(byte[] bytes, int offset, int length) {
+        int end = offset + length;
+
+        for (int i = offset; i < end; i++) {
+            if (partialMessageLength == 0) {
+                int type = bytes[i];
+
+                // Not a message the queue understands, relay the rest of the stream without splitting it
+                if (type < 0 || type >= MESSAGE_TYPES.length) {
+                    splittingMessages = false;
+                    enqueue(Arrays.copyOfRange(bytes, i, end));
+                    return;
+                }
+
+                expectedMessageLength = 1 + MESSAGE_TYPES[type].getPayloadLength();
+            }
+
+            partialMessage[partialMessageLength++] = bytes[i];
+
+            if (partialMessageLength == expectedMessageLength) {
+                enqueue(Arrays.copyOf(partialMessage, partialMessageLength));
+                partialMessageLength = 0;
+            }
+        }
+    }
+
+    private void enqueue(byte[] message) {
+        messages.addLast(message);
+        queuedBytes += message.length;
+    }
+
+    /**
+     * Applies the slow consumer policy and blocks until the writer has brought the queue down to the low watermark.
+     * Must be called holding the lock.
+     *
+     * @throws SlowConsumerException If the receiver does not catch up within the slow consumer timeout.
+     * @throws IOException           If the queue is aborted meanwhile.
+     */
+    private void waitForReceiver() throws IOException {
+        long deadline = System.nanoTime() + slowConsumerTimeoutNanoseconds;
+        long remainingNanoseconds;
+
+        if (slowConsumerPolicy == SlowConsumerPolicy.DROP_SUPERSEDED) {
+            dropSupersededUpdates();
+            if (queuedBytes <= highWatermark) return;
+        }
+
+        try {
+            while (queuedBytes > lowWatermark && !aborted) {
+                if (slowConsumerPolicy == SlowConsumerPolicy.DISCONNECT) {
+                    remainingNanoseconds = deadline - System.nanoTime();
+                    if (remainingNanoseconds <= 0) throw new SlowConsumerException("The receiver has been over the high watermark for too long");
+                    messagesTaken.awaitNanos(remainingNanoseconds);
+                }
+                else messagesTaken.await();
+            }
+        }
+        catch (InterruptedException ie) {
+            throw new InterruptedIOException("Interrupted while waiting for the receiver");
+        }
+
+        if (aborted) throw new IOException("The relay has been aborted");
+    }
+
+    /**
+     * Removes every queued falling tetromino update followed by a later one, unless it locks the piece.
+     */
+    private void dropSupersededUpdates() {
+        Iterator<byte[]> iterator = messages.descendingIterator();
+        boolean superseded = false;
+
+        // The queued bytes can not be told apart once the stream is no longer split
+        if (!splittingMessages) return;
+
+        while (iterator.hasNext()) {
+            byte[] message = iterator.next();
+
+            if (message[0] != BoardMessageType.UPDATE_FALLING_TETROMINO.ordinal()) continue;
+
+            if (superseded && message[LOCK_STATUS_INDEX] == 0) {
+                iterator.remove();
+                queuedBytes -= message.length;
+                numberOfDroppedMessages++;
+            }
+
+            superseded = true;
+        }
+    }
+}
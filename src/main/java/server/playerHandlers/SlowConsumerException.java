@@ -0,0 +1,15 @@
+package server.playerHandlers;
+
+import java.io.IOException;
+
+/**
+ * Thrown by a {@link RelayQueue} when its receiver has been over the high watermark for longer than the slow
+ * consumer timeout (see {@link SlowConsumerPolicy#DISCONNECT}).
+ */
+public class SlowConsumerException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    public SlowConsumerException(String message) {
+        super(message);
+    }
+}
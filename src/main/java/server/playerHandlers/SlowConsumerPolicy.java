@@ -0,0 +1,25 @@
+package server.playerHandlers;
+
+/**
+ * Enumeration of what a relay does with a receiver that does not consume the bytes sent to it as fast as its rival
+ * sends them (e.g., a client with a stalled TCP window).
+ * <p>
+ * In both cases the sender stops being read once the bytes pending for the receiver go over the high watermark, and
+ * it is read again when they are back under the low watermark, so the server never buffers more than a bounded
+ * amount of bytes per direction.
+ * </p>
+ */
+public enum SlowConsumerPolicy {
+    /**
+     * Before stopping the sender, drops the queued falling tetromino updates that a later one supersedes (every
+     * update carries the absolute position of the piece, so the receiver only needs the latest one). Locking updates
+     * and the other messages are never dropped. This is the default policy of the relays that queue the bytes (the
+     * blocking server, except with {@link RelayMode#DIRECT}; the event loop server does not drop anything).
+     */
+    DROP_SUPERSEDED,
+
+    /**
+     * Closes the match if the receiver does not get back under the low watermark within the slow consumer timeout.
+     */
+    DISCONNECT
+}
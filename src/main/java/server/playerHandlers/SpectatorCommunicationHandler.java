@@ -0,0 +1,90 @@
+package server.playerHandlers;
+
+import server.rateLimiting.AdmissionController;
+import server.spectating.MatchStream;
+import server.spectating.SpectatorCursor;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+
+/**
+ * Sends the stream of a match to one spectator of the thread-per-connection server.
+ * <p>
+ * The spectator reads the {@link MatchStream} of the match with its own {@link SpectatorCursor}: it waits for new
+ * records, copies them from the ring buffer and writes them to its socket, so a slow spectator only delays itself
+ * (it is resynced or disconnected if it falls too far behind). When the match finishes and every record has been
+ * sent, the connection is closed.
+ * </p>
+ */
+public class SpectatorCommunicationHandler implements Runnable {
+    /** Size of the buffer records are copied into before being written (at least one whole record). */
+    public static final int SPECTATOR_BUFFER_SIZE = 4096;
+
+    /** Maximum time waited for new records before checking the stream again. */
+    private static final long AWAIT_DATA_MILLISECONDS = 1000;
+
+    private final Socket spectator;
+    private final SpectatorCursor cursor;
+    private final AdmissionController<Socket> admissionController;
+
+    /**
+     * Creates the handler of a spectator that has already received the match header.
+     *
+     * @param spectator           The spectator's socket.
+     * @param cursor              The spectator's cursor in the match stream.
+     * @param admissionController The admission control, which counts the open connections.
+     */
+    public SpectatorCommunicationHandler(Socket spectator, SpectatorCursor cursor, AdmissionController<Socket> admissionController) {
+        this.spectator = spectator;
+        this.cursor = cursor;
+        this.admissionController = admissionController;
+    }
+
+    /**
+     * Sends the match stream until the match finishes or the spectator is gone.
+     */
+    @Override
+    public void run() {
+        MatchStream matchStream = cursor.getMatchStream();
+        ByteBuffer buffer = ByteBuffer.allocate(SPECTATOR_BUFFER_SIZE);
+        int length;
+
+        try {
+            OutputStream outputStream = spectator.getOutputStream();
+
+            while (!cursor.isFinished()) {
+                buffer.clear();
+                length = cursor.copyTo(buffer);
+
+                if (length == SpectatorCursor.DISCONNECT) {
+                    System.out.println("Disconnecting lagging spectator");
+                    break;
+                }
+
+                if (length == 0) matchStream.awaitData(cursor.getPosition(), AWAIT_DATA_MILLISECONDS);
+                else outputStream.write(buffer.array(), 0, length);
+            }
+        }
+        catch (IOException ioe) {
+            // The spectator has left
+        }
+        finally {
+            closeSocket();
+        }
+    }
+
+    // ---------------------------------------------------------------------------------
+    // Auxiliary methods
+
+    /**
+     * Closes the spectator socket safely.
+     */
+    private void closeSocket() {
+        admissionController.release(spectator);
+
+        try { spectator.close(); }
+        catch (IOException e) { System.out.println("FATAL ERROR while trying to close socket after spectating a game."); } // This should never happen, if it does your computer is broken sry
+    }
+}
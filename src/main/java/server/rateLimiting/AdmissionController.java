@@ -0,0 +1,128 @@
+package server.rateLimiting;
+
+import server.Server;
+import server.ServerConfig;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decides, right after accepting a connection, whether the server takes it.
+ * <p>
+ * Each client address has a {@link TokenBucket} limiting how often it can connect, so a client opening sockets in a
+ * loop is rejected without affecting anyone else, and the number of concurrent connections is capped, so a burst of
+ * connects can not exhaust the server's threads and file descriptors. A rejected client gets the
+ * {@link Server#SERVER_BUSY} reply and its connection is closed immediately, before any thread or buffer is spent on
+ * it.
+ * </p>
+ * <p>
+ * <b>Threading:</b> {@link #admit(Object, InetAddress)} must only be called from the accept thread, while
+ * {@link #release(Object)} can be called from any thread.
+ * </p>
+ *
+ * @param <T> The type used to represent an admitted connection (a socket or a channel).
+ */
+public class AdmissionController<T> {
+    /** Maximum number of addresses whose connection rate is tracked at the same time. */
+    private static final int MAX_TRACKED_ADDRESSES = 65536;
+
+    private final int maxConnections;
+    private final int connectionsPerSecond;
+    private final int connectionBurst;
+    private final Map<InetAddress, TokenBucket> connectionBuckets;
+    private final Set<T> admittedConnections;
+    private final AtomicInteger numberOfConnections;
+
+    /**
+     * Creates the controller with no connection admitted.
+     *
+     * @param config The server configuration (with the limits).
+     */
+    public AdmissionController(ServerConfig config) {
+        this.maxConnections = config.getMaxConnections();
+        this.connectionsPerSecond = config.getConnectionsPerSecondPerAddress();
+        this.connectionBurst = config.getConnectionBurstPerAddress();
+        this.connectionBuckets = new HashMap<>();
+        this.admittedConnections = ConcurrentHashMap.newKeySet();
+        this.numberOfConnections = new AtomicInteger(0);
+    }
+
+    /**
+     * Checks the limits for a new connection and, if it is admitted, counts it until it is released.
+     *
+     * @param connection The accepted connection.
+     * @param address    The address of the client.
+     * @return Whether the connection is admitted, or why it is not.
+     */
+    public AdmissionDecision admit(T connection, InetAddress address) {
+        if (!getConnectionBucket(address).tryConsume(1)) return AdmissionDecision.RATE_LIMITED;
+
+        if (numberOfConnections.incrementAndGet() > maxConnections) {
+            numberOfConnections.decrementAndGet();
+            return AdmissionDecision.TOO_MANY_CONNECTIONS;
+        }
+
+        admittedConnections.add(connection);
+        return AdmissionDecision.ACCEPTED;
+    }
+
+    /**
+     * Stops counting a connection that has been closed. Releasing a connection more than once has no effect.
+     *
+     * @param connection The closed connection.
+     */
+    public void release(T connection) {
+        if (admittedConnections.remove(connection)) numberOfConnections.decrementAndGet();
+    }
+
+    public int getNumberOfConnections() { return numberOfConnections.get(); }
+
+    /**
+     * Sends the {@link Server#SERVER_BUSY} reply to a rejected client and closes its connection. The reply is a
+     * single byte, which always fits in the socket's send buffer, so it never blocks the accept thread.
+     *
+     * @param client   The socket of the rejected client (in blocking mode).
+     * @param decision The reason of the rejection.
+     */
+    public static void reject(Socket client, AdmissionDecision decision) {
+        System.out.println("Rejected client " + client.getInetAddress() + ": " + decision);
+
+        try {
+            client.getOutputStream().write(Server.SERVER_BUSY);
+            client.close();
+        }
+        catch (IOException ioe) {
+            try { client.close(); }
+            catch (IOException e) { System.out.println("FATAL ERROR while trying to close socket of rejected client."); } // This should never happen, if it does your computer is broken sry
+        }
+    }
+
+    // ---------------------------------------------------------------------------------
+    // Auxiliary methods
+
+    /**
+     * @param address A client address.
+     * @return The connection rate bucket of the address (created full if the address is new).
+     */
+    private TokenBucket getConnectionBucket(InetAddress address) {
+        TokenBucket bucket = connectionBuckets.get(address);
+
+        if (bucket != null) return bucket;
+
+        if (connectionBuckets.size() >= MAX_TRACKED_ADDRESSES) {
+            // The addresses whose bucket is full have not connected for a while, forgetting them changes nothing
+            connectionBuckets.values().removeIf(TokenBucket::isFull);
+            if (connectionBuckets.size() >= MAX_TRACKED_ADDRESSES) connectionBuckets.clear();
+        }
+
+        bucket = new TokenBucket(connectionsPerSecond, connectionBurst);
+        connectionBuckets.put(address, bucket);
+        return bucket;
+    }
+}
@@ -0,0 +1,15 @@
+package server.rateLimiting;
+
+/**
+ * Enumeration of the outcomes of the admission check performed on every accepted connection.
+ */
+public enum AdmissionDecision {
+    /** The connection is admitted. */
+    ACCEPTED,
+
+    /** The address of the client has opened too many connections recently. */
+    RATE_LIMITED,
+
+    /** The server already has the maximum number of concurrent connections. */
+    TOO_MANY_CONNECTIONS
+}
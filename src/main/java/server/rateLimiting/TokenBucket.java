@@ -0,0 +1,83 @@
+package server.rateLimiting;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A token bucket: tokens are added at a fixed rate up to a maximum (the burst a client may use at once) and every
+ * action consumes some of them.
+ * <p>
+ * It is used both to limit how often an address can connect (one token per connection, see
+ * {@link #tryConsume(double)}) and how fast a player can send bytes through a relay (one token per byte, see
+ * {@link #consume(double)}, which lets the bucket go into debt and tells how long the sender must wait).
+ * </p>
+ * <p>
+ * <b>Threading:</b> the bucket is not thread-safe, it must be used by a single thread at a time.
+ * </p>
+ */
+public class TokenBucket {
+    private final double tokensPerNanosecond;
+    private final double capacity;
+    private double tokens;
+    private long lastRefill;
+
+    /**
+     * Creates a full bucket.
+     *
+     * @param tokensPerSecond The refill rate.
+     * @param capacity        The maximum number of tokens.
+     */
+    public TokenBucket(double tokensPerSecond, double capacity) {
+        this.tokensPerNanosecond = tokensPerSecond / TimeUnit.SECONDS.toNanos(1);
+        this.capacity = capacity;
+        this.tokens = capacity;
+        this.lastRefill = System.nanoTime();
+    }
+
+    /**
+     * Consumes tokens only if there are enough of them.
+     *
+     * @param amount The number of tokens needed.
+     * @return {@code true} if the tokens were consumed, {@code false} if the action must be rejected.
+     */
+    public boolean tryConsume(double amount) {
+        refill();
+        if (tokens < amount) return false;
+
+        tokens -= amount;
+        return true;
+    }
+
+    /**
+     * Consumes tokens even if there are not enough of them, leaving the bucket in debt.
+     *
+     * @param amount The number of tokens used.
+     * @return The nanoseconds to wait until the bucket is out of debt (0 if it is not in debt).
+     */
+    public long consume(double amount) {
+        refill();
+        tokens -= amount;
+
+        return tokens >= 0 ? 0 : (long) Math.ceil(-tokens / tokensPerNanosecond);
+    }
+
+    /**
+     * @return {@code true} if the bucket has been refilled completely (its owner has been idle for a while).
+     */
+    public boolean isFull() {
+        refill();
+        return tokens >= capacity;
+    }
+
+    // ---------------------------------------------------------------------------------
+    // Auxiliary methods
+
+    /**
+     * Adds the tokens earned since the last refill.
+     */
+    private void refill() {
+        long now = System.nanoTime();
+
+        tokens = Math.min(capacity, tokens + (now - lastRefill) * tokensPerNanosecond);
+        lastRefill = now;
+    }
+}
@@ -0,0 +1,235 @@
+package server.recording;
+
+import server.GameMode;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * An append-only log where every relayed match is recorded, for dispute resolution and replays.
+ * <p>
+ * The log is a directory with numbered segment files of a fixed size, which are memory-mapped: recording a relayed
+ * chunk is a copy into the mapped segment, with no system call, and the OS writes the pages back to the file on its
+ * own. A new segment is only created (and mapped) when the current one is full. Every segment starts with
+ * {@code [INT MAGIC] [LONG RUN_ID]}, the run being the server execution that wrote it, followed by records:
+ * </p>
+ * <ul>
+ * <li><b>DATA:</b> {@code [1] [INT MATCH_ID] [SOURCE] [SHORT LENGTH] [PAYLOAD]}, bytes sent by a player (source 0 or 1).</li>
+ * <li><b>MATCH_END:</b> {@code [2] [INT MATCH_ID]}, nothing else is recorded for the match.</li>
+ * </ul>
+ * <p>
+ * The rest of a segment is zero-filled, so a 0 type marks the end of its records. The records of all the matches
+ * running at the same time are interleaved, and each match has an entry in an index file (see {@link RecordedMatch})
+ * with its Match ID, seed and the position of its first record, so it can be read back without scanning the log from
+ * the start (see {@link MatchLogReader}). The index is written with one system call per match, when it starts.
+ * </p>
+ * <p>
+ * While a server takes over the port of a draining one (see {@link server.lifecycle.ControlServer}), both write to
+ * the same directory: each one only writes to the segments it creates, and their index entries are whole appends.
+ * </p>
+ * <p>
+ * <b>Threading:</b> the log is shared by every match of the server, appends are short copies under its lock.
+ * </p>
+ */
+public class MatchLog {
+    public static final String SEGMENT_FILE_PREFIX = "segment-";
+    public static final String SEGMENT_FILE_SUFFIX = ".log";
+    public static final String INDEX_FILE_NAME = "index.log";
+
+    public static final int SEGMENT_MAGIC = 0x54524543;
+    public static final int SEGMENT_HEADER_LENGTH = 12;
+
+    public static final int END_OF_SEGMENT = 0;
+    public static final int DATA = 1;
+    public static final int MATCH_END = 2;
+
+    public static final int DATA_HEADER_LENGTH = 8;
+    public static final int MATCH_END_LENGTH = 5;
+    public static final int MAX_DATA_PAYLOAD_LENGTH = 65535;
+
+    private final Path directory;
+    private final int segmentSize;
+    private final long runId;
+    private final FileChannel indexChannel;
+    private final ByteBuffer indexEntry;
+    private MappedByteBuffer segment;
+    private int segmentNumber;
+    private boolean failed;
+
+    /**
+     * Opens the log in a directory, creating it if needed. The records of this run are written to new segments after
+     * the existing ones.
+     *
+     * @param directory   The directory of the log.
+     * @param segmentSize The size of each segment file in bytes.
+     * @return The log.
+     * @throws IOException If the directory, the index or the first segment can not be created.
+     */
+    public static MatchLog open(Path directory, int segmentSize) throws IOException {
+        Files.createDirectories(directory);
+        return new MatchLog(directory, segmentSize, findLastSegmentNumber(directory) + 1);
+    }
+
+    private MatchLog(Path directory, int segmentSize, int firstSegmentNumber) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.runId = System.currentTimeMillis();
+        this.indexChannel = FileChannel.open(directory.resolve(INDEX_FILE_NAME), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        this.indexEntry = ByteBuffer.allocate(RecordedMatch.INDEX_ENTRY_LENGTH);
+        this.failed = false;
+
+        mapSegment(firstSegmentNumber);
+    }
+
+    /**
+     * Gets the name of a segment file.
+     *
+     * @param segmentNumber The number of the segment.
+     * @return The file name.
+     */
+    public static String getSegmentFileName(int segmentNumber) { return String.format("%s%08d%s", SEGMENT_FILE_PREFIX, segmentNumber, SEGMENT_FILE_SUFFIX); }
+
+    /**
+     * Starts recording a match: writes its entry to the index, pointing at the current end of the log.
+     *
+     * @param matchId  The Match ID.
+     * @param gameMode The game mode the match was created from.
+     * @param seed     The seed of the match.
+     * @return The recording of the match, where its relayed bytes are appended.
+     */
+    public synchronized MatchRecording startRecording(int matchId, GameMode gameMode, long seed) {
+        if (!failed) {
+            indexEntry.clear();
+            new RecordedMatch(matchId, seed, gameMode, runId, segmentNumber, segment.position()).writeTo(indexEntry);
+            indexEntry.flip();
+
+            try {
+                while (indexEntry.hasRemaining()) indexChannel.write(indexEntry);
+            }
+            catch (IOException ioe) {
+                fail("FATAL ERROR while trying to write to the recording index: " + ioe.getMessage());
+            }
+        }
+
+        return new MatchRecording(this, matchId);
+    }
+
+    /**
+     * Records bytes sent by a player, split into as many records as needed.
+     *
+     * @param matchId The Match ID.
+     * @param source  The player that sent the bytes (0 for the first player, 1 for the second one).
+     * @param bytes   The buffer holding the bytes.
+     * @param offset  The index of the first byte.
+     * @param length  The number of bytes.
+     */
+    synchronized void append(int matchId, int source, byte[] bytes, int offset, int length) {
+        int payloadLength;
+
+        while (length > 0 && !failed) {
+            payloadLength = Math.min(length, MAX_DATA_PAYLOAD_LENGTH);
+            if (!ensureRoom(DATA_HEADER_LENGTH + payloadLength)) return;
+
+            segment.put((byte) DATA).putInt(matchId).put((byte) source).putShort((short) payloadLength);
+            segment.put(bytes, offset, payloadLength);
+
+            offset += payloadLength;
+            length -= payloadLength;
+        }
+    }
+
+    /**
+     * Records the end of a match.
+     *
+     * @param matchId The Match ID.
+     */
+    synchronized void finish(int matchId) {
+        if (failed || !ensureRoom(MATCH_END_LENGTH)) return;
+
+        segment.put((byte) MATCH_END).putInt(matchId);
+    }
+
+    // ---------------------------------------------------------------------------------
+    // Auxiliary methods
+
+    /**
+     * Makes sure the current segment has room for a record, moving to a new segment if it does not.
+     *
+     * @param recordLength The length of the record.
+     * @return {@code false} if the recording has failed.
+     */
+    private boolean ensureRoom(int recordLength) {
+        if (segment.remaining() >= recordLength) return true;
+
+        try { mapSegment(segmentNumber + 1); }
+        catch (IOException ioe) { fail("FATAL ERROR while trying to create recording segment " + (segmentNumber + 1) + ": " + ioe.getMessage()); }
+
+        return !failed;
+    }
+
+    /**
+     * Creates a segment file, maps it and writes its header. The mapping stays valid after the file is closed. If the
+     * number is taken (by another server writing to the same directory), the next free one is used.
+     *
+     * @param segmentNumber The number of the new segment.
+     * @throws IOException If the file can not be created or mapped.
+     */
+    private void mapSegment(int segmentNumber) throws IOException {
+        FileChannel channel = null;
+
+        while (channel == null) {
+            try { channel = FileChannel.open(directory.resolve(getSegmentFileName(segmentNumber)), StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE); }
+            catch (FileAlreadyExistsException faee) { segmentNumber++; }
+        }
+
+        // Mapping past the end of the file extends it to the size of the segment
+        try (FileChannel segmentChannel = channel) {
+            segment = segmentChannel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        }
+
+        this.segmentNumber = segmentNumber;
+        segment.putInt(SEGMENT_MAGIC).putLong(runId);
+    }
+
+    /**
+     * Stops the recording after an I/O error, so the relays are never affected by it.
+     *
+     * @param message The error message.
+     */
+    private void fail(String message) {
+        System.out.println(message + ", matches will not be recorded anymore");
+        failed = true;
+    }
+
+    /**
+     * @param directory The directory of the log.
+     * @return The number of the last segment in the directory, or -1 if there are none.
+     * @throws IOException If the directory can not be listed.
+     */
+    private static int findLastSegmentNumber(Path directory) throws IOException {
+        int lastSegmentNumber = -1;
+        String fileName;
+
+        try (DirectoryStream<Path> segments = Files.newDirectoryStream(directory, SEGMENT_FILE_PREFIX + "*" + SEGMENT_FILE_SUFFIX)) {
+            for (Path segment : segments) {
+                fileName = segment.getFileName().toString();
+
+                try {
+                    lastSegmentNumber = Math.max(lastSegmentNumber, Integer.parseInt(fileName.substring(SEGMENT_FILE_PREFIX.length(), fileName.length() - SEGMENT_FILE_SUFFIX.length())));
+                }
+                catch (NumberFormatException nfe) {
+                    // Not a segment of the log
+                }
+            }
+        }
+
+        return lastSegmentNumber;
+    }
+}
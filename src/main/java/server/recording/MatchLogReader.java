@@ -0,0 +1,227 @@
+package server.recording;
+
+import server.spectating.MatchStream;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads matches back from a {@link MatchLog}, for dispute resolution and replays.
+ * <p>
+ * A match is found in the index by its Match ID and seed, and its records are streamed from the position the index
+ * points at: the segments of its run are mapped one at a time and the records of other matches are skipped, until
+ * the end of the match. The match is written in the format spectators receive after the reply of the server (see
+ * {@link MatchStream}), so a replay can be played by the same code that plays a spectated match.
+ * </p>
+ * <p>
+ * It can also be run from the command line:
+ * {@code java server.recording.MatchLogReader <directory> [<matchId> <seed> <outputFile>]} lists the recorded matches
+ * or writes one of them to a file.
+ * </p>
+ */
+public class MatchLogReader {
+    private final Path directory;
+
+    /**
+     * Creates a reader of the log in a directory.
+     *
+     * @param directory The directory of the log.
+     */
+    public MatchLogReader(Path directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Lists or extracts recorded matches.
+     *
+     * @param args {@code <directory> [<matchId> <seed> <outputFile>]}.
+     */
+    public static void main(String[] args) {
+        MatchLogReader reader;
+        RecordedMatch recordedMatch;
+
+        if (args.length != 1 && args.length != 4) {
+            System.out.println("Usage: MatchLogReader <directory> [<matchId> <seed> <outputFile>]");
+            return;
+        }
+
+        reader = new MatchLogReader(Paths.get(args[0]));
+
+        try {
+            if (args.length == 1) {
+                for (RecordedMatch match : reader.readIndex()) System.out.println(match);
+                return;
+            }
+
+            recordedMatch = reader.find(Integer.parseInt(args[1]), Long.parseLong(args[2]));
+            if (recordedMatch == null) {
+                System.out.println("Match not found");
+                return;
+            }
+
+            try (OutputStream outputStream = new BufferedOutputStream(Files.newOutputStream(Paths.get(args[3])))) {
+                System.out.println("Match finished: " + reader.replay(recordedMatch, outputStream));
+            }
+        }
+        catch (NumberFormatException nfe) {
+            System.out.println("FATAL ERROR invalid Match ID or seed");
+        }
+        catch (IOException ioe) {
+            System.out.println("FATAL ERROR while trying to read the match log: " + ioe.getMessage());
+        }
+    }
+
+    /**
+     * Reads every entry of the index.
+     *
+     * @return The recorded matches, in the order they started.
+     * @throws IOException If the index can not be read.
+     */
+    public List<RecordedMatch> readIndex() throws IOException {
+        ByteBuffer index = ByteBuffer.wrap(Files.readAllBytes(directory.resolve(MatchLog.INDEX_FILE_NAME)));
+        List<RecordedMatch> recordedMatches = new ArrayList<>();
+
+        // An incomplete last entry (the server stopped while writing it) is ignored
+        while (index.remaining() >= RecordedMatch.INDEX_ENTRY_LENGTH) {
+            recordedMatches.add(RecordedMatch.readFrom(index));
+        }
+
+        return recordedMatches;
+    }
+
+    /**
+     * Finds a recorded match.
+     *
+     * @param matchId The Match ID.
+     * @param seed    The seed of the match (the Match IDs start again on every run).
+     * @return The latest match with that Match ID and seed, or {@code null} if there is none.
+     * @throws IOException If the index can not be read.
+     */
+    public RecordedMatch find(int matchId, long seed) throws IOException {
+        RecordedMatch found = null;
+
+        for (RecordedMatch recordedMatch : readIndex()) {
+            if (recordedMatch.getMatchId() == matchId && recordedMatch.getSeed() == seed) found = recordedMatch;
+        }
+
+        return found;
+    }
+
+    /**
+     * Streams a recorded match: {@code [INT GAME_MODE] [LONG SEED]} followed by {@code [SOURCE] [LENGTH] [PAYLOAD]}
+     * records with up to {@value MatchStream#MAX_RECORD_PAYLOAD_LENGTH} bytes of payload.
+     *
+     * @param recordedMatch The match.
+     * @param outputStream  The stream to write to.
+     * @return {@code true} if the match ended, {@code false} if the log ends before it (e.g., the server stopped).
+     * @throws IOException If the log can not be read or the output can not be written.
+     */
+    public boolean replay(RecordedMatch recordedMatch, OutputStream outputStream) throws IOException {
+        DataOutputStream dataOutputStream = new DataOutputStream(outputStream);
+        int segmentNumber = recordedMatch.getSegmentNumber();
+        MappedByteBuffer segment = mapSegment(segmentNumber, recordedMatch.getRunId());
+        int type, matchId, source, length;
+
+        dataOutputStream.writeInt(recordedMatch.getGameMode().ordinal());
+        dataOutputStream.writeLong(recordedMatch.getSeed());
+
+        if (segment == null) return false;
+        segment.position(recordedMatch.getOffset());
+
+        try {
+            while (true) {
+                type = segment.hasRemaining() ? segment.get() : MatchLog.END_OF_SEGMENT;
+
+                if (type == MatchLog.END_OF_SEGMENT) {
+                    // The match goes on in the next segment of its run (a server taking over writes its own segments
+                    // in between), unless the run stopped here
+                    do {
+                        if (!Files.exists(directory.resolve(MatchLog.getSegmentFileName(++segmentNumber)))) return false;
+                        segment = mapSegment(segmentNumber, recordedMatch.getRunId());
+                    } while (segment == null);
+                    continue;
+                }
+
+                if (type != MatchLog.DATA && type != MatchLog.MATCH_END) throw new IOException("Corrupted segment " + segmentNumber);
+
+                matchId = segment.getInt();
+
+                if (type == MatchLog.MATCH_END) {
+                    if (matchId == recordedMatch.getMatchId()) return true;
+                    continue;
+                }
+
+                source = segment.get();
+                length = segment.getShort() & 0xFFFF;
+
+                if (matchId == recordedMatch.getMatchId()) writeRecords(dataOutputStream, segment, source, length);
+                else segment.position(segment.position() + length);
+            }
+        }
+        finally {
+            dataOutputStream.flush();
+        }
+    }
+
+    // ---------------------------------------------------------------------------------
+    // Auxiliary methods
+
+    /**
+     * Maps a segment for reading, skipping its header.
+     *
+     * @param segmentNumber The number of the segment.
+     * @param runId         The run whose records are being read.
+     * @return The segment, or {@code null} if it does not exist or belongs to another run.
+     * @throws IOException If the segment can not be read.
+     */
+    private MappedByteBuffer mapSegment(int segmentNumber, long runId) throws IOException {
+        Path path = directory.resolve(MatchLog.getSegmentFileName(segmentNumber));
+        MappedByteBuffer segment;
+
+        if (!Files.exists(path)) return null;
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            segment = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        if (segment.remaining() < MatchLog.SEGMENT_HEADER_LENGTH || segment.getInt() != MatchLog.SEGMENT_MAGIC || segment.getLong() != runId) return null;
+
+        return segment;
+    }
+
+    /**
+     * Copies the payload of a data record as spectator records.
+     *
+     * @param dataOutputStream The stream to write to.
+     * @param segment          The segment, positioned at the payload.
+     * @param source           The player that sent the bytes.
+     * @param length           The length of the payload.
+     * @throws IOException If the output can not be written.
+     */
+    private static void writeRecords(DataOutputStream dataOutputStream, ByteBuffer segment, int source, int length) throws IOException {
+        byte[] payload = new byte[MatchStream.MAX_RECORD_PAYLOAD_LENGTH];
+        int payloadLength;
+
+        while (length > 0) {
+            payloadLength = Math.min(length, MatchStream.MAX_RECORD_PAYLOAD_LENGTH);
+            segment.get(payload, 0, payloadLength);
+
+            dataOutputStream.writeByte(source);
+            dataOutputStream.writeByte(payloadLength);
+            dataOutputStream.write(payload, 0, payloadLength);
+
+            length -= payloadLength;
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package server.recording;
+
+/**
+ * The recording of one match in the {@link MatchLog}, where the relay of the match appends what both players send.
+ */
+public class MatchRecording {
+    private final MatchLog matchLog;
+    private final int matchId;
+    private boolean finished;
+
+    /**
+     * Creates the recording of a match (see {@link MatchLog#startRecording(int, server.GameMode, long)}).
+     *
+     * @param matchLog The log.
+     * @param matchId  The Match ID.
+     */
+    MatchRecording(MatchLog matchLog, int matchId) {
+        this.matchLog = matchLog;
+        this.matchId = matchId;
+        this.finished = false;
+    }
+
+    /**
+     * Records bytes sent by a player.
+     *
+     * @param source The player that sent the bytes (0 for the first player, 1 for the second one).
+     * @param bytes  The buffer holding the bytes.
+     * @param offset The index of the first byte.
+     * @param length The number of bytes.
+     */
+    public void append(int source, byte[] bytes, int offset, int length) { matchLog.append(matchId, source, bytes, offset, length); }
+
+    /**
+     * Records the end of the match (it can be called more than once).
+     */
+    public synchronized void finish() {
+        if (finished) return;
+
+        finished = true;
+        matchLog.finish(matchId);
+    }
+}
@@ -0,0 +1,80 @@
+package server.recording;
+
+import server.GameMode;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The entry of a recorded match in the index of the {@link MatchLog}.
+ * <p>
+ * Format: {@code [INT MATCH_ID] [LONG SEED] [GAME_MODE] [LONG RUN_ID] [INT SEGMENT] [INT OFFSET]}, where the segment
+ * and offset are the position of the log when the match started (its first record is at or after it).
+ * </p>
+ */
+public class RecordedMatch {
+    public static final int INDEX_ENTRY_LENGTH = 29;
+
+    private final int matchId;
+    private final long seed;
+    private final GameMode gameMode;
+    private final long runId;
+    private final int segmentNumber;
+    private final int offset;
+
+    /**
+     * Creates an index entry.
+     *
+     * @param matchId       The Match ID (only unique within a run).
+     * @param seed          The seed of the match.
+     * @param gameMode      The game mode the match was created from.
+     * @param runId         The run (server execution) that recorded the match.
+     * @param segmentNumber The segment where the records of the match start.
+     * @param offset        The offset in that segment.
+     */
+    public RecordedMatch(int matchId, long seed, GameMode gameMode, long runId, int segmentNumber, int offset) {
+        this.matchId = matchId;
+        this.seed = seed;
+        this.gameMode = gameMode;
+        this.runId = runId;
+        this.segmentNumber = segmentNumber;
+        this.offset = offset;
+    }
+
+    public int getMatchId() { return matchId; }
+    public long getSeed() { return seed; }
+    public GameMode getGameMode() { return gameMode; }
+    public long getRunId() { return runId; }
+    public int getSegmentNumber() { return segmentNumber; }
+    public int getOffset() { return offset; }
+
+    /**
+     * Writes the entry.
+     *
+     * @param buffer The buffer to write to (at least {@value #INDEX_ENTRY_LENGTH} bytes remaining).
+     */
+    public void writeTo(ByteBuffer buffer) {
+        buffer.putInt(matchId).putLong(seed).put((byte) gameMode.ordinal()).putLong(runId).putInt(segmentNumber).putInt(offset);
+    }
+
+    /**
+     * Reads an entry written by {@link #writeTo(ByteBuffer)}.
+     *
+     * @param buffer The buffer to read from (at least {@value #INDEX_ENTRY_LENGTH} bytes remaining).
+     * @return The entry.
+     */
+    public static RecordedMatch readFrom(ByteBuffer buffer) {
+        int matchId = buffer.getInt();
+        long seed = buffer.getLong();
+        GameMode gameMode = GameMode.values()[buffer.get()];
+        long runId = buffer.getLong();
+        int segmentNumber = buffer.getInt();
+        int offset = buffer.getInt();
+
+        return new RecordedMatch(matchId, seed, gameMode, runId, segmentNumber, offset);
+    }
+
+    @Override
+    public String toString() {
+        return "Match ID: " + matchId + ", seed: " + seed + ", mode: " + gameMode + ", run: " + runId + ", segment: " + segmentNumber + ", offset: " + offset;
+    }
+}
@@ -0,0 +1,158 @@
+package server.rooms;
+
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * The state of a room needed to route garbage rows: which players are still alive, who attacked whom last and how many
+ * players each one has knocked out.
+ * <p>
+ * Every choice scans the players once and picks between the candidates with reservoir sampling, so it takes linear
+ * time and allocates nothing. It only happens when a player clears lines, not on every update.
+ * </p>
+ * <p>
+ * A knock out is credited to the last player that sent garbage rows to the player knocked out.
+ * </p>
+ * <p>
+ * <b>Threading:</b> not thread-safe, it belongs to the loop running the room.
+ * </p>
+ */
+public class GarbageTargeting {
+    /** Value returned when there is no player to choose. */
+    public static final int NO_PLAYER = -1;
+
+    private final GarbageTargetingPolicy policy;
+    private final boolean[] alive;
+    private final int[] knockOuts;
+    private final int[] lastTargets;
+    private final int[] lastAttackers;
+    private int numberOfPlayersAlive;
+
+    /**
+     * Creates the targeting of a room whose players are all alive.
+     *
+     * @param policy          How the targets are chosen.
+     * @param numberOfPlayers The number of players of the room.
+     */
+    public GarbageTargeting(GarbageTargetingPolicy policy, int numberOfPlayers) {
+        this.policy = policy;
+        alive = new boolean[numberOfPlayers];
+        knockOuts = new int[numberOfPlayers];
+        lastTargets = new int[numberOfPlayers];
+        lastAttackers = new int[numberOfPlayers];
+        numberOfPlayersAlive = numberOfPlayers;
+
+        Arrays.fill(alive, true);
+        Arrays.fill(lastTargets, NO_PLAYER);
+        Arrays.fill(lastAttackers, NO_PLAYER);
+    }
+
+    public boolean isAlive(int player) { return alive[player]; }
+    public int getNumberOfPlayersAlive() { return numberOfPlayersAlive; }
+    public int getKnockOuts(int player) { return knockOuts[player]; }
+
+    /**
+     * Chooses the player that receives the garbage rows sent by the given one, and remembers the attack.
+     *
+     * @param sender The player sending garbage rows.
+     * @return The player chosen, or {@link #NO_PLAYER} if nobody else is alive.
+     */
+    public int chooseTarget(int sender) {
+        int target = NO_PLAYER;
+
+        switch (policy) {
+            case ATTACKERS:
+                target = chooseAttacker(sender);
+                break;
+            case KOS:
+                target = chooseLeader(sender);
+                break;
+            default:
+                break;
+        }
+
+        if (target == NO_PLAYER) target = chooseAnyone(sender);
+
+        if (target != NO_PLAYER) {
+            lastTargets[sender] = target;
+            lastAttackers[target] = sender;
+        }
+
+        return target;
+    }
+
+    /**
+     * Knocks a player out.
+     *
+     * @param player The player that has topped out (or left).
+     * @return The player credited with the knock out, or {@link #NO_PLAYER} if nobody attacked it (or it was not alive).
+     */
+    public int knockOut(int player) {
+        int attacker = lastAttackers[player];
+
+        if (!alive[player]) return NO_PLAYER;
+
+        alive[player] = false;
+        numberOfPlayersAlive--;
+
+        if (attacker != NO_PLAYER) knockOuts[attacker]++;
+        return attacker;
+    }
+
+    // ---------------------------------------------------------------------------------
+    // Auxiliary methods
+
+    /**
+     * @param sender The player sending garbage rows.
+     * @return A random alive player whose last garbage rows went to the sender, or {@link #NO_PLAYER}.
+     */
+    private int chooseAttacker(int sender) {
+        int target = NO_PLAYER;
+        int numberOfCandidates = 0;
+
+        for (int player = 0; player < alive.length; player++) {
+            if (isCandidate(player, sender) && lastTargets[player] == sender && ThreadLocalRandom.current().nextInt(++numberOfCandidates) == 0) target = player;
+        }
+
+        return target;
+    }
+
+    /**
+     * @param sender The player sending garbage rows.
+     * @return A random alive player between the ones with the most knock outs, or {@link #NO_PLAYER} if nobody has any.
+     */
+    private int chooseLeader(int sender) {
+        int target = NO_PLAYER;
+        int mostKnockOuts = 0;
+        int numberOfCandidates = 0;
+
+        for (int player = 0; player < alive.length; player++) {
+            if (!isCandidate(player, sender) || knockOuts[player] == 0 || knockOuts[player] < mostKnockOuts) continue;
+
+            if (knockOuts[player] > mostKnockOuts) {
+                mostKnockOuts = knockOuts[player];
+                numberOfCandidates = 0;
+            }
+            if (ThreadLocalRandom.current().nextInt(++numberOfCandidates) == 0) target = player;
+        }
+
+        return target;
+    }
+
+    /**
+     * @param sender The player sending garbage rows.
+     * @return A random alive player, or {@link #NO_PLAYER} if nobody else is alive.
+     */
+    private int chooseAnyone(int sender) {
+        int target = NO_PLAYER;
+        int numberOfCandidates = 0;
+
+        for (int player = 0; player < alive.length; player++) {
+            if (isCandidate(player, sender) && ThreadLocalRandom.current().nextInt(++numberOfCandidates) == 0) target = player;
+        }
+
+        return target;
+    }
+
+    private boolean isCandidate(int player, int sender) { return player != sender && alive[player]; }
+}
@@ -0,0 +1,24 @@
+package server.rooms;
+
+/**
+ * Enumeration of how the server chooses the player that receives the garbage rows sent by a player of a room (see
+ * {@link GarbageTargeting}). In every policy the player chosen is alive and is not the sender, and when the policy
+ * has no candidate a random player is chosen instead.
+ */
+public enum GarbageTargetingPolicy {
+    /**
+     * A random player. This is the default policy.
+     */
+    RANDOM,
+
+    /**
+     * One of the players whose last garbage rows were sent to the sender, so a player strikes back at whoever is
+     * attacking it.
+     */
+    ATTACKERS,
+
+    /**
+     * One of the players that have knocked out the most players, so the leaders are attacked.
+     */
+    KOS
+}
@@ -0,0 +1,141 @@
+package server.spectating;
+
+import server.GameMode;
+import tetris.boards.ReceiverBoard;
+import tetris.boards.io.BoardMessageType;
+import tetris.boards.modernTetris.ReceiverModernTetrisBoard;
+import tetris.boards.nes.ReceiverNESBoard;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * The board of one player of a match, rebuilt on the server from the bytes the player sends so keyframes of it can be
+ * taken at any time (see {@link ReceiverBoard#writeKeyframe(DataOutputStream)}).
+ * <p>
+ * The replica is driven exactly like the rival's {@link ReceiverBoard} is driven by
+ * {@link tetris.boards.io.ReceiverBoardInputHandler}, so it always matches what the rival sees. If the player sends
+ * a byte that is not a message type, or a message the board can not apply, the replica stops, since its state can no
+ * longer be trusted, and no more keyframes are taken from it (a broken client must not break the relay).
+ * </p>
+ * <p>
+ * <b>Threading:</b> not thread-safe, the owning {@link MatchStream} only uses it under its lock.
+ * </p>
+ */
+class BoardReplica {
+    /** Length of the longest message (the type byte and its payload). */
+    private static final int MAX_MESSAGE_LENGTH = 1 + Arrays.stream(BoardMessageType.values()).mapToInt(BoardMessageType::getPayloadLength).max().orElse(0);
+
+    private static final BoardMessageType[] MESSAGE_TYPES = BoardMessageType.values();
+
+    private final ReceiverBoard board;
+    private final ReceiverModernTetrisBoard modernTetrisBoard;
+    private final byte[] message;
+    private int messageLength;
+    private int expectedMessageLength;
+    private boolean stopped;
+
+    /**
+     * Creates the replica of a board at the start of a match.
+     *
+     * @param gameMode The game mode the match was created from (private matches are Modern Tetris).
+     * @param seed     The seed of the match.
+     */
+    BoardReplica(GameMode gameMode, long seed) {
+        if (gameMode == GameMode.NES_QUICK_PLAY) {
+            board = new ReceiverNESBoard(0, 0, seed);
+            modernTetrisBoard = null;
+        }
+        else {
+            modernTetrisBoard = new ReceiverModernTetrisBoard(0, 0, seed);
+            board = modernTetrisBoard;
+        }
+
+        message = new byte[MAX_MESSAGE_LENGTH];
+        messageLength = 0;
+        stopped = false;
+    }
+
+    /**
+     * @return {@code true} if every byte applied so far belongs to a complete message, so a keyframe can be taken.
+     */
+    boolean isAtMessageBoundary() { return !stopped && messageLength == 0; }
+
+    /**
+     * Applies bytes sent by the player, which may end in the middle of a message.
+     *
+     * @param bytes  The buffer holding the bytes.
+     * @param offset The index of the first byte.
+     * @param length The number of bytes.
+     */
+    void apply(byte[] bytes, int offset, int length) {
+        int end = offset + length;
+
+        for (int i = offset; i < end && !stopped; i++) {
+            if (messageLength == 0) {
+                int type = bytes[i];
+
+                if (type < 0 || type >= MESSAGE_TYPES.length) {
+                    stopped = true;
+                    return;
+                }
+
+                expectedMessageLength = 1 + MESSAGE_TYPES[type].getPayloadLength();
+            }
+
+            message[messageLength++] = bytes[i];
+
+            if (messageLength == expectedMessageLength) {
+                messageLength = 0;
+
+                try { applyMessage(); }
+                catch (RuntimeException re) { stopped = true; }
+            }
+        }
+    }
+
+    /**
+     * Takes a keyframe of the board.
+     *
+     * @return The keyframe.
+     */
+    byte[] createKeyframe() {
+        ByteArrayOutputStream keyframe = new ByteArrayOutputStream();
+
+        try { board.writeKeyframe(new DataOutputStream(keyframe)); }
+        catch (IOException ioe) { System.out.println("FATAL ERROR while writing a keyframe in memory."); } // This should never happen, if it does your computer is broken sry
+
+        return keyframe.toByteArray();
+    }
+
+    // ---------------------------------------------------------------------------------
+    // Auxiliary methods
+
+    /**
+     * Applies the complete message in the buffer, as {@link tetris.boards.io.ReceiverModernTetrisBoardInputHandler}
+     * does with the messages of the rival (the garbage sent to the rival is not part of this board).
+     */
+    private void applyMessage() {
+        switch (MESSAGE_TYPES[message[0]]) {
+            case UPDATE_FALLING_TETROMINO:
+                board.setFallingTetrominoXYRotationIndex(message[1], message[2], message[3]);
+                if (message[4] == 1) board.lockFallingTetromino();
+                board.update();
+                break;
+
+            case UPDATE_TETROMINO_HOLDER:
+                if (modernTetrisBoard != null) modernTetrisBoard.hold();
+                break;
+
+            case UPDATE_GARBAGE_ROWS:
+                if (modernTetrisBoard != null) modernTetrisBoard.addGarbage(message[1], message[2]);
+                break;
+
+            case SEND_GARBAGE_ROWS:
+            case START_DATAGRAM_UPDATES:
+                break;
+        }
+    }
+}
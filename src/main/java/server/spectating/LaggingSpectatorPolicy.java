@@ -0,0 +1,19 @@
+package server.spectating;
+
+/**
+ * Enumeration of what happens to a spectator that falls so far behind that the part of the match stream it has not
+ * received yet has been overwritten in the {@link MatchStream} ring buffer.
+ */
+public enum LaggingSpectatorPolicy {
+    /**
+     * The spectator skips to the latest keyframes of the stream (or to its newest byte if there are none) and receives a
+     * {@link MatchStream#RESYNC} record, so it knows that it has missed part of the match and must rebuild the boards
+     * from the keyframes. This is the default policy.
+     */
+    RESYNC,
+
+    /**
+     * The spectator is disconnected.
+     */
+    DISCONNECT
+}
@@ -0,0 +1,101 @@
+package server.spectating;
+
+import server.GameMode;
+import server.recording.MatchLog;
+import server.recording.MatchRecording;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Registry of the running matches that can be spectated.
+ * <p>
+ * Every match gets a unique Match ID when it starts, which spectators use to attach to it, and leaves the registry
+ * when it finishes. If the server records matches, the registry also starts their recordings in the
+ * {@link MatchLog}. It is thread-safe: matches are started, finished and looked up from many threads (relays,
+ * matchmaking handlers or event loops) at the same time.
+ * </p>
+ * <p>
+ * In a cluster (see {@link server.cluster.Cluster}) node {@code i} of {@code n} only hands out the Match IDs
+ * {@code m * n + i}, so the node running a match can be told from its Match ID.
+ * </p>
+ *
+ * @param <T> The type used to represent a match (a blocking or an event loop match).
+ */
+public class MatchRegistry<T> {
+    private final Map<Integer, T> matches;
+    private final AtomicInteger nextMatchId;
+    private final MatchLog matchLog;
+    private final int nodeIndex;
+    private final int numberOfNodes;
+
+    /**
+     * Creates an empty registry.
+     *
+     * @param matchLog The log where the matches are recorded, or {@code null} if they are not recorded.
+     */
+    public MatchRegistry(MatchLog matchLog) {
+        this(matchLog, 0, 1);
+    }
+
+    /**
+     * Creates an empty registry for a node of a cluster.
+     *
+     * @param matchLog      The log where the matches are recorded, or {@code null} if they are not recorded.
+     * @param nodeIndex     The index of the node.
+     * @param numberOfNodes The number of nodes of the cluster.
+     */
+    public MatchRegistry(MatchLog matchLog, int nodeIndex, int numberOfNodes) {
+        this.nodeIndex = nodeIndex;
+        this.numberOfNodes = numberOfNodes;
+        matches = new ConcurrentHashMap<>();
+        nextMatchId = new AtomicInteger(0);
+        this.matchLog = matchLog;
+    }
+
+    /**
+     * Adds a match that has just started.
+     *
+     * @param match The match.
+     * @return Its Match ID (never negative).
+     */
+    public int register(T match) {
+        // Wraps around before the Match ID overflows, so it always belongs to this node
+        int matchId = (nextMatchId.getAndIncrement() & Integer.MAX_VALUE) % (Integer.MAX_VALUE / numberOfNodes) * numberOfNodes + nodeIndex;
+
+        matches.put(matchId, match);
+        return matchId;
+    }
+
+    /**
+     * Starts recording a registered match, if matches are recorded.
+     *
+     * @param matchId  The Match ID.
+     * @param gameMode The game mode the match was created from.
+     * @param seed     The seed of the match.
+     * @return The recording of the match, or {@code null} if matches are not recorded.
+     */
+    public MatchRecording startRecording(int matchId, GameMode gameMode, long seed) {
+        return matchLog == null ? null : matchLog.startRecording(matchId, gameMode, seed);
+    }
+
+    /**
+     * @param matchId A Match ID sent by a client.
+     * @return The running match with the given ID, or {@code null} if there is none.
+     */
+    public T find(int matchId) { return matches.get(matchId); }
+
+    /**
+     * @return The number of running matches.
+     */
+    public int getNumberOfMatches() { return matches.size(); }
+
+    /**
+     * Removes a finished match (it can be called more than once).
+     *
+     * @param matchId The Match ID.
+     * @param match   The match.
+     */
+    public void remove(int matchId, T match) { matches.remove(matchId, match); }
+}
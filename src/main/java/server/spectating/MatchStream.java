@@ -0,0 +1,306 @@
+package server.spectating;
+
+import server.GameMode;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The stream of a match as seen by its spectators: every byte both players send, written once into a ring buffer
+ * shared by every spectator of the match.
+ * <p>
+ * The bytes are stored as records of {@value #RECORD_HEADER_LENGTH} header bytes {@code [SOURCE, LENGTH]} followed by
+ * up to {@value #MAX_RECORD_PAYLOAD_LENGTH} bytes of payload, where the source is {@link #PLAYER_1} or
+ * {@link #PLAYER_2}. The records are sent to the spectators exactly as they are stored, so fanning a record out to a
+ * spectator is a single copy from the ring into its output, however many spectators there are.
+ * </p>
+ * <p>
+ * Each spectator reads the ring with its own {@link SpectatorCursor}, an absolute position in the stream. The ring
+ * only keeps the newest {@code capacity} bytes, so a spectator that falls further behind has lost part of the
+ * stream and is handled by its {@link LaggingSpectatorPolicy}. The ring is only allocated when the first spectator
+ * attaches (most matches are never watched).
+ * </p>
+ * <p>
+ * <b>Keyframes:</b> the stream also keeps a {@link BoardReplica} of each player's board and, while the match is
+ * watched, writes a keyframe of each board every keyframe interval ({@link #PLAYER_1_KEYFRAME} and
+ * {@link #PLAYER_2_KEYFRAME} records). A spectator that joins, or that is resynced, starts at the oldest of the
+ * latest keyframes of both players: it rebuilds each board from its keyframe and skips the records of that player
+ * until then, so joining costs at most one interval of records however long the match has been running.
+ * </p>
+ * <p>
+ * <b>Threading:</b> the stream is written by the relays of both players and read by the spectators from any thread.
+ * Appends and reads are short copies under the stream's lock, and a match nobody watches is never locked unless it
+ * keeps keyframes.
+ * </p>
+ */
+public class MatchStream {
+    /** Source of the records with the bytes sent by the first player (e.g., host or first in queue). */
+    public static final int PLAYER_1 = 0;
+
+    /** Source of the records with the bytes sent by the second player (e.g., joiner or second in queue). */
+    public static final int PLAYER_2 = 1;
+
+    /** Source of the empty record sent to a spectator that has skipped part of the stream (it waits for keyframes). */
+    public static final int RESYNC = 2;
+
+    /** Source of the records with a keyframe of the first player's board. */
+    public static final int PLAYER_1_KEYFRAME = 3;
+
+    /** Source of the records with a keyframe of the second player's board. */
+    public static final int PLAYER_2_KEYFRAME = 4;
+
+    public static final int RECORD_HEADER_LENGTH = 2;
+    public static final int MAX_RECORD_PAYLOAD_LENGTH = 255;
+
+    /** Returned by {@link #read(long, ByteBuffer)} when the requested position has been overwritten. */
+    static final int LAGGED = -1;
+
+    private final GameMode gameMode;
+    private final long seed;
+    private final int capacity;
+    private final BoardReplica[] boardReplicas;
+    private final long keyframeIntervalNanoseconds;
+    private final long[] keyframePositions;
+    private final long[] keyframeTimes;
+    private volatile byte[] ring;
+    private volatile long head;
+    private volatile boolean closed;
+
+    /**
+     * Creates the stream of a match that has just started.
+     *
+     * @param gameMode                     The game mode the match was created from (a quick play mode or {@link GameMode#HOST_GAME}).
+     * @param seed                         The seed of the match.
+     * @param capacity                     The size of the ring buffer in bytes.
+     * @param keyframeIntervalMilliseconds Time between keyframes of each board, or 0 to keep no keyframes.
+     */
+    public MatchStream(GameMode gameMode, long seed, int capacity, long keyframeIntervalMilliseconds) {
+        long now = System.nanoTime();
+
+        this.gameMode = gameMode;
+        this.seed = seed;
+        this.capacity = capacity;
+        this.keyframeIntervalNanoseconds = TimeUnit.MILLISECONDS.toNanos(keyframeIntervalMilliseconds);
+        this.boardReplicas = (keyframeIntervalMilliseconds > 0) ? new BoardReplica[] { new BoardReplica(gameMode, seed), new BoardReplica(gameMode, seed) } : null;
+        this.keyframePositions = new long[] { -1, -1 };
+        this.keyframeTimes = new long[] { now - keyframeIntervalNanoseconds, now - keyframeIntervalNanoseconds };
+        this.head = 0;
+        this.closed = false;
+    }
+
+    public GameMode getGameMode() { return gameMode; }
+    public long getSeed() { return seed; }
+    public boolean isClosed() { return closed; }
+
+    /**
+     * @return The position right after the last byte written (the total number of bytes written to the stream).
+     */
+    public long getHead() { return head; }
+
+    /**
+     * Applies bytes sent by a player to its board replica and, while the match is watched, writes them to the stream
+     * split into as many records as needed, followed by a keyframe of the board if one is due.
+     *
+     * @param source The player that sent the bytes ({@link #PLAYER_1} or {@link #PLAYER_2}).
+     * @param bytes  The buffer holding the bytes.
+     * @param offset The index of the first byte.
+     * @param length The number of bytes.
+     */
+    public void append(int source, byte[] bytes, int offset, int length) {
+        int payloadLength;
+
+        if (ring == null && boardReplicas == null) return;
+
+        synchronized (this) {
+            if (boardReplicas != null) boardReplicas[source].apply(bytes, offset, length);
+            if (ring == null) return;
+
+            while (length > 0) {
+                payloadLength = Math.min(length, MAX_RECORD_PAYLOAD_LENGTH);
+                writeRecord(source, bytes, offset, payloadLength);
+                offset += payloadLength;
+                length -= payloadLength;
+            }
+
+            if (isKeyframeDue(source)) writeKeyframe(source);
+
+            notifyAll();
+        }
+    }
+
+    /**
+     * Appends a whole message that a player has not sent in its stream (a falling tetromino update sent as a datagram),
+     * as long as the bytes of the player appended so far end in a complete message. That is only known from the board
+     * replicas, so without them nothing is appended.
+     *
+     * @param source  The player that sent the message ({@link #PLAYER_1} or {@link #PLAYER_2}).
+     * @param message The message, with its type.
+     * @return {@code true} if the message has been appended.
+     */
+    public synchronized boolean appendMessage(int source, byte[] message) {
+        if (boardReplicas == null || !boardReplicas[source].isAtMessageBoundary()) return false;
+
+        append(source, message, 0, message.length);
+        return true;
+    }
+
+    /**
+     * Attaches a new spectator, which will receive the stream from the latest keyframes (see
+     * {@link #getJoinPosition()}).
+     *
+     * @param policy What to do if the spectator falls too far behind.
+     * @return The spectator's cursor.
+     */
+    public synchronized SpectatorCursor attach(LaggingSpectatorPolicy policy) {
+        if (ring == null) ring = new byte[capacity];
+
+        return new SpectatorCursor(this, getJoinPosition(), policy);
+    }
+
+    /**
+     * Gets the position a spectator that joins or resyncs now starts at: the oldest of the latest keyframes of both
+     * players still in the ring, or the head if there are none. A player with no keyframe in the ring gets one now
+     * if its replica is between messages, or else after its next complete message.
+     *
+     * @return The position of the first record to send.
+     */
+    synchronized long getJoinPosition() {
+        long joinPosition = head;
+
+        if (boardReplicas == null) return head;
+
+        for (int player = PLAYER_1; player <= PLAYER_2; player++) {
+            if (!isInRing(keyframePositions[player]) && boardReplicas[player].isAtMessageBoundary()) writeKeyframe(player);
+            if (isInRing(keyframePositions[player])) joinPosition = Math.min(joinPosition, keyframePositions[player]);
+        }
+
+        notifyAll();
+        return joinPosition;
+    }
+
+    /**
+     * Marks the end of the match: nothing else will be written, and spectators finish once they reach the head.
+     */
+    public synchronized void close() {
+        closed = true;
+        notifyAll();
+    }
+
+    /**
+     * Blocks until there are bytes after the given position, the stream is closed or the timeout expires.
+     *
+     * @param position            The position the caller has read up to.
+     * @param timeoutMilliseconds The maximum time to wait.
+     */
+    public synchronized void awaitData(long position, long timeoutMilliseconds) {
+        if (head != position || closed) return;
+
+        try { wait(timeoutMilliseconds); }
+        catch (InterruptedException ie) { Thread.currentThread().interrupt(); }
+    }
+
+    /**
+     * Copies as many whole records as fit in the destination, starting at the given position (which must be the
+     * start of a record).
+     *
+     * @param position    The position of the first record to copy.
+     * @param destination The buffer to fill.
+     * @return The number of bytes copied, or {@link #LAGGED} if the position has already been overwritten.
+     */
+    synchronized int read(long position, ByteBuffer destination) {
+        int copied = 0;
+        int recordLength;
+
+        if (head - position > capacity) return LAGGED;
+
+        while (position + copied < head) {
+            recordLength = RECORD_HEADER_LENGTH + (ring[index(position + copied + 1)] & 0xFF);
+            if (recordLength > destination.remaining()) break;
+
+            copy(position + copied, destination, recordLength);
+            copied += recordLength;
+        }
+
+        return copied;
+    }
+
+    // ---------------------------------------------------------------------------------
+    // Auxiliary methods
+
+    private int index(long position) { return (int) (position % capacity); }
+
+    private boolean isInRing(long position) { return position >= 0 && head - position <= capacity; }
+
+    /**
+     * Writes a record at the head.
+     *
+     * @param source        The source of the record.
+     * @param bytes         The buffer holding the payload.
+     * @param offset        The index of the first byte of the payload.
+     * @param payloadLength The length of the payload (at most {@value #MAX_RECORD_PAYLOAD_LENGTH} bytes).
+     */
+    private void writeRecord(int source, byte[] bytes, int offset, int payloadLength) {
+        put(head, (byte) source);
+        put(head + 1, (byte) payloadLength);
+        copyIn(head + RECORD_HEADER_LENGTH, bytes, offset, payloadLength);
+
+        head += RECORD_HEADER_LENGTH + payloadLength;
+    }
+
+    /**
+     * @param player The player ({@link #PLAYER_1} or {@link #PLAYER_2}).
+     * @return {@code true} if the keyframe interval of the player's board has passed and its replica is between messages.
+     */
+    private boolean isKeyframeDue(int player) {
+        return boardReplicas != null && boardReplicas[player].isAtMessageBoundary() && System.nanoTime() - keyframeTimes[player] >= keyframeIntervalNanoseconds;
+    }
+
+    /**
+     * Writes a keyframe of a player's board at the head. A keyframe that does not fit in a record (only possible with
+     * a lot of pending garbage) is not written, and the next one is taken after another interval.
+     *
+     * @param player The player ({@link #PLAYER_1} or {@link #PLAYER_2}).
+     */
+    private void writeKeyframe(int player) {
+        byte[] keyframe = boardReplicas[player].createKeyframe();
+
+        keyframeTimes[player] = System.nanoTime();
+        if (keyframe.length > MAX_RECORD_PAYLOAD_LENGTH) return;
+
+        keyframePositions[player] = head;
+        writeRecord(PLAYER_1_KEYFRAME + player, keyframe, 0, keyframe.length);
+    }
+
+    private void put(long position, byte value) { ring[index(position)] = value; }
+
+    /**
+     * Copies bytes into the ring, wrapping around its end if needed.
+     *
+     * @param position The position of the first byte.
+     * @param bytes    The buffer holding the bytes.
+     * @param offset   The index of the first byte.
+     * @param length   The number of bytes.
+     */
+    private void copyIn(long position, byte[] bytes, int offset, int length) {
+        int index = index(position);
+        int firstPartLength = Math.min(length, capacity - index);
+
+        System.arraycopy(bytes, offset, ring, index, firstPartLength);
+        if (firstPartLength < length) System.arraycopy(bytes, offset + firstPartLength, ring, 0, length - firstPartLength);
+    }
+
+    /**
+     * Copies bytes from the ring, wrapping around its end if needed.
+     *
+     * @param position    The position of the first byte.
+     * @param destination The buffer to fill.
+     * @param length      The number of bytes.
+     */
+    private void copy(long position, ByteBuffer destination, int length) {
+        int index = index(position);
+        int firstPartLength = Math.min(length, capacity - index);
+
+        destination.put(ring, index, firstPartLength);
+        if (firstPartLength < length) destination.put(ring, 0, length - firstPartLength);
+    }
+}
@@ -0,0 +1,87 @@
+package server.spectating;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The reading position of one spectator in a {@link MatchStream}.
+ * <p>
+ * The cursor always stands at the start of a record, since whole records are copied. If the records it has not
+ * copied yet have been overwritten, it applies its {@link LaggingSpectatorPolicy}: it either skips to the latest
+ * keyframes of the stream, preceded by a {@link MatchStream#RESYNC} record, or tells its owner to disconnect the
+ * spectator.
+ * </p>
+ * <p>
+ * <b>Threading:</b> a cursor belongs to a single spectator and must only be used from one thread at a time.
+ * </p>
+ */
+public class SpectatorCursor {
+    /** Returned by {@link #copyTo(ByteBuffer)} when the spectator must be disconnected. */
+    public static final int DISCONNECT = -1;
+
+    private final MatchStream matchStream;
+    private final LaggingSpectatorPolicy policy;
+    private long position;
+    private boolean resyncPending;
+    private long numberOfResyncs;
+
+    /**
+     * Creates a cursor (see {@link MatchStream#attach(LaggingSpectatorPolicy)}).
+     *
+     * @param matchStream The stream being read.
+     * @param position    The position of the first record to copy.
+     * @param policy      What to do if the spectator falls too far behind.
+     */
+    SpectatorCursor(MatchStream matchStream, long position, LaggingSpectatorPolicy policy) {
+        this.matchStream = matchStream;
+        this.policy = policy;
+        this.position = position;
+        this.resyncPending = false;
+        this.numberOfResyncs = 0;
+    }
+
+    public MatchStream getMatchStream() { return matchStream; }
+    public long getPosition() { return position; }
+    public long getNumberOfResyncs() { return numberOfResyncs; }
+
+    /**
+     * Copies the next records that fit in the destination and advances past them.
+     *
+     * @param destination The spectator's output buffer.
+     * @return The number of bytes copied (0 if there is nothing new or no room), or {@link #DISCONNECT} if the
+     *         spectator has fallen too far behind and must be disconnected.
+     */
+    public int copyTo(ByteBuffer destination) {
+        int copied = 0;
+        int recordsLength;
+
+        while (true) {
+            if (resyncPending) {
+                if (destination.remaining() < MatchStream.RECORD_HEADER_LENGTH) return copied;
+
+                destination.put((byte) MatchStream.RESYNC).put((byte) 0);
+                copied += MatchStream.RECORD_HEADER_LENGTH;
+                resyncPending = false;
+            }
+
+            recordsLength = matchStream.read(position, destination);
+            if (recordsLength != MatchStream.LAGGED) {
+                position += recordsLength;
+                return copied + recordsLength;
+            }
+
+            if (policy == LaggingSpectatorPolicy.DISCONNECT) return DISCONNECT;
+
+            // Skip what has been lost, up to the latest keyframes
+            position = matchStream.getJoinPosition();
+            resyncPending = true;
+            numberOfResyncs++;
+        }
+    }
+
+    /**
+     * @return {@code true} if the match has finished and every record has been copied.
+     */
+    public boolean isFinished() {
+        return matchStream.isClosed() && !resyncPending && position == matchStream.getHead();
+    }
+}
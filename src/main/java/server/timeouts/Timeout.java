@@ -0,0 +1,34 @@
+package server.timeouts;
+
+/**
+ * A task scheduled on a {@link TimingWheel}, which can be cancelled before it runs.
+ */
+public class Timeout {
+    private final long deadlineNanoseconds;
+    private final Runnable task;
+    private volatile boolean cancelled;
+    long deadlineTick;
+    Timeout next;
+
+    /**
+     * Creates a timeout (it is not scheduled until it is added to a wheel).
+     *
+     * @param deadlineNanoseconds The {@link System#nanoTime()} at which the task must run.
+     * @param task                The task to run.
+     */
+    Timeout(long deadlineNanoseconds, Runnable task) {
+        this.deadlineNanoseconds = deadlineNanoseconds;
+        this.task = task;
+        this.cancelled = false;
+    }
+
+    long getDeadlineNanoseconds() { return deadlineNanoseconds; }
+    Runnable getTask() { return task; }
+    public boolean isCancelled() { return cancelled; }
+
+    /**
+     * Prevents the task from running. Can be called from any thread. The timeout is dropped by the wheel the next
+     * time its slot is visited, so cancelling is O(1).
+     */
+    public void cancel() { cancelled = true; }
+}
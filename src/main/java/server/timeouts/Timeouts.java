@@ -0,0 +1,54 @@
+package server.timeouts;
+
+/**
+ * The deadlines enforced by the server on every connection, shared by the event loop and the thread-per-connection
+ * servers.
+ * <p>
+ * Without them a client that never finishes its handshake, a waiting host or quick play player whose connection is
+ * half-open (gone without a FIN or RST), or a player that stops sending during a match would hold its resources
+ * (a thread, a lobby, a place in a queue, a match) forever.
+ * </p>
+ */
+public class Timeouts {
+    /** Duration of a tick of the timing wheels (timeouts fire up to one tick late). */
+    public static final long TICK_MILLISECONDS = 100;
+
+    /** Number of slots of the timing wheels (a turn of the wheel lasts {@code TICK_MILLISECONDS * NUMBER_OF_WHEEL_SLOTS}). */
+    public static final int NUMBER_OF_WHEEL_SLOTS = 512;
+
+    /** Time a new connection has to send its game mode. */
+    public static final int HANDSHAKE_TIMEOUT_MILLISECONDS = 10_000;
+
+    /** Time a joining player has to send the Room ID (the user is typing it in a dialog meanwhile). */
+    public static final int ROOM_ID_TIMEOUT_MILLISECONDS = 120_000;
+
+    /** Time a waiting client has to answer a liveness probe. */
+    public static final int PROBE_TIMEOUT_MILLISECONDS = 5000;
+
+    /**
+     * Time during which a client that has just been heard from (its handshake or the echo of a probe) is considered
+     * online without probing it before its match starts.
+     */
+    public static final int LIVENESS_FRESHNESS_MILLISECONDS = 1000;
+
+    /** Time between two liveness probes of a client waiting for a rival (a lobby host or a quick play player). */
+    public static final int HEARTBEAT_INTERVAL_MILLISECONDS = 15_000;
+
+    /** Time after which a lobby nobody has joined is closed. */
+    public static final int LOBBY_EXPIRY_MILLISECONDS = 30 * 60_000;
+
+    /**
+     * Time a player in a match may go without sending anything (clients send an update at least four times per second)
+     * before the match is closed.
+     */
+    public static final int MATCH_IDLE_TIMEOUT_MILLISECONDS = 30_000;
+
+    /**
+     * Time two players have to agree whether they play peer-to-peer or through the relay (clients give up on the
+     * direct connection much sooner).
+     */
+    public static final int PEER_TO_PEER_NEGOTIATION_TIMEOUT_MILLISECONDS = 10_000;
+
+    /** Time between two checks of the activity of a match. */
+    public static final int MATCH_IDLE_CHECK_INTERVAL_MILLISECONDS = 10_000;
+}
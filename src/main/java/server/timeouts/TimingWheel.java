@@ -0,0 +1,162 @@
+package server.timeouts;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A hashed timing wheel: a cheap way to keep huge numbers of timeouts (handshake deadlines, heartbeats, lobby expiry)
+ * whose exact firing time does not matter much.
+ * <p>
+ * Time is divided in ticks of {@code tickMilliseconds} and the wheel has a fixed number of slots, each one holding
+ * the timeouts that expire at ticks that map to it ({@code tick % numberOfSlots}). Scheduling and cancelling a timeout
+ * cost O(1), whatever the number of pending timeouts, and advancing the wheel only visits the slots of the elapsed
+ * ticks. Timeouts further away than a whole turn simply stay in their slot for the next turns. The price is precision:
+ * a task runs up to one tick late.
+ * </p>
+ * <p>
+ * <b>Threading:</b> the wheel is not thread-safe, it must be owned by a single thread (an event loop, or the thread
+ * of a {@link WheelTimer}).
+ * </p>
+ */
+public class TimingWheel {
+    private final long tickNanoseconds;
+    private final Timeout[] slots;
+    private final long startNanoseconds;
+    private long currentTick;
+    private int numberOfTimeouts;
+
+    /**
+     * Creates an empty wheel that starts ticking now.
+     *
+     * @param tickMilliseconds The duration of a tick.
+     * @param numberOfSlots    The number of slots of the wheel (a turn lasts {@code tickMilliseconds * numberOfSlots}).
+     */
+    public TimingWheel(long tickMilliseconds, int numberOfSlots) {
+        this.tickNanoseconds = TimeUnit.MILLISECONDS.toNanos(tickMilliseconds);
+        this.slots = new Timeout[numberOfSlots];
+        this.startNanoseconds = System.nanoTime();
+        this.currentTick = 0;
+        this.numberOfTimeouts = 0;
+    }
+
+    /**
+     * Schedules a task.
+     *
+     * @param task              The task to run.
+     * @param delayMilliseconds The delay in milliseconds.
+     * @return The timeout, which can be used to cancel the task.
+     */
+    public Timeout schedule(Runnable task, long delayMilliseconds) {
+        Timeout timeout = newTimeout(task, delayMilliseconds);
+
+        add(timeout);
+        return timeout;
+    }
+
+    /**
+     * Creates a timeout without scheduling it (see {@link #add(Timeout)}). Can be called from any thread.
+     *
+     * @param task              The task to run.
+     * @param delayMilliseconds The delay in milliseconds.
+     * @return The new timeout.
+     */
+    public static Timeout newTimeout(Runnable task, long delayMilliseconds) {
+        return new Timeout(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMilliseconds), task);
+    }
+
+    /**
+     * Schedules a timeout created with {@link #newTimeout(Runnable, long)}.
+     *
+     * @param timeout The timeout.
+     */
+    public void add(Timeout timeout) {
+        int slot;
+
+        // A timeout that is already due runs on the next tick
+        timeout.deadlineTick = Math.max(currentTick + 1, ceilDiv(timeout.getDeadlineNanoseconds() - startNanoseconds, tickNanoseconds));
+        slot = (int) (timeout.deadlineTick % slots.length);
+
+        timeout.next = slots[slot];
+        slots[slot] = timeout;
+        numberOfTimeouts++;
+    }
+
+    /**
+     * Runs the tasks of every timeout that expired up to now. The tasks may schedule new timeouts.
+     */
+    public void expireTimeouts() {
+        long lastTick = (System.nanoTime() - startNanoseconds) / tickNanoseconds;
+
+        while (currentTick < lastTick) {
+            currentTick++;
+            expireSlot((int) (currentTick % slots.length));
+        }
+    }
+
+    /**
+     * @return The milliseconds until the next tick (at least 1), or -1 if there are no pending timeouts.
+     */
+    public long getMillisecondsUntilNextTick() {
+        if (numberOfTimeouts == 0) return -1;
+
+        long nextTickNanoseconds = startNanoseconds + (currentTick + 1) * tickNanoseconds;
+        return Math.max(1, TimeUnit.NANOSECONDS.toMillis(nextTickNanoseconds - System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(1) - 1));
+    }
+
+    // ---------------------------------------------------------------------------------
+    // Auxiliary methods
+
+    /**
+     * Runs the timeouts of a slot that expire at the current tick and drops the cancelled ones. The rest stay for
+     * the next turns.
+     *
+     * @param slot The slot of the current tick.
+     */
+    private void expireSlot(int slot) {
+        Timeout timeout = slots[slot];
+        Timeout remaining = null;
+        Timeout next;
+
+        // Detach the slot first, so the tasks can schedule timeouts in it
+        slots[slot] = null;
+
+        while (timeout != null) {
+            next = timeout.next;
+
+            if (timeout.isCancelled()) numberOfTimeouts--;
+            else if (timeout.deadlineTick <= currentTick) {
+                numberOfTimeouts--;
+                runTask(timeout);
+            }
+            else {
+                timeout.next = remaining;
+                remaining = timeout;
+            }
+
+            timeout = next;
+        }
+
+        // Put back the timeouts of the next turns
+        while (remaining != null) {
+            next = remaining.next;
+            remaining.next = slots[slot];
+            slots[slot] = remaining;
+            remaining = next;
+        }
+    }
+
+    /**
+     * Runs the task of an expired timeout.
+     *
+     * @param timeout The timeout.
+     */
+    private void runTask(Timeout timeout) {
+        timeout.next = null;
+
+        try { timeout.getTask().run(); }
+        catch (RuntimeException re) { System.out.println("ERROR while running timeout task: " + re); }
+    }
+
+    private static long ceilDiv(long dividend, long divisor) {
+        return -Math.floorDiv(-dividend, divisor);
+    }
+}
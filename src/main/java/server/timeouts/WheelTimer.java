@@ -0,0 +1,74 @@
+package server.timeouts;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A {@link TimingWheel} driven by its own thread, for code that does not run on an event loop (the
+ * thread-per-connection server).
+ * <p>
+ * Timeouts can be scheduled and cancelled from any thread: new timeouts are queued and added to the wheel by the timer
+ * thread on its next tick. The tasks run on the timer thread, so they must be short (e.g., closing a socket or
+ * submitting a probe to an executor).
+ * </p>
+ */
+public class WheelTimer implements Runnable {
+    private final TimingWheel wheel;
+    private final Queue<Timeout> newTimeouts;
+    private final long tickMilliseconds;
+    private final String name;
+
+    /**
+     * Creates the timer (it does not tick until {@link #start()}).
+     *
+     * @param name The name given to the timer thread.
+     */
+    public WheelTimer(String name) {
+        this.wheel = new TimingWheel(Timeouts.TICK_MILLISECONDS, Timeouts.NUMBER_OF_WHEEL_SLOTS);
+        this.newTimeouts = new ConcurrentLinkedQueue<>();
+        this.tickMilliseconds = Timeouts.TICK_MILLISECONDS;
+        this.name = name;
+    }
+
+    /**
+     * Starts the timer thread (a daemon thread, so it does not keep the server alive).
+     */
+    public void start() {
+        Thread thread = new Thread(this, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Schedules a task to be run on the timer thread after the given delay. Can be called from any thread.
+     *
+     * @param task              The task to run.
+     * @param delayMilliseconds The delay in milliseconds.
+     * @return The timeout, which can be used to cancel the task.
+     */
+    public Timeout schedule(Runnable task, long delayMilliseconds) {
+        Timeout timeout = TimingWheel.newTimeout(task, delayMilliseconds);
+
+        newTimeouts.add(timeout);
+        return timeout;
+    }
+
+    /**
+     * The timer loop: once per tick, adds the new timeouts to the wheel and runs the expired ones.
+     */
+    @Override
+    public void run() {
+        Timeout timeout;
+
+        while (true) {
+            LockSupport.parkNanos(tickMilliseconds * 1_000_000L);
+
+            while ((timeout = newTimeouts.poll()) != null) {
+                if (!timeout.isCancelled()) wheel.add(timeout);
+            }
+
+            wheel.expireTimeouts();
+        }
+    }
+}
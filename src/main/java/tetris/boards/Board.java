@@ -2,13 +2,18 @@ package tetris.boards;
 
 import tetris.boards.components.BoardGrid;
 import tetris.boards.components.TetrominoesQueue;
+import tetris.tetrominoes.TetrominoFactory;
 import tetris.tetrominoes.TetrominoShadow;
 import tetris.tetrominoes.Tetromino;
+import tetris.tetrominoes.TetrominoType;
 import tetris.tetrominoes.generators.TetrominoesGenerator;
 import tetris.tetrominoes.generators.TetrominoesGeneratorFactory;
 import tetris.tetrominoes.generators.TetrominoesGeneratorType;
 
 import java.awt.*;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 
 import static client.userInterface.panels.MainPanel.*;
 
@@ -175,6 +180,75 @@ public abstract class Board {
         tetrominoesQueue.draw(g2);
     }
 
+    /**
+     * Writes a compact snapshot of the board (a keyframe), so a viewer that joins a match midway can rebuild the
+     * board from it instead of from every message sent since the match started.
+     * <p>
+     * Format: {@code [INT DEALT_TETROMINOES] [FALLING_TYPE] [X] [Y] [ROTATION] [NEXT_TYPE] [INT SCORE]
+     * [SHORT CLEARED_LINES] [SHORT LEVEL] [ALIVE] [GRID_CELLS]}, where a missing piece has type -1 and the
+     * grid is written by {@link BoardGrid#writeCells(java.io.DataOutputStream)}. The pieces in the queue are not
+     * written: they follow from the seed and the number of tetrominoes dealt. Subclasses append the state of their
+     * own components.
+     * </p>
+     *
+     * @param dataOutputStream The stream to write to.
+     * @throws IOException If writing fails.
+     */
+    public void writeKeyframe(DataOutputStream dataOutputStream) throws IOException {
+        dataOutputStream.writeInt(tetrominoesQueue.getNumberOfDealtTetrominoes());
+
+        writeTetrominoType(dataOutputStream, fallingTetromino);
+        dataOutputStream.writeByte(fallingTetromino == null ? 0 : fallingTetromino.getX());
+        dataOutputStream.writeByte(fallingTetromino == null ? 0 : fallingTetromino.getY());
+        dataOutputStream.writeByte(fallingTetromino == null ? 0 : fallingTetromino.getRotationIndex());
+        writeTetrominoType(dataOutputStream, nextTetromino);
+
+        dataOutputStream.writeInt(score);
+        dataOutputStream.writeShort(totalClearedLines);
+        dataOutputStream.writeShort(level);
+        dataOutputStream.writeBoolean(isAlive);
+
+        grid.writeCells(dataOutputStream);
+    }
+
+    /**
+     * Restores the state written by {@link #writeKeyframe(DataOutputStream)}. The board must have just been created
+     * with the same seed and configuration as the board the keyframe was taken from.
+     *
+     * @param dataInputStream The stream to read from.
+     * @throws IOException If reading fails.
+     */
+    public void readKeyframe(DataInputStream dataInputStream) throws IOException {
+        TetrominoType fallingTetrominoType, nextTetrominoType;
+        int fallingTetrominoX, fallingTetrominoY, fallingTetrominoRotationIndex;
+
+        tetrominoesQueue.skipTo(dataInputStream.readInt());
+
+        fallingTetrominoType = readTetrominoType(dataInputStream);
+        fallingTetrominoX = dataInputStream.readByte();
+        fallingTetrominoY = dataInputStream.readByte();
+        fallingTetrominoRotationIndex = dataInputStream.readByte();
+        nextTetrominoType = readTetrominoType(dataInputStream);
+
+        score = dataInputStream.readInt();
+        totalClearedLines = dataInputStream.readShort();
+        level = dataInputStream.readShort();
+        isAlive = dataInputStream.readBoolean();
+
+        grid.readCells(dataInputStream);
+
+        if (fallingTetrominoType == null) fallingTetromino = null;
+        else {
+            fallingTetromino = TetrominoFactory.createTetromino(fallingTetrominoType, fallingTetrominoRotationIndex,
+                    fallingTetrominoX, fallingTetrominoY, grid.getX(), grid.getY());
+            fallingTetrominoShadow = new TetrominoShadow(fallingTetromino);
+            updateFallingTetrominoShadow();
+        }
+
+        // Its position is set when it spawns
+        nextTetromino = (nextTetrominoType == null) ? null : TetrominoFactory.createTetromino(nextTetrominoType, 0, 0, 0, grid.getX(), grid.getY());
+    }
+
     // --- AUXILIARY METHODS ---
 
     /**
@@ -249,4 +323,13 @@ public abstract class Board {
         shadowDistanceToFloor = grid.distanceToFloor(fallingTetrominoShadow);
         fallingTetrominoShadow.setY(fallingTetrominoShadow.getY() + shadowDistanceToFloor);
     }
-}
\ No newline at end of file
+
+    private static void writeTetrominoType(DataOutputStream dataOutputStream, Tetromino t) throws IOException {
+        dataOutputStream.writeByte(t == null ? -1 : t.getType().ordinal());
+    }
+
+    private static TetrominoType readTetrominoType(DataInputStream dataInputStream) throws IOException {
+        byte type = dataInputStream.readByte();
+        return (type < 0 || type >= TetrominoType.values().length) ? null : TetrominoType.values()[type];
+    }
+}
@@ -2,6 +2,10 @@ package tetris.boards;
 
 import tetris.tetrominoes.generators.TetrominoesGeneratorType;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
 /**
  * A board implementation used to replicate the state of a remote player.
  * <p>
@@ -60,6 +64,29 @@ public abstract class ReceiverBoard extends Board {
      */
     public void lockFallingTetromino() { isFallingTetrominoLocked = true; }
 
+    /**
+     * Adds the last position received to the keyframe: {@code [NEXT_X] [NEXT_Y] [NEXT_ROTATION] [LOCKED]}.
+     */
+    @Override
+    public void writeKeyframe(DataOutputStream dataOutputStream) throws IOException {
+        super.writeKeyframe(dataOutputStream);
+
+        dataOutputStream.writeByte(fallingTetrominoNextX);
+        dataOutputStream.writeByte(fallingTetrominoNextY);
+        dataOutputStream.writeByte(fallingTetrominoNextRotationIndex);
+        dataOutputStream.writeBoolean(isFallingTetrominoLocked);
+    }
+
+    @Override
+    public void readKeyframe(DataInputStream dataInputStream) throws IOException {
+        super.readKeyframe(dataInputStream);
+
+        fallingTetrominoNextX = dataInputStream.readByte();
+        fallingTetrominoNextY = dataInputStream.readByte();
+        fallingTetrominoNextRotationIndex = dataInputStream.readByte();
+        isFallingTetrominoLocked = dataInputStream.readBoolean();
+    }
+
     @Override
     protected boolean isFallingTetrominoLocked() {
         return isFallingTetrominoLocked;
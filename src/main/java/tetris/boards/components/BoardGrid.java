@@ -2,10 +2,15 @@ package tetris.boards.components;
 
 import tetris.tetrominoes.Tetromino;
 import tetris.tetrominoes.TetrominoCell;
+import tetris.tetrominoes.TetrominoFactory;
+import tetris.tetrominoes.TetrominoType;
 
 import static client.userInterface.panels.MainPanel.*;
 
 import java.awt.*;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 
 /**
  * Represents the grid (playfield) of the Tetris board.
@@ -31,6 +36,12 @@ public class BoardGrid {
     public static final int SPAWN_ROWS = 3;
     public static final int COLUMNS = 10;
 
+    // --- CELL CODES (see writeCells) ---
+    private static final int EMPTY_CELL_CODE = 0;
+    private static final int GARBAGE_CELL_CODE = 1 + TetrominoType.values().length;
+    /** Color of the cells of each code: empty, one per tetromino type (in type order) and garbage. */
+    private static final Color[] CELL_COLORS = createCellColors();
+
     // --- GRID POSITION IN PANEL ---
     private final int x;
     private final int y;
@@ -227,6 +238,54 @@ public class BoardGrid {
         return distanceToFloor;
     }
 
+    /**
+     * Writes the cells of the grid (e.g., for a board keyframe) as 4-bit codes, two per byte from the top left
+     * corner: {@value #EMPTY_CELL_CODE} for an empty cell, 1 + the tetromino type for a cell of a locked piece and
+     * {@value #GARBAGE_CELL_CODE} for garbage.
+     *
+     * @param dataOutputStream The stream to write to.
+     * @throws IOException If writing fails.
+     */
+    public void writeCells(DataOutputStream dataOutputStream) throws IOException {
+        int numberOfCells = getTotalNumberOfRows() * getNumberOfColumns();
+        int packedCodes = 0;
+
+        for (int cell = 0; cell < numberOfCells; cell++) {
+            packedCodes = (packedCodes << 4) | getCellCode(cell / getNumberOfColumns(), cell % getNumberOfColumns());
+
+            if (cell % 2 == 1) {
+                dataOutputStream.writeByte(packedCodes);
+                packedCodes = 0;
+            }
+        }
+
+        // Odd number of cells, the last one goes in the high half of a byte
+        if (numberOfCells % 2 == 1) dataOutputStream.writeByte(packedCodes << 4);
+    }
+
+    /**
+     * Replaces the cells of the grid with the ones written by {@link #writeCells(DataOutputStream)}.
+     *
+     * @param dataInputStream The stream to read from.
+     * @throws IOException If reading fails.
+     */
+    public void readCells(DataInputStream dataInputStream) throws IOException {
+        int numberOfCells = getTotalNumberOfRows() * getNumberOfColumns();
+        int packedCodes = 0;
+        int code;
+
+        for (int cell = 0; cell < numberOfCells; cell++) {
+            if (cell % 2 == 0) {
+                packedCodes = dataInputStream.readUnsignedByte();
+                code = packedCodes >> 4;
+            }
+            else code = packedCodes & 0x0F;
+
+            if (code == EMPTY_CELL_CODE || code >= CELL_COLORS.length) emptyCell(cell / getNumberOfColumns(), cell % getNumberOfColumns());
+            else fillCell(cell / getNumberOfColumns(), cell % getNumberOfColumns(), CELL_COLORS[code]);
+        }
+    }
+
     /**
      * Renders the grid background, lines, and blocks.
      *
@@ -267,6 +326,27 @@ public class BoardGrid {
 
     // --- PRIVATE UTILS ---
 
+    private static Color[] createCellColors() {
+        Color[] cellColors = new Color[GARBAGE_CELL_CODE + 1];
+
+        for (TetrominoType type : TetrominoType.values()) {
+            cellColors[1 + type.ordinal()] = TetrominoFactory.createTetromino(type, 0, 0, 0, 0, 0).getColor();
+        }
+        cellColors[GARBAGE_CELL_CODE] = Color.GRAY;
+
+        return cellColors;
+    }
+
+    private int getCellCode(int row, int column) {
+        if (isCellEmpty(row, column)) return EMPTY_CELL_CODE;
+
+        for (int code = 1; code < GARBAGE_CELL_CODE; code++) {
+            if (CELL_COLORS[code].equals(getCellColor(row, column))) return code;
+        }
+
+        return GARBAGE_CELL_CODE;
+    }
+
     private void fillCell(int row, int column, Color color) {
         grid[row][column] = true;
         gridColor[row][column] = color;
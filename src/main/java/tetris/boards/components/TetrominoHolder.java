@@ -1,6 +1,8 @@
 package tetris.boards.components;
 
 import tetris.tetrominoes.Tetromino;
+import tetris.tetrominoes.TetrominoFactory;
+import tetris.tetrominoes.TetrominoType;
 
 import java.awt.*;
 
@@ -59,15 +61,31 @@ public class TetrominoHolder {
         }
 
         // Store the new piece
-        heldTetromino = t;
-        // Reset position and rotation for display
-        heldTetromino.setXY(0.5 * (5 - t.getWidth()), 2);
-        heldTetromino.setParentXY(x, y);
-        heldTetromino.setRotationIndex(0);
+        setHeldTetromino(t);
 
         return aux;
     }
 
+    /**
+     * Gets the type of the held piece.
+     *
+     * @return The type of the held tetromino, or {@code null} if nothing has been held yet.
+     */
+    public TetrominoType getHeldTetrominoType() { return heldTetromino == null ? null : heldTetromino.getType(); }
+
+    /**
+     * Restores the state of the holder (used when a board is rebuilt from a keyframe).
+     *
+     * @param heldTetrominoType The type of the held piece, or {@code null} if the holder is empty.
+     * @param locked            Whether the hold has already been used this turn.
+     */
+    public void restore(TetrominoType heldTetrominoType, boolean locked) {
+        this.locked = locked;
+
+        if (heldTetrominoType == null) heldTetromino = null;
+        else setHeldTetromino(TetrominoFactory.createTetromino(heldTetrominoType, 0, 0, 0, x, y));
+    }
+
     /**
      * Resets the lock state. Should be called when a piece locks onto the board.
      */
@@ -108,4 +126,16 @@ public class TetrominoHolder {
         g2.setColor(new Color(110, 110 , 110));
         g2.drawRect(x, y, TETROMINO_HOLDER_WIDTH, TETROMINO_HOLDER_HEIGHT);
     }
-}
\ No newline at end of file
+
+    /**
+     * Stores a piece in the holder, resetting its position and rotation for display.
+     *
+     * @param t The tetromino to hold.
+     */
+    private void setHeldTetromino(Tetromino t) {
+        heldTetromino = t;
+        heldTetromino.setXY(0.5 * (5 - t.getWidth()), 2);
+        heldTetromino.setParentXY(x, y);
+        heldTetromino.setRotationIndex(0);
+    }
+}
@@ -20,6 +20,7 @@ public class TetrominoesQueue {
     private final TetrominoesGenerator tetrominoesGenerator;
     private final int x;
     private final int y;
+    private int numberOfDealtTetrominoes;
 
     /**
      * Initializes the queue and pre-populates it.
@@ -34,6 +35,7 @@ public class TetrominoesQueue {
         this.tetrominoesGenerator = tetrominoesGenerator;
         this.x = x;
         this.y = y;
+        numberOfDealtTetrominoes = 0;
 
         // Fill the initial queue
         for(int i = 0; i < queueSize; i++) {
@@ -58,9 +60,29 @@ public class TetrominoesQueue {
         // Add new element at the bottom
         setTetrominoPosition(tetrominoesGenerator.getNext(x, y), tetrominoesQueue.length - 1);
 
+        numberOfDealtTetrominoes++;
         return next;
     }
 
+    /**
+     * Gets the position of the queue in the sequence of its generator.
+     *
+     * @return The number of tetrominoes dealt with {@link #getNext()} so far.
+     */
+    public int getNumberOfDealtTetrominoes() { return numberOfDealtTetrominoes; }
+
+    /**
+     * Deals and discards tetrominoes until the queue reaches the given position (used to restore a board from a
+     * keyframe, since the generator is deterministic).
+     *
+     * @param numberOfDealtTetrominoes The position to reach (see {@link #getNumberOfDealtTetrominoes()}).
+     */
+    public void skipTo(int numberOfDealtTetrominoes) {
+        while (this.numberOfDealtTetrominoes < numberOfDealtTetrominoes) {
+            getNext();
+        }
+    }
+
     /**
      * Renders the "Next" box and the contained pieces.
      *
@@ -0,0 +1,95 @@
+package tetris.boards.io;
+
+import java.util.Arrays;
+
+/**
+ * Takes the messages out of the frames a player sends (see {@link BoardFrames}), e.g., so the server relay can keep
+ * its match stream and recordings without the framing every spectator would have to understand.
+ * <p>
+ * The bytes may end in the middle of a frame, which is kept until the rest of it arrives. Frames of another version
+ * (and frames numbered as the server's) are skipped. If a frame has an invalid length or is out of sequence the reader
+ * stops, since nothing after it can be trusted, and the rest of the bytes are ignored (a broken client must not break
+ * the relay).
+ * </p>
+ * <p>
+ * <b>Threading:</b> not thread-safe, each direction of a match has its own reader.
+ * </p>
+ */
+public class BoardFrameReader {
+    private final byte[] frame;
+    private byte[] messages;
+    private int frameLength;
+    private int expectedSequence;
+    private long frames;
+    private boolean stopped;
+
+    /**
+     * Creates a reader at the start of a stream.
+     */
+    public BoardFrameReader() {
+        frame = new byte[BoardFrames.MAX_FRAME_LENGTH];
+        messages = new byte[BoardFrames.MAX_FRAME_LENGTH];
+        frameLength = 0;
+        expectedSequence = 0;
+        frames = 0;
+        stopped = false;
+    }
+
+    /**
+     * @return The buffer holding the messages taken out by the last call to {@link #read(byte[], int, int)}.
+     */
+    public byte[] getMessages() { return messages; }
+
+    /**
+     * @return The number of frames read so far.
+     */
+    public long getFrames() { return frames; }
+
+    /**
+     * Reads the next bytes of the stream.
+     *
+     * @param bytes  The buffer holding the bytes.
+     * @param offset The index of the first byte.
+     * @param length The number of bytes.
+     * @return The number of bytes of the messages of the complete frames now at the beginning of {@link #getMessages()}.
+     */
+    public int read(byte[] bytes, int offset, int length) {
+        int end = offset + length, messagesLength = 0, totalLength, copied, messagesOffset;
+
+        while (offset < end && !stopped) {
+            totalLength = BoardFrames.getFrameLength(frame, 0, frameLength);
+
+            if (totalLength == BoardFrames.INVALID) {
+                stopped = true;
+                break;
+            }
+
+            // Until the length is complete the frame is read byte by byte, then the rest of it at once
+            copied = totalLength == BoardFrames.INCOMPLETE ? 1 : Math.min(totalLength - frameLength, end - offset);
+            System.arraycopy(bytes, offset, frame, frameLength, copied);
+            frameLength += copied;
+            offset += copied;
+
+            if (totalLength == BoardFrames.INCOMPLETE || frameLength < totalLength) continue;
+
+            frameLength = 0;
+            if (BoardFrames.getVersion(frame, 0) != BoardFrames.VERSION || BoardFrames.getFrameNumber(frame, 0) == BoardFrames.SERVER_FRAME_NUMBER) continue;
+
+            if (BoardFrames.getSequence(frame, 0) != expectedSequence) {
+                stopped = true;
+                break;
+            }
+
+            expectedSequence = (expectedSequence + 1) & 0xFF;
+            frames++;
+
+            messagesOffset = BoardFrames.getMessagesOffset(frame, 0);
+            if (messagesLength + totalLength > messages.length) messages = Arrays.copyOf(messages, Math.max(messages.length * 2, messagesLength + totalLength));
+
+            System.arraycopy(frame, messagesOffset, messages, messagesLength, totalLength - messagesOffset);
+            messagesLength += totalLength - messagesOffset;
+        }
+
+        return messagesLength;
+    }
+}
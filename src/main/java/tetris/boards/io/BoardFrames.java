@@ -0,0 +1,167 @@
+package tetris.boards.io;
+
+import java.util.Arrays;
+
+/**
+ * The framing of the board messages, negotiated for a match with the {@link server.Server#FRAMED_BOARD_MESSAGES}
+ * option.
+ * <p>
+ * Every write of a sender (the messages of one of its frames, see {@link SenderBoardOutputHandler}) becomes a frame
+ * {@code [LENGTH] [VERSION (2 bits), FRAME NUMBER (6 bits)] [SEQUENCE] [MESSAGES]}:
+ * </p>
+ * <ul>
+ * <li><b>LENGTH:</b> the number of bytes after it, as a varint of 1 or 2 bytes (7 bits per byte, least significant
+ * first, the high bit set on the first byte if a second one follows). A receiver can meter, batch or skip a frame
+ * without looking at its messages.</li>
+ * <li><b>VERSION:</b> {@value #VERSION}. Frames of any other version are skipped, so the framing can evolve without
+ * breaking older receivers.</li>
+ * <li><b>FRAME NUMBER:</b> the frame of the sender's game loop the messages were sent in, from 1 to
+ * {@value #MAX_FRAME_NUMBER} and then from 1 again. {@value #SERVER_FRAME_NUMBER} is reserved for the frames the
+ * server sends itself (e.g., {@link BoardMessageType#START_DATAGRAM_UPDATES}).</li>
+ * <li><b>SEQUENCE:</b> the number of frames the player had sent before this one, modulo 256. A receiver that gets a
+ * frame out of sequence knows the stream has been misparsed and stops, instead of applying whatever it reads next.
+ * The frames of the server are not part of the sequence.</li>
+ * <li><b>MESSAGES:</b> the messages, whole, in the encoding of the match (one byte per field or
+ * {@link CompactBoardMessages}).</li>
+ * </ul>
+ */
+public final class BoardFrames {
+    /** Version of the framing. */
+    public static final int VERSION = 1;
+
+    /** Frame number of the frames sent by the server. */
+    public static final int SERVER_FRAME_NUMBER = 0;
+
+    /** Largest frame number, after which the numbers start from 1 again. */
+    public static final int MAX_FRAME_NUMBER = 0x3F;
+
+    /** Length of the longest frame, including its length. */
+    public static final int MAX_FRAME_LENGTH = 4096;
+
+    /** Length of the header after the length of the frame (version, frame number and sequence). */
+    public static final int HEADER_LENGTH = 2;
+
+    /** Room left before the messages framed in place: the longest length and the header. */
+    public static final int MAX_PREFIX_LENGTH = 2 + HEADER_LENGTH;
+
+    /** Returned by {@link #getFrameLength(byte[], int, int)} when the bytes end before the length of the frame does. */
+    public static final int INCOMPLETE = 0;
+
+    /** Returned by {@link #getFrameLength(byte[], int, int)} when the length is not valid. */
+    public static final int INVALID = -1;
+
+    private BoardFrames() {}
+
+    /**
+     * Frames the messages of a write.
+     *
+     * @param messages    The buffer holding the messages.
+     * @param length      The number of bytes of the messages.
+     * @param frameNumber The frame number (from {@value #SERVER_FRAME_NUMBER} to {@value #MAX_FRAME_NUMBER}).
+     * @param sequence    The sequence of the frame (only its lowest 8 bits are sent).
+     * @return The frame, or {@code null} if the messages do not fit in a frame.
+     */
+    public static byte[] encode(byte[] messages, int length, int frameNumber, int sequence) {
+        byte[] buffer = new byte[MAX_PREFIX_LENGTH + length];
+        int start;
+
+        System.arraycopy(messages, 0, buffer, MAX_PREFIX_LENGTH, length);
+        start = encodeInPlace(buffer, 0, length, frameNumber, sequence);
+
+        return start < 0 ? null : Arrays.copyOfRange(buffer, start, buffer.length);
+    }
+
+    /**
+     * Frames the messages of a write in place: they are written after {@value #MAX_PREFIX_LENGTH} bytes of room, and
+     * the length and the header of the frame are written at the end of that room, right before them.
+     *
+     * @param buffer      The buffer holding the room and the messages.
+     * @param offset      The index of the room.
+     * @param length      The number of bytes of the messages.
+     * @param frameNumber The frame number (from {@value #SERVER_FRAME_NUMBER} to {@value #MAX_FRAME_NUMBER}).
+     * @param sequence    The sequence of the frame (only its lowest 8 bits are sent).
+     * @return The index of the first byte of the frame (which ends with the messages), or -1 if the messages do not
+     * fit in a frame.
+     */
+    public static int encodeInPlace(byte[] buffer, int offset, int length, int frameNumber, int sequence) {
+        int frameLength = HEADER_LENGTH + length, lengthOfLength = frameLength < 0x80 ? 1 : 2;
+        int start = offset + MAX_PREFIX_LENGTH - HEADER_LENGTH - lengthOfLength, position = start;
+
+        if (lengthOfLength + frameLength > MAX_FRAME_LENGTH) return -1;
+
+        if (lengthOfLength == 1) buffer[position++] = (byte) frameLength;
+        else {
+            buffer[position++] = (byte) (0x80 | (frameLength & 0x7F));
+            buffer[position++] = (byte) (frameLength >>> 7);
+        }
+
+        buffer[position++] = (byte) (VERSION << 6 | frameNumber);
+        buffer[position] = (byte) sequence;
+
+        return start;
+    }
+
+    /**
+     * Reads the length of the frame at the beginning of the given bytes.
+     *
+     * @param frames The buffer holding the bytes, which may end in the middle of a frame.
+     * @param offset The index of the first byte of the frame.
+     * @param length The number of bytes available.
+     * @return The length of the whole frame (including its length), {@link #INCOMPLETE} or {@link #INVALID}.
+     */
+    public static int getFrameLength(byte[] frames, int offset, int length) {
+        int lengthOfLength, frameLength;
+
+        if (length < 1) return INCOMPLETE;
+        if ((frames[offset] & 0x80) == 0) {
+            lengthOfLength = 1;
+            frameLength = frames[offset];
+        }
+        else {
+            if (length < 2) return INCOMPLETE;
+            if ((frames[offset + 1] & 0x80) != 0) return INVALID;
+
+            lengthOfLength = 2;
+            frameLength = (frames[offset] & 0x7F) | (frames[offset + 1] & 0x7F) << 7;
+        }
+
+        // A frame has at least its header, and always fits in the buffers of the receivers
+        if (frameLength < HEADER_LENGTH || lengthOfLength + frameLength > MAX_FRAME_LENGTH) return INVALID;
+        return lengthOfLength + frameLength;
+    }
+
+    /**
+     * @param frames The buffer holding a frame whose length is complete.
+     * @param offset The index of the first byte of the frame.
+     * @return The index of the header (right after the length).
+     */
+    public static int getHeaderOffset(byte[] frames, int offset) { return offset + ((frames[offset] & 0x80) == 0 ? 1 : 2); }
+
+    /**
+     * @param frames The buffer holding a frame whose header is complete.
+     * @param offset The index of the first byte of the frame.
+     * @return The version of the frame.
+     */
+    public static int getVersion(byte[] frames, int offset) { return (frames[getHeaderOffset(frames, offset)] & 0xFF) >>> 6; }
+
+    /**
+     * @param frames The buffer holding a frame whose header is complete.
+     * @param offset The index of the first byte of the frame.
+     * @return The frame number of the frame.
+     */
+    public static int getFrameNumber(byte[] frames, int offset) { return frames[getHeaderOffset(frames, offset)] & MAX_FRAME_NUMBER; }
+
+    /**
+     * @param frames The buffer holding a frame whose header is complete.
+     * @param offset The index of the first byte of the frame.
+     * @return The sequence of the frame (from 0 to 255).
+     */
+    public static int getSequence(byte[] frames, int offset) { return frames[getHeaderOffset(frames, offset) + 1] & 0xFF; }
+
+    /**
+     * @param frames The buffer holding a frame whose length is complete.
+     * @param offset The index of the first byte of the frame.
+     * @return The index of the first message of the frame.
+     */
+    public static int getMessagesOffset(byte[] frames, int offset) { return getHeaderOffset(frames, offset) + HEADER_LENGTH; }
+}
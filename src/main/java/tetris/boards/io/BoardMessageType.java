@@ -12,30 +12,53 @@ package tetris.boards.io;
  * <li><b>UPDATE_FALLING_TETROMINO:</b> Followed by 4 bytes {@code [X, Y, ROTATION, LOCK_STATUS]}.</li>
  * <li><b>UPDATE_TETROMINO_HOLDER:</b> No payload (signal only).</li>
  * <li><b>UPDATE_GARBAGE_ROWS:</b> Followed by 2 bytes {@code [LINES, EMPTY_COLUMN]}.</li>
+ * <li><b>START_DATAGRAM_UPDATES:</b> Followed by 8 bytes {@code [TOKEN]} (only sent by the server).</li>
  * </ul>
+ * <p>
+ * Matches that negotiate it send the same messages in the compact encoding instead (see {@link CompactBoardMessages}),
+ * and in frames (see {@link BoardFrames}).
+ * </p>
  */
 public enum BoardMessageType {
     /**
      * Command to add garbage lines to the opponent's board.
      * <p>Payload: {@code [byte lines, byte emptyColumn]}</p>
      */
-    SEND_GARBAGE_ROWS,
+    SEND_GARBAGE_ROWS(2),
 
     /**
      * Update the position and state of the current falling piece.
      * <p>Payload: {@code [byte x, byte y, byte rotationIndex, byte isLocked]}</p>
      */
-    UPDATE_FALLING_TETROMINO,
+    UPDATE_FALLING_TETROMINO(4),
 
     /**
      * Notification that the player has swapped a piece into the Hold queue.
      * <p>Payload: None</p>
      */
-    UPDATE_TETROMINO_HOLDER,
+    UPDATE_TETROMINO_HOLDER(0),
 
     /**
      * Update regarding the status of pending garbage lines (used for visual feedback).
      * <p>Payload: {@code [byte lines, byte emptyColumn]}</p>
      */
-    UPDATE_GARBAGE_ROWS
+    UPDATE_GARBAGE_ROWS(2),
+
+    /**
+     * Sent by the server relay, as the first message of a match, to a player whose falling tetromino updates can go
+     * over UDP (see {@link FallingTetrominoDatagrams}). Players never send it, and it is ignored anywhere else.
+     * <p>Payload: {@code [long token]}</p>
+     */
+    START_DATAGRAM_UPDATES(8);
+
+    private final int payloadLength;
+
+    BoardMessageType(int payloadLength) {
+        this.payloadLength = payloadLength;
+    }
+
+    /**
+     * @return The number of bytes that follow the message type (e.g., the server relay uses it to split the stream into messages).
+     */
+    public int getPayloadLength() { return payloadLength; }
 }
\ No newline at end of file
@@ -0,0 +1,164 @@
+package tetris.boards.io;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Writes the board messages of a {@link SenderBoardOutputHandler} to its stream on a thread of its own, so the game
+ * loop never blocks on the network.
+ * <p>
+ * The messages are published into a ring buffer without locks: there is a single producer (the handler, which only
+ * publishes under its own lock) and a single consumer (the writer thread). The positions only grow: the producer
+ * copies the bytes and then moves {@code tail}, the writer writes and flushes everything between {@code head} and
+ * {@code tail} at once and then moves {@code head}. The writer parks while there is nothing to write, and the producer
+ * unparks it after every publish.
+ * </p>
+ * <p>
+ * Publishing never blocks: if the messages do not fit in the free space of the buffer (the stream has not accepted
+ * anything for a long time), {@link #publish(byte[], int, int)} reports the overflow and nothing is published.
+ * </p>
+ */
+public class BoardMessageWriter implements Runnable {
+    /** Size of the ring buffer (a power of two), minutes of board messages at the usual rates. */
+    public static final int BUFFER_SIZE = 1 << 16;
+
+    private final OutputStream outputStream;
+    private final Runnable onWriteError;
+    private final byte[] buffer;
+    private final AtomicLong head;
+    private final AtomicLong tail;
+    private final Thread thread;
+    private volatile Thread drainingThread;
+    private volatile boolean closed;
+    private volatile boolean failed;
+    private volatile long writes;
+
+    /**
+     * Creates the writer and starts its daemon thread.
+     *
+     * @param outputStream The stream to write to.
+     * @param onWriteError Called from the writer thread if a write fails (the writer then stops).
+     */
+    public BoardMessageWriter(OutputStream outputStream, Runnable onWriteError) {
+        this.outputStream = outputStream;
+        this.onWriteError = onWriteError;
+        buffer = new byte[BUFFER_SIZE];
+        head = new AtomicLong(0);
+        tail = new AtomicLong(0);
+        drainingThread = null;
+        closed = false;
+        failed = false;
+        writes = 0;
+
+        thread = new Thread(this, "board-message-writer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * @return The number of writes (each one followed by a flush) done so far.
+     */
+    public long getWrites() { return writes; }
+
+    /**
+     * Publishes messages to be written. Must only be called by one thread at a time.
+     *
+     * @param messages The buffer holding the messages.
+     * @param offset   The index of the first byte to publish.
+     * @param length   The number of bytes to publish.
+     * @return {@code false} if they do not fit in the free space of the buffer (nothing is published).
+     */
+    public boolean publish(byte[] messages, int offset, int length) {
+        long position = tail.get();
+        int bufferOffset = (int) (position & (BUFFER_SIZE - 1));
+        int firstPart = Math.min(length, BUFFER_SIZE - bufferOffset);
+
+        if (position + length - head.get() > BUFFER_SIZE) return false;
+
+        System.arraycopy(messages, offset, buffer, bufferOffset, firstPart);
+        System.arraycopy(messages, offset + firstPart, buffer, 0, length - firstPart);
+        tail.set(position + length);
+
+        LockSupport.unpark(thread);
+        return true;
+    }
+
+    /**
+     * Waits until everything published has been written (e.g., before shutting down the output).
+     *
+     * @param timeoutMilliseconds The maximum time to wait.
+     * @return {@code true} if everything has been written.
+     */
+    public boolean drain(long timeoutMilliseconds) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMilliseconds);
+        long remaining;
+
+        drainingThread = Thread.currentThread();
+
+        try {
+            while (head.get() < tail.get()) {
+                remaining = deadline - System.nanoTime();
+                if (closed || failed || remaining <= 0) return false;
+
+                LockSupport.parkNanos(this, remaining);
+            }
+        }
+        finally { drainingThread = null; }
+
+        return true;
+    }
+
+    /**
+     * Stops the writer thread, dropping anything it has not written yet.
+     */
+    public void close() {
+        Thread waiter = drainingThread;
+
+        closed = true;
+        LockSupport.unpark(thread);
+        if (waiter != null) LockSupport.unpark(waiter);
+    }
+
+    /**
+     * Writes what is published until the writer is closed or a write fails.
+     */
+    @Override
+    public void run() {
+        long position, end;
+        int offset, firstPart;
+        Thread waiter;
+
+        while (!closed) {
+            position = head.get();
+            end = tail.get();
+
+            if (position == end) {
+                LockSupport.park(this);
+                continue;
+            }
+
+            offset = (int) (position & (BUFFER_SIZE - 1));
+            firstPart = (int) Math.min(end - position, BUFFER_SIZE - offset);
+
+            try {
+                outputStream.write(buffer, offset, firstPart);
+                if (firstPart < end - position) outputStream.write(buffer, 0, (int) (end - position - firstPart));
+                outputStream.flush();
+            }
+            catch (IOException ioe) {
+                failed = true;
+                if ((waiter = drainingThread) != null) LockSupport.unpark(waiter);
+                if (!closed) onWriteError.run();
+                return;
+            }
+
+            writes++;
+            head.set(end);
+
+            if ((waiter = drainingThread) != null) LockSupport.unpark(waiter);
+        }
+    }
+}
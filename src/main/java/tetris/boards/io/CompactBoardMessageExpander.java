@@ -0,0 +1,76 @@
+package tetris.boards.io;
+
+import java.util.Arrays;
+
+/**
+ * Turns the bytes a player sends in the compact encoding (see {@link CompactBoardMessages}) back into messages with one
+ * byte per field, e.g., so the server relay can keep its match stream and recordings in the encoding every spectator
+ * understands.
+ * <p>
+ * The bytes may end in the middle of a frame, which is kept until the rest of it arrives. Frames of unknown message
+ * types are skipped. If the bytes are not valid frames the expander stops, since nothing after them can be trusted,
+ * and the rest of the bytes are ignored (a broken client must not break the relay).
+ * </p>
+ * <p>
+ * <b>Threading:</b> not thread-safe, each direction of a match has its own expander.
+ * </p>
+ */
+public class CompactBoardMessageExpander {
+    private static final BoardMessageType[] MESSAGE_TYPES = BoardMessageType.values();
+
+    private final byte[] frame;
+    private final byte[] message;
+    private byte[] messages;
+    private int frameLength;
+    private boolean stopped;
+
+    /**
+     * Creates an expander at the start of a stream.
+     */
+    public CompactBoardMessageExpander() {
+        frame = new byte[CompactBoardMessages.MAX_FRAME_LENGTH];
+        message = new byte[CompactBoardMessages.MAX_MESSAGE_LENGTH];
+        messages = new byte[256];
+        frameLength = 0;
+        stopped = false;
+    }
+
+    /**
+     * @return The buffer holding the messages expanded by the last call to {@link #expand(byte[], int, int)}.
+     */
+    public byte[] getMessages() { return messages; }
+
+    /**
+     * Expands the next bytes of the stream.
+     *
+     * @param bytes  The buffer holding the bytes.
+     * @param offset The index of the first byte.
+     * @param length The number of bytes.
+     * @return The number of bytes of the complete messages now at the beginning of {@link #getMessages()}.
+     */
+    public int expand(byte[] bytes, int offset, int length) {
+        int messagesLength = 0, frameResult, messageLength;
+
+        for (int i = offset; i < offset + length && !stopped; i++) {
+            frame[frameLength++] = bytes[i];
+            frameResult = CompactBoardMessages.decode(frame, 0, frameLength, message);
+
+            if (frameResult == CompactBoardMessages.INCOMPLETE) continue;
+            if (frameResult == CompactBoardMessages.INVALID) {
+                stopped = true;
+                break;
+            }
+
+            frameLength = 0;
+            if (message[0] >= MESSAGE_TYPES.length) continue;
+
+            messageLength = 1 + MESSAGE_TYPES[message[0]].getPayloadLength();
+            if (messagesLength + messageLength > messages.length) messages = Arrays.copyOf(messages, messages.length * 2);
+
+            System.arraycopy(message, 0, messages, messagesLength, messageLength);
+            messagesLength += messageLength;
+        }
+
+        return messagesLength;
+    }
+}
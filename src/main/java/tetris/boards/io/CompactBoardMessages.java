@@ -0,0 +1,237 @@
+package tetris.boards.io;
+
+import java.util.Arrays;
+
+/**
+ * The compact encoding of the board messages, negotiated for a match with the
+ * {@link server.Server#COMPACT_BOARD_MESSAGES} option instead of one byte per field (see {@link BoardMessageType}).
+ * <p>
+ * Every message is sent as one of these frames:
+ * </p>
+ * <ul>
+ * <li><b>Falling tetromino update:</b> 2 bytes {@code [1 L RR XXXX] [Y]}: the lock flag, the rotation, the X coordinate
+ * plus {@value #UPDATE_X_OFFSET} and the Y coordinate.</li>
+ * <li><b>Garbage rows:</b> 2 bytes {@code [01 U LLLLL] [EMPTY_COLUMN]}: whether it is an {@code UPDATE_GARBAGE_ROWS}
+ * (1) or a {@code SEND_GARBAGE_ROWS} (0) and the number of lines.</li>
+ * <li><b>Any other message:</b> {@code [00 TTTTTT] [LENGTH] [PAYLOAD]}: the message type, the length of its payload as
+ * a varint (7 bits per byte, least significant first, the high bit set on every byte but the last) and the payload
+ * with one byte per field. An update or a garbage message whose fields do not fit in its packed frame is sent this
+ * way too.</li>
+ * </ul>
+ * <p>
+ * The updates, which are most of the traffic, take 2 bytes instead of 5. Since every other frame carries its length, a
+ * frame of a message type the receiver does not know is skipped instead of breaking the stream.
+ * </p>
+ */
+public final class CompactBoardMessages {
+    /** Value added to the X coordinate of a packed update, so the pieces sticking out of the left wall fit in 4 bits. */
+    public static final int UPDATE_X_OFFSET = 4;
+
+    /** Longest payload a length-prefixed frame can carry (its length fits in a 2 byte varint). */
+    public static final int MAX_PAYLOAD_LENGTH = 1024;
+
+    /** Length of the longest frame: the tag, a 2 byte length and the longest payload. */
+    public static final int MAX_FRAME_LENGTH = 1 + 2 + MAX_PAYLOAD_LENGTH;
+
+    /** Length of the longest message once decoded (the type byte and its payload). */
+    public static final int MAX_MESSAGE_LENGTH = 1 + Arrays.stream(BoardMessageType.values()).mapToInt(BoardMessageType::getPayloadLength).max().orElse(0);
+
+    /** Returned by {@link #decode(byte[], int, int, byte[])} when the bytes end before the frame does. */
+    public static final int INCOMPLETE = 0;
+
+    /** Returned by {@link #decode(byte[], int, int, byte[])} when the bytes are not a valid frame. */
+    public static final int INVALID = -1;
+
+    private static final BoardMessageType[] MESSAGE_TYPES = BoardMessageType.values();
+    private static final int UPDATE_TAG = 0x80;
+    private static final int GARBAGE_TAG = 0x40;
+    private static final int GARBAGE_UPDATE_FLAG = 0x20;
+    private static final int MAX_PACKED_GARBAGE_ROWS = 0x1F;
+
+    private CompactBoardMessages() {}
+
+    /**
+     * Encodes a message.
+     *
+     * @param action  The message type.
+     * @param payload The payload bytes, one per field (can be null for signal-only messages).
+     * @return The frame.
+     */
+    public static byte[] encode(BoardMessageType action, byte[] payload) {
+        byte[] frame = new byte[1 + 2 + (payload == null ? 0 : payload.length)];
+
+        return Arrays.copyOf(frame, encode(action, payload, frame, 0));
+    }
+
+    /**
+     * Encodes a message into the given buffer.
+     *
+     * @param action  The message type.
+     * @param payload The payload bytes, one per field (can be null for signal-only messages).
+     * @param frames  The buffer, with room for the frame (at most 3 bytes more than the payload).
+     * @param offset  The index where the frame is written.
+     * @return The length of the frame.
+     */
+    public static int encode(BoardMessageType action, byte[] payload, byte[] frames, int offset) {
+        int length = payload == null ? 0 : payload.length, position;
+
+        switch (action) {
+            case UPDATE_FALLING_TETROMINO:
+                return encodeUpdate(payload[0], payload[1], payload[2], payload[3], frames, offset);
+
+            case SEND_GARBAGE_ROWS:
+            case UPDATE_GARBAGE_ROWS:
+                return encodeGarbageRows(action, payload[0], payload[1], frames, offset);
+        }
+
+        position = putLengthPrefix(action, length, frames, offset);
+        if (length > 0) System.arraycopy(payload, 0, frames, position, length);
+
+        return position + length - offset;
+    }
+
+    /**
+     * Encodes an {@link BoardMessageType#UPDATE_FALLING_TETROMINO} into the given buffer, from its fields.
+     *
+     * @param x             X coordinate.
+     * @param y             Y coordinate.
+     * @param rotationIndex Rotation state (0-3).
+     * @param locked        1 if the piece has locked into the grid, 0 otherwise.
+     * @param frames        The buffer, with room for the frame (at most 6 bytes).
+     * @param offset        The index where the frame is written.
+     * @return The length of the frame.
+     */
+    public static int encodeUpdate(byte x, byte y, byte rotationIndex, byte locked, byte[] frames, int offset) {
+        int position;
+
+        // Protocol: [X] [Y] [ROT] [LOCK_BOOL]
+        if (x + UPDATE_X_OFFSET >= 0 && x + UPDATE_X_OFFSET <= 0xF && (rotationIndex & ~0x3) == 0 && (locked & ~0x1) == 0) {
+            frames[offset] = (byte) (UPDATE_TAG | locked << 6 | rotationIndex << 4 | (x + UPDATE_X_OFFSET));
+            frames[offset + 1] = y;
+            return 2;
+        }
+
+        position = putLengthPrefix(BoardMessageType.UPDATE_FALLING_TETROMINO, 4, frames, offset);
+        frames[position++] = x;
+        frames[position++] = y;
+        frames[position++] = rotationIndex;
+        frames[position++] = locked;
+
+        return position - offset;
+    }
+
+    /**
+     * Encodes a {@link BoardMessageType#SEND_GARBAGE_ROWS} or an {@link BoardMessageType#UPDATE_GARBAGE_ROWS} into
+     * the given buffer, from its fields.
+     *
+     * @param action              The message type.
+     * @param numberOfGarbageRows Count of lines.
+     * @param emptyGarbageColumn  Column index for the hole.
+     * @param frames              The buffer, with room for the frame (at most 4 bytes).
+     * @param offset              The index where the frame is written.
+     * @return The length of the frame.
+     */
+    public static int encodeGarbageRows(BoardMessageType action, byte numberOfGarbageRows, byte emptyGarbageColumn, byte[] frames, int offset) {
+        int position;
+
+        // Protocol: [LINES] [EMPTY_COLUMN]
+        if (numberOfGarbageRows >= 0 && numberOfGarbageRows <= MAX_PACKED_GARBAGE_ROWS) {
+            frames[offset] = (byte) (GARBAGE_TAG | (action == BoardMessageType.UPDATE_GARBAGE_ROWS ? GARBAGE_UPDATE_FLAG : 0) | numberOfGarbageRows);
+            frames[offset + 1] = emptyGarbageColumn;
+            return 2;
+        }
+
+        position = putLengthPrefix(action, 2, frames, offset);
+        frames[position++] = numberOfGarbageRows;
+        frames[position++] = emptyGarbageColumn;
+
+        return position - offset;
+    }
+
+    /**
+     * Decodes the frame at the beginning of the given bytes.
+     *
+     * @param frames  The buffer holding the bytes, which may end in the middle of a frame.
+     * @param offset  The index of the first byte of the frame.
+     * @param length  The number of bytes available.
+     * @param message Where the message is decoded with one byte per field: its type (an ordinal, or a type this
+     *                client does not know, whose frame should be skipped) and its payload. It must hold
+     *                {@link #MAX_MESSAGE_LENGTH} bytes.
+     * @return The length of the frame, {@link #INCOMPLETE} or {@link #INVALID}.
+     */
+    public static int decode(byte[] frames, int offset, int length, byte[] message) {
+        int tag, payloadLength, headerLength;
+
+        if (length < 1) return INCOMPLETE;
+        tag = frames[offset] & 0xFF;
+
+        if ((tag & UPDATE_TAG) != 0) {
+            if (length < 2) return INCOMPLETE;
+
+            message[0] = (byte) BoardMessageType.UPDATE_FALLING_TETROMINO.ordinal();
+            message[1] = (byte) ((tag & 0xF) - UPDATE_X_OFFSET);
+            message[2] = frames[offset + 1];
+            message[3] = (byte) ((tag >>> 4) & 0x3);
+            message[4] = (byte) ((tag >>> 6) & 0x1);
+            return 2;
+        }
+
+        if ((tag & GARBAGE_TAG) != 0) {
+            if (length < 2) return INCOMPLETE;
+
+            message[0] = (byte) ((tag & GARBAGE_UPDATE_FLAG) != 0 ? BoardMessageType.UPDATE_GARBAGE_ROWS : BoardMessageType.SEND_GARBAGE_ROWS).ordinal();
+            message[1] = (byte) (tag & MAX_PACKED_GARBAGE_ROWS);
+            message[2] = frames[offset + 1];
+            return 2;
+        }
+
+        // Length-prefixed frame, whose varint length takes at most 2 bytes
+        if (length < 2) return INCOMPLETE;
+        payloadLength = frames[offset + 1] & 0x7F;
+        headerLength = 2;
+
+        if ((frames[offset + 1] & 0x80) != 0) {
+            if (length < 3) return INCOMPLETE;
+            if ((frames[offset + 2] & 0x80) != 0) return INVALID;
+
+            payloadLength |= (frames[offset + 2] & 0x7F) << 7;
+            headerLength = 3;
+        }
+
+        if (payloadLength > MAX_PAYLOAD_LENGTH) return INVALID;
+        if (tag < MESSAGE_TYPES.length && payloadLength != MESSAGE_TYPES[tag].getPayloadLength()) return INVALID;
+        if (length < headerLength + payloadLength) return INCOMPLETE;
+
+        message[0] = (byte) tag;
+        if (tag < MESSAGE_TYPES.length) System.arraycopy(frames, offset + headerLength, message, 1, payloadLength);
+
+        return headerLength + payloadLength;
+    }
+
+    // ---------------------------------------------------------------------------------
+    // Auxiliary methods
+
+    /**
+     * Writes the tag and the length of a length-prefixed frame.
+     *
+     * @param action The message type.
+     * @param length The length of the payload.
+     * @param frames The buffer.
+     * @param offset The index where the frame is written.
+     * @return The index of the payload.
+     */
+    private static int putLengthPrefix(BoardMessageType action, int length, byte[] frames, int offset) {
+        int position = offset;
+
+        frames[position++] = (byte) action.ordinal();
+
+        // Varint: 7 bits per byte, the high bit tells another byte follows
+        if (length < 0x80) frames[position++] = (byte) length;
+        else {
+            frames[position++] = (byte) (0x80 | (length & 0x7F));
+            frames[position++] = (byte) (length >>> 7);
+        }
+
+        return position;
+    }
+}
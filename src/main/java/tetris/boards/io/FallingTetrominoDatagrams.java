@@ -0,0 +1,125 @@
+package tetris.boards.io;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * Carries the updates of the falling tetromino that has not locked yet over UDP, through the server relay.
+ * <p>
+ * These updates are the latest position of the piece, so losing one only matters until the next one arrives (a frame
+ * later). Sent over TCP, a lost segment holds back every later update until it is retransmitted, and the rival's
+ * piece stutters. Everything else (locks, holds and garbage) keeps going over the TCP stream, where nothing is lost
+ * or applied twice.
+ * </p>
+ * <p>
+ * <b>Protocol:</b> once the server has sent {@link BoardMessageType#START_DATAGRAM_UPDATES}, the client sends its
+ * token alone (so the server learns its address) and then a datagram per update
+ * {@code [TOKEN (long), EPOCH (int), SEQUENCE (int), X, Y, ROTATION]} to the port of the server. The server drops the
+ * token and forwards the rest to the rival.
+ * </p>
+ * <p>
+ * The sequence orders the updates, older ones are dropped. The epoch is the number of locks and holds the sender had
+ * sent over TCP when it sent the update, so an update is only applied to the piece it was sent for: one of the previous
+ * piece arriving late, or one of the next piece arriving before the lock over TCP, is dropped too.
+ * </p>
+ */
+public class FallingTetrominoDatagrams {
+    /** Length of the update as the rival receives it: {@code [EPOCH, SEQUENCE, X, Y, ROTATION]}. */
+    public static final int UPDATE_LENGTH = Integer.BYTES + Integer.BYTES + 3;
+
+    /** Length of an update as the client sends it (with its token in front). */
+    public static final int DATAGRAM_LENGTH = Long.BYTES + UPDATE_LENGTH;
+
+    private final DatagramSocket socket;
+    private final long token;
+    private final ByteBuffer sendBuffer;
+    private final DatagramPacket sendPacket;
+
+    /**
+     * Opens a socket bound to the server relay and sends it the token.
+     *
+     * @param serverAddress The address of the server relaying the match.
+     * @param serverPort    The port of the server (the same for TCP and UDP).
+     * @param token         The token sent by the server.
+     * @throws IOException If the socket can not be opened.
+     */
+    public FallingTetrominoDatagrams(InetAddress serverAddress, int serverPort, long token) throws IOException {
+        this.token = token;
+        socket = new DatagramSocket();
+        socket.connect(serverAddress, serverPort);
+
+        sendBuffer = ByteBuffer.allocate(DATAGRAM_LENGTH);
+        sendPacket = new DatagramPacket(sendBuffer.array(), DATAGRAM_LENGTH);
+
+        sendBuffer.putLong(token);
+        socket.send(new DatagramPacket(sendBuffer.array(), Long.BYTES));
+    }
+
+    /**
+     * Sends an update of the falling tetromino. An update that can not be sent is dropped, just like a lost one.
+     *
+     * @param epoch         The number of locks and holds sent so far.
+     * @param sequence      The sequence number of the update.
+     * @param x             X coordinate.
+     * @param y             Y coordinate.
+     * @param rotationIndex Rotation state (0-3).
+     */
+    public synchronized void send(int epoch, int sequence, byte x, byte y, byte rotationIndex) {
+        sendBuffer.clear();
+        sendBuffer.putLong(token).putInt(epoch).putInt(sequence).put(x).put(y).put(rotationIndex);
+
+        try { socket.send(sendPacket); }
+        catch (IOException ioe) { /* Lost like any other datagram, the next update replaces it */ }
+    }
+
+    /**
+     * Starts a daemon thread that applies the updates of the rival until the socket is closed.
+     *
+     * @param receiverBoardInputHandler The handler of the rival's board.
+     */
+    public void startReceiving(ReceiverBoardInputHandler receiverBoardInputHandler) {
+        Thread receiver = new Thread(() -> receive(receiverBoardInputHandler), "falling-tetromino-datagrams");
+
+        receiver.setDaemon(true);
+        receiver.start();
+    }
+
+    /**
+     * Closes the socket, which also stops the receiving thread.
+     */
+    public void close() { socket.close(); }
+
+    // ---------------------------------------------------------------------------------
+    // Auxiliary methods
+
+    /**
+     * Receives datagrams until the socket is closed, dropping the ones that are not updates.
+     *
+     * @param receiverBoardInputHandler The handler of the rival's board.
+     */
+    private void receive(ReceiverBoardInputHandler receiverBoardInputHandler) {
+        // One byte more than an update, so longer datagrams are recognized instead of truncated
+        ByteBuffer receiveBuffer = ByteBuffer.allocate(UPDATE_LENGTH + 1);
+        DatagramPacket receivePacket = new DatagramPacket(receiveBuffer.array(), receiveBuffer.capacity());
+
+        while (!socket.isClosed()) {
+            try {
+                receivePacket.setLength(receiveBuffer.capacity());
+                socket.receive(receivePacket);
+            }
+            catch (IOException ioe) {
+                // The socket has been closed, or an ICMP error has been reported (e.g., the port was unreachable)
+                if (socket.isClosed()) return;
+                continue;
+            }
+
+            if (receivePacket.getLength() != UPDATE_LENGTH) continue;
+
+            receiveBuffer.clear();
+            receiverBoardInputHandler.applyDatagramUpdate(receiveBuffer.getInt(), receiveBuffer.getInt(), receiveBuffer.get(), receiveBuffer.get(), receiveBuffer.get());
+        }
+    }
+}
@@ -3,10 +3,9 @@ package tetris.boards.io;
 import tetris.boards.ReceiverBoard;
 import client.userInterface.panels.tetris.twoPlayerPanels.TwoPlayersTetrisPanel;
 
-import java.io.DataInputStream;
-import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 
 /**
  * A specialized Thread that listens for incoming game updates from an input stream.
@@ -15,10 +14,34 @@ import java.io.InputStream;
  * bytes from the stream, determines the message type using {@link BoardMessageType}, and
  * delegates the action to the {@link ReceiverBoard} to update the visual state.
  * </p>
+ * <p>
+ * The stream is read in bulk into a reusable buffer, and every complete message in it is applied at once. A message
+ * split between two reads stays at the end of the buffer until the rest of it arrives, so a burst of messages costs a
+ * single read instead of one per byte.
+ * </p>
+ * <p>
+ * If the match has negotiated it, the messages arrive in the compact encoding (see {@link CompactBoardMessages}) and
+ * each frame is decoded into a message with one byte per field before it is applied.
+ * </p>
+ * <p>
+ * If the match has negotiated the framing (see {@link BoardFrames}), the messages arrive in frames, which are only
+ * applied once they are complete. A frame of another version is skipped, and so is the rest of a frame after a message
+ * of an unknown type. A frame out of sequence means the stream can no longer be trusted, and it is handled as a broken
+ * connection.
+ * </p>
+ * <p>
+ * The updates of the falling tetromino may also arrive as datagrams (see {@link FallingTetrominoDatagrams}) on
+ * another thread, so every change to the board is made while holding {@link #boardLock}.
+ * </p>
  */
 public class ReceiverBoardInputHandler extends Thread {
-    /** The input stream wrapper for reading primitive data types. */
-    protected final DataInputStream boardsInputReceiver;
+    /** Size of the read buffer, which holds the longest frame (and many times the longest message). */
+    public static final int READ_BUFFER_SIZE = BoardFrames.MAX_FRAME_LENGTH;
+
+    private static final BoardMessageType[] MESSAGE_TYPES = BoardMessageType.values();
+
+    /** The raw input stream (socket or pipe) to read from. */
+    protected final InputStream boardsInputReceiver;
 
     /** The local representation of the remote board to update. */
     protected final ReceiverBoard updatesReceiverBoard;
@@ -26,6 +49,20 @@ public class ReceiverBoardInputHandler extends Thread {
     /** The game panel, used to handle connection lifecycle events (errors, closure). */
     protected final TwoPlayersTetrisPanel twoPlayersTetrisPanel;
 
+    /** Lock held while changing the board, which is also changed by the datagram updates. */
+    protected final Object boardLock;
+
+    /** Number of locks and holds of the rival applied so far (see {@link FallingTetrominoDatagrams}). */
+    protected int fallingTetrominoEpoch;
+
+    private final byte[] readBuffer;
+    private final byte[] message;
+    private boolean compactEncoding;
+    private boolean framing;
+    private int expectedSequence;
+    private int lastDatagramSequence;
+    private boolean firstMessage;
+
     /**
      * Creates a new input handler thread.
      *
@@ -34,30 +71,55 @@ public class ReceiverBoardInputHandler extends Thread {
      * @param twoPlayersTetrisPanel The main game panel controller.
      */
     public ReceiverBoardInputHandler(InputStream boardsInputReceiver, ReceiverBoard updatesReceiverBoard, TwoPlayersTetrisPanel twoPlayersTetrisPanel) {
-        this.boardsInputReceiver = new DataInputStream(boardsInputReceiver);
+        this.boardsInputReceiver = boardsInputReceiver;
         this.updatesReceiverBoard = updatesReceiverBoard;
         this.twoPlayersTetrisPanel = twoPlayersTetrisPanel;
+        boardLock = new Object();
+        readBuffer = new byte[READ_BUFFER_SIZE];
+        message = new byte[CompactBoardMessages.MAX_MESSAGE_LENGTH];
+        compactEncoding = false;
+        framing = false;
+        expectedSequence = 0;
+        fallingTetrominoEpoch = 0;
+        lastDatagramSequence = 0;
+        firstMessage = true;
     }
 
+    /**
+     * Sets whether the messages arrive in the compact encoding. Must be called before the thread is started.
+     *
+     * @param compactEncoding Whether the match has negotiated the compact encoding.
+     */
+    public void setCompactEncoding(boolean compactEncoding) { this.compactEncoding = compactEncoding; }
+
+    /**
+     * Sets whether the messages arrive in frames. Must be called before the thread is started.
+     *
+     * @param framing Whether the match has negotiated the framing.
+     */
+    public void setFraming(boolean framing) { this.framing = framing; }
+
     /**
      * The main listening loop.
      * <p>
-     * Continuously reads message types and payloads. If the stream closes (EOF) or breaks,
-     * it notifies the panel to handle the disconnection.
+     * Continuously reads the bytes available and applies the complete messages among them. If the stream closes (EOF)
+     * or breaks, it notifies the panel to handle the disconnection.
      * </p>
      */
     @Override
     public void run() {
-        BoardMessageType action;
+        int bufferedBytes = 0, readBytes, appliedBytes;
 
-        // The loop terminates naturally when readMessageType() throws an exception (EOF or IO)
         try {
-            while (true) {
-                action = readMessageType();
-                sendMessageToBoard(action);
+            while ((readBytes = boardsInputReceiver.read(readBuffer, bufferedBytes, readBuffer.length - bufferedBytes)) != -1) {
+                bufferedBytes += readBytes;
+                appliedBytes = applyMessages(bufferedBytes);
+
+                // The beginning of a message split between two reads is moved to the front, where the rest will follow
+                bufferedBytes -= appliedBytes;
+                System.arraycopy(readBuffer, appliedBytes, readBuffer, 0, bufferedBytes);
             }
-        }
-        catch (EOFException eofe) {
+
             // Stream closed normally (e.g., opponent quit or game ended)
             twoPlayersTetrisPanel.closeCommunications();
         }
@@ -68,13 +130,26 @@ public class ReceiverBoardInputHandler extends Thread {
     }
 
     /**
-     * Reads a single byte and converts it to the corresponding enum constant.
+     * Applies an update of the falling tetromino received as a datagram, unless a newer one has already been applied or
+     * it was not sent for the piece the board is showing.
      *
-     * @return The message type.
-     * @throws IOException If an I/O error occurs.
+     * @param epoch         The number of locks and holds the rival had sent with the update.
+     * @param sequence      The sequence number of the update.
+     * @param x             X coordinate.
+     * @param y             Y coordinate.
+     * @param rotationIndex Rotation state (0-3).
      */
-    protected BoardMessageType readMessageType() throws IOException {
-        return BoardMessageType.values()[boardsInputReceiver.readByte()];
+    public void applyDatagramUpdate(int epoch, int sequence, byte x, byte y, byte rotationIndex) {
+        synchronized (boardLock) {
+            // Compared by difference so the sequence can wrap around
+            if (epoch != fallingTetrominoEpoch || sequence - lastDatagramSequence <= 0) return;
+
+            lastDatagramSequence = sequence;
+            if (updatesReceiverBoard != null) {
+                updatesReceiverBoard.setFallingTetrominoXYRotationIndex(x, y, rotationIndex);
+                updatesReceiverBoard.update();
+            }
+        }
     }
 
     /**
@@ -84,25 +159,122 @@ public class ReceiverBoardInputHandler extends Thread {
      * Subclasses should override this to handle additional message types.
      * </p>
      *
-     * @param action The message type to process.
-     * @throws IOException If reading the payload fails.
+     * @param action  The message type to process.
+     * @param message The buffer holding the message, complete.
+     * @param payload The index of the first byte of the payload.
      */
-    protected void sendMessageToBoard(BoardMessageType action) throws IOException {
+    protected void sendMessageToBoard(BoardMessageType action, byte[] message, int payload) {
         byte x, y, rotationIndex;
         boolean isLocked;
+        long token;
 
         if (action == BoardMessageType.UPDATE_FALLING_TETROMINO) {
             // Protocol: [X] [Y] [ROT] [LOCK_BOOL]
-            x = boardsInputReceiver.readByte();
-            y = boardsInputReceiver.readByte();
-            rotationIndex = boardsInputReceiver.readByte();
-            isLocked = (boardsInputReceiver.readByte() == 1);
+            x = message[payload];
+            y = message[payload + 1];
+            rotationIndex = message[payload + 2];
+            isLocked = (message[payload + 3] == 1);
 
-            if (updatesReceiverBoard != null)  {
-                updatesReceiverBoard.setFallingTetrominoXYRotationIndex(x, y, rotationIndex);
-                if (isLocked) updatesReceiverBoard.lockFallingTetromino();
-                updatesReceiverBoard.update();
+            synchronized (boardLock) {
+                if (updatesReceiverBoard != null)  {
+                    updatesReceiverBoard.setFallingTetrominoXYRotationIndex(x, y, rotationIndex);
+                    if (isLocked) updatesReceiverBoard.lockFallingTetromino();
+                    updatesReceiverBoard.update();
+                }
+                if (isLocked) fallingTetrominoEpoch++;
             }
         }
+        else if (action == BoardMessageType.START_DATAGRAM_UPDATES) {
+            // Protocol: [TOKEN]. Only the server sends it, before anything the rival sends
+            token = ByteBuffer.wrap(message, payload, Long.BYTES).getLong();
+            if (firstMessage) twoPlayersTetrisPanel.startDatagramUpdates(token);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------
+    // Auxiliary methods
+
+    /**
+     * Applies every complete message (or, with the framing, every complete frame) at the beginning of the read buffer.
+     *
+     * @param bufferedBytes The number of bytes in the buffer.
+     * @return The number of bytes applied (the rest is the beginning of a message or a frame).
+     * @throws IOException If the bytes can not be parsed.
+     */
+    private int applyMessages(int bufferedBytes) throws IOException {
+        int position = 0, frameLength, frameEnd;
+
+        if (!framing) return applyMessages(0, bufferedBytes, false);
+
+        while (position < bufferedBytes) {
+            frameLength = BoardFrames.getFrameLength(readBuffer, position, bufferedBytes - position);
+            if (frameLength == BoardFrames.INVALID) throw new IOException("Invalid board frame length");
+            if (frameLength == BoardFrames.INCOMPLETE || position + frameLength > bufferedBytes) break;
+
+            frameEnd = position + frameLength;
+
+            // Frames of other versions are skipped, and the frames of the server are not part of the sequence
+            if (BoardFrames.getVersion(readBuffer, position) == BoardFrames.VERSION) {
+                if (BoardFrames.getFrameNumber(readBuffer, position) != BoardFrames.SERVER_FRAME_NUMBER) {
+                    if (BoardFrames.getSequence(readBuffer, position) != expectedSequence) throw new IOException("Board frame out of sequence");
+                    expectedSequence = (expectedSequence + 1) & 0xFF;
+                }
+
+                if (applyMessages(BoardFrames.getMessagesOffset(readBuffer, position), frameEnd, true) != frameEnd) {
+                    throw new IOException("Board frame ending in the middle of a message");
+                }
+            }
+
+            position = frameEnd;
+        }
+
+        return position;
+    }
+
+    /**
+     * Applies every complete message in a range of the read buffer.
+     *
+     * @param start   The index of the first message.
+     * @param end     The index right after the last byte.
+     * @param inFrame Whether the range is a whole frame, whose end is known, so the messages after one of an unknown
+     *                type can be skipped.
+     * @return The index right after the last message applied (or skipped).
+     * @throws IOException If a message has an unknown type out of a frame (or, in the compact encoding, a frame is not
+     *                     valid).
+     */
+    private int applyMessages(int start, int end, boolean inFrame) throws IOException {
+        int position = start, type, frameLength;
+        BoardMessageType action;
+
+        while (position < end) {
+            if (compactEncoding) {
+                frameLength = CompactBoardMessages.decode(readBuffer, position, end - position, message);
+                if (frameLength == CompactBoardMessages.INVALID) throw new IOException("Invalid compact board message");
+                if (frameLength == CompactBoardMessages.INCOMPLETE) break;
+
+                // Frames of message types this client does not know are skipped
+                if (message[0] < MESSAGE_TYPES.length) {
+                    sendMessageToBoard(MESSAGE_TYPES[message[0]], message, 1);
+                    firstMessage = false;
+                }
+                position += frameLength;
+                continue;
+            }
+
+            type = readBuffer[position];
+            if (type < 0 || type >= MESSAGE_TYPES.length) {
+                if (inFrame) return end;
+                throw new IOException("Unknown board message type " + type);
+            }
+
+            action = MESSAGE_TYPES[type];
+            if (position + 1 + action.getPayloadLength() > end) break;
+
+            sendMessageToBoard(action, readBuffer, position + 1);
+            firstMessage = false;
+            position += 1 + action.getPayloadLength();
+        }
+
+        return position;
     }
-}
\ No newline at end of file
+}
@@ -4,7 +4,6 @@ import tetris.boards.modernTetris.ReceiverModernTetrisBoard;
 import tetris.boards.modernTetris.SenderModernTetrisBoardWithPhysics;
 import client.userInterface.panels.tetris.twoPlayerPanels.TwoPlayersTetrisPanel;
 
-import java.io.IOException;
 import java.io.InputStream;
 
 /**
@@ -42,38 +41,44 @@ public class ReceiverModernTetrisBoardInputHandler extends ReceiverBoardInputHan
     /**
      * Extends the base message handling to support Modern Tetris actions.
      *
-     * @param action The message type to process.
-     * @throws IOException If reading the payload fails.
+     * @param action  The message type to process.
+     * @param message The buffer holding the message, complete.
+     * @param payload The index of the first byte of the payload.
      */
     @Override
-    protected void sendMessageToBoard(BoardMessageType action) throws IOException {
+    protected void sendMessageToBoard(BoardMessageType action, byte[] message, int payload) {
         byte numberOfGarbageRowsToAdd, emptyGarbageColumnToAdd;
         byte numberOfGarbageRowsToUpdate, emptyGarbageColumnToUpdate;
 
         // Process standard movement updates first
-        super.sendMessageToBoard(action);
+        super.sendMessageToBoard(action, message, payload);
 
         switch (action) {
             case SEND_GARBAGE_ROWS:
                 // Opponent sent an attack. Read lines and hole position, then apply to local board.
-                numberOfGarbageRowsToAdd = boardsInputReceiver.readByte();
-                emptyGarbageColumnToAdd = boardsInputReceiver.readByte();
+                numberOfGarbageRowsToAdd = message[payload];
+                emptyGarbageColumnToAdd = message[payload + 1];
                 garbageReceiverBoard.addGarbage(numberOfGarbageRowsToAdd, emptyGarbageColumnToAdd);
                 break;
 
             case UPDATE_TETROMINO_HOLDER:
                 // Opponent performed a hold. Update their visual board.
-                if (updatesReceiverModernTetrisBoard != null) {
-                    updatesReceiverModernTetrisBoard.hold();
+                synchronized (boardLock) {
+                    if (updatesReceiverModernTetrisBoard != null) {
+                        updatesReceiverModernTetrisBoard.hold();
+                    }
+                    fallingTetrominoEpoch++;
                 }
                 break;
 
             case UPDATE_GARBAGE_ROWS:
                 // Update the visual indicator of pending garbage on the opponent's board.
-                numberOfGarbageRowsToUpdate = boardsInputReceiver.readByte();
-                emptyGarbageColumnToUpdate = boardsInputReceiver.readByte();
-                if (updatesReceiverModernTetrisBoard != null) {
-                    updatesReceiverModernTetrisBoard.addGarbage(numberOfGarbageRowsToUpdate, emptyGarbageColumnToUpdate);
+                numberOfGarbageRowsToUpdate = message[payload];
+                emptyGarbageColumnToUpdate = message[payload + 1];
+                synchronized (boardLock) {
+                    if (updatesReceiverModernTetrisBoard != null) {
+                        updatesReceiverModernTetrisBoard.addGarbage(numberOfGarbageRowsToUpdate, emptyGarbageColumnToUpdate);
+                    }
                 }
                 break;
         }
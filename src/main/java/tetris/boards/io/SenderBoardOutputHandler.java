@@ -2,9 +2,10 @@ package tetris.boards.io;
 
 import client.userInterface.panels.tetris.twoPlayerPanels.TwoPlayersTetrisPanel;
 
-import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Handles the encoding and transmission of game events to an output stream.
@@ -13,11 +14,54 @@ import java.io.OutputStream;
  * of the local client). It provides high-level methods to send game actions, which are
  * then serialized into the byte protocol defined in {@link BoardMessageType}.
  * </p>
+ * <p>
+ * The messages are not written one by one: they are gathered and written (and flushed) together once per frame, when
+ * the board sends the update of its falling tetromino at the end of its update. An update that does not change the
+ * falling tetromino is not sent at all, unless nothing has been sent about it for
+ * {@value #UNCHANGED_UPDATE_INTERVAL_MILLISECONDS} ms (so a lost datagram is eventually corrected and the server does
+ * not take the player for gone). The counters of messages, bytes and writes show the traffic actually sent.
+ * </p>
+ * <p>
+ * Once {@link #startWriter()} has been called, the messages of each frame are published to a {@link BoardMessageWriter}
+ * instead, whose thread writes them, so a slow network never holds the game loop. If the writer falls so far behind
+ * that its buffer overflows, the connection is reported as broken.
+ * </p>
+ * <p>
+ * If the match has negotiated them, the messages are written in the compact encoding (see {@link CompactBoardMessages})
+ * and each write is a frame with the number of the frame it is sent in and its sequence (see {@link BoardFrames}).
+ * The messages are encoded straight into the buffer of the frame, after room for its header, so sending them does not
+ * allocate anything.
+ * </p>
+ * <p>
+ * Once {@link #startDatagramUpdates(FallingTetrominoDatagrams)} has been called, the updates of the falling tetromino
+ * that has not locked yet are sent as datagrams instead, and every other message keeps going over the stream.
+ * </p>
  */
 public class SenderBoardOutputHandler {
+    /** Time after which an update that does not change the falling tetromino is sent anyway. */
+    public static final int UNCHANGED_UPDATE_INTERVAL_MILLISECONDS = 250;
+
+    /** Time {@link #flushMessages()} waits for the writer thread to write what has been published. */
+    public static final int FLUSH_TIMEOUT_MILLISECONDS = 1000;
+
     private final TwoPlayersTetrisPanel twoPlayersTetrisPanel;
-    private final DataOutputStream dataOutputStream;
+    private final OutputStream outputStream;
+    private final PendingMessages pendingMessages;
+    private BoardMessageWriter boardMessageWriter;
+    private boolean compactEncoding;
+    private boolean framing;
+    private int frameNumber;
+    private int frameSequence;
     private boolean connectionLost;
+    private FallingTetrominoDatagrams fallingTetrominoDatagrams;
+    private int fallingTetrominoEpoch;
+    private int datagramSequence;
+    private int lastUpdate;
+    private long lastUpdateSentAt;
+    private long sentMessages;
+    private long sentBytes;
+    private long writes;
+    private long skippedUpdates;
 
     /**
      * Creates a new output handler.
@@ -27,10 +71,30 @@ public class SenderBoardOutputHandler {
      */
     public SenderBoardOutputHandler(OutputStream outputStream, TwoPlayersTetrisPanel twoPlayersTetrisPanel) {
         this.twoPlayersTetrisPanel = twoPlayersTetrisPanel;
-        this.dataOutputStream = new DataOutputStream(outputStream);
+        this.outputStream = outputStream;
+        pendingMessages = new PendingMessages();
+        boardMessageWriter = null;
+        compactEncoding = false;
+        framing = false;
+        frameNumber = 1;
+        frameSequence = 0;
         connectionLost = false;
+        fallingTetrominoDatagrams = null;
+        fallingTetrominoEpoch = 0;
+        datagramSequence = 0;
+        lastUpdate = -1;
+        lastUpdateSentAt = 0;
+        sentMessages = 0;
+        sentBytes = 0;
+        writes = 0;
+        skippedUpdates = 0;
     }
 
+    public synchronized long getSentMessages() { return sentMessages; }
+    public synchronized long getSentBytes() { return sentBytes; }
+    public synchronized long getWrites() { return boardMessageWriter != null ? boardMessageWriter.getWrites() : writes; }
+    public synchronized long getSkippedUpdates() { return skippedUpdates; }
+
     /**
      * Sends a command to attack the opponent with garbage lines.
      *
@@ -38,15 +102,12 @@ public class SenderBoardOutputHandler {
      * @param emptyGarbageColumn  Column index for the hole.
      */
     public void sendAddGarbageMessage(byte numberOfGarbageRows, byte emptyGarbageColumn) {
-        sendMessage(BoardMessageType.SEND_GARBAGE_ROWS, new byte[] {
-                numberOfGarbageRows,
-                emptyGarbageColumn
-        });
+        addGarbageRowsMessage(BoardMessageType.SEND_GARBAGE_ROWS, numberOfGarbageRows, emptyGarbageColumn);
     }
 
     /**
-     * Sends the current position and state of the falling tetromino.
-     * This is typically called every frame or every update cycle.
+     * Sends the current position and state of the falling tetromino, if it has changed, together with every message
+     * gathered since the previous frame. It must be called once per frame, at the end of the board update.
      *
      * @param x                        X coordinate.
      * @param y                        Y coordinate.
@@ -54,70 +115,336 @@ public class SenderBoardOutputHandler {
      * @param isFallingTetrominoLocked Whether the piece has locked into the grid.
      */
     public void sendUpdateMessage(byte x, byte y, byte rotationIndex, boolean isFallingTetrominoLocked) {
-        sendMessage(BoardMessageType.UPDATE_FALLING_TETROMINO, new byte[] {
-                x,
-                y,
-                rotationIndex,
-                (byte) (isFallingTetrominoLocked ? 1 : 0)
-        });
+        if (!sendFrameMessages(x, y, rotationIndex, isFallingTetrominoLocked)) twoPlayersTetrisPanel.handleConnectionError();
     }
 
     /**
-     * Sends a signal that the local player has performed a Hold action.
+     * Sends a signal that the local player has performed a Hold action (with the messages of the next frame).
      */
-    public void sendHoldMessage() {
-        sendMessage(BoardMessageType.UPDATE_TETROMINO_HOLDER, null);
+    public synchronized void sendHoldMessage() {
+        addHoldMessage();
+        fallingTetrominoEpoch++;
+
+        // The piece taken out of the hold may be where the held one was, it must be sent anyway
+        lastUpdate = -1;
     }
 
     /**
-     * Sends an update about the garbage currently pending in the local buffer.
+     * Sends an update about the garbage currently pending in the local buffer (with the messages of the next frame).
      *
      * @param numberOfGarbageRows Count of pending lines.
      * @param emptyGarbageColumn  Column index for the hole.
      */
     public void sendUpdateGarbageMessage(byte numberOfGarbageRows, byte emptyGarbageColumn) {
-        sendMessage(BoardMessageType.UPDATE_GARBAGE_ROWS, new byte[] {
-                numberOfGarbageRows,
-                emptyGarbageColumn
-        });
+        addGarbageRowsMessage(BoardMessageType.UPDATE_GARBAGE_ROWS, numberOfGarbageRows, emptyGarbageColumn);
+    }
+
+    /**
+     * Writes and flushes the messages gathered since the last write (e.g., before shutting down the output). With a
+     * writer thread, it waits up to {@value #FLUSH_TIMEOUT_MILLISECONDS} ms until they have been written.
+     */
+    public void flushMessages() {
+        BoardMessageWriter writer;
+        boolean written;
+
+        synchronized (this) {
+            written = writePendingMessages();
+            writer = boardMessageWriter;
+        }
+
+        if (!written) twoPlayersTetrisPanel.handleConnectionError();
+        else if (writer != null) writer.drain(FLUSH_TIMEOUT_MILLISECONDS);
+    }
+
+    /**
+     * Starts a writer thread for the messages, so they are no longer written by the thread that sends them.
+     */
+    public synchronized void startWriter() {
+        boardMessageWriter = new BoardMessageWriter(outputStream, twoPlayersTetrisPanel::handleConnectionError);
+    }
+
+    /**
+     * Sets whether the messages are written in the compact encoding. Must be called before anything is sent.
+     *
+     * @param compactEncoding Whether the match has negotiated the compact encoding.
+     */
+    public synchronized void setCompactEncoding(boolean compactEncoding) { this.compactEncoding = compactEncoding; }
+
+    /**
+     * Sets whether each write is framed. Must be called before anything is sent.
+     *
+     * @param framing Whether the match has negotiated the framing.
+     */
+    public synchronized void setFraming(boolean framing) {
+        this.framing = framing;
+        pendingMessages.setPrefixLength(framing ? BoardFrames.MAX_PREFIX_LENGTH : 0);
+    }
+
+    /**
+     * Stops the writer thread, if any (e.g., once the stream has been closed).
+     */
+    public synchronized void close() {
+        if (boardMessageWriter != null) boardMessageWriter.close();
     }
 
     /**
      * Marks the connection as broken to prevent further write attempts.
      */
-    public void notifyConnectionLost() { this.connectionLost = true; }
+    public synchronized void notifyConnectionLost() { this.connectionLost = true; }
+
+    /**
+     * Sends the next updates of the falling tetromino that has not locked yet as datagrams.
+     *
+     * @param fallingTetrominoDatagrams The datagram socket opened for the match.
+     */
+    public synchronized void startDatagramUpdates(FallingTetrominoDatagrams fallingTetrominoDatagrams) {
+        this.fallingTetrominoDatagrams = fallingTetrominoDatagrams;
+        lastUpdate = -1;
+    }
 
     // ---------------------------------------------------------------------------------
     // Auxiliary methods
 
     /**
-     * Thread-safe method to serialize and write a message to the stream.
+     * Gathers the update of the falling tetromino, if it has changed, and writes the messages of the frame (see
+     * {@link #sendUpdateMessage(byte, byte, byte, boolean)}).
      *
-     * @param action  The message type.
-     * @param content The payload bytes (can be null for signal-only messages).
+     * @param x                        X coordinate.
+     * @param y                        Y coordinate.
+     * @param rotationIndex            Rotation state (0-3).
+     * @param isFallingTetrominoLocked Whether the piece has locked into the grid.
+     * @return {@code false} if the connection is broken, which the caller reports once it has released the lock.
      */
-    private synchronized void sendMessage(BoardMessageType action, byte[] content) {
+    private synchronized boolean sendFrameMessages(byte x, byte y, byte rotationIndex, boolean isFallingTetrominoLocked) {
+        int update = (x & 0xFF) << 24 | (y & 0xFF) << 16 | (rotationIndex & 0xFF) << 8 | (isFallingTetrominoLocked ? 1 : 0);
+        long now = System.nanoTime();
+        boolean datagram = fallingTetrominoDatagrams != null && !isFallingTetrominoLocked, written;
+
+        if (update == lastUpdate && now - lastUpdateSentAt < TimeUnit.MILLISECONDS.toNanos(UNCHANGED_UPDATE_INTERVAL_MILLISECONDS)) {
+            skippedUpdates++;
+            datagram = false;
+        }
+        else {
+            lastUpdate = update;
+            lastUpdateSentAt = now;
+
+            // Only the lock has to arrive, the other updates are superseded by the next one
+            if (!datagram) {
+                addUpdateMessage(x, y, rotationIndex, (byte) (isFallingTetrominoLocked ? 1 : 0));
+
+                if (isFallingTetrominoLocked) {
+                    fallingTetrominoEpoch++;
+
+                    // The next piece may lock right where this one did (once the lines are cleared), it is a new update
+                    lastUpdate = -1;
+                }
+            }
+        }
+
+        written = writePendingMessages();
+        frameNumber = frameNumber % BoardFrames.MAX_FRAME_NUMBER + 1;
+
+        // Sent after the locks and holds of this frame, or the rival would drop it for being of the next piece
+        if (datagram && !connectionLost) {
+            fallingTetrominoDatagrams.send(fallingTetrominoEpoch, ++datagramSequence, x, y, rotationIndex);
+            sentMessages++;
+            sentBytes += FallingTetrominoDatagrams.DATAGRAM_LENGTH;
+        }
+
+        return written;
+    }
+
+    /**
+     * Writes the messages gathered since the last write, or publishes them to the writer thread.
+     * <p>
+     * A broken connection is not reported to the panel here: the panel takes its own lock before this one (e.g., to
+     * flush the messages before closing the socket), so the caller reports it once it has released this lock.
+     * </p>
+     *
+     * @return {@code false} if the connection is broken.
+     */
+    private synchronized boolean writePendingMessages() {
+        boolean written = true;
+        byte[] bytes = pendingMessages.getBuffer();
+        int offset = 0, length = pendingMessages.size();
+
         // If the connection is known to be dead, do not attempt to write.
         // This allows games (like NES mode) to continue locally even if the opponent disconnects.
-        if (connectionLost) return;
+        if (connectionLost || length == 0) {
+            pendingMessages.reset();
+            return true;
+        }
 
-        try {
-            // Write Message Type ID
-            dataOutputStream.writeByte((byte) action.ordinal());
+        if (framing) {
+            offset = BoardFrames.encodeInPlace(bytes, 0, length, frameNumber, frameSequence++);
 
-            // Write Payload
-            if (content != null) {
-                for (byte b : content) {
-                    dataOutputStream.writeByte(b);
-                }
+            if (offset < 0) {
+                pendingMessages.reset();
+                System.out.println("Board messages do not fit in a frame, closing the connection");
+                return false;
             }
+            length = pendingMessages.getEnd() - offset;
+        }
+
+        sentBytes += length;
+
+        if (boardMessageWriter != null) {
+            // Never blocks: a writer that is that far behind means the connection is as good as lost
+            if (!boardMessageWriter.publish(bytes, offset, length)) {
+                System.out.println("Board messages overflowed the writer buffer, closing the connection");
+                written = false;
+            }
+        }
+        else {
+            try {
+                outputStream.write(bytes, offset, length);
+                outputStream.flush();
+                writes++;
+            }
+            catch (IOException ioe) {
+                // If writing fails, we assume the connection is broken.
+                // The caller notifies the panel to handle the error UI/logic.
+                written = false;
+            }
+        }
+
+        pendingMessages.reset();
+        return written;
+    }
+
+    /**
+     * Thread-safe method to serialize an update of the falling tetromino and add it to the messages written in the
+     * next frame.
+     *
+     * @param x             X coordinate.
+     * @param y             Y coordinate.
+     * @param rotationIndex Rotation state (0-3).
+     * @param locked        1 if the piece has locked into the grid, 0 otherwise.
+     */
+    private synchronized void addUpdateMessage(byte x, byte y, byte rotationIndex, byte locked) {
+        byte[] buffer;
+
+        if (connectionLost) return;
+
+        if (compactEncoding) {
+            buffer = pendingMessages.reserve(CompactBoardMessages.MAX_FRAME_LENGTH);
+            pendingMessages.advance(CompactBoardMessages.encodeUpdate(x, y, rotationIndex, locked, buffer, pendingMessages.getEnd()));
+        }
+        else {
+            // Protocol: [ID] [X] [Y] [ROT] [LOCK_BOOL]
+            pendingMessages.write(BoardMessageType.UPDATE_FALLING_TETROMINO.ordinal());
+            pendingMessages.write(x);
+            pendingMessages.write(y);
+            pendingMessages.write(rotationIndex);
+            pendingMessages.write(locked);
+        }
+
+        sentMessages++;
+    }
+
+    /**
+     * Thread-safe method to serialize a garbage message and add it to the ones written in the next frame.
+     *
+     * @param action              {@link BoardMessageType#SEND_GARBAGE_ROWS} or {@link BoardMessageType#UPDATE_GARBAGE_ROWS}.
+     * @param numberOfGarbageRows Count of lines.
+     * @param emptyGarbageColumn  Column index for the hole.
+     */
+    private synchronized void addGarbageRowsMessage(BoardMessageType action, byte numberOfGarbageRows, byte emptyGarbageColumn) {
+        byte[] buffer;
+
+        if (connectionLost) return;
+
+        if (compactEncoding) {
+            buffer = pendingMessages.reserve(CompactBoardMessages.MAX_FRAME_LENGTH);
+            pendingMessages.advance(CompactBoardMessages.encodeGarbageRows(action, numberOfGarbageRows, emptyGarbageColumn, buffer, pendingMessages.getEnd()));
+        }
+        else {
+            // Protocol: [ID] [LINES] [EMPTY_COLUMN]
+            pendingMessages.write(action.ordinal());
+            pendingMessages.write(numberOfGarbageRows);
+            pendingMessages.write(emptyGarbageColumn);
+        }
+
+        sentMessages++;
+    }
+
+    /**
+     * Thread-safe method to serialize a hold signal and add it to the messages written in the next frame.
+     */
+    private synchronized void addHoldMessage() {
+        byte[] buffer;
+
+        if (connectionLost) return;
+
+        if (compactEncoding) {
+            buffer = pendingMessages.reserve(CompactBoardMessages.MAX_FRAME_LENGTH);
+            pendingMessages.advance(CompactBoardMessages.encode(BoardMessageType.UPDATE_TETROMINO_HOLDER, null, buffer, pendingMessages.getEnd()));
+        }
+        else pendingMessages.write(BoardMessageType.UPDATE_TETROMINO_HOLDER.ordinal());
 
-            dataOutputStream.flush();
+        sentMessages++;
+    }
+
+    /**
+     * The messages gathered since the last write, encoded after room for the prefix of their frame (if the match is
+     * framed) and published to the writer thread without copying them first. The buffer only grows, so once it holds
+     * the largest frame of the match nothing else is allocated.
+     */
+    private static class PendingMessages {
+        private static final int INITIAL_SIZE = 256;
+
+        private byte[] buffer;
+        private int prefixLength;
+        private int end;
+
+        PendingMessages() {
+            buffer = new byte[INITIAL_SIZE];
+            prefixLength = 0;
+            end = 0;
         }
-        catch (IOException ioe) {
-            // If writing fails, we assume the connection is broken.
-            // We notify the panel to handle the error UI/logic.
-            twoPlayersTetrisPanel.handleConnectionError();
+
+        byte[] getBuffer() { return buffer; }
+
+        /**
+         * @return The index after the last byte of the messages.
+         */
+        int getEnd() { return end; }
+
+        /**
+         * @return The number of bytes of the messages.
+         */
+        int size() { return end - prefixLength; }
+
+        /**
+         * Leaves room for a prefix before the messages. Must be called while there are no messages.
+         *
+         * @param prefixLength The number of bytes left before the first message.
+         */
+        void setPrefixLength(int prefixLength) {
+            this.prefixLength = prefixLength;
+            end = prefixLength;
+        }
+
+        /**
+         * Makes room for more bytes after the messages.
+         *
+         * @param length The number of bytes that are going to be written at {@link #getEnd()}.
+         * @return The buffer, which may have been replaced by a larger one.
+         */
+        byte[] reserve(int length) {
+            if (end + length > buffer.length) buffer = Arrays.copyOf(buffer, Math.max(2 * buffer.length, end + length));
+            return buffer;
         }
+
+        /**
+         * Adds the bytes written at {@link #getEnd()} to the messages.
+         *
+         * @param length The number of bytes written.
+         */
+        void advance(int length) { end += length; }
+
+        void write(int value) { reserve(1)[end++] = (byte) value; }
+
+        void reset() { end = prefixLength; }
     }
-}
\ No newline at end of file
+}
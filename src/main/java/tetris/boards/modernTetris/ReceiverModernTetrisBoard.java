@@ -4,9 +4,13 @@ import tetris.boards.ReceiverBoard;
 import tetris.boards.components.BoardGrid;
 import tetris.boards.components.TetrominoHolder;
 import tetris.boards.physics.ReceivedGarbageHandler;
+import tetris.tetrominoes.TetrominoType;
 import tetris.tetrominoes.generators.TetrominoesGeneratorType;
 
 import java.awt.*;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 
 import static client.userInterface.panels.MainPanel.CELL_SIZE;
 import static client.userInterface.panels.MainPanel.TETROMINO_HOLDER_WIDTH;
@@ -76,6 +80,29 @@ public class ReceiverModernTetrisBoard extends ReceiverBoard {
             isAlive = false;
     }
 
+    /**
+     * Adds the hold and the pending garbage to the keyframe: {@code [HELD_TYPE] [HOLD_USED] [PENDING_GARBAGE]}.
+     */
+    @Override
+    public void writeKeyframe(DataOutputStream dataOutputStream) throws IOException {
+        super.writeKeyframe(dataOutputStream);
+
+        dataOutputStream.writeByte(tetrominoHolder.getHeldTetrominoType() == null ? -1 : tetrominoHolder.getHeldTetrominoType().ordinal());
+        dataOutputStream.writeBoolean(tetrominoHolder.isLocked());
+        receivedGarbageHandler.writePendingGarbage(dataOutputStream);
+    }
+
+    @Override
+    public void readKeyframe(DataInputStream dataInputStream) throws IOException {
+        byte heldTetrominoType;
+
+        super.readKeyframe(dataInputStream);
+
+        heldTetrominoType = dataInputStream.readByte();
+        tetrominoHolder.restore(heldTetrominoType < 0 ? null : TetrominoType.values()[heldTetrominoType], dataInputStream.readBoolean());
+        receivedGarbageHandler.readPendingGarbage(dataInputStream);
+    }
+
     @Override
     public void draw(Graphics2D g2) {
         super.draw(g2);
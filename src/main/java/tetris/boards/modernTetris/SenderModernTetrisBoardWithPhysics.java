@@ -46,7 +46,7 @@ public class SenderModernTetrisBoardWithPhysics extends ModernTetrisBoardWithPhy
     }
 
     /**
-     * Intercepts the update loop to broadcast the falling piece's position every frame.
+     * Intercepts the update loop to broadcast the falling piece's position (when it changes) and the messages of the frame.
      */
     @Override
     public void update() {
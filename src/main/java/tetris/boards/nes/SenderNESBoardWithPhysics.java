@@ -28,7 +28,7 @@ public class SenderNESBoardWithPhysics extends NESBoardWithPhysics {
     }
 
     /**
-     * Intercepts the update loop to broadcast the falling piece's state.
+     * Intercepts the update loop to broadcast the falling piece's state (when it changes).
      * This ensures the opponent sees smooth movement of the local player's piece.
      */
     @Override
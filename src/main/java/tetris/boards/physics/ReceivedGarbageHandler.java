@@ -3,6 +3,10 @@ package tetris.boards.physics;
 import tetris.boards.components.BoardGrid;
 import tetris.tetrominoes.Tetromino;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
 import java.util.Queue;
 import java.util.concurrent.ConcurrentLinkedDeque;
 
@@ -85,4 +89,38 @@ public class ReceivedGarbageHandler {
         garbageRowsToAdd.add(numberOfGarbageRows);
         garbageEmptyColumnsToAdd.add(emptyGarbageColumn);
     }
-}
\ No newline at end of file
+
+    /**
+     * Writes the garbage that has not been applied yet (e.g., for a board keyframe) as
+     * {@code [COUNT] ([LINES] [EMPTY_COLUMN])*}.
+     *
+     * @param dataOutputStream The stream to write to.
+     * @throws IOException If writing fails.
+     */
+    public synchronized void writePendingGarbage(DataOutputStream dataOutputStream) throws IOException {
+        Iterator<Byte> garbageEmptyColumns = garbageEmptyColumnsToAdd.iterator();
+
+        dataOutputStream.writeByte(garbageRowsToAdd.size());
+        for (byte garbageRows : garbageRowsToAdd) {
+            dataOutputStream.writeByte(garbageRows);
+            dataOutputStream.writeByte(garbageEmptyColumns.next());
+        }
+    }
+
+    /**
+     * Replaces the pending garbage with the one written by {@link #writePendingGarbage(DataOutputStream)}.
+     *
+     * @param dataInputStream The stream to read from.
+     * @throws IOException If reading fails.
+     */
+    public synchronized void readPendingGarbage(DataInputStream dataInputStream) throws IOException {
+        int numberOfAttacks = dataInputStream.readUnsignedByte();
+
+        garbageRowsToAdd.clear();
+        garbageEmptyColumnsToAdd.clear();
+
+        for (int i = 0; i < numberOfAttacks; i++) {
+            addGarbage(dataInputStream.readByte(), dataInputStream.readByte());
+        }
+    }
+}